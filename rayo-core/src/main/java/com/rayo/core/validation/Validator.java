@@ -1,26 +1,56 @@
 package com.rayo.core.validation;
 
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.validation.ConstraintViolation;
 import javax.validation.Validation;
 import javax.validation.ValidatorFactory;
 
+/**
+ * <p>Validates commands, verbs and verb handlers with their Bean Validation constraints.</p>
+ *
+ * <p>Every instance shares the same thread safe validation engine, so creating a
+ * validator is cheap and the constraint metadata of every class is only built once.
+ * The first time a class is validated the validator checks whether the class, its
+ * fields or its getters have any constraint or cascade. Objects of classes without
+ * constraints, like most of the call commands, are not handed to the engine at all.</p>
+ *
+ * @author martin
+ *
+ */
 public class Validator {
 
 	private static ValidatorFactory factory = Validation.buildDefaultValidatorFactory();
-	private javax.validation.Validator validator;
-	
-	public Validator() {
-		
-        validator = factory.getValidator();		
-	}
-	
+	private static final javax.validation.Validator validator = factory.getValidator();
+	private static final ConcurrentMap<Class<?>, Boolean> constrained = new ConcurrentHashMap<Class<?>, Boolean>();
+
 	public void validate(Object object) throws ValidationException {
-		
+
+		if (!isConstrained(object.getClass())) {
+			return;
+		}
 		Set<ConstraintViolation<Object>> violations = validator.validate(object);
 		if (violations.size() > 0) {
 			throw new ValidationException(violations);
 		}
 	}
+
+	/**
+	 * Tells if objects of a class have anything to validate
+	 *
+	 * @param clazz Class
+	 *
+	 * @return boolean <code>true</code> if the class has any constraint or cascade
+	 */
+	public boolean isConstrained(Class<?> clazz) {
+
+		Boolean result = constrained.get(clazz);
+		if (result == null) {
+			result = validator.getConstraintsForClass(clazz).isBeanConstrained();
+			constrained.putIfAbsent(clazz, result);
+		}
+		return result;
+	}
 }
@@ -1,6 +1,9 @@
 package com.rayo.core.xml;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.dom4j.Element;
@@ -8,24 +11,46 @@ import org.dom4j.Namespace;
 
 import com.rayo.core.validation.Messages;
 import com.rayo.core.validation.ValidationException;
+import com.rayo.core.xml.providers.BaseProvider;
 
 import static com.voxeo.utils.Objects.assertion;
 
+/**
+ * <p>Default provider manager.</p>
+ *
+ * <p>Providers are indexed by namespace uri and by class, so finding the providers for
+ * an element or an object is a single map lookup instead of asking every registered
+ * provider. The namespace index only narrows the candidates for an element: every
+ * candidate is still asked whether it handles the element itself, as providers may
+ * only handle some of the elements of their namespace. The indexes keep the registration order, so when several providers handle
+ * the same namespace or class they are still tried in the order in which they were
+ * registered. Classes that are not handled by any provider are resolved against their
+ * superclasses, which lets subclasses of events be serialized by the provider of their
+ * parent class.</p>
+ *
+ * <p>The indexes are rebuilt every time a provider is registered or unregistered. The
+ * namespaces and classes declared by a {@link BaseProvider} are indexed right away and
+ * anything else is resolved the first time it is looked up. Providers are expected to
+ * always give the same answer to <code>handles</code> for the same namespace or class.</p>
+ */
 public class DefaultXmlProviderManager implements XmlProviderManager {
 
+    private static final XmlProvider[] NO_PROVIDERS = new XmlProvider[0];
+
     private List<XmlProvider> providers = new CopyOnWriteArrayList<XmlProvider>();
 
+    private volatile ConcurrentMap<String, XmlProvider[]> namespaceIndex = new ConcurrentHashMap<String, XmlProvider[]>();
+    private volatile ConcurrentMap<Class<?>, XmlProvider[]> classIndex = new ConcurrentHashMap<Class<?>, XmlProvider[]>();
+
     @Override
     public Element toXML(Object object) {
-        
+
         assertion(object != null, "Cannot serialize null reference");
-        
-        for (XmlProvider provider : providers) {
-            if (provider.handles(object.getClass())) {
-                Element element = provider.toXML(object);
-                if (element != null) {
-                	return element;
-                }
+
+        for (XmlProvider provider : providersFor(object.getClass())) {
+            Element element = provider.toXML(object);
+            if (element != null) {
+            	return element;
             }
         }
         return null;
@@ -37,7 +62,7 @@ public class DefaultXmlProviderManager implements XmlProviderManager {
 
         assertion(element != null, "Cannot deserialize null reference");
 
-        for (XmlProvider provider : providers) {
+        for (XmlProvider provider : providersFor(element.getNamespace())) {
             if (provider.handles(element)) {
                 T object = (T)provider.fromXML(element);
                 if (object != null) {
@@ -50,7 +75,8 @@ public class DefaultXmlProviderManager implements XmlProviderManager {
 
     @Override
     public boolean handles(Element element) {
-        for (XmlProvider provider : providers) {
+
+        for (XmlProvider provider : providersFor(element.getNamespace())) {
             if (provider.handles(element)) {
                 return true;
             }
@@ -60,40 +86,115 @@ public class DefaultXmlProviderManager implements XmlProviderManager {
 
     @Override
     public boolean handles(Class<?> clazz) {
-        for (XmlProvider provider : providers) {
-            if (provider.handles(clazz)) {
-                return true;
-            }
-        }
-        return false;
+
+        return providersFor(clazz).length > 0;
     }
-    
+
     @Override
     public boolean handles(Namespace namespace) {
 
         return findProvider(namespace) != null;
     }
-    
+
     @Override
     public XmlProvider findProvider(Namespace namespace) {
 
-        for (XmlProvider provider : providers) {
-            if (provider.handles(namespace)) {
-                return provider;
-            }
-        }
-        return null;
+        XmlProvider[] candidates = providersFor(namespace);
+        return candidates.length > 0 ? candidates[0] : null;
     }
 
     @Override
-    public void register(XmlProvider provider) {
+    public synchronized void register(XmlProvider provider) {
         providers.add(provider);
         provider.setManager(this);
+        rebuildIndexes();
     }
 
     @Override
-    public void unregister(XmlProvider provider) {
+    public synchronized void unregister(XmlProvider provider) {
         providers.remove(provider);
+        rebuildIndexes();
+    }
+
+    private void rebuildIndexes() {
+
+        ConcurrentMap<String, XmlProvider[]> namespaces = new ConcurrentHashMap<String, XmlProvider[]>();
+        ConcurrentMap<Class<?>, XmlProvider[]> classes = new ConcurrentHashMap<Class<?>, XmlProvider[]>();
+        for (XmlProvider provider : providers) {
+            if (provider instanceof BaseProvider) {
+                BaseProvider base = (BaseProvider)provider;
+                if (base.getNamespaces() != null) {
+                    for (String uri : base.getNamespaces()) {
+                        if (!namespaces.containsKey(uri)) {
+                            namespaces.put(uri, resolve(Namespace.get(uri)));
+                        }
+                    }
+                }
+                if (base.getClasses() != null) {
+                    for (Class<?> clazz : base.getClasses()) {
+                        if (!classes.containsKey(clazz)) {
+                            classes.put(clazz, resolve(clazz));
+                        }
+                    }
+                }
+            }
+        }
+        namespaceIndex = namespaces;
+        classIndex = classes;
+    }
+
+    private XmlProvider[] providersFor(Namespace namespace) {
+
+        // Read the index before the providers so a concurrent registration is never missed
+        ConcurrentMap<String, XmlProvider[]> index = namespaceIndex;
+        XmlProvider[] candidates = index.get(namespace.getURI());
+        if (candidates == null) {
+            candidates = resolve(namespace);
+            // Unknown namespaces come from the outside world so they are not cached
+            if (candidates.length > 0) {
+                index.putIfAbsent(namespace.getURI(), candidates);
+            }
+        }
+        return candidates;
+    }
+
+    private XmlProvider[] providersFor(Class<?> clazz) {
+
+        ConcurrentMap<Class<?>, XmlProvider[]> index = classIndex;
+        XmlProvider[] candidates = index.get(clazz);
+        if (candidates == null) {
+            candidates = NO_PROVIDERS;
+            for (Class<?> current = clazz; current != null && current != Object.class; current = current.getSuperclass()) {
+                candidates = resolve(current);
+                if (candidates.length > 0) {
+                    break;
+                }
+            }
+            index.putIfAbsent(clazz, candidates);
+        }
+        return candidates;
+    }
+
+    private XmlProvider[] resolve(Namespace namespace) {
+
+        List<XmlProvider> candidates = new ArrayList<XmlProvider>();
+        for (XmlProvider provider : providers) {
+            if (provider.handles(namespace)) {
+                candidates.add(provider);
+            }
+        }
+        return candidates.isEmpty() ? NO_PROVIDERS : candidates.toArray(new XmlProvider[candidates.size()]);
+    }
+
+    private XmlProvider[] resolve(Class<?> clazz) {
+
+        List<XmlProvider> candidates = new ArrayList<XmlProvider>();
+        for (XmlProvider provider : providers) {
+            if (provider.handles(clazz)) {
+                candidates.add(provider);
+            }
+        }
+        return candidates.isEmpty() ? NO_PROVIDERS : candidates.toArray(new XmlProvider[candidates.size()]);
     }
 
     @Override
@@ -0,0 +1,338 @@
+package com.rayo.core.xml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.dom4j.Attribute;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.Namespace;
+import org.dom4j.Node;
+import org.dom4j.Text;
+
+import com.rayo.core.verb.Ssml;
+
+/**
+ * <p>Reads and writes the SSML content of output, say, ask and transfer elements.</p>
+ *
+ * <p>SSML is embedded as markup in the Rayo elements but it is kept as text in
+ * {@link Ssml}. Reading writes the markup back in a single pass over the tree or the
+ * stream, leaving out the default namespace declarations that the Rayo namespaces
+ * would otherwise leak into the prompt. This replaces the regular expressions that
+ * the providers used to run on every node.</p>
+ *
+ * <p>Writing needs the SSML text parsed into nodes. The parsed nodes are cached by the
+ * codec for every {@link Ssml} object, so a prompt is parsed once no matter how many
+ * times it is serialized. The cache holds the prompts weakly and it is keyed by
+ * identity, as {@link Ssml} does not override <code>equals</code>. Every entry keeps the
+ * text it was parsed from, so changing the text of a prompt parses it again.</p>
+ *
+ * @author martin
+ *
+ */
+public class SsmlCodec {
+
+	private static final Map<Ssml, Parsed> cache = Collections.synchronizedMap(new WeakHashMap<Ssml, Parsed>());
+
+	/**
+	 * Reads the SSML content of a dom4j element
+	 *
+	 * @param node Element containing the SSML
+	 *
+	 * @return Ssml SSML content and voice
+	 */
+	public static Ssml decode(Element node) {
+
+		StringBuilder builder = new StringBuilder();
+		List<Namespace> declared = new ArrayList<Namespace>();
+		for (int i = 0, size = node.nodeCount(); i < size; i++) {
+			Node child = node.node(i);
+			if (child instanceof Element) {
+				writeElement((Element)child, builder, declared);
+			} else if (child instanceof Text) {
+				// Top level text is not escaped, same as dom4j's Text.asXML()
+				builder.append(child.getText());
+			}
+		}
+		Ssml ssml = new Ssml(builder.toString());
+		ssml.setVoice(node.attributeValue("voice"));
+		return ssml;
+	}
+
+	/**
+	 * Reads the SSML content of the element the reader is positioned on and moves the
+	 * reader to its end tag
+	 *
+	 * @param reader Reader positioned on the start tag of the element containing the SSML
+	 *
+	 * @return Ssml SSML content and voice
+	 */
+	public static Ssml decode(XMLStreamReader reader) throws XMLStreamException {
+
+		String voice = reader.getAttributeValue(null, "voice");
+		StringBuilder builder = new StringBuilder();
+		int depth = 0;
+		boolean openTag = false;
+		while (true) {
+			int event = reader.next();
+			if (openTag && event != XMLStreamConstants.END_ELEMENT) {
+				builder.append('>');
+				openTag = false;
+			}
+			switch (event) {
+				case XMLStreamConstants.START_ELEMENT:
+					depth++;
+					builder.append('<');
+					appendName(builder, reader.getPrefix(), reader.getLocalName());
+					for (int i = 0; i < reader.getNamespaceCount(); i++) {
+						String prefix = reader.getNamespacePrefix(i);
+						if (prefix != null && prefix.length() > 0 && !prefix.equals(XMLConstants.XML_NS_PREFIX)) {
+							builder.append(" xmlns:").append(prefix).append("=\"");
+							escape(builder, reader.getNamespaceURI(i), true);
+							builder.append('"');
+						}
+					}
+					for (int i = 0; i < reader.getAttributeCount(); i++) {
+						builder.append(' ');
+						appendName(builder, reader.getAttributePrefix(i), reader.getAttributeLocalName(i));
+						builder.append("=\"");
+						escape(builder, reader.getAttributeValue(i), true);
+						builder.append('"');
+					}
+					openTag = true;
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					if (depth == 0) {
+						Ssml ssml = new Ssml(builder.toString());
+						ssml.setVoice(voice);
+						return ssml;
+					}
+					depth--;
+					if (openTag) {
+						builder.append("/>");
+						openTag = false;
+					} else {
+						builder.append("</");
+						appendName(builder, reader.getPrefix(), reader.getLocalName());
+						builder.append('>');
+					}
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.SPACE:
+					if (depth == 0) {
+						builder.append(reader.getText());
+					} else {
+						escape(builder, reader.getText(), false);
+					}
+					break;
+				case XMLStreamConstants.CDATA:
+					// Top level CDATA sections are ignored, like in the dom4j version
+					if (depth > 0) {
+						builder.append("<![CDATA[").append(reader.getText()).append("]]>");
+					}
+					break;
+				case XMLStreamConstants.COMMENT:
+					if (depth > 0) {
+						builder.append("<!--").append(reader.getText()).append("-->");
+					}
+					break;
+				default:
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Adds the SSML content to an element
+	 *
+	 * @param ssml SSML to add. Nothing is added if it is <code>null</code>.
+	 * @param root Element the SSML is added to
+	 *
+	 * @throws DocumentException If the SSML is not well formed
+	 */
+	public static void encode(Ssml ssml, Element root) throws DocumentException {
+
+		if (ssml == null) {
+			return;
+		}
+		if (ssml.getVoice() != null) {
+			root.addAttribute("voice", ssml.getVoice());
+		}
+		for (Node node : parse(ssml)) {
+			if (node instanceof Text) {
+				root.addText(node.getText());
+			} else {
+				root.add(((Element)node).createCopy());
+			}
+		}
+	}
+
+	/**
+	 * Returns the SSML text parsed into text and element nodes. The nodes are cached for
+	 * the {@link Ssml} object and are shared, so callers must copy them before adding
+	 * them to a tree.
+	 */
+	static List<Node> parse(Ssml ssml) throws DocumentException {
+
+		String text = ssml.getText();
+		Parsed parsed = cache.get(ssml);
+		if (parsed == null || !parsed.text.equals(text)) {
+			StringBuilder builder = new StringBuilder("<wrapper>");
+			builder.append(text);
+			builder.append("</wrapper>");
+			Document document = DocumentHelper.parseText(builder.toString());
+			List<Node> nodes = new ArrayList<Node>();
+			for (Object node : document.getRootElement().content()) {
+				if (node instanceof Text || node instanceof Element) {
+					nodes.add((Node)node);
+				}
+			}
+			parsed = new Parsed(text, Collections.unmodifiableList(nodes));
+			cache.put(ssml, parsed);
+		}
+		return parsed.nodes;
+	}
+
+	/**
+	 * Writes an element the same way dom4j's <code>asXML()</code> does, without default
+	 * namespace declarations
+	 */
+	private static void writeElement(Element element, StringBuilder builder, List<Namespace> declared) {
+
+		int previouslyDeclared = declared.size();
+		int size = element.nodeCount();
+
+		builder.append('<').append(element.getQualifiedName());
+		declare(element.getNamespace(), builder, declared);
+		for (int i = 0; i < size; i++) {
+			Node node = element.node(i);
+			if (node instanceof Namespace) {
+				declare((Namespace)node, builder, declared);
+			}
+		}
+		for (int i = 0, count = element.attributeCount(); i < count; i++) {
+			Attribute attribute = element.attribute(i);
+			declare(attribute.getNamespace(), builder, declared);
+			builder.append(' ').append(attribute.getQualifiedName()).append("=\"");
+			escape(builder, attribute.getValue(), true);
+			builder.append('"');
+		}
+
+		// Namespace declarations count as content for dom4j
+		if (size == 0) {
+			builder.append("/>");
+		} else {
+			builder.append('>');
+			for (int i = 0; i < size; i++) {
+				Node node = element.node(i);
+				switch (node.getNodeType()) {
+					case Node.ELEMENT_NODE:
+						writeElement((Element)node, builder, declared);
+						break;
+					case Node.TEXT_NODE:
+						escape(builder, node.getText(), false);
+						break;
+					case Node.CDATA_SECTION_NODE:
+						builder.append("<![CDATA[").append(node.getText()).append("]]>");
+						break;
+					case Node.COMMENT_NODE:
+						builder.append("<!--").append(node.getText()).append("-->");
+						break;
+					case Node.ENTITY_REFERENCE_NODE:
+						builder.append('&').append(node.getName()).append(';');
+						break;
+					case Node.PROCESSING_INSTRUCTION_NODE:
+						builder.append("<?").append(node.getName()).append(' ').append(node.getText()).append("?>");
+						break;
+					default:
+						break;
+				}
+			}
+			builder.append("</").append(element.getQualifiedName()).append('>');
+		}
+
+		while (declared.size() > previouslyDeclared) {
+			declared.remove(declared.size() - 1);
+		}
+	}
+
+	/**
+	 * Writes a prefixed namespace declaration unless it is already in scope. Default
+	 * namespace declarations and the xml namespace are never written.
+	 */
+	private static void declare(Namespace namespace, StringBuilder builder, List<Namespace> declared) {
+
+		if (namespace == null || namespace.getURI().length() == 0 ||
+			namespace.getPrefix().length() == 0 ||
+			namespace.getPrefix().equals(XMLConstants.XML_NS_PREFIX)) {
+			return;
+		}
+		for (int i = declared.size() - 1; i >= 0; i--) {
+			Namespace current = declared.get(i);
+			if (current.getPrefix().equals(namespace.getPrefix())) {
+				if (current.getURI().equals(namespace.getURI())) {
+					return;
+				}
+				break;
+			}
+		}
+		declared.add(namespace);
+		builder.append(" xmlns:").append(namespace.getPrefix()).append("=\"");
+		escape(builder, namespace.getURI(), true);
+		builder.append('"');
+	}
+
+	private static void appendName(StringBuilder builder, String prefix, String localName) {
+
+		if (prefix != null && prefix.length() > 0) {
+			builder.append(prefix).append(':');
+		}
+		builder.append(localName);
+	}
+
+	/**
+	 * Nodes parsed from the text of a prompt. It must not reference the prompt, which
+	 * is the weak key of the entry.
+	 */
+	private static final class Parsed {
+
+		final String text;
+		final List<Node> nodes;
+
+		Parsed(String text, List<Node> nodes) {
+
+			this.text = text;
+			this.nodes = nodes;
+		}
+	}
+
+	private static void escape(StringBuilder builder, String text, boolean attribute) {
+
+		for (int i = 0, length = text.length(); i < length; i++) {
+			char c = text.charAt(i);
+			switch (c) {
+				case '<': builder.append("&lt;"); break;
+				case '>': builder.append("&gt;"); break;
+				case '&': builder.append("&amp;"); break;
+				case '"':
+					if (attribute) {
+						builder.append("&quot;");
+					} else {
+						builder.append(c);
+					}
+					break;
+				default: builder.append(c);
+			}
+		}
+	}
+}
@@ -11,9 +11,7 @@ import org.dom4j.DocumentException;
 import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.dom4j.Namespace;
-import org.dom4j.Node;
 import org.dom4j.QName;
-import org.dom4j.Text;
 import org.joda.time.Duration;
 
 import com.rayo.core.validation.Messages;
@@ -24,6 +22,7 @@ import com.rayo.core.verb.Ssml;
 import com.rayo.core.verb.VerbCompleteEvent;
 import com.rayo.core.verb.VerbCompleteEvent.Reason;
 import com.rayo.core.verb.VerbCompleteReason;
+import com.rayo.core.xml.SsmlCodec;
 import com.rayo.core.xml.XmlProvider;
 import com.rayo.core.xml.XmlProviderManager;
 import com.voxeo.utils.Enums;
@@ -98,26 +97,9 @@ public abstract class BaseProvider implements XmlProvider {
         return headers;
     }
 
-    @SuppressWarnings("unchecked")
     protected Ssml extractSsml(Element node) throws URISyntaxException {
 
-        StringBuilder builder = new StringBuilder();
-        List<Node> elements = node.content();
-        for (Node element : elements) {
-            if (element instanceof Text || element instanceof Element) {
-                String xml = element.asXML();
-                //TODO: Better namespaces cleanup. See for exmaple GH issue #19. Options are
-                // move everything to DOM or change the rayo spec to use CDATA. But currently 
-                // speak elements let people enter arbitrary xml which causes lot of trouble
-                xml = xml.replaceAll(" xmlns=\"[^\"]*\"", "");
-                xml = xml.replaceAll(" xmlns:xml=\"[^\"]*\"", "");
-                xml = xml.replaceAll(" xml:xml", " xml");
-                builder.append(xml);
-            }
-        }
-        Ssml ssml = new Ssml(builder.toString());
-        ssml.setVoice(node.attributeValue("voice"));
-        return ssml;
+        return SsmlCodec.decode(node);
     }
 
     protected void addHeaders(Map<String, String> map, Element node) {
@@ -133,24 +115,7 @@ public abstract class BaseProvider implements XmlProvider {
 
     protected void addSsml(Ssml item, Element root) throws DocumentException {
 
-        if (item != null) {
-
-            if (item.getVoice() != null) {
-                root.addAttribute("voice", item.getVoice());
-            }
-
-            StringBuilder builder = new StringBuilder("<wrapper>");
-            builder.append(item.getText());
-            builder.append("</wrapper>");
-            Document ssmlDoc = DocumentHelper.parseText(builder.toString());
-            for (Object element : ssmlDoc.getRootElement().content()) {
-                if (element instanceof Text) {
-                    root.addText(((Text) element).asXML());
-                } else if (element instanceof Element) {
-                    root.add(((Element) element).createCopy());
-                }
-            }
-        }
+        SsmlCodec.encode(item, root);
     }
 
     protected InputMode loadInputMode(Element element) {
@@ -334,6 +299,9 @@ public abstract class BaseProvider implements XmlProvider {
     @Override
     public boolean handles(Namespace ns) {
     	
+    	if (namespaces == null) {
+    		return false;
+    	}
         for (String namespace : namespaces) {
             if (namespace.equals(ns.getURI())) {
                 return true;
@@ -363,7 +331,7 @@ public abstract class BaseProvider implements XmlProvider {
     @Override
     public boolean handles(Class<?> clazz) {
 
-    	return classes.contains(clazz);
+    	return classes != null && classes.contains(clazz);
     }
 
 	public void setClasses(List<Class<?>> classes) {
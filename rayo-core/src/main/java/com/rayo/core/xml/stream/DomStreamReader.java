@@ -0,0 +1,551 @@
+package com.rayo.core.xml.stream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.ProcessingInstruction;
+
+/**
+ * <p>{@link XMLStreamReader} that walks an existing W3C DOM element.</p>
+ *
+ * <p>The XMPP container hands out stanzas as W3C DOM trees and the JDK's StAX
+ * implementation cannot read from a DOM source. This reader lets the
+ * {@link StaxCommandParser} consume those trees directly instead of copying them into a
+ * dom4j tree first. Nothing is copied, the reader just moves over the nodes.</p>
+ *
+ * <p>The reader starts positioned on the start tag of the element and finishes with an
+ * <code>END_DOCUMENT</code> event right after the element's end tag. Entity references
+ * are reported as characters. This class is not thread safe.</p>
+ *
+ * @author martin
+ *
+ */
+public class DomStreamReader implements XMLStreamReader {
+
+    private static final Location location = new Location() {
+        public int getLineNumber() { return -1; }
+        public int getColumnNumber() { return -1; }
+        public int getCharacterOffset() { return -1; }
+        public String getPublicId() { return null; }
+        public String getSystemId() { return null; }
+    };
+
+    private final Element root;
+    private Node node;
+    private int event;
+
+    // Attributes and namespace declarations of the current element
+    private final List<Attr> attributes = new ArrayList<Attr>();
+    private final List<Attr> namespaces = new ArrayList<Attr>();
+
+    public DomStreamReader(Element root) {
+
+        this.root = root;
+        this.node = root;
+        this.event = START_ELEMENT;
+        loadAttributes();
+    }
+
+    @Override
+    public int next() throws XMLStreamException {
+
+        if (event == END_DOCUMENT) {
+            throw new IllegalStateException("No more events");
+        }
+        if (event == START_ELEMENT && node.getFirstChild() != null) {
+            return moveTo(node.getFirstChild());
+        }
+        if (event != START_ELEMENT && event != END_ELEMENT) {
+            // Leaf nodes, move on to the next sibling
+            return moveToSibling();
+        }
+        if (event == START_ELEMENT) {
+            // Element without children
+            event = END_ELEMENT;
+            return event;
+        }
+        if (node == root) {
+            event = END_DOCUMENT;
+            return event;
+        }
+        return moveToSibling();
+    }
+
+    private int moveToSibling() {
+
+        Node sibling = node.getNextSibling();
+        if (sibling != null) {
+            return moveTo(sibling);
+        }
+        node = node.getParentNode();
+        loadAttributes();
+        event = END_ELEMENT;
+        return event;
+    }
+
+    private int moveTo(Node target) {
+
+        node = target;
+        switch (target.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                loadAttributes();
+                event = START_ELEMENT;
+                break;
+            case Node.CDATA_SECTION_NODE:
+                event = CDATA;
+                break;
+            case Node.COMMENT_NODE:
+                event = COMMENT;
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                event = PROCESSING_INSTRUCTION;
+                break;
+            default:
+                event = CHARACTERS;
+        }
+        return event;
+    }
+
+    private void loadAttributes() {
+
+        attributes.clear();
+        namespaces.clear();
+        NamedNodeMap map = node.getAttributes();
+        if (map == null) {
+            return;
+        }
+        for (int i = 0; i < map.getLength(); i++) {
+            Attr attr = (Attr)map.item(i);
+            if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attr.getNamespaceURI()) ||
+                attr.getName().equals(XMLConstants.XMLNS_ATTRIBUTE) ||
+                attr.getName().startsWith("xmlns:")) {
+                namespaces.add(attr);
+            } else {
+                attributes.add(attr);
+            }
+        }
+    }
+
+    @Override
+    public int nextTag() throws XMLStreamException {
+
+        int next = next();
+        while ((next == CHARACTERS && isWhiteSpace()) || next == COMMENT || next == PROCESSING_INSTRUCTION) {
+            next = next();
+        }
+        if (next != START_ELEMENT && next != END_ELEMENT) {
+            throw new XMLStreamException("Expected start or end tag");
+        }
+        return next;
+    }
+
+    @Override
+    public String getElementText() throws XMLStreamException {
+
+        if (event != START_ELEMENT) {
+            throw new XMLStreamException("Current event is not a start tag");
+        }
+        StringBuilder builder = new StringBuilder();
+        int next = next();
+        while (next != END_ELEMENT) {
+            if (next == CHARACTERS || next == CDATA) {
+                builder.append(getText());
+            } else if (next == START_ELEMENT) {
+                throw new XMLStreamException("Element text cannot contain elements");
+            }
+            next = next();
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public boolean hasNext() throws XMLStreamException {
+
+        return event != END_DOCUMENT;
+    }
+
+    @Override
+    public void require(int type, String namespaceURI, String localName) throws XMLStreamException {
+
+        if (type != event ||
+            (namespaceURI != null && !namespaceURI.equals(getNamespaceURI())) ||
+            (localName != null && !localName.equals(getLocalName()))) {
+            throw new XMLStreamException("Unexpected event " + event);
+        }
+    }
+
+    @Override
+    public void close() throws XMLStreamException {}
+
+    @Override
+    public Object getProperty(String name) {
+
+        return null;
+    }
+
+    @Override
+    public int getEventType() {
+
+        return event;
+    }
+
+    @Override
+    public boolean isStartElement() {
+
+        return event == START_ELEMENT;
+    }
+
+    @Override
+    public boolean isEndElement() {
+
+        return event == END_ELEMENT;
+    }
+
+    @Override
+    public boolean isCharacters() {
+
+        return event == CHARACTERS;
+    }
+
+    @Override
+    public boolean isWhiteSpace() {
+
+        if (event != CHARACTERS && event != SPACE) {
+            return false;
+        }
+        String text = getText();
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Elements
+    // ================================================================================
+
+    @Override
+    public QName getName() {
+
+        assertElement();
+        String prefix = getPrefix();
+        String namespace = getNamespaceURI();
+        return new QName(namespace == null ? XMLConstants.NULL_NS_URI : namespace,
+                         getLocalName(),
+                         prefix == null ? XMLConstants.DEFAULT_NS_PREFIX : prefix);
+    }
+
+    @Override
+    public String getLocalName() {
+
+        assertElement();
+        return localName(node);
+    }
+
+    @Override
+    public boolean hasName() {
+
+        return event == START_ELEMENT || event == END_ELEMENT;
+    }
+
+    @Override
+    public String getNamespaceURI() {
+
+        assertElement();
+        return node.getNamespaceURI();
+    }
+
+    @Override
+    public String getPrefix() {
+
+        assertElement();
+        return node.getPrefix();
+    }
+
+    // Attributes
+    // ================================================================================
+
+    @Override
+    public String getAttributeValue(String namespaceURI, String localName) {
+
+        assertStartElement();
+        Element element = (Element)node;
+        String namespace = namespaceURI == null || namespaceURI.length() == 0 ? null : namespaceURI;
+        Attr attr = element.getAttributeNodeNS(namespace, localName);
+        if (attr == null && namespace == null) {
+            // Element created without namespace support
+            attr = element.getAttributeNode(localName);
+        }
+        return attr == null ? null : attr.getValue();
+    }
+
+    @Override
+    public int getAttributeCount() {
+
+        assertStartElement();
+        return attributes.size();
+    }
+
+    @Override
+    public QName getAttributeName(int index) {
+
+        Attr attr = attribute(index);
+        String namespace = attr.getNamespaceURI();
+        String prefix = attr.getPrefix();
+        return new QName(namespace == null ? XMLConstants.NULL_NS_URI : namespace,
+                         localName(attr),
+                         prefix == null ? XMLConstants.DEFAULT_NS_PREFIX : prefix);
+    }
+
+    @Override
+    public String getAttributeNamespace(int index) {
+
+        return attribute(index).getNamespaceURI();
+    }
+
+    @Override
+    public String getAttributeLocalName(int index) {
+
+        return localName(attribute(index));
+    }
+
+    @Override
+    public String getAttributePrefix(int index) {
+
+        return attribute(index).getPrefix();
+    }
+
+    @Override
+    public String getAttributeType(int index) {
+
+        attribute(index);
+        return "CDATA";
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+
+        return attribute(index).getValue();
+    }
+
+    @Override
+    public boolean isAttributeSpecified(int index) {
+
+        return attribute(index).getSpecified();
+    }
+
+    private Attr attribute(int index) {
+
+        assertStartElement();
+        return attributes.get(index);
+    }
+
+    // Namespaces
+    // ================================================================================
+
+    @Override
+    public int getNamespaceCount() {
+
+        assertElement();
+        return namespaces.size();
+    }
+
+    @Override
+    public String getNamespacePrefix(int index) {
+
+        assertElement();
+        Attr attr = namespaces.get(index);
+        String name = attr.getName();
+        return name.equals(XMLConstants.XMLNS_ATTRIBUTE) ? null : name.substring(name.indexOf(':') + 1);
+    }
+
+    @Override
+    public String getNamespaceURI(int index) {
+
+        assertElement();
+        return namespaces.get(index).getValue();
+    }
+
+    @Override
+    public String getNamespaceURI(String prefix) {
+
+        if (prefix == null) {
+            throw new IllegalArgumentException("Prefix cannot be null");
+        }
+        return getNamespaceContext().getNamespaceURI(prefix);
+    }
+
+    @Override
+    public NamespaceContext getNamespaceContext() {
+
+        final Node context = node.getNodeType() == Node.ELEMENT_NODE ? node : node.getParentNode();
+        return new NamespaceContext() {
+
+            @Override
+            public String getNamespaceURI(String prefix) {
+                if (XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+                    return XMLConstants.XML_NS_URI;
+                }
+                if (XMLConstants.XMLNS_ATTRIBUTE.equals(prefix)) {
+                    return XMLConstants.XMLNS_ATTRIBUTE_NS_URI;
+                }
+                return context.lookupNamespaceURI(prefix.length() == 0 ? null : prefix);
+            }
+
+            @Override
+            public String getPrefix(String namespaceURI) {
+                return context.lookupPrefix(namespaceURI);
+            }
+
+            @Override
+            public Iterator<String> getPrefixes(String namespaceURI) {
+                String prefix = getPrefix(namespaceURI);
+                if (prefix == null) {
+                    return Collections.<String>emptyList().iterator();
+                }
+                return Collections.singletonList(prefix).iterator();
+            }
+        };
+    }
+
+    // Text
+    // ================================================================================
+
+    @Override
+    public String getText() {
+
+        if (event != CHARACTERS && event != CDATA && event != COMMENT && event != SPACE) {
+            throw new IllegalStateException("Current event has no text");
+        }
+        return node.getNodeType() == Node.ENTITY_REFERENCE_NODE ? node.getTextContent() : node.getNodeValue();
+    }
+
+    @Override
+    public char[] getTextCharacters() {
+
+        return getText().toCharArray();
+    }
+
+    @Override
+    public int getTextCharacters(int sourceStart, char[] target, int targetStart, int length) throws XMLStreamException {
+
+        String text = getText();
+        int count = Math.min(length, text.length() - sourceStart);
+        if (count <= 0) {
+            return 0;
+        }
+        text.getChars(sourceStart, sourceStart + count, target, targetStart);
+        return count;
+    }
+
+    @Override
+    public int getTextStart() {
+
+        return 0;
+    }
+
+    @Override
+    public int getTextLength() {
+
+        return getText().length();
+    }
+
+    @Override
+    public boolean hasText() {
+
+        return event == CHARACTERS || event == CDATA || event == COMMENT || event == SPACE;
+    }
+
+    @Override
+    public String getPITarget() {
+
+        return event == PROCESSING_INSTRUCTION ? ((ProcessingInstruction)node).getTarget() : null;
+    }
+
+    @Override
+    public String getPIData() {
+
+        return event == PROCESSING_INSTRUCTION ? ((ProcessingInstruction)node).getData() : null;
+    }
+
+    // Document
+    // ================================================================================
+
+    @Override
+    public Location getLocation() {
+
+        return location;
+    }
+
+    @Override
+    public String getEncoding() {
+
+        return null;
+    }
+
+    @Override
+    public String getVersion() {
+
+        return null;
+    }
+
+    @Override
+    public boolean isStandalone() {
+
+        return false;
+    }
+
+    @Override
+    public boolean standaloneSet() {
+
+        return false;
+    }
+
+    @Override
+    public String getCharacterEncodingScheme() {
+
+        return null;
+    }
+
+    private void assertElement() {
+
+        if (event != START_ELEMENT && event != END_ELEMENT) {
+            throw new IllegalStateException("Current event is not a start or end tag");
+        }
+    }
+
+    private void assertStartElement() {
+
+        if (event != START_ELEMENT) {
+            throw new IllegalStateException("Current event is not a start tag");
+        }
+    }
+
+    private static String localName(Node node) {
+
+        String name = node.getLocalName();
+        if (name == null) {
+            // Node created without namespace support
+            name = node.getNodeName();
+            int colon = name.indexOf(':');
+            if (colon != -1) {
+                name = name.substring(colon + 1);
+            }
+        }
+        return name;
+    }
+}
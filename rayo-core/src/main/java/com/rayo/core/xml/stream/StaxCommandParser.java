@@ -0,0 +1,953 @@
+package com.rayo.core.xml.stream;
+
+import static com.voxeo.utils.Strings.isEmpty;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.media.mscontrol.join.Joinable.Direction;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.joda.time.Duration;
+
+import com.rayo.core.AcceptCommand;
+import com.rayo.core.AnswerCommand;
+import com.rayo.core.CallRejectReason;
+import com.rayo.core.ConnectCommand;
+import com.rayo.core.DestroyMixerCommand;
+import com.rayo.core.DialCommand;
+import com.rayo.core.DtmfCommand;
+import com.rayo.core.DtmfEvent;
+import com.rayo.core.HangupCommand;
+import com.rayo.core.JoinCommand;
+import com.rayo.core.JoinDestinationType;
+import com.rayo.core.RedirectCommand;
+import com.rayo.core.RejectCommand;
+import com.rayo.core.UnjoinCommand;
+import com.rayo.core.validation.Messages;
+import com.rayo.core.validation.ValidationException;
+import com.rayo.core.validation.Validator;
+import com.rayo.core.verb.Ask;
+import com.rayo.core.verb.Choices;
+import com.rayo.core.verb.CpaData;
+import com.rayo.core.verb.HoldCommand;
+import com.rayo.core.verb.Input;
+import com.rayo.core.verb.InputMode;
+import com.rayo.core.verb.MediaType;
+import com.rayo.core.verb.MuteCommand;
+import com.rayo.core.verb.Output;
+import com.rayo.core.verb.PauseCommand;
+import com.rayo.core.verb.Record;
+import com.rayo.core.verb.RecordPauseCommand;
+import com.rayo.core.verb.RecordResumeCommand;
+import com.rayo.core.verb.ResumeCommand;
+import com.rayo.core.verb.Say;
+import com.rayo.core.verb.SeekCommand;
+import com.rayo.core.verb.SpeedDownCommand;
+import com.rayo.core.verb.SpeedUpCommand;
+import com.rayo.core.verb.StopCommand;
+import com.rayo.core.verb.Transfer;
+import com.rayo.core.verb.UnholdCommand;
+import com.rayo.core.verb.UnmuteCommand;
+import com.rayo.core.verb.VolumeDownCommand;
+import com.rayo.core.verb.VolumeUpCommand;
+import com.rayo.core.xml.SsmlCodec;
+import com.voxeo.moho.Participant.JoinType;
+import com.voxeo.moho.media.output.OutputCommand.BargeinType;
+
+/**
+ * <p>Streaming parser for the most frequent Rayo commands.</p>
+ *
+ * <p>The xml providers need a dom4j tree, so every command used to be read into a
+ * W3C DOM by the container, copied into a dom4j tree and then walked by the providers.
+ * This parser builds the very same command objects in a single pass over a
+ * {@link XMLStreamReader}, so no intermediate tree is created. Commands are validated
+ * with the same {@link Validator} and fail with the same {@link ValidationException}
+ * messages than the ones raised by the providers.</p>
+ *
+ * <p>Call control commands and the output, say, input, ask, record and transfer
+ * components are parsed. Use {@link #handles(String, String)} to check if an element
+ * is supported before handing it to the parser. Anything else, like events and
+ * complete elements, has to go through the {@link com.rayo.core.xml.XmlProviderManager}.</p>
+ *
+ * <p>Instances are thread safe.</p>
+ *
+ * @author martin
+ *
+ */
+public class StaxCommandParser {
+
+    private static final String RAYO_NAMESPACE = "urn:xmpp:rayo:1";
+    private static final String RAYO_COMPONENT_NAMESPACE = "urn:xmpp:rayo:ext:1";
+    private static final String RAYO_COMPLETE_NAMESPACE = "urn:xmpp:rayo:ext:complete:1";
+    private static final String OUTPUT_NAMESPACE = "urn:xmpp:rayo:output:1";
+    private static final String SAY_NAMESPACE = "urn:xmpp:tropo:say:1";
+    private static final String INPUT_NAMESPACE = "urn:xmpp:rayo:input:1";
+    private static final String ASK_NAMESPACE = "urn:xmpp:tropo:ask:1";
+    private static final String RECORD_NAMESPACE = "urn:xmpp:rayo:record:1";
+    private static final String TRANSFER_NAMESPACE = "urn:xmpp:tropo:transfer:1";
+
+    private static final String CPA_NAMESPACE = "urn:xmpp:rayo:cpa";
+    private static final Map<String, String> cpaSignals = new HashMap<String, String>();
+    static {
+        // Same signals than the ones in InputProvider
+        cpaSignals.put("urn:xmpp:rayo:cpa:beep:1", "beep");
+        cpaSignals.put("urn:xmpp:rayo:cpa:modem:1", "dtmf");
+        cpaSignals.put("urn:xmpp:rayo:cpa:fax:1", "fax");
+        cpaSignals.put("urn:xmpp:rayo:cpa:fax-cng:1", "fax-cng");
+        cpaSignals.put("urn:xmpp:rayo:cpa:dtmf:1", "dtmf");
+        cpaSignals.put("urn:xmpp:rayo:cpa:ring:1", "ring");
+        cpaSignals.put("urn:xmpp:rayo:cpa:sit:1", "sit");
+        cpaSignals.put("urn:xmpp:rayo:cpa:offhook:1", "offhook");
+        cpaSignals.put("urn:xmpp:rayo:cpa:speech:1", "speech");
+        cpaSignals.put("urn:xmpp:rayo:cpa:foo:1", "foo");
+    }
+
+    private static final Map<String, Set<String>> commands = new HashMap<String, Set<String>>();
+    static {
+        // Same element names that the rayo provider accepts on any of its namespaces
+        Set<String> rayo = new HashSet<String>(Arrays.asList("accept", "answer", "hangup", "reject",
+                "redirect", "hold", "unhold", "mute", "unmute", "join", "unjoin", "dial", "connect",
+                "dtmf", "stop", "destroy-if-empty"));
+        commands.put(RAYO_NAMESPACE, rayo);
+        commands.put(RAYO_COMPONENT_NAMESPACE, rayo);
+        commands.put(RAYO_COMPLETE_NAMESPACE, rayo);
+        commands.put(OUTPUT_NAMESPACE, new HashSet<String>(Arrays.asList("output", "pause", "resume",
+                "seek", "speed-up", "speed-down", "volume-up", "volume-down")));
+        commands.put(SAY_NAMESPACE, new HashSet<String>(Arrays.asList("say", "pause", "resume")));
+        commands.put(INPUT_NAMESPACE, new HashSet<String>(Arrays.asList("input")));
+        commands.put(ASK_NAMESPACE, new HashSet<String>(Arrays.asList("ask")));
+        commands.put(RECORD_NAMESPACE, new HashSet<String>(Arrays.asList("record", "pause", "resume")));
+        commands.put(TRANSFER_NAMESPACE, new HashSet<String>(Arrays.asList("transfer")));
+    }
+
+    // Makes the JDK parser report CDATA sections so they can be told apart from text
+    private static final String REPORT_CDATA = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+    private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+    static {
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        if (inputFactory.isPropertySupported(REPORT_CDATA)) {
+            inputFactory.setProperty(REPORT_CDATA, Boolean.TRUE);
+        }
+    }
+
+    private Validator validator;
+
+    /**
+     * Tells if the given element can be parsed by this parser
+     *
+     * @param namespace Namespace of the element
+     * @param name Local name of the element
+     *
+     * @return boolean <code>true</code> if the element is supported
+     */
+    public boolean handles(String namespace, String name) {
+
+        if (namespace == null || name == null) {
+            return false;
+        }
+        Set<String> names = commands.get(namespace);
+        return names != null && names.contains(name);
+    }
+
+    /**
+     * Parses a command from its text form
+     *
+     * @param xml Command
+     *
+     * @return Object Command or <code>null</code> if the element is not supported
+     */
+    public Object parse(String xml) {
+
+        return parse(new StringReader(xml));
+    }
+
+    /**
+     * Parses a command from a character stream
+     *
+     * @param reader Command
+     *
+     * @return Object Command or <code>null</code> if the element is not supported
+     */
+    public Object parse(Reader reader) {
+
+        XMLStreamReader stream = null;
+        try {
+            stream = inputFactory.createXMLStreamReader(reader);
+            return parse(stream);
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (XMLStreamException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses the command the reader is positioned on. On return the reader is
+     * positioned on the end tag of the command unless the element is not supported,
+     * in which case the reader is not moved.
+     *
+     * @param reader Reader positioned on the start of the document or on the start
+     * tag of the command
+     *
+     * @return Object Command or <code>null</code> if the element is not supported
+     *
+     * @throws ValidationException If the command is not valid
+     */
+    public Object parse(XMLStreamReader reader) {
+
+        Object command = null;
+        try {
+            if (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+                reader.nextTag();
+            }
+            String namespace = reader.getNamespaceURI();
+            String name = reader.getLocalName();
+            if (!handles(namespace, name)) {
+                return null;
+            }
+            if (namespace.equals(OUTPUT_NAMESPACE)) {
+                command = processOutputElement(name, reader);
+            } else if (namespace.equals(SAY_NAMESPACE)) {
+                command = processSayElement(name, reader);
+            } else if (namespace.equals(INPUT_NAMESPACE)) {
+                command = buildInput(reader);
+            } else if (namespace.equals(ASK_NAMESPACE)) {
+                command = buildAsk(reader);
+            } else if (namespace.equals(RECORD_NAMESPACE)) {
+                command = processRecordElement(name, reader);
+            } else if (namespace.equals(TRANSFER_NAMESPACE)) {
+                command = buildTransfer(reader);
+            } else {
+                command = processRayoElement(name, reader);
+            }
+        } catch (ValidationException ve) {
+            throw ve;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        if (validator != null) {
+            validator.validate(command);
+        }
+        return command;
+    }
+
+    private Object processRayoElement(String name, XMLStreamReader reader) throws Exception {
+
+        if (name.equals("accept")) {
+            AcceptCommand accept = new AcceptCommand(null);
+            if (reader.getAttributeValue(null, "earlyMedia") != null) {
+                accept.setEarlyMedia(toBoolean("earlyMedia", reader));
+            }
+            accept.setHeaders(grabHeaders(reader));
+            return accept;
+        } else if (name.equals("answer")) {
+            AnswerCommand answer = new AnswerCommand(null);
+            answer.setHeaders(grabHeaders(reader));
+            return answer;
+        } else if (name.equals("hangup")) {
+            HangupCommand hangup = new HangupCommand(null);
+            hangup.setHeaders(grabHeaders(reader));
+            return hangup;
+        } else if (name.equals("reject")) {
+            return buildRejectCommand(reader);
+        } else if (name.equals("redirect")) {
+            RedirectCommand redirect = new RedirectCommand(null);
+            redirect.setTo(toURI(reader.getAttributeValue(null, "to")));
+            redirect.setHeaders(grabHeaders(reader));
+            return redirect;
+        } else if (name.equals("dial")) {
+            return buildDialCommand(reader);
+        } else if (name.equals("join")) {
+            JoinCommand join = buildJoinCommand(reader);
+            skipElement(reader);
+            return join;
+        } else if (name.equals("unjoin")) {
+            UnjoinCommand unjoin = new UnjoinCommand();
+            if (reader.getAttributeValue(null, "call-id") != null) {
+                unjoin.setFrom(reader.getAttributeValue(null, "call-id"));
+                unjoin.setType(JoinDestinationType.CALL);
+            } else if (reader.getAttributeValue(null, "mixer-name") != null) {
+                unjoin.setFrom(reader.getAttributeValue(null, "mixer-name"));
+                unjoin.setType(JoinDestinationType.MIXER);
+            }
+            skipElement(reader);
+            return unjoin;
+        } else if (name.equals("connect")) {
+            return buildConnectCommand(reader);
+        } else if (name.equals("dtmf")) {
+            Object dtmf = null;
+            if (reader.getAttributeValue(null, "signal") != null) {
+                dtmf = new DtmfEvent(null, reader.getAttributeValue(null, "signal"));
+            } else {
+                dtmf = new DtmfCommand(reader.getAttributeValue(null, "tones"));
+            }
+            skipElement(reader);
+            return dtmf;
+        }
+
+        skipElement(reader);
+        if (name.equals("hold")) {
+            return new HoldCommand();
+        } else if (name.equals("unhold")) {
+            return new UnholdCommand();
+        } else if (name.equals("mute")) {
+            return new MuteCommand();
+        } else if (name.equals("unmute")) {
+            return new UnmuteCommand();
+        } else if (name.equals("stop")) {
+            return new StopCommand();
+        } else if (name.equals("destroy-if-empty")) {
+            return new DestroyMixerCommand();
+        }
+        return null;
+    }
+
+    private Object processOutputElement(String name, XMLStreamReader reader) throws Exception {
+
+        if (name.equals("output")) {
+            return buildOutput(reader);
+        } else if (name.equals("seek")) {
+            SeekCommand command = new SeekCommand();
+            if (reader.getAttributeValue(null, "direction") != null) {
+                command.setDirection(toEnum(SeekCommand.Direction.class, "direction", reader));
+            }
+            if (reader.getAttributeValue(null, "amount") != null) {
+                command.setAmount(toInteger("amount", reader));
+            }
+            skipElement(reader);
+            return command;
+        }
+
+        skipElement(reader);
+        if (name.equals("pause")) {
+            return new PauseCommand();
+        } else if (name.equals("resume")) {
+            return new ResumeCommand();
+        } else if (name.equals("speed-up")) {
+            return new SpeedUpCommand();
+        } else if (name.equals("speed-down")) {
+            return new SpeedDownCommand();
+        } else if (name.equals("volume-up")) {
+            return new VolumeUpCommand();
+        } else if (name.equals("volume-down")) {
+            return new VolumeDownCommand();
+        }
+        return null;
+    }
+
+    private Object processSayElement(String name, XMLStreamReader reader) throws Exception {
+
+        if (name.equals("say")) {
+            Say say = new Say();
+            say.setPrompt(SsmlCodec.decode(reader));
+            return say;
+        }
+
+        skipElement(reader);
+        if (name.equals("pause")) {
+            return new PauseCommand();
+        } else if (name.equals("resume")) {
+            return new ResumeCommand();
+        }
+        return null;
+    }
+
+    private Object processRecordElement(String name, XMLStreamReader reader) throws Exception {
+
+        if (name.equals("record")) {
+            return buildRecord(reader);
+        }
+
+        skipElement(reader);
+        if (name.equals("pause")) {
+            return new RecordPauseCommand();
+        } else if (name.equals("resume")) {
+            return new RecordResumeCommand();
+        }
+        return null;
+    }
+
+    private Object buildRejectCommand(XMLStreamReader reader) throws XMLStreamException {
+
+        RejectCommand reject = new RejectCommand();
+        Map<String, String> headers = new HashMap<String, String>();
+        String reasonName = null;
+        while (nextChild(reader)) {
+            String name = reader.getLocalName();
+            if (reasonName == null) {
+                reasonName = name;
+            }
+            if (name.equals("header")) {
+                headers.put(reader.getAttributeValue(null, "name"), reader.getAttributeValue(null, "value"));
+            }
+            skipElement(reader);
+        }
+        if (reasonName == null) {
+            throw new ValidationException(Messages.MISSING_REASON);
+        }
+        try {
+            reject.setReason(CallRejectReason.valueOf(reasonName.toUpperCase()));
+        } catch (IllegalArgumentException iae) {
+            throw new ValidationException(Messages.INVALID_REASON);
+        }
+        reject.setHeaders(headers);
+        return reject;
+    }
+
+    private Object buildDialCommand(XMLStreamReader reader) throws XMLStreamException {
+
+        DialCommand command = new DialCommand();
+        command.setFrom(toURI(reader.getAttributeValue(null, "from")));
+        command.setTo(toURI(reader.getAttributeValue(null, "to")));
+        Map<String, String> headers = new HashMap<String, String>();
+        while (nextChild(reader)) {
+            String name = reader.getLocalName();
+            if (name.equals("header")) {
+                headers.put(reader.getAttributeValue(null, "name"), reader.getAttributeValue(null, "value"));
+            } else if (name.equals("join") && command.getJoin() == null) {
+                command.setJoin(buildJoinCommand(reader));
+            }
+            skipElement(reader);
+        }
+        command.setHeaders(headers);
+        return command;
+    }
+
+    private JoinCommand buildJoinCommand(XMLStreamReader reader) {
+
+        JoinCommand join = new JoinCommand();
+        if (reader.getAttributeValue(null, "media") != null) {
+            join.setMedia(toEnum(JoinType.class, "media", reader));
+        }
+        if (reader.getAttributeValue(null, "direction") != null) {
+            join.setDirection(toEnum(Direction.class, "direction", reader));
+        }
+        if (reader.getAttributeValue(null, "force") != null) {
+            join.setForce(toBoolean("force", reader));
+        }
+        if (reader.getAttributeValue(null, "call-id") != null) {
+            join.setTo(reader.getAttributeValue(null, "call-id"));
+            join.setType(JoinDestinationType.CALL);
+        } else if (reader.getAttributeValue(null, "mixer-name") != null) {
+            join.setTo(reader.getAttributeValue(null, "mixer-name"));
+            join.setType(JoinDestinationType.MIXER);
+        }
+        return join;
+    }
+
+    private Object buildConnectCommand(XMLStreamReader reader) throws XMLStreamException {
+
+        ConnectCommand command = new ConnectCommand();
+        List<URI> targets = null;
+        while (nextChild(reader)) {
+            if (reader.getLocalName().equals("target")) {
+                if (targets == null) {
+                    targets = new ArrayList<URI>();
+                }
+                targets.add(toURI(readText(reader)));
+            } else {
+                skipElement(reader);
+            }
+        }
+        if (targets != null) {
+            command.setTargets(targets);
+        }
+        return command;
+    }
+
+    private Object buildOutput(XMLStreamReader reader) throws XMLStreamException {
+
+        Output output = new Output();
+        output.setVoice(reader.getAttributeValue(null, "voice"));
+        if (reader.getAttributeValue(null, "broadcast") != null) {
+            output.setBroadcast(toBoolean("broadcast", reader));
+        }
+        if (reader.getAttributeValue(null, "interrupt-on") != null) {
+            try {
+                output.setBargeinType(BargeinType.valueOf(reader.getAttributeValue(null, "interrupt-on").toUpperCase()));
+            } catch (Exception e) {
+                throw new ValidationException(Messages.INVALID_BARGEIN_TYPE);
+            }
+        }
+        if (reader.getAttributeValue(null, "start-offset") != null) {
+            output.setStartOffset(toDuration("start-offset", reader));
+        }
+        if (reader.getAttributeValue(null, "start-paused") != null) {
+            output.setStartPaused(toBoolean("start-paused", reader));
+        }
+        if (reader.getAttributeValue(null, "repeat-interval") != null) {
+            output.setRepeatInterval(toDuration("repeat-interval", reader));
+        }
+        if (reader.getAttributeValue(null, "repeat-times") != null) {
+            output.setRepeatTimes(toInteger("repeat-times", reader));
+        }
+        if (reader.getAttributeValue(null, "max-time") != null) {
+            output.setMaxTime(toDuration("max-time", reader));
+        }
+        // Consumes the element so it has to go last
+        output.setPrompt(SsmlCodec.decode(reader));
+        return output;
+    }
+
+    private Object buildInput(XMLStreamReader reader) throws XMLStreamException {
+
+        Input input = new Input();
+        if (reader.getAttributeValue(null, "min-confidence") != null) {
+            input.setMinConfidence(toFloatConfidence(reader.getAttributeValue(null, "min-confidence")));
+        }
+        if (reader.getAttributeValue(null, "initial-timeout") != null) {
+            input.setInitialTimeout(toDuration("initial-timeout", reader));
+        }
+        if (reader.getAttributeValue(null, "mode") != null) {
+            input.setMode(loadInputMode(reader));
+        }
+        if (reader.getAttributeValue(null, "inter-digit-timeout") != null) {
+            input.setInterDigitTimeout(toDuration("inter-digit-timeout", reader));
+        }
+        if (reader.getAttributeValue(null, "recognizer") != null) {
+            input.setRecognizer(reader.getAttributeValue(null, "recognizer"));
+        }
+        if (reader.getAttributeValue(null, "sensitivity") != null) {
+            input.setSensitivity(toFloat("sensitivity", reader));
+        }
+        if (reader.getAttributeValue(null, "max-silence") != null) {
+            input.setMaxSilence(toDuration("max-silence", reader));
+        }
+        if (reader.getAttributeValue(null, "terminator") != null) {
+            input.setTerminator(toTerminator(reader.getAttributeValue(null, "terminator")));
+        }
+
+        List<Choices> grammars = new ArrayList<Choices>();
+        while (nextChild(reader)) {
+            if (reader.getLocalName().equals("grammar")) {
+                Choices grammar = buildGrammar(input, reader);
+                if (grammar != null) {
+                    grammars.add(grammar);
+                }
+            } else {
+                skipElement(reader);
+            }
+        }
+        input.setGrammars(grammars);
+        return input;
+    }
+
+    /**
+     * Reads a grammar of an input element. CPA grammars are set on the input and 
+     * <code>null</code> is returned.
+     */
+    private Choices buildGrammar(Input input, XMLStreamReader reader) throws XMLStreamException {
+
+        String contentType = reader.getAttributeValue(null, "content-type");
+        String url = reader.getAttributeValue(null, "url");
+        // The text, rulerefs and metas of the grammar are needed before telling if it is a CPA grammar
+        StringBuilder text = new StringBuilder();
+        List<String> rulerefs = new ArrayList<String>();
+        List<String[]> metas = new ArrayList<String[]>();
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (reader.getLocalName().equals("ruleref")) {
+                    rulerefs.add(reader.getAttributeValue(null, "uri"));
+                } else if (reader.getLocalName().equals("meta")) {
+                    metas.add(new String[] { reader.getAttributeValue(null, "name"), reader.getAttributeValue(null, "content") });
+                }
+                skipElement(reader);
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            } else if (event == XMLStreamConstants.CHARACTERS ||
+                       event == XMLStreamConstants.CDATA ||
+                       event == XMLStreamConstants.SPACE) {
+                text.append(reader.getText());
+            }
+        }
+
+        if (!rulerefs.isEmpty() && rulerefs.get(0).contains(CPA_NAMESPACE)) {
+            CpaData data = new CpaData();
+            for (String[] meta: metas) {
+                String name = meta[0];
+                if (name.equals("maxTime")) {
+                    data.setMaxTime(Long.parseLong(meta[1]));
+                }
+                if (name.equals("minSpeechDuration")) {
+                    data.setMinSpeechDuration(Long.parseLong(meta[1]));
+                }
+                if (name.equals("minVolume")) {
+                    data.setMinVolume(Long.parseLong(meta[1]));
+                }
+                if (name.equals("finalSilence")) {
+                    data.setFinalSilence(Long.parseLong(meta[1]));
+                }
+                if (name.equals("terminate")) {
+                    data.setTerminate(Boolean.parseBoolean(meta[1]));
+                }
+            }
+            List<String> signals = new ArrayList<String>();
+            for (String uri: rulerefs) {
+                if (uri != null && cpaSignals.containsKey(uri)) {
+                    signals.add(cpaSignals.get(uri));
+                }
+            }
+            data.setSignals(signals.toArray(new String[]{}));
+            input.setCpaData(data);
+            return null;
+        }
+
+        Choices grammar = new Choices();
+        grammar.setContentType(contentType);
+        if (url != null) {
+            grammar.setUri(toURI(url));
+        } else {
+            String content = isEmpty(text.toString(), (String) null);
+            if (content != null && content.startsWith("<![CDATA[")) {
+                content = content.substring(9, content.length()-3);
+            }
+            grammar.setContent(content);
+        }
+        return grammar;
+    }
+
+    private Object buildAsk(XMLStreamReader reader) throws XMLStreamException {
+
+        Ask ask = new Ask();
+        if (reader.getAttributeValue(null, "bargein") != null) {
+            ask.setBargein(toBoolean("bargein", reader));
+        }
+        if (reader.getAttributeValue(null, "min-confidence") != null) {
+            ask.setMinConfidence(toFloatConfidence(reader.getAttributeValue(null, "min-confidence")));
+        }
+        if (reader.getAttributeValue(null, "mode") != null) {
+            ask.setMode(loadInputMode(reader));
+        }
+        ask.setRecognizer(reader.getAttributeValue(null, "recognizer"));
+        if (reader.getAttributeValue(null, "terminator") != null) {
+            ask.setTerminator(toTerminator(reader.getAttributeValue(null, "terminator")));
+        }
+        if (reader.getAttributeValue(null, "timeout") != null) {
+            ask.setTimeout(toTimeout(reader.getAttributeValue(null, "timeout")));
+        }
+        ask.setVoice(reader.getAttributeValue(null, "voice"));
+
+        List<Choices> choices = new ArrayList<Choices>();
+        while (nextChild(reader)) {
+            String name = reader.getLocalName();
+            if (name.equals("prompt") && ask.getPrompt() == null) {
+                ask.setPrompt(SsmlCodec.decode(reader));
+            } else if (name.equals("choices")) {
+                Choices choice = new Choices();
+                choice.setContentType(reader.getAttributeValue(null, "content-type"));
+                String url = reader.getAttributeValue(null, "url");
+                String content = readText(reader);
+                if (url != null) {
+                    choice.setUri(toURI(url));
+                } else {
+                    choice.setContent(isEmpty(content, (String) null));
+                }
+                choices.add(choice);
+            } else {
+                skipElement(reader);
+            }
+        }
+        ask.setChoices(choices);
+        return ask;
+    }
+
+    private Object buildRecord(XMLStreamReader reader) throws XMLStreamException {
+
+        Record record = new Record();
+        if (reader.getAttributeValue(null, "to") != null) {
+            record.setTo(toURI(reader.getAttributeValue(null, "to")));
+        }
+        if (reader.getAttributeValue(null, "final-timeout") != null) {
+            record.setFinalTimeout(toDuration("final-timeout", reader));
+        }
+        if (reader.getAttributeValue(null, "format") != null) {
+            record.setFormat(reader.getAttributeValue(null, "format"));
+        }
+        if (reader.getAttributeValue(null, "initial-timeout") != null) {
+            record.setInitialTimeout(toDuration("initial-timeout", reader));
+        }
+        if (reader.getAttributeValue(null, "max-duration") != null) {
+            record.setMaxDuration(toDuration("max-duration", reader));
+        }
+        if (reader.getAttributeValue(null, "start-beep") != null) {
+            record.setStartBeep(toBoolean("start-beep", reader));
+        }
+        if (reader.getAttributeValue(null, "stop-beep") != null) {
+            record.setStopBeep(toBoolean("stop-beep", reader));
+        }
+        if (reader.getAttributeValue(null, "start-paused") != null) {
+            record.setStartPaused(toBoolean("start-paused", reader));
+        }
+        if (reader.getAttributeValue(null, "duplex") != null) {
+            record.setDuplex(toBoolean("duplex", reader));
+        }
+        skipElement(reader);
+        return record;
+    }
+
+    private Object buildTransfer(XMLStreamReader reader) throws XMLStreamException {
+
+        Transfer transfer = new Transfer();
+        if (reader.getAttributeValue(null, "terminator") != null) {
+            transfer.setTerminator(toTerminator(reader.getAttributeValue(null, "terminator")));
+        }
+        if (reader.getAttributeValue(null, "timeout") != null) {
+            transfer.setTimeout(toTimeout(reader.getAttributeValue(null, "timeout")));
+        }
+        if (reader.getAttributeValue(null, "answer-on-media") != null) {
+            transfer.setAnswerOnMedia(toBoolean("answer-on-media", reader));
+        }
+        if (reader.getAttributeValue(null, "media") != null) {
+            try {
+                transfer.setMedia(MediaType.getFromString(reader.getAttributeValue(null, "media")));
+            } catch (Exception e) {
+                throw new ValidationException(Messages.INVALID_MEDIA);
+            }
+        }
+        if (reader.getAttributeValue(null, "from") != null) {
+            transfer.setFrom(toURI(reader.getAttributeValue(null, "from")));
+        }
+
+        List<URI> to = null;
+        String toAttribute = reader.getAttributeValue(null, "to");
+        if (toAttribute != null) {
+            to = new ArrayList<URI>();
+            if (!toAttribute.trim().equals("")) {
+                to.add(toURI(toAttribute));
+            }
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        while (nextChild(reader)) {
+            String name = reader.getLocalName();
+            if (name.equals("ringback") && transfer.getRingbackTone() == null) {
+                transfer.setRingbackTone(SsmlCodec.decode(reader));
+            } else if (name.equals("to")) {
+                if (to == null) {
+                    to = new ArrayList<URI>();
+                }
+                String text = readText(reader);
+                if (!text.equals("")) {
+                    to.add(toURI(text));
+                }
+            } else {
+                if (name.equals("header")) {
+                    headers.put(reader.getAttributeValue(null, "name"), reader.getAttributeValue(null, "value"));
+                }
+                skipElement(reader);
+            }
+        }
+        if (to != null) {
+            transfer.setTo(to);
+        }
+        transfer.setHeaders(headers);
+        return transfer;
+    }
+
+    // Reader helpers
+    // ================================================================================
+
+    /**
+     * Moves the reader to the start tag of the next child element. Returns
+     * <code>false</code> when the end tag of the current element is reached.
+     */
+    private boolean nextChild(XMLStreamReader reader) throws XMLStreamException {
+
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Moves the reader to the end tag of the current element
+     */
+    private void skipElement(XMLStreamReader reader) throws XMLStreamException {
+
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Reads the text that is a direct child of the current element, like dom4j's
+     * <code>getText()</code> does, and moves the reader to its end tag
+     */
+    private String readText(XMLStreamReader reader) throws XMLStreamException {
+
+        StringBuilder builder = new StringBuilder();
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                skipElement(reader);
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                return builder.toString();
+            } else if (event == XMLStreamConstants.CHARACTERS ||
+                       event == XMLStreamConstants.CDATA ||
+                       event == XMLStreamConstants.SPACE) {
+                builder.append(reader.getText());
+            }
+        }
+    }
+
+    private Map<String, String> grabHeaders(XMLStreamReader reader) throws XMLStreamException {
+
+        Map<String, String> headers = new HashMap<String, String>();
+        while (nextChild(reader)) {
+            if (reader.getLocalName().equals("header")) {
+                headers.put(reader.getAttributeValue(null, "name"), reader.getAttributeValue(null, "value"));
+            }
+            skipElement(reader);
+        }
+        return headers;
+    }
+
+    // Conversions. Same messages than the ones in BaseProvider
+    // ================================================================================
+
+    private URI toURI(String string) {
+
+        if (string == null || string.trim().equals("")) {
+            return null;
+        }
+        string = string.trim();
+        try {
+            return new URI(string);
+        } catch (URISyntaxException e) {
+            throw new ValidationException(Messages.INVALID_URI);
+        }
+    }
+
+    private Boolean toBoolean(String attribute, XMLStreamReader reader) {
+
+        String string = reader.getAttributeValue(null, attribute);
+        if (string == null) {
+            throw new ValidationException(String.format(Messages.INVALID_BOOLEAN, attribute));
+        }
+        string = string.toLowerCase();
+        if (string.equals("false") || string.equals("true")) {
+            return Boolean.valueOf(string);
+        }
+        throw new ValidationException(String.format(Messages.INVALID_BOOLEAN, attribute));
+    }
+
+    private int toInteger(String attribute, XMLStreamReader reader) {
+
+        String string = reader.getAttributeValue(null, attribute);
+        if (string == null) {
+            throw new ValidationException(String.format(Messages.INVALID_INTEGER, attribute));
+        }
+        try {
+            return Integer.parseInt(string.toLowerCase());
+        } catch (NumberFormatException nfe) {
+            throw new ValidationException(String.format(Messages.INVALID_INTEGER, attribute));
+        }
+    }
+
+    private Duration toDuration(String attribute, XMLStreamReader reader) {
+
+        try {
+            return new Duration(Long.parseLong(reader.getAttributeValue(null, attribute)));
+        } catch (IllegalArgumentException iae) {
+            throw new ValidationException(String.format(Messages.INVALID_DURATION, attribute));
+        }
+    }
+
+    private float toFloat(String attribute, XMLStreamReader reader) {
+
+        String string = reader.getAttributeValue(null, attribute);
+        if (string == null) {
+            throw new ValidationException(String.format(Messages.INVALID_FLOAT, attribute));
+        }
+        try {
+            return Float.parseFloat(string.toLowerCase());
+        } catch (NumberFormatException nfe) {
+            throw new ValidationException(String.format(Messages.INVALID_FLOAT, attribute));
+        }
+    }
+
+    private Float toFloatConfidence(String value) {
+
+        try {
+            return Float.valueOf(value);
+        } catch (NumberFormatException nfe) {
+            throw new ValidationException(Messages.INVALID_CONFIDENCE);
+        }
+    }
+
+    private Duration toTimeout(String value) {
+
+        try {
+            return new Duration(Long.parseLong(value));
+        } catch (IllegalArgumentException iae) {
+            throw new ValidationException(Messages.INVALID_TIMEOUT);
+        }
+    }
+
+    private Character toTerminator(String value) {
+
+        if (value == null || value.length() != 1) {
+            throw new ValidationException(Messages.INVALID_TERMINATOR);
+        }
+        return new Character(value.charAt(0));
+    }
+
+    private InputMode loadInputMode(XMLStreamReader reader) {
+
+        try {
+            return InputMode.valueOf(reader.getAttributeValue(null, "mode").toUpperCase());
+        } catch (Exception e) {
+            throw new ValidationException(Messages.INVALID_INPUT_MODE);
+        }
+    }
+
+    private <T extends Enum<T>> T toEnum(Class<T> enumClass, String attribute, XMLStreamReader reader) {
+
+        try {
+            return Enum.valueOf(enumClass, reader.getAttributeValue(null, attribute).toUpperCase());
+        } catch (IllegalArgumentException iae) {
+            throw new ValidationException(String.format(Messages.INVALID_ENUM, attribute));
+        }
+    }
+
+    public void setValidator(Validator validator) {
+
+        this.validator = validator;
+    }
+
+    public Validator getValidator() {
+
+        return validator;
+    }
+}
@@ -0,0 +1,146 @@
+package com.rayo.core.xml
+
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertFalse
+import static org.junit.Assert.assertNull
+import static org.junit.Assert.assertSame
+import static org.junit.Assert.assertTrue
+import static org.junit.Assert.fail
+
+import org.dom4j.DocumentHelper
+import org.dom4j.Element
+import org.dom4j.Namespace
+import org.dom4j.QName
+import org.junit.Before
+import org.junit.Test
+
+import com.rayo.core.validation.ValidationException
+
+class DefaultXmlProviderManagerTest {
+
+	DefaultXmlProviderManager manager
+
+	@Before
+	public void setup() {
+
+		manager = new DefaultXmlProviderManager()
+	}
+
+	@Test
+	public void findsProviderByNamespace() {
+
+		def foo = new TestProvider(namespace:"urn:test:foo", result:"foo")
+		def bar = new TestProvider(namespace:"urn:test:bar", result:"bar")
+		manager.register(foo)
+		manager.register(bar)
+
+		assertSame bar, manager.findProvider(Namespace.get("urn:test:bar"))
+		assertEquals "foo", manager.fromXML(element("urn:test:foo"))
+		assertEquals "bar", manager.fromXML(element("urn:test:bar"))
+		assertTrue manager.handles(element("urn:test:foo"))
+		assertFalse manager.handles(element("urn:test:unknown"))
+	}
+
+	@Test
+	public void keepsRegistrationOrder() {
+
+		manager.register(new TestProvider(namespace:"urn:test:foo", result:null))
+		manager.register(new TestProvider(namespace:"urn:test:foo", result:"second"))
+		manager.register(new TestProvider(namespace:"urn:test:foo", result:"third"))
+
+		assertEquals "second", manager.fromXML(element("urn:test:foo"))
+	}
+
+	@Test
+	public void asksCandidatesIfTheyHandleTheElement() {
+
+		manager.register(new TestProvider(namespace:"urn:test:foo", name:"say", result:"say"))
+		manager.register(new TestProvider(namespace:"urn:test:foo", name:"ask", result:"ask"))
+
+		assertEquals "say", manager.fromXML(element("urn:test:foo", "say"))
+		assertEquals "ask", manager.fromXML(element("urn:test:foo", "ask"))
+		assertTrue manager.handles(element("urn:test:foo", "ask"))
+		assertFalse manager.handles(element("urn:test:foo", "transfer"))
+		try {
+			manager.fromXML(element("urn:test:foo", "transfer"))
+			fail "Expected validation error"
+		} catch (ValidationException ve) {
+		}
+	}
+
+	@Test
+	public void unknownNamespace() {
+
+		manager.register(new TestProvider(namespace:"urn:test:foo", result:"foo"))
+		try {
+			manager.fromXML(element("urn:test:unknown"))
+			fail "Expected validation error"
+		} catch (ValidationException ve) {
+		}
+	}
+
+	@Test
+	public void resolvesSubclasses() {
+
+		def provider = new TestProvider(namespace:"urn:test:foo", clazz:Number)
+		manager.register(provider)
+
+		assertTrue manager.handles(Number)
+		assertFalse manager.handles(String)
+		manager.toXML(new Integer(1))
+		assertEquals 1, provider.serialized
+	}
+
+	@Test
+	public void registrationRebuildsIndexes() {
+
+		def foo = new TestProvider(namespace:"urn:test:foo", result:"foo", clazz:Number)
+		manager.register(foo)
+		assertTrue manager.handles(Namespace.get("urn:test:foo"))
+		assertTrue manager.handles(Integer)
+
+		manager.unregister(foo)
+		assertNull manager.findProvider(Namespace.get("urn:test:foo"))
+		assertFalse manager.handles(Integer)
+
+		manager.register(new TestProvider(namespace:"urn:test:foo", result:"again"))
+		assertEquals "again", manager.fromXML(element("urn:test:foo"))
+	}
+
+	def element(String namespace, String name = "test") {
+
+		DocumentHelper.createDocument().addElement(new QName(name, Namespace.get(namespace)))
+	}
+}
+
+class TestProvider implements XmlProvider {
+
+	String namespace
+	// Only handles the elements with this name when set
+	String name
+	Class clazz
+	Object result
+	int serialized
+	XmlProviderManager manager
+
+	Element toXML(Object object) {
+		serialized++
+		DocumentHelper.createElement("test")
+	}
+
+	def <T> T fromXML(Element element) {
+		result
+	}
+
+	boolean handles(Element element) {
+		handles(element.namespace) && (name == null || element.name == name)
+	}
+
+	boolean handles(Namespace ns) {
+		ns.URI == namespace
+	}
+
+	boolean handles(Class<?> c) {
+		clazz == c
+	}
+}
@@ -0,0 +1,81 @@
+package com.rayo.core.xml
+
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertNotNull
+import static org.junit.Assert.assertNotSame
+import static org.junit.Assert.assertSame
+
+import java.io.StringReader
+
+import org.dom4j.DocumentHelper
+import org.dom4j.Namespace
+import org.dom4j.QName
+import org.dom4j.io.SAXReader
+import org.junit.Test
+
+import com.rayo.core.verb.Ssml
+
+class SsmlCodecTest {
+
+	SAXReader reader = new SAXReader()
+
+	@Test
+	public void decodeStripsDefaultNamespaces() {
+
+		def ssml = decode("""<say xmlns="urn:xmpp:tropo:say:1" voice="allison"><speak xmlns="http://www.w3.org/2001/10/synthesis" xml:lang="en-US">Hello <break time="1s"/>world</speak></say>""")
+		assertEquals """<speak xml:lang="en-US">Hello <break time="1s"/>world</speak>""", ssml.text
+		assertEquals "allison", ssml.voice
+	}
+
+	@Test
+	public void decodeKeepsPrefixedNamespaces() {
+
+		def ssml = decode("""<say xmlns="urn:xmpp:tropo:say:1"><v:audio xmlns:v="urn:voxeo" src="a.mp3"/></say>""")
+		// Namespace declarations count as content, like in dom4j
+		assertEquals """<v:audio xmlns:v="urn:voxeo" src="a.mp3"></v:audio>""", ssml.text
+	}
+
+	@Test
+	public void decodeEscapesNestedText() {
+
+		def ssml = decode("""<say xmlns="urn:xmpp:tropo:say:1">A &amp; <emphasis>B &lt; C</emphasis></say>""")
+		assertEquals """A & <emphasis>B &lt; C</emphasis>""", ssml.text
+	}
+
+	@Test
+	public void encodeCachesParsedContent() {
+
+		def ssml = new Ssml("""Hello <audio src="a.mp3"/>""")
+		def first = DocumentHelper.createElement(new QName("say", Namespace.get("urn:xmpp:tropo:say:1")))
+		SsmlCodec.encode(ssml, first)
+		def parsed = SsmlCodec.parse(ssml)
+		assertNotNull parsed
+
+		def second = DocumentHelper.createElement(new QName("say", Namespace.get("urn:xmpp:tropo:say:1")))
+		SsmlCodec.encode(ssml, second)
+		assertSame parsed, SsmlCodec.parse(ssml)
+		assertEquals first.asXML(), second.asXML()
+		assertEquals 2, second.nodeCount()
+
+		ssml.text = "Bye"
+		def third = DocumentHelper.createElement("say")
+		SsmlCodec.encode(ssml, third)
+		assertEquals "Bye", third.text
+		assertEquals "Bye", SsmlCodec.parse(ssml)[0].text
+	}
+
+	@Test
+	public void equalPromptsAreCachedSeparately() {
+
+		def first = new Ssml("Hello")
+		def second = new Ssml("Hello")
+		def parsed = SsmlCodec.parse(first)
+		assertNotSame parsed, SsmlCodec.parse(second)
+		assertSame parsed, SsmlCodec.parse(first)
+	}
+
+	def decode(String xml) {
+
+		SsmlCodec.decode(reader.read(new StringReader(xml)).rootElement)
+	}
+}
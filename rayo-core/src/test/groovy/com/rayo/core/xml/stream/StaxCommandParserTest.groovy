@@ -0,0 +1,267 @@
+package com.rayo.core.xml.stream
+
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertFalse
+import static org.junit.Assert.assertNull
+import static org.junit.Assert.assertTrue
+import static org.junit.Assert.fail
+
+import java.io.ByteArrayInputStream
+import java.io.StringReader
+import java.lang.reflect.Modifier
+
+import javax.xml.parsers.DocumentBuilderFactory
+import javax.xml.stream.XMLStreamConstants
+
+import org.dom4j.Document
+import org.dom4j.io.DOMReader
+import org.dom4j.io.SAXReader
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.test.context.ContextConfiguration
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner
+
+import com.rayo.core.validation.Messages
+import com.rayo.core.validation.ValidationException
+import com.rayo.core.validation.Validator
+import com.rayo.core.xml.XmlProviderManager
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations=["/rayo-providers.xml"])
+class StaxCommandParserTest {
+
+	@Autowired
+    XmlProviderManager provider
+
+	@Autowired
+	Validator validator
+
+	StaxCommandParser parser
+
+    SAXReader reader = new SAXReader()
+
+    @Before
+    public void setup() {
+
+		parser = new StaxCommandParser()
+		parser.validator = validator
+    }
+
+	// Every command must be parsed exactly like the xml providers do
+	def commands = [
+		"""<accept xmlns="urn:xmpp:rayo:1"/>""",
+		"""<accept xmlns="urn:xmpp:rayo:1" earlyMedia="true"><header name="test" value="atest"/></accept>""",
+		"""<answer xmlns="urn:xmpp:rayo:1"><header name="test" value="atest"/></answer>""",
+		"""<hangup xmlns="urn:xmpp:rayo:1"><header name="test" value="atest"/></hangup>""",
+		"""<reject xmlns="urn:xmpp:rayo:1"><busy/><header name="test" value="atest"/></reject>""",
+		"""<redirect xmlns="urn:xmpp:rayo:1" to="tel:+14152226789"><header name="test" value="atest"/></redirect>""",
+		"""<hold xmlns="urn:xmpp:rayo:1"/>""",
+		"""<unhold xmlns="urn:xmpp:rayo:1"/>""",
+		"""<mute xmlns="urn:xmpp:rayo:1"/>""",
+		"""<unmute xmlns="urn:xmpp:rayo:1"/>""",
+		"""<join xmlns="urn:xmpp:rayo:1" direction="duplex" media="bridge" force="true" call-id="abcd"/>""",
+		"""<join xmlns="urn:xmpp:rayo:1" mixer-name="1234"/>""",
+		"""<unjoin xmlns="urn:xmpp:rayo:1" call-id="abcd"/>""",
+		"""<unjoin xmlns="urn:xmpp:rayo:1" mixer-name="1234"/>""",
+		"""<dial xmlns="urn:xmpp:rayo:1" to="tel:+14152226789" from="tel:+14152226789"><header name="test" value="atest"/><join direction="duplex" media="direct" call-id="abcd"/></dial>""",
+		"""<connect xmlns="urn:xmpp:rayo:1"><target>sip:a@b.com</target><target> sip:c@d.com </target></connect>""",
+		"""<dtmf xmlns="urn:xmpp:rayo:1" tones="1234"/>""",
+		"""<stop xmlns="urn:xmpp:rayo:ext:1"/>""",
+		"""<destroy-if-empty xmlns="urn:xmpp:rayo:1"/>""",
+		"""<output xmlns="urn:xmpp:rayo:output:1" interrupt-on="any" start-offset="2000" start-paused="true" repeat-interval="2000" repeat-times="10" max-time="2000" voice="bling">hello world</output>""",
+		"""<output xmlns="urn:xmpp:rayo:output:1"><speak xmlns="http://www.w3.org/2001/10/synthesis" xml:lang="en-US">Hello <audio src="a.mp3"/> &amp; bye</speak></output>""",
+		"""<seek xmlns="urn:xmpp:rayo:output:1" direction="forward" amount="10000"/>""",
+		"""<pause xmlns="urn:xmpp:rayo:output:1"/>""",
+		"""<resume xmlns="urn:xmpp:rayo:output:1"/>""",
+		"""<speed-up xmlns="urn:xmpp:rayo:output:1"/>""",
+		"""<speed-down xmlns="urn:xmpp:rayo:output:1"/>""",
+		"""<volume-up xmlns="urn:xmpp:rayo:output:1"/>""",
+		"""<volume-down xmlns="urn:xmpp:rayo:output:1"/>""",
+		"""<say xmlns="urn:xmpp:tropo:say:1" voice="allison"><audio src="a.mp3"/><audio src="b.mp3"/></say>""",
+		"""<say xmlns="urn:xmpp:tropo:say:1">Hello World</say>""",
+		"""<pause xmlns="urn:xmpp:tropo:say:1"/>""",
+		"""<resume xmlns="urn:xmpp:tropo:say:1"/>""",
+		"""<input xmlns="urn:xmpp:rayo:input:1" min-confidence="0.8" sensitivity="0.3" mode="dtmf" recognizer="en-us" max-silence="2000" terminator="#" initial-timeout="3000" inter-digit-timeout="1000"><grammar content-type="application/grammar+voxeo">a,b</grammar></input>""",
+		"""<input xmlns="urn:xmpp:rayo:input:1" mode="dtmf"><grammar url="http://test" content-type="grxml"/><grammar content-type="application/grammar+voxeo"><![CDATA[a,b]]></grammar></input>""",
+		"""<input xmlns="urn:xmpp:rayo:input:1" mode="dtmf"><grammar content-type="application/grammar+voxeo">1,2</grammar><grammar><meta name="maxTime" content="4000"/><meta name="terminate" content="true"/><ruleref uri="urn:xmpp:rayo:cpa:beep:1"/><ruleref uri="urn:xmpp:rayo:cpa:fax:1"/></grammar></input>""",
+		"""<ask xmlns="urn:xmpp:tropo:ask:1" voice="allison" min-confidence="0.8" mode="dtmf" recognizer="en-us" terminator="#" timeout="3000" bargein="true"><prompt>Hello <emphasis>World</emphasis>.</prompt><choices content-type="application/grammar+voxeo">a,b</choices><choices url="http://test" content-type="grxml"/></ask>""",
+		"""<record xmlns="urn:xmpp:rayo:record:1" to="file:/tmp/myrecording.mp3" start-beep="true" stop-beep="true" start-paused="true" final-timeout="10000" format="mp3" initial-timeout="10000" max-duration="500000" duplex="true"/>""",
+		"""<pause xmlns="urn:xmpp:rayo:record:1"/>""",
+		"""<resume xmlns="urn:xmpp:rayo:record:1"/>""",
+		"""<transfer xmlns="urn:xmpp:tropo:transfer:1" terminator="#" timeout="20000" answer-on-media="true" media="direct" from="sip:name@connfu.com" to="sip:martin@127.0.0.1:6089"><to>sip:jose@127.0.0.1:6088</to><ringback><audio src="http://example.com/ring.mp3"/></ringback><header name="test" value="atest"/></transfer>"""
+	]
+
+	// Handled by the providers only. They are copied into a dom4j tree instead of being streamed.
+	def fallbacks = [
+		"""<offer xmlns="urn:xmpp:rayo:1" to="tel:44477773333333" from="tel:34637710708"><header name="test" value="atest"/></offer>""",
+		"""<joined xmlns="urn:xmpp:rayo:1" call-id="abcd"/>""",
+		"""<ringing xmlns="urn:xmpp:rayo:1"><header name="test" value="atest"/><header name="test2" value="atest2"/></ringing>""",
+		"""<signal xmlns="urn:xmpp:rayo:input:1" type="beep"/>"""
+	]
+
+	@Test
+	public void sameCommandsFromText() {
+
+		commands.each { xml ->
+			assertDeepEquals xml, fromXml(xml), parser.parse(xml)
+		}
+	}
+
+	@Test
+	public void sameCommandsFromDom() {
+
+		commands.each { xml ->
+			assertDeepEquals xml, fromXml(xml), parser.parse(new DomStreamReader(toW3c(xml)))
+		}
+	}
+
+	@Test
+	public void fallbackToProviders() {
+
+		fallbacks.each { xml ->
+			def element = toW3c(xml)
+			assertFalse xml, parser.handles(element.namespaceURI, element.localName)
+
+			def reader = new DomStreamReader(element)
+			assertNull xml, parser.parse(reader)
+			// Still on the element, so it can be handed to the providers
+			assertEquals xml, XMLStreamConstants.START_ELEMENT, reader.eventType
+			assertEquals xml, element.localName, reader.localName
+
+			def copy = new DOMReader().read(element.ownerDocument).rootElement
+			assertDeepEquals xml, fromXml(xml), provider.fromXML(copy)
+		}
+	}
+
+	@Test
+	public void nestedDifferencesAreReported() {
+
+		def xml = commands.find { it.startsWith("<ask") }
+		def ask = parser.parse(xml)
+		ask.prompt.text = "Bye"
+		try {
+			assertDeepEquals xml, fromXml(xml), ask
+		} catch (AssertionError e) {
+			assertTrue e.message, e.message.contains(".prompt.ssml")
+			return
+		}
+		fail "Expected the prompts to be different"
+	}
+
+	@Test
+	public void ssmlWithoutNamespaces() {
+
+		def output = parser.parse("""<output xmlns="urn:xmpp:rayo:output:1"><speak xmlns="http://www.w3.org/2001/10/synthesis">Hi<break/></speak></output>""")
+		assertEquals """<speak>Hi<break/></speak>""", output.prompt.text
+	}
+
+	@Test
+	public void unsupportedElements() {
+
+		assertFalse parser.handles("urn:xmpp:rayo:input:1", "signal")
+		assertFalse parser.handles("urn:xmpp:rayo:1", "offer")
+		assertTrue parser.handles("urn:xmpp:rayo:1", "dial")
+		assertTrue parser.handles("urn:xmpp:rayo:input:1", "input")
+		assertNull parser.parse("""<signal xmlns="urn:xmpp:rayo:input:1" type="beep"/>""")
+	}
+
+	@Test
+	public void missingReason() {
+
+		assertValidationError Messages.MISSING_REASON, """<reject xmlns="urn:xmpp:rayo:1"/>"""
+	}
+
+	@Test
+	public void invalidReason() {
+
+		assertValidationError Messages.INVALID_REASON, """<reject xmlns="urn:xmpp:rayo:1"><foo/></reject>"""
+	}
+
+	@Test
+	public void invalidBoolean() {
+
+		assertValidationError String.format(Messages.INVALID_BOOLEAN, "force"), """<join xmlns="urn:xmpp:rayo:1" force="maybe" call-id="abcd"/>"""
+	}
+
+	@Test
+	public void invalidTerminator() {
+
+		assertValidationError Messages.INVALID_TERMINATOR, """<transfer xmlns="urn:xmpp:tropo:transfer:1" terminator="##" to="sip:martin@127.0.0.1:6089"/>"""
+	}
+
+	@Test
+	public void invalidMedia() {
+
+		assertValidationError Messages.INVALID_MEDIA, """<transfer xmlns="urn:xmpp:tropo:transfer:1" media="loud" to="sip:martin@127.0.0.1:6089"/>"""
+	}
+
+	@Test
+	public void missingPrompt() {
+
+		assertValidationError null, """<say xmlns="urn:xmpp:tropo:say:1"></say>"""
+	}
+
+	def assertValidationError = { message, xml ->
+		try {
+			parser.parse(xml)
+			fail "Expected validation error"
+		} catch (ValidationException ve) {
+			if (message != null) {
+				assertEquals message, ve.message
+			}
+		}
+	}
+
+    def fromXml = {xml->
+        Document document = reader.read(new StringReader(xml))
+        provider.fromXML(document.rootElement)
+    }
+
+	/*
+	 * Compares the commands field by field, following nested objects like prompts,
+	 * grammars, headers and joins. Failures report the path of the field.
+	 */
+	def assertDeepEquals(String xml, expected, actual, String path = "", Map visited = new IdentityHashMap()) {
+
+		def message = "${xml} ${path}".toString()
+		if (expected == null || actual == null) {
+			assertEquals message, expected, actual
+			return
+		}
+		assertEquals message, expected.getClass(), actual.getClass()
+		if (isValue(expected) || expected instanceof Set) {
+			assertEquals message, expected, actual
+		} else if (expected instanceof List) {
+			assertEquals message, expected.size(), actual.size()
+			expected.eachWithIndex { item, i -> assertDeepEquals(xml, item, actual[i], "${path}[${i}]", visited) }
+		} else if (expected instanceof Map) {
+			assertEquals message, expected.keySet(), actual.keySet()
+			expected.each { key, value -> assertDeepEquals(xml, value, actual[key], "${path}[${key}]", visited) }
+		} else if (expected.getClass().isArray()) {
+			assertEquals message, expected.length, actual.length
+			expected.eachWithIndex { item, i -> assertDeepEquals(xml, item, actual[i], "${path}[${i}]", visited) }
+		} else if (!visited.containsKey(expected)) {
+			visited.put(expected, actual)
+			for (Class c = expected.getClass(); c != Object; c = c.superclass) {
+				c.declaredFields.findAll { !Modifier.isStatic(it.modifiers) && !it.synthetic }.each { field ->
+					field.accessible = true
+					assertDeepEquals(xml, field.get(expected), field.get(actual), "${path}.${field.name}", visited)
+				}
+			}
+		}
+	}
+
+	def isValue(value) {
+
+		value instanceof CharSequence || value instanceof Number || value instanceof Boolean ||
+			value instanceof Character || value instanceof Enum || value instanceof URI || value instanceof Class
+	}
+
+	def toW3c = {xml->
+		def factory = DocumentBuilderFactory.newInstance()
+		factory.namespaceAware = true
+		factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes("UTF-8"))).documentElement
+	}
+}
@@ -0,0 +1,77 @@
+package com.rayo.core.validation;
+
+import java.io.StringReader;
+
+import javax.validation.Validation;
+
+import org.dom4j.io.SAXReader;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import com.rayo.core.xml.XmlProviderManager;
+
+/**
+ * <p>Compares the validation of parsed commands through the Bean Validation engine
+ * with the {@link Validator}, which skips the classes that have no constraints.</p>
+ *
+ * <p>The old path is measured the way the providers used to validate: every command
+ * goes through <code>javax.validation.Validator.validate</code>. Reports the average
+ * latency of validating each command.</p>
+ *
+ * <pre>java -cp ... com.rayo.core.validation.ValidationBenchmark [iterations]</pre>
+ *
+ * @author martin
+ *
+ */
+public class ValidationBenchmark {
+
+	private static final String[] COMMANDS = new String[] {
+		"<answer xmlns=\"urn:xmpp:rayo:1\"><header name=\"x-skill\" value=\"agent\"/></answer>",
+		"<hangup xmlns=\"urn:xmpp:rayo:1\"/>",
+		"<stop xmlns=\"urn:xmpp:rayo:ext:1\"/>",
+		"<dial xmlns=\"urn:xmpp:rayo:1\" to=\"sip:a@b.com\" from=\"sip:c@d.com\"><header name=\"x-skill\" value=\"agent\"/></dial>",
+		"<output xmlns=\"urn:xmpp:rayo:output:1\" interrupt-on=\"any\" voice=\"allison\"><speak xmlns=\"http://www.w3.org/2001/10/synthesis\">Welcome to the <emphasis>jungle</emphasis>.</speak></output>"
+	};
+
+	public static void main(String[] args) throws Exception {
+
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+		ClassPathXmlApplicationContext context = new ClassPathXmlApplicationContext("rayo-providers.xml");
+		XmlProviderManager provider = (XmlProviderManager)context.getBean("xmlProviderManager");
+		javax.validation.Validator engine = Validation.buildDefaultValidatorFactory().getValidator();
+		Validator validator = new Validator();
+
+		System.out.println("command\tconstrained\tengine us\tvalidator us");
+		for (String xml: COMMANDS) {
+			Object command = provider.fromXML(new SAXReader().read(new StringReader(xml)).getRootElement());
+			// Warm up
+			run(engine, validator, command, iterations, false);
+			run(engine, validator, command, iterations, true);
+			long engineTime = run(engine, validator, command, iterations, false);
+			long validatorTime = run(engine, validator, command, iterations, true);
+			System.out.println(String.format("%s\t%s\t%s\t%s", command.getClass().getSimpleName(),
+					validator.isConstrained(command.getClass()), engineTime / 1000.0, validatorTime / 1000.0));
+		}
+		context.close();
+	}
+
+	private static long run(javax.validation.Validator engine, Validator validator,
+			Object command, int iterations, boolean cached) {
+
+		long sink = 0;
+		long init = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			if (cached) {
+				validator.validate(command);
+			} else {
+				sink += engine.validate(command).size();
+			}
+		}
+		long elapsed = System.nanoTime() - init;
+		if (sink == 42) {
+			System.out.println();
+		}
+		// nanoseconds per command
+		return elapsed / iterations;
+	}
+}
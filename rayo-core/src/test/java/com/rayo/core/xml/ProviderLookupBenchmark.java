@@ -0,0 +1,218 @@
+package com.rayo.core.xml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.dom4j.Document;
+import org.dom4j.Element;
+import org.dom4j.Namespace;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import com.rayo.core.AnsweredEvent;
+import com.rayo.core.EndEvent;
+import com.rayo.core.OfferEvent;
+import com.rayo.core.verb.InputCompleteEvent;
+import com.rayo.core.verb.OutputCompleteEvent;
+import com.rayo.core.verb.RecordCompleteEvent;
+import com.rayo.core.xml.providers.BaseProvider;
+
+/**
+ * <p>Measures provider lookups with the built-in providers plus a few custom providers
+ * registered after them, as plugins registering their own verbs would do. It compares
+ * the indexed {@link DefaultXmlProviderManager} with the linear scan it used to do.</p>
+ *
+ * <p>Reports the average time of a namespace lookup, like the ones done for every
+ * incoming command, and of a class lookup, like the ones done for every outgoing
+ * event.</p>
+ *
+ * @author martin
+ *
+ */
+public class ProviderLookupBenchmark {
+
+	private static final String[] BUILT_IN = new String[] {"rayoProvider", "sayProvider", "askProvider",
+		"transferProvider", "outputProvider", "inputProvider", "recordProvider"};
+
+	public static void main(String[] args) throws Exception {
+
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+		int custom = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		ClassPathXmlApplicationContext context = new ClassPathXmlApplicationContext("rayo-providers.xml");
+		XmlProviderManager indexed = new DefaultXmlProviderManager();
+		XmlProviderManager legacy = new LegacyXmlProviderManager();
+		List<Namespace> namespaces = new ArrayList<Namespace>();
+		for (String name: BUILT_IN) {
+			BaseProvider provider = (BaseProvider)context.getBean(name);
+			indexed.register(provider);
+			legacy.register(provider);
+			namespaces.add(Namespace.get(provider.getNamespaces().get(0)));
+		}
+		for (int i = 0; i < custom; i++) {
+			CustomProvider provider = new CustomProvider("urn:example:custom:" + i);
+			indexed.register(provider);
+			legacy.register(provider);
+			namespaces.add(Namespace.get("urn:example:custom:" + i));
+		}
+		Namespace[] lookups = namespaces.toArray(new Namespace[namespaces.size()]);
+		Class<?>[] classes = new Class<?>[] {OfferEvent.class, AnsweredEvent.class, EndEvent.class,
+				OutputCompleteEvent.class, InputCompleteEvent.class, RecordCompleteEvent.class, CustomEvent.class};
+
+		// Warm up
+		namespaceLookups(legacy, lookups, iterations / 10);
+		namespaceLookups(indexed, lookups, iterations / 10);
+		classLookups(legacy, classes, iterations / 10);
+		classLookups(indexed, classes, iterations / 10);
+
+		System.out.println(String.format("%s providers registered", BUILT_IN.length + custom));
+		System.out.println("lookup\tlegacy ns/op\tindexed ns/op");
+		System.out.println(String.format("namespace\t%s\t%s",
+				namespaceLookups(legacy, lookups, iterations), namespaceLookups(indexed, lookups, iterations)));
+		System.out.println(String.format("class\t%s\t%s",
+				classLookups(legacy, classes, iterations), classLookups(indexed, classes, iterations)));
+		context.close();
+	}
+
+	private static long namespaceLookups(XmlProviderManager manager, Namespace[] lookups, int iterations) {
+
+		long sink = 0;
+		long init = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			sink+= manager.findProvider(lookups[i % lookups.length]).hashCode();
+		}
+		long elapsed = System.nanoTime() - init;
+		if (sink == 42) {
+			System.out.println();
+		}
+		return elapsed / iterations;
+	}
+
+	private static long classLookups(XmlProviderManager manager, Class<?>[] classes, int iterations) {
+
+		long sink = 0;
+		long init = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			if (manager.handles(classes[i % classes.length])) {
+				sink++;
+			}
+		}
+		long elapsed = System.nanoTime() - init;
+		if (sink == 42) {
+			System.out.println();
+		}
+		return elapsed / iterations;
+	}
+
+	public static class CustomEvent {}
+
+	/**
+	 * Stands for a plugin provider
+	 */
+	static class CustomProvider extends BaseProvider {
+
+		CustomProvider(String namespace) {
+
+			setNamespaces(Arrays.asList(namespace));
+			setClasses(Collections.<Class<?>>singletonList(CustomEvent.class));
+		}
+
+		@Override
+		protected Object processElement(Element element) throws Exception {
+			return null;
+		}
+
+		@Override
+		protected void generateDocument(Object object, Document document) throws Exception {}
+	}
+
+	/**
+	 * The linear scan the provider manager did before
+	 */
+	static class LegacyXmlProviderManager implements XmlProviderManager {
+
+		private List<XmlProvider> providers = new CopyOnWriteArrayList<XmlProvider>();
+
+		@Override
+		public Element toXML(Object object) {
+			for (XmlProvider provider : providers) {
+				if (provider.handles(object.getClass())) {
+					Element element = provider.toXML(object);
+					if (element != null) {
+						return element;
+					}
+				}
+			}
+			return null;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public <T> T fromXML(Element element) {
+			for (XmlProvider provider : providers) {
+				if (provider.handles(element)) {
+					T object = (T)provider.fromXML(element);
+					if (object != null) {
+						return object;
+					}
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public boolean handles(Element element) {
+			for (XmlProvider provider : providers) {
+				if (provider.handles(element)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public boolean handles(Class<?> clazz) {
+			for (XmlProvider provider : providers) {
+				if (provider.handles(clazz)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public boolean handles(Namespace namespace) {
+			return findProvider(namespace) != null;
+		}
+
+		@Override
+		public XmlProvider findProvider(Namespace namespace) {
+			for (XmlProvider provider : providers) {
+				if (provider.handles(namespace)) {
+					return provider;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public void register(XmlProvider provider) {
+			providers.add(provider);
+		}
+
+		@Override
+		public void unregister(XmlProvider provider) {
+			providers.remove(provider);
+		}
+
+		@Override
+		public XmlProviderManager getManager() {
+			return this;
+		}
+
+		@Override
+		public void setManager(XmlProviderManager manager) {}
+	}
+}
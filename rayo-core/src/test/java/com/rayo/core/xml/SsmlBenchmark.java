@@ -0,0 +1,153 @@
+package com.rayo.core.xml;
+
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.Node;
+import org.dom4j.Text;
+import org.dom4j.io.SAXReader;
+
+import com.rayo.core.verb.Ssml;
+
+/**
+ * <p>Compares {@link SsmlCodec} with the SSML handling the providers did before: three
+ * regular expressions on the <code>asXML()</code> output of every node when reading,
+ * and parsing the SSML text again every time it was written.</p>
+ *
+ * <p>Prompts of three sizes are measured. Writing reuses the same {@link Ssml} object,
+ * like a prompt that is serialized once for the outgoing command and again for the CDR
+ * would. Reports average latency and, when the JVM supports it, bytes allocated per
+ * operation.</p>
+ *
+ * @author martin
+ *
+ */
+public class SsmlBenchmark {
+
+	private static final String SAY = "<say xmlns=\"urn:xmpp:tropo:say:1\" voice=\"allison\">%s</say>";
+
+	public static void main(String[] args) throws Exception {
+
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+		String[] prompts = new String[] {"Hello world", prompt(1), prompt(14)};
+		String[] names = new String[] {"short", "medium", "large"};
+
+		System.out.println("prompt\tchars\tlegacy decode us\tbytes\tcodec decode us\tbytes\tlegacy encode us\tbytes\tcodec encode us\tbytes");
+		for (int p = 0; p < prompts.length; p++) {
+			Element say = new SAXReader().read(new StringReader(String.format(SAY, prompts[p]))).getRootElement();
+			Ssml ssml = SsmlCodec.decode(say);
+			// Warm up
+			for (int mode = 0; mode < 4; mode++) {
+				run(mode, say, ssml, iterations);
+			}
+			StringBuilder line = new StringBuilder(names[p]).append('\t').append(ssml.getText().length());
+			for (int mode = 0; mode < 4; mode++) {
+				long[] result = run(mode, say, ssml, iterations);
+				line.append('\t').append(result[0] / 1000.0).append('\t').append(result[1]);
+			}
+			System.out.println(line);
+		}
+	}
+
+	private static String prompt(int paragraphs) {
+
+		StringBuilder builder = new StringBuilder("<speak xmlns=\"http://www.w3.org/2001/10/synthesis\" xml:lang=\"en-US\">");
+		for (int i = 0; i < paragraphs; i++) {
+			builder.append("<p>Thank you for calling. Your call is <emphasis level=\"strong\">important</emphasis> to us")
+				.append("<break time=\"500ms\"/><say-as interpret-as=\"telephone\">4155551234</say-as>")
+				.append("<audio src=\"http://example.com/prompts/hold-").append(i).append(".mp3\">Please hold</audio></p>");
+		}
+		return builder.append("</speak>").toString();
+	}
+
+	private static long[] run(int mode, Element say, Ssml ssml, int iterations) throws Exception {
+
+		long sink = 0;
+		long bytes = allocatedBytes();
+		long init = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			switch (mode) {
+				case 0:
+					sink+= legacyDecode(say).getText().length();
+					break;
+				case 1:
+					sink+= SsmlCodec.decode(say).getText().length();
+					break;
+				case 2:
+					Element legacy = DocumentHelper.createElement("say");
+					legacyEncode(ssml, legacy);
+					sink+= legacy.nodeCount();
+					break;
+				default:
+					Element element = DocumentHelper.createElement("say");
+					SsmlCodec.encode(ssml, element);
+					sink+= element.nodeCount();
+			}
+		}
+		long elapsed = System.nanoTime() - init;
+		long allocated = allocatedBytes() - bytes;
+		if (sink == 42) {
+			System.out.println();
+		}
+		// nanoseconds per operation, bytes per operation
+		return new long[] {elapsed / iterations, allocated < 0 ? -1 : allocated / iterations};
+	}
+
+	/**
+	 * What BaseProvider.extractSsml used to do
+	 */
+	@SuppressWarnings("unchecked")
+	static Ssml legacyDecode(Element node) {
+
+		StringBuilder builder = new StringBuilder();
+		List<Node> elements = node.content();
+		for (Node element : elements) {
+			if (element instanceof Text || element instanceof Element) {
+				String xml = element.asXML();
+				xml = xml.replaceAll(" xmlns=\"[^\"]*\"", "");
+				xml = xml.replaceAll(" xmlns:xml=\"[^\"]*\"", "");
+				xml = xml.replaceAll(" xml:xml", " xml");
+				builder.append(xml);
+			}
+		}
+		Ssml ssml = new Ssml(builder.toString());
+		ssml.setVoice(node.attributeValue("voice"));
+		return ssml;
+	}
+
+	/**
+	 * What BaseProvider.addSsml used to do
+	 */
+	static void legacyEncode(Ssml item, Element root) throws DocumentException {
+
+		if (item.getVoice() != null) {
+			root.addAttribute("voice", item.getVoice());
+		}
+		StringBuilder builder = new StringBuilder("<wrapper>");
+		builder.append(item.getText());
+		builder.append("</wrapper>");
+		Document ssmlDoc = DocumentHelper.parseText(builder.toString());
+		for (Object element : ssmlDoc.getRootElement().content()) {
+			if (element instanceof Text) {
+				root.addText(((Text) element).asXML());
+			} else if (element instanceof Element) {
+				root.add(((Element) element).createCopy());
+			}
+		}
+	}
+
+	private static long allocatedBytes() {
+
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+}
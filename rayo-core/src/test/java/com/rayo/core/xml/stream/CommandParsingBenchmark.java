@@ -0,0 +1,112 @@
+package com.rayo.core.xml.stream;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.dom4j.dom.DOMDocumentFactory;
+import org.dom4j.io.DOMReader;
+import org.dom4j.io.SAXReader;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import com.rayo.core.validation.Validator;
+import com.rayo.core.xml.XmlProviderManager;
+
+/**
+ * <p>Compares the dom4j providers with the {@link StaxCommandParser}.</p>
+ *
+ * <p>Two paths are measured for each command:</p>
+ * <ul>
+ *   <li>dom: the W3C DOM delivered by the XMPP container is copied into a dom4j tree,
+ *   like the servlet does, and handed to the providers.</li>
+ *   <li>text: the command text is parsed with a SAX reader into a dom4j tree and handed
+ *   to the providers.</li>
+ * </ul>
+ * <p>Each path is compared against the streaming parser reading the same input. Reports
+ * average latency and, when the JVM supports it, bytes allocated per command.</p>
+ *
+ * @author martin
+ *
+ */
+public class CommandParsingBenchmark {
+
+	private static final String[] COMMANDS = new String[] {
+		"<answer xmlns=\"urn:xmpp:rayo:1\"><header name=\"x-skill\" value=\"agent\"/></answer>",
+		"<dial xmlns=\"urn:xmpp:rayo:1\" to=\"sip:a@b.com\" from=\"sip:c@d.com\"><header name=\"x-skill\" value=\"agent\"/><join direction=\"duplex\" media=\"bridge\" call-id=\"abcd\"/></dial>",
+		"<output xmlns=\"urn:xmpp:rayo:output:1\" interrupt-on=\"any\" voice=\"allison\"><speak xmlns=\"http://www.w3.org/2001/10/synthesis\">Welcome to the <emphasis>jungle</emphasis>. <audio src=\"http://example.com/welcome.mp3\"/></speak></output>"
+	};
+
+	public static void main(String[] args) throws Exception {
+
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+		ClassPathXmlApplicationContext context = new ClassPathXmlApplicationContext("rayo-providers.xml");
+		XmlProviderManager provider = (XmlProviderManager)context.getBean("xmlProviderManager");
+		StaxCommandParser parser = new StaxCommandParser();
+		parser.setValidator((Validator)context.getBean("validator"));
+
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+
+		System.out.println("command\tdom4j from dom us\tbytes\tstax from dom us\tbytes\tdom4j from text us\tbytes\tstax from text us\tbytes");
+		for (String xml: COMMANDS) {
+			org.w3c.dom.Element dom = factory.newDocumentBuilder()
+				.parse(new ByteArrayInputStream(xml.getBytes("UTF-8"))).getDocumentElement();
+			// Warm up
+			for (int mode = 0; mode < 4; mode++) {
+				run(mode, xml, dom, provider, parser, iterations);
+			}
+			StringBuilder line = new StringBuilder(dom.getLocalName());
+			for (int mode = 0; mode < 4; mode++) {
+				long[] result = run(mode, xml, dom, provider, parser, iterations);
+				line.append('\t').append(result[0] / 1000.0).append('\t').append(result[1]);
+			}
+			System.out.println(line);
+		}
+		context.close();
+	}
+
+	private static long[] run(int mode, String xml, org.w3c.dom.Element dom,
+			XmlProviderManager provider, StaxCommandParser parser, int iterations) throws Exception {
+
+		long sink = 0;
+		long bytes = allocatedBytes();
+		long init = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			Object command = null;
+			switch (mode) {
+				case 0:
+					command = provider.fromXML(new DOMReader(DOMDocumentFactory.getInstance())
+						.read(dom.getOwnerDocument()).getRootElement());
+					break;
+				case 1:
+					command = parser.parse(new DomStreamReader(dom));
+					break;
+				case 2:
+					command = provider.fromXML(new SAXReader().read(new StringReader(xml)).getRootElement());
+					break;
+				default:
+					command = parser.parse(xml);
+			}
+			sink+= command.hashCode();
+		}
+		long elapsed = System.nanoTime() - init;
+		long allocated = allocatedBytes() - bytes;
+		if (sink == 42) {
+			System.out.println();
+		}
+		// nanoseconds per command, bytes per command
+		return new long[] {elapsed / iterations, allocated < 0 ? -1 : allocated / iterations};
+	}
+
+	private static long allocatedBytes() {
+
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+}
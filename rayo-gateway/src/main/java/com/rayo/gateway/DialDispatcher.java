@@ -0,0 +1,633 @@
+package com.rayo.gateway;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import com.rayo.gateway.jmx.DialDispatcherMXBean;
+import com.rayo.server.storage.model.RayoNode;
+import com.rayo.server.util.LatencyHistogram;
+import com.rayo.storage.lb.GatewayLoadBalancingStrategy;
+import com.voxeo.logging.Loggerf;
+
+/**
+ * <p>Sends dial requests to the Rayo Nodes of a platform and retries them on other
+ * nodes when they fail.</p>
+ *
+ * <p>Every dial keeps its own state: the nodes to try, computed once by the load
+ * balancer when the dial arrives, and the attempts sent so far. A dial is retried on
+ * the next node when the current node answers with an error caused by a node
+ * malfunction, when it cannot be sent or when the node does not answer within
+ * <code>dialTimeout</code> milliseconds. With a <code>hedgeDelay</code> the dial is
+ * also sent to the next node when the current one has not answered after that many
+ * milliseconds, without giving up on the first one. The first node answering with a
+ * call wins and any call created later by another node for the same dial has to be
+ * hung up.</p>
+ *
+ * <p>Retries, timeouts and hedges run on the dispatcher thread, so a container thread
+ * processing a failed response is never used to send the next attempt. Without
+ * {@link #init()} retries are sent from the thread that reports the failure and
+ * there are no timeouts nor hedges.</p>
+ *
+ * <p>The time every node takes to answer a dial with a call is reported to the load
+ * balancer, which uses it to order the nodes tried by the next dials.</p>
+ *
+ * @author martin
+ *
+ */
+@ManagedResource(objectName="com.rayo.gateway:Type=DialDispatcher", description="Dial Dispatcher")
+public class DialDispatcher implements DialDispatcherMXBean {
+
+	private static final Loggerf log = Loggerf.getLogger(DialDispatcher.class);
+
+	/**
+	 * Sends the attempts of a dial and its final failure
+	 */
+	public interface DialSender {
+
+		/**
+		 * Sends a dial to a node. Any exception makes the dial go to the next node.
+		 */
+		void send(Dial dial, RayoNode node) throws Exception;
+
+		/**
+		 * No node took the dial
+		 *
+		 * @param dial Dial
+		 * @param lastResponse Last error response from a node or <code>null</code> if
+		 * no node answered
+		 */
+		void failed(Dial dial, Object lastResponse);
+	}
+
+	private GatewayLoadBalancingStrategy loadBalancer;
+
+	private long dialTimeout = 5000;
+	private long hedgeDelay = 0;
+	private int maxTrackedNodes = 1000;
+
+	private volatile ScheduledExecutorService executor;
+	// Executors set on the dispatcher are not shut down with it
+	private boolean ownExecutor;
+
+	private final AtomicLong dials = new AtomicLong(0);
+	private final AtomicLong dialsCompleted = new AtomicLong(0);
+	private final AtomicLong dialsFailed = new AtomicLong(0);
+	private final AtomicLong attempts = new AtomicLong(0);
+	private final AtomicLong retries = new AtomicLong(0);
+	private final AtomicLong timeouts = new AtomicLong(0);
+	private final AtomicLong hedges = new AtomicLong(0);
+	private final AtomicLong duplicates = new AtomicLong(0);
+	private final AtomicInteger pendingDials = new AtomicInteger(0);
+	// Microseconds from the moment the dial arrives until a node answers with a call
+	private final LatencyHistogram dialLatency = new LatencyHistogram();
+	private final ConcurrentMap<String, LatencyHistogram> nodes = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	public synchronized void init() {
+
+		if (executor == null) {
+			log.info("Starting dial dispatcher. Dial timeout: [%s]. Hedge delay: [%s]", dialTimeout, hedgeDelay);
+			ownExecutor = true;
+			executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "dial-dispatcher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	public void shutdown() {
+
+		ScheduledExecutorService executor = null;
+		boolean ownExecutor = false;
+		synchronized(this) {
+			executor = this.executor;
+			ownExecutor = this.ownExecutor;
+			this.executor = null;
+			this.ownExecutor = false;
+		}
+		if (executor != null) {
+			log.info("Shutting down dial dispatcher");
+			if (ownExecutor) {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Starts a dial. The first attempt is sent from the calling thread.
+	 *
+	 * @param request Dial request
+	 * @param platformId Platform of the Rayo Nodes that can take the dial
+	 * @param maxAttempts Maximum number of nodes the dial is sent to
+	 * @param sender Sends the dial attempts
+	 *
+	 * @return Dial The new dial or <code>null</code> if the platform has no available node
+	 */
+	public Dial dispatch(Object request, String platformId, int maxAttempts, DialSender sender) {
+
+		List<RayoNode> candidates = loadBalancer.pickRayoNodes(platformId);
+		if (candidates.isEmpty()) {
+			return null;
+		}
+		Dial dial = new Dial(request, platformId, candidates, Math.max(1, maxAttempts), sender);
+		dials.incrementAndGet();
+		pendingDials.incrementAndGet();
+		attemptNext(dial);
+		return dial;
+	}
+
+	/**
+	 * A node has answered a dial with a call
+	 *
+	 * @return boolean <code>true</code> if the call has to be kept or <code>false</code>
+	 * if the dial was already completed by another node or failed, so the call has to
+	 * be hung up
+	 */
+	public boolean accepted(Dial dial, RayoNode node) {
+
+		long latency = 0;
+		synchronized(dial) {
+			Long sent = dial.sent.get(node);
+			if (dial.finished || sent == null) {
+				duplicates.incrementAndGet();
+				log.warn("Node [%s] answered dial [%s] after it was %s", node,
+						dial.request, dial.completedBy != null ? "taken by " + dial.completedBy : "failed");
+				return false;
+			}
+			dial.completedBy = node;
+			latency = System.nanoTime() - sent;
+			finish(dial);
+		}
+		dialsCompleted.incrementAndGet();
+		dialLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - dial.started));
+		LatencyHistogram stats = nodeStats(node.getHostname());
+		if (stats != null) {
+			stats.record(TimeUnit.NANOSECONDS.toMicros(latency));
+		}
+		loadBalancer.nodeOperationSuceeded(node, TimeUnit.NANOSECONDS.toMillis(latency));
+		return true;
+	}
+
+	/**
+	 * A node has answered a dial with an error
+	 *
+	 * @param dial Dial
+	 * @param node Node that answered
+	 * @param response Error response
+	 * @param retry Whether the error comes from a node malfunction and the dial can
+	 * be retried on other nodes
+	 */
+	public void rejected(final Dial dial, RayoNode node, Object response, boolean retry) {
+
+		boolean late = false;
+		boolean exhausted = false;
+		synchronized(dial) {
+			if (dial.finished) {
+				return;
+			}
+			dial.lastResponse = response;
+			if (!dial.waiting.remove(node)) {
+				// The attempt timed out. The timeout has reported the node and moved the 
+				// dial on, so this answer only fails the dial if nothing else can take it.
+				late = true;
+				if (dial.waiting.isEmpty() && !dial.hasAttemptsLeft()) {
+					finish(dial);
+					exhausted = true;
+				}
+			} else if (!retry) {
+				finish(dial);
+			}
+		}
+		if (late) {
+			if (exhausted) {
+				failed(dial, response);
+			}
+			return;
+		}
+		if (!retry) {
+			// The node works. The request is what the node did not like.
+			loadBalancer.nodeOperationSuceeded(node);
+			failed(dial, response);
+			return;
+		}
+		loadBalancer.nodeOperationFailed(node);
+		retries.incrementAndGet();
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				attemptNext(dial);
+			}
+		});
+	}
+
+	/**
+	 * Sends the dial to the next candidate or fails it when there is none left and
+	 * no node is expected to answer
+	 */
+	private void attemptNext(final Dial dial) {
+
+		while (true) {
+			RayoNode node = null;
+			int attempt = 0;
+			Object lastResponse = null;
+			synchronized(dial) {
+				if (dial.finished) {
+					return;
+				}
+				if (dial.hasAttemptsLeft()) {
+					node = dial.candidates.get(dial.next++);
+					dial.sent.put(node, System.nanoTime());
+					dial.waiting.add(node);
+					attempt = dial.sent.size();
+				} else if (dial.waiting.isEmpty()) {
+					finish(dial);
+					lastResponse = dial.lastResponse;
+				} else {
+					// Other attempts can still succeed
+					return;
+				}
+			}
+			if (node == null) {
+				log.error("Could not dispatch dial request [%s] to any of the Rayo Nodes of platform [%s]",
+						dial.request, dial.platformId);
+				failed(dial, lastResponse);
+				return;
+			}
+
+			attempts.incrementAndGet();
+			try {
+				log.debug("Dialing node [%s]. Dial attempts: [%s]. Maximum attempts: [%s].",
+						node, attempt, dial.maxAttempts);
+				dial.sender.send(dial, node);
+				schedule(dial, node);
+				return;
+			} catch (Exception e) {
+				log.error("Error while sending dial request: " + e.getMessage(), e);
+				synchronized(dial) {
+					dial.waiting.remove(node);
+				}
+				loadBalancer.nodeOperationFailed(node);
+			}
+		}
+	}
+
+	private void schedule(final Dial dial, final RayoNode node) {
+
+		ScheduledExecutorService executor = this.executor;
+		if (executor == null) {
+			return;
+		}
+		try {
+			List<ScheduledFuture<?>> timers = new ArrayList<ScheduledFuture<?>>(2);
+			if (hedgeDelay > 0 && (dialTimeout <= 0 || hedgeDelay < dialTimeout)) {
+				timers.add(executor.schedule(new Runnable() {
+					@Override
+					public void run() {
+						synchronized(dial) {
+							if (dial.finished || !dial.waiting.contains(node) || !dial.hasAttemptsLeft()) {
+								return;
+							}
+						}
+						hedges.incrementAndGet();
+						attemptNext(dial);
+					}
+				}, hedgeDelay, TimeUnit.MILLISECONDS));
+			}
+			if (dialTimeout > 0) {
+				timers.add(executor.schedule(new Runnable() {
+					@Override
+					public void run() {
+						synchronized(dial) {
+							// A late call from this node is still taken if no other node answers first
+							if (dial.finished || !dial.waiting.remove(node)) {
+								return;
+							}
+						}
+						log.warn("Node [%s] did not answer dial request [%s] in [%s] milliseconds",
+								node, dial.request, dialTimeout);
+						timeouts.incrementAndGet();
+						loadBalancer.nodeOperationFailed(node);
+						attemptNext(dial);
+					}
+				}, dialTimeout, TimeUnit.MILLISECONDS));
+			}
+			synchronized(dial) {
+				if (dial.finished) {
+					// Answered before the timers were set
+					cancel(timers);
+				} else {
+					dial.timers.addAll(timers);
+				}
+			}
+		} catch (RejectedExecutionException e) {
+			// Shutting down
+		}
+	}
+
+	/**
+	 * Must be called holding the lock of the dial
+	 */
+	private void finish(Dial dial) {
+
+		dial.finished = true;
+		dial.waiting.clear();
+		cancel(dial.timers);
+		pendingDials.decrementAndGet();
+	}
+
+	private void cancel(List<ScheduledFuture<?>> timers) {
+
+		for (ScheduledFuture<?> timer: timers) {
+			timer.cancel(false);
+		}
+	}
+
+	private void failed(Dial dial, Object lastResponse) {
+
+		dialsFailed.incrementAndGet();
+		try {
+			dial.sender.failed(dial, lastResponse);
+		} catch (Exception e) {
+			log.error(e.getMessage(), e);
+		}
+	}
+
+	private void execute(Runnable task) {
+
+		ScheduledExecutorService executor = this.executor;
+		if (executor != null) {
+			try {
+				executor.execute(task);
+				return;
+			} catch (RejectedExecutionException e) {
+				// Shutting down
+			}
+		}
+		task.run();
+	}
+
+	private LatencyHistogram nodeStats(String hostname) {
+
+		LatencyHistogram stats = nodes.get(hostname);
+		if (stats == null) {
+			if (nodes.size() >= maxTrackedNodes) {
+				return null;
+			}
+			LatencyHistogram created = new LatencyHistogram();
+			stats = nodes.putIfAbsent(hostname, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * A dial being dispatched
+	 */
+	public static class Dial {
+
+		final Object request;
+		final String platformId;
+		final List<RayoNode> candidates;
+		final int maxAttempts;
+		final DialSender sender;
+		final long started = System.nanoTime();
+
+		// Guarded by the dial itself
+		int next;
+		boolean finished;
+		RayoNode completedBy;
+		Object lastResponse;
+		// Send time of every attempt
+		final Map<RayoNode, Long> sent = new LinkedHashMap<RayoNode, Long>();
+		// Attempts that have neither been answered nor timed out
+		final Set<RayoNode> waiting = new HashSet<RayoNode>();
+		final List<ScheduledFuture<?>> timers = new ArrayList<ScheduledFuture<?>>(2);
+
+		Dial(Object request, String platformId, List<RayoNode> candidates, int maxAttempts, DialSender sender) {
+
+			this.request = request;
+			this.platformId = platformId;
+			this.candidates = candidates;
+			this.maxAttempts = maxAttempts;
+			this.sender = sender;
+		}
+
+		/**
+		 * Tells if the dial can still be sent to another node. Must be called holding 
+		 * the lock of the dial.
+		 */
+		boolean hasAttemptsLeft() {
+
+			return next < candidates.size() && sent.size() < maxAttempts;
+		}
+
+		public Object getRequest() {
+
+			return request;
+		}
+
+		public String getPlatformId() {
+
+			return platformId;
+		}
+	}
+
+	// Configuration
+	/////////////////////////////////////////////////////////////////////////////
+
+	public void setLoadBalancer(GatewayLoadBalancingStrategy loadBalancer) {
+
+		this.loadBalancer = loadBalancer;
+	}
+
+	/**
+	 * Sets the milliseconds a node has to answer a dial before it is considered
+	 * failed and the dial goes to the next node. 0 waits forever.
+	 */
+	public void setDialTimeout(long dialTimeout) {
+
+		this.dialTimeout = dialTimeout;
+	}
+
+	/**
+	 * Sets the milliseconds after which a dial is also sent to the next node if the
+	 * current one has not answered yet. 0 disables hedging.
+	 */
+	public void setHedgeDelay(long hedgeDelay) {
+
+		this.hedgeDelay = hedgeDelay;
+	}
+
+	/**
+	 * Sets the executor that runs retries, timeouts and hedges instead of the thread
+	 * created by {@link #init()}. The dispatcher does not shut it down.
+	 */
+	public synchronized void setExecutor(ScheduledExecutorService executor) {
+
+		this.executor = executor;
+		this.ownExecutor = false;
+	}
+
+	/**
+	 * Sets the maximum number of nodes with their own statistics
+	 */
+	public void setMaxTrackedNodes(int maxTrackedNodes) {
+
+		this.maxTrackedNodes = maxTrackedNodes;
+	}
+
+	// Statistics
+	/////////////////////////////////////////////////////////////////////////////
+
+	@ManagedAttribute(description="Milliseconds a node has to answer a dial")
+	public long getDialTimeout() {
+
+		return dialTimeout;
+	}
+
+	@ManagedAttribute(description="Milliseconds before a dial is also sent to the next node")
+	public long getHedgeDelay() {
+
+		return hedgeDelay;
+	}
+
+	@ManagedAttribute(description="Dials received")
+	public long getDials() {
+
+		return dials.get();
+	}
+
+	@ManagedAttribute(description="Dials answered with a call")
+	public long getDialsCompleted() {
+
+		return dialsCompleted.get();
+	}
+
+	@ManagedAttribute(description="Dials that no node took")
+	public long getDialsFailed() {
+
+		return dialsFailed.get();
+	}
+
+	@ManagedAttribute(description="Dials waiting for a node to answer")
+	public int getPendingDials() {
+
+		return pendingDials.get();
+	}
+
+	@ManagedAttribute(description="Dial requests sent to the nodes")
+	public long getAttempts() {
+
+		return attempts.get();
+	}
+
+	@ManagedAttribute(description="Dials retried after a node answered with an error")
+	public long getRetries() {
+
+		return retries.get();
+	}
+
+	@ManagedAttribute(description="Dials retried after a node did not answer in time")
+	public long getTimeouts() {
+
+		return timeouts.get();
+	}
+
+	@ManagedAttribute(description="Dials also sent to the next node while waiting for an answer")
+	public long getHedges() {
+
+		return hedges.get();
+	}
+
+	@ManagedAttribute(description="Calls created by a node after their dial was taken by another node")
+	public long getDuplicates() {
+
+		return duplicates.get();
+	}
+
+	@ManagedAttribute(description="Mean microseconds until a dial is answered with a call")
+	public long getMeanDialLatency() {
+
+		return dialLatency.getMean();
+	}
+
+	@ManagedAttribute(description="99th percentile of the microseconds until a dial is answered with a call")
+	public long getDialLatency99() {
+
+		return dialLatency.getValueAtPercentile(99);
+	}
+
+	@ManagedAttribute(description="Maximum microseconds until a dial is answered with a call")
+	public long getMaxDialLatency() {
+
+		return dialLatency.getMax();
+	}
+
+	@ManagedAttribute(description="Dials answered with a call per node")
+	public Map<String, Long> getNodeDials() {
+
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, LatencyHistogram> entry: nodes.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().getCount());
+		}
+		return result;
+	}
+
+	@ManagedAttribute(description="Mean microseconds a node takes to answer a dial with a call")
+	public Map<String, Long> getNodeMeanLatencies() {
+
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, LatencyHistogram> entry: nodes.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().getMean());
+		}
+		return result;
+	}
+
+	@ManagedAttribute(description="99th percentile of the microseconds a node takes to answer a dial with a call")
+	public Map<String, Long> getNodeLatencies99() {
+
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, LatencyHistogram> entry: nodes.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().getValueAtPercentile(99));
+		}
+		return result;
+	}
+
+	@ManagedOperation(description="Resets the dial dispatcher statistics")
+	public void resetStatistics() {
+
+		dials.set(0);
+		dialsCompleted.set(0);
+		dialsFailed.set(0);
+		attempts.set(0);
+		retries.set(0);
+		timeouts.set(0);
+		hedges.set(0);
+		duplicates.set(0);
+		dialLatency.reset();
+		nodes.clear();
+	}
+}
@@ -3,14 +3,17 @@ package com.rayo.gateway;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 
-import org.apache.commons.collections.CollectionUtils;
 import org.apache.xerces.dom.CoreDocumentImpl;
 import org.dom4j.dom.DOMElement;
 import org.springframework.core.io.Resource;
@@ -18,6 +21,7 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import com.rayo.gateway.DialDispatcher.Dial;
 import com.rayo.gateway.admin.GatewayAdminService;
 import com.rayo.gateway.jmx.GatewayStatistics;
 import com.rayo.server.exception.ErrorMapping;
@@ -63,11 +67,9 @@ import com.voxeo.servlet.xmpp.XmppServletResponse;
  */
 public class GatewayServlet extends AbstractRayoServlet {
 	
-	private static final String PLATFORM_DIALED = "com.rayo.gateway.platform";
+	private static final String DIAL = "com.rayo.gateway.dial";
 
-	private static final String NODES_DIALED = "com.rayo.gateway.nodesdialed";
-
-	private static final String DIAL_RETRIES = "com.rayo.gateway.dialretries";
+	private static final String NODE_DIALED = "com.rayo.gateway.nodedialed";
 
 	private static final String ORIGINAL_REQUEST = "com.rayo.gateway.originaRequest";
 
@@ -83,6 +85,11 @@ public class GatewayServlet extends AbstractRayoServlet {
 	private List<String> externalDomains;
 			
 	private GatewayStatistics gatewayStatistics;
+	
+	private MixerFanOut mixerFanOut = new MixerFanOut();
+	
+	private DialDispatcher dialDispatcher = new DialDispatcher();
+	private DialForwarder dialForwarder = new DialForwarder();
 
 	@Override
 	public void init(ServletConfig config) throws ServletException {
@@ -179,9 +186,16 @@ public class GatewayServlet extends AbstractRayoServlet {
 	private void broadcastEndEvent(PresenceMessage message) {
 		
 		Collection<String> calls = gatewayStorageService.getCallsForNode(message.getFrom().toString());
+		if (calls.isEmpty()) {
+			return;
+		}
+		Map<String, String> targets = gatewayStorageService.getclientJIDs(calls);
 		for (String callId : calls) {
+			String target = targets.get(callId);
+			if (target == null) {
+				continue;
+			}
 			JID fromJid = createInternalJid(callId, message);
-			String target = gatewayStorageService.getclientJID(callId);
 			JID targetJid = getXmppFactory().createJID(target);
 			CoreDocumentImpl document = new CoreDocumentImpl(false);
 			org.w3c.dom.Element endElement = document.createElementNS("urn:xmpp:rayo:1", "end");
@@ -290,6 +304,7 @@ public class GatewayServlet extends AbstractRayoServlet {
 	
 	private void processMixerPresence(PresenceMessage message, GatewayMixer mixer) throws Exception {
 		
+		long received = System.nanoTime();
 		JID fromJid = message.getFrom();						
     	JID from = createExternalJid(mixer.getName(), fromJid.getResource());
     	List<String> filteredApplications = gatewayStorageService.getFilteredApplications(mixer.getName());
@@ -302,8 +317,9 @@ public class GatewayServlet extends AbstractRayoServlet {
 					gatewayStorageService.removeVerbFromMixer(resource, fromJid.getNode());
 				}
 				if (!filteredApplications.contains(JIDUtils.getBareJid(verb.getAppJid()))) {
-					JID to = getXmppFactory().createJID(verb.getAppJid());
-					sendPresence(message, from, to, mixer.getName());
+					// Same lane as the generic events of the mixer, so they keep their order
+					mixerFanOut.dispatch(mixer.getName(), Collections.singletonMap(verb.getAppJid(), mixer.getName()),
+							received, new PresenceDelivery(message, from));
 				}
 			} else {
 				log.error("Received presence [%s] but could not find the application JID for it.", message);
@@ -311,54 +327,79 @@ public class GatewayServlet extends AbstractRayoServlet {
 			}
 		} else {
 			// Generic Mixer event (e.g. active speaker). Send it to all apps in the mixer.
-			List<String> appIds = new ArrayList<String>();
-			
-			List<String> participants = mixer.getParticipants();
+			Set<String> participants = new LinkedHashSet<String>(mixer.getParticipants());
 			// Race condition here. For joined events, we might receive the joined from the mixer when 
 			// we haven't received the "joined" from the call yet. Which means the call id is not a participant
 			// yet. So, we need to cope with that and add the id if necessary
 			Element joined =  message.getElement("joined", "urn:xmpp:rayo:1");
 			if (joined != null) {
-				String callId = joined.getAttribute("call-id");
-				if (!participants.contains(callId)) {
-					participants.add(callId);
-				}
+				participants.add(joined.getAttribute("call-id"));
 			}
 			
 			// Same for unjoined
 			Element unjoined =  message.getElement("unjoined", "urn:xmpp:rayo:1");
 			if (unjoined != null) {
-				String callId = unjoined.getAttribute("call-id");
-				if (!participants.contains(callId)) {
-					participants.add(callId);
-				}
+				participants.add(unjoined.getAttribute("call-id"));
 			}
 			
-			for(String participant: participants) {
-				String jid = gatewayStorageService.getclientJID(participant);
-				if (jid != null && !filteredApplications.contains(JIDUtils.getBareJid(jid))) {
-					if (!appIds.contains(jid)) {
-						appIds.add(jid);
-						JID to = getXmppFactory().createJID(jid);
-						forwardPresence(message, from, to, participant);
-					}
-				}
-			}
-			appIds.clear();
+			Map<String, String> clientJids = gatewayStorageService.getclientJIDs(participants);
+			Map<String, String> targets = MixerFanOut.resolveTargets(participants, clientJids, filteredApplications);
+			mixerFanOut.dispatch(mixer.getName(), targets, received, new PresenceDelivery(message, from));
 		}	
 	}
 	
+	/*
+	 * Sends a mixer event to an application. Keeps its own copy of the event so it 
+	 * can be used from the fan out threads.
+	 */
+	private class PresenceDelivery implements MixerFanOut.Delivery {
+		
+		private final JID eventFrom;
+		private final JID eventTo;
+		private final Element payload;
+		private final JID from;
+		
+		PresenceDelivery(PresenceMessage message, JID from) {
+			
+			this(message.getFrom(), message.getTo(), message.getElement(), from);
+		}
+		
+		private PresenceDelivery(JID eventFrom, JID eventTo, Element payload, JID from) {
+			
+			this.eventFrom = eventFrom;
+			this.eventTo = eventTo;
+			this.payload = payload;
+			this.from = from;
+		}
+		
+		@Override
+		public void deliver(String jid, String callId) {
+			
+			sendPresence(eventFrom, eventTo, payload, from, getXmppFactory().createJID(jid), callId);
+		}
+		
+		@Override
+		public MixerFanOut.Delivery copy() {
+			
+			return new PresenceDelivery(eventFrom, eventTo, (Element)payload.cloneNode(true), from);
+		}
+	}
+	
 	private void sendPresence(PresenceMessage message, JID from, JID to, String id) {
 		
+		sendPresence(message.getFrom(), message.getTo(), message.getElement(), from, to, id);
+	}
+	
+	private void sendPresence(JID eventFrom, JID eventTo, Element payload, JID from, JID to, String id) {
+		
 		try {
-			log.debug("Sending presence [%s] from [%s] to [%s]", message, from, to);
+			log.debug("Sending presence [%s] from [%s] to [%s]", payload, from, to);
 			// Send presence
-			PresenceMessage presence = getXmppFactory().createPresence(from, to, null, 
-					message.getElement());
+			PresenceMessage presence = getXmppFactory().createPresence(from, to, null, payload);
 			
 	    	if (presence == null) {
 	    		log.error("Could not find registered client session for id [%s]", id);
-	    		sendPresenceError(message.getTo(), message.getFrom(), 
+	    		sendPresenceError(eventTo, eventFrom, 
 	    				Condition.RECIPIENT_UNAVAILABLE, Type.CANCEL, "Could not find registered client session for call");
 	    		return;
 	    	}
@@ -369,7 +410,7 @@ public class GatewayServlet extends AbstractRayoServlet {
 			}
 		} catch (Exception e) {
 			// In the event of an error, continue dispatching to all remaining JIDs
-			log.error("Failed to dispatch event [jid=%s, event=%s]", to.getBareJID(), message, e);
+			log.error("Failed to dispatch event [jid=%s, event=%s]", to.getBareJID(), payload, e);
 		}	
 	}
 	
@@ -422,6 +463,7 @@ public class GatewayServlet extends AbstractRayoServlet {
 		if (mixer.getParticipants().size() == 0) {
 			gatewayStorageService.unregisterMixer(mixerName);
 			gatewayStorageService.removeFilters(mixerName);
+			mixerFanOut.mixerRemoved(mixerName);
 			
 			// Send message to the rayo node
 			JID fromJidInternal = getXmppFactory().createJID(getInternalDomain());
@@ -543,19 +585,18 @@ public class GatewayServlet extends AbstractRayoServlet {
 			// Note that the following method does include the resource as we only want to 
 			// stop calls for the resource that goes offline
 			Collection<String> callIds = gatewayStorageService.getCallsForClient(fromJid.toString()); 
+			if (callIds.isEmpty()) {
+				return;
+			}
+			try {
+				//Clean all the calls in data store at once
+				gatewayStorageService.unregistercalls(callIds);
+			} catch (Exception e) {
+				log.error("Could not unregister the calls of client [%s]", fromJid);
+				log.error(e.getMessage(),e);
+			}
 			for (String callId: callIds) {
-				try {
-                	//Clean call in data store 
-					gatewayStorageService.unregistercall(callId);
-					
-					String nodeIp = ParticipantIDParser.getIpAddress(callId);
-					JID toJidInternal = getXmppFactory().createJID(callId + "@" + nodeIp);
-					JID fromJidInternal = getXmppFactory().createJID(getInternalDomain());
-                	sendPresenceError(fromJidInternal, toJidInternal);
-				} catch (Exception e) {
-					log.error("Could not hang up call with id [%s]", callId);
-					log.error(e.getMessage(),e);
-				}
+				hangUp(callId);
 			}
 		} else if (message.getType().equals("subscribed")) {
 			//TODO:
@@ -676,89 +717,67 @@ public class GatewayServlet extends AbstractRayoServlet {
 						
 		String platformId = gatewayStorageService.getPlatformForClient(request.getFrom());
 		if (platformId != null) {	
-			sendDialRequest(request, platformId, new ArrayList<RayoNode>(), 0);
+			int maxDialRetries = ((GatewayAdminService)getAdminService()).getMaxDialRetries();
+			if (dialDispatcher.dispatch(request, platformId, maxDialRetries, dialForwarder) == null) {
+				sendIqError(request, Type.CANCEL, Condition.SERVICE_UNAVAILABLE, 
+						String.format("Could not find an available Rayo Node in platform %s", platformId));				
+			}
 		} else {
 			sendIqError(request, Type.CANCEL, Condition.SERVICE_UNAVAILABLE, 
 					String.format("Could not find associated platform for client JID %s",request.getFrom()));
 		}
 	}
 	
-	@SuppressWarnings("unchecked")
-	private void sendDialRequest(IQRequest request, String platformId, List<RayoNode> nodesDialed, int dialRetries) throws Exception {
+	/*
+	 * Sends the attempts of the dials to the Rayo Nodes
+	 */
+	private class DialForwarder implements DialDispatcher.DialSender {
 		
-		//TODO: Build full jid as in the doc. Currently blocked on Prism issue.
-		//fromJidInternal = getXmppFactory().createJID(
-		//		toJidExternal.getDomain()+"/"+fromJidExternal.getBareJID());
-		JID fromJidInternal = getXmppFactory().createJID(getInternalDomain());
-		Element payload = request.getElement();
-
-		int maxDialRetries = ((GatewayAdminService)getAdminService()).getMaxDialRetries();
-		RayoNode firstChoice = null;
-		if (nodesDialed.size() > 0) {
-			firstChoice = nodesDialed.get(0);
+		@Override
+		public void send(Dial dial, RayoNode node) throws Exception {
+			
+			//TODO: Build full jid as in the doc. Currently blocked on Prism issue.
+			//fromJidInternal = getXmppFactory().createJID(
+			//		toJidExternal.getDomain()+"/"+fromJidExternal.getBareJID());
+			JID fromJidInternal = getXmppFactory().createJID(getInternalDomain());
+			JID to = getXmppFactory().createJID(node.getHostname());
+			IQRequest request = (IQRequest)dial.getRequest();
+			forwardIQRequest(fromJidInternal, to, request, request.getElement(), dial, node);
+			log.debug("Dial request [%s] dispatched to node [%s]", request, node);
 		}
-		do {
-			RayoNode rayoNode = loadBalancer.pickRayoNode(platformId);
-			if (rayoNode == null) {
-				sendIqError(request, Type.CANCEL, Condition.SERVICE_UNAVAILABLE, 
-						String.format("Could not find an available Rayo Node in platform %s", platformId));				
-				return;
-			}
-			if (rayoNode.equals(firstChoice)) {
-				List<RayoNode> nodes = gatewayStorageService.getRayoNodes(platformId);
-				if (nodesDialed.size() < nodes.size()) {
-					Collection<RayoNode> missing = CollectionUtils.subtract(nodes, nodesDialed);
-					rayoNode = missing.iterator().next();
-				} else {
-					// done. No more nodes to dial.
-					log.error("We could not dispatch the dial request [%s] to any of the available Rayo Nodes.", request);
+		
+		@Override
+		public void failed(Dial dial, Object lastResponse) {
+			
+			IQRequest request = (IQRequest)dial.getRequest();
+			if (lastResponse != null) {
+				forwardResponse((XmppServletResponse)lastResponse, request);
+			} else {
+				try {
 					sendIqError(request, Type.CANCEL, Condition.SERVICE_UNAVAILABLE, 
-							String.format("Could not find an available Rayo Node in platform %s", platformId));				
-					break;
+							String.format("Could not find an available Rayo Node in platform %s", dial.getPlatformId()));
+				} catch (IOException e) {
+					log.error(e.getMessage(),e);
 				}
 			}
-			
-			JID to = getXmppFactory().createJID(rayoNode.getHostname());
-			try {
-				nodesDialed.add(rayoNode);
-				dialRetries++;
-				log.debug("Dialing node [%s]. Dial attempts: [%s]. Maximum attempts: [%s].", rayoNode, dialRetries, maxDialRetries);
-				forwardIQRequest(fromJidInternal, to, request, payload, platformId, dialRetries, nodesDialed);
-				log.debug("Dial request [%s] dispatched successfully", request);
-				return;
-			} catch (Exception e) {
-				log.error("Error while sending dial request: " + e.getMessage(), e);
-				log.debug("Resending dial request to a different node");
-				loadBalancer.nodeOperationFailed(rayoNode);
-			}
-		} while (dialRetries < maxDialRetries);
-		
-		log.error("The maximum number of [%s] dial retries was reached for dial request [%s]. This dial request is going to be discarded");
-		sendIqError(request, Type.CANCEL, Condition.SERVICE_UNAVAILABLE, 
-				String.format("Could not find an available Rayo Node in platform %s", platformId));						
+		}
 	}
 
 	private void forwardIQRequest(JID fromJidInternal, JID toJidInternal, 
 			IQRequest originalRequest, Element payload) throws Exception {
 		
-		forwardIQRequest(fromJidInternal, toJidInternal, originalRequest, payload, null, null, null);
+		forwardIQRequest(fromJidInternal, toJidInternal, originalRequest, payload, null, null);
 	}
 	
 	private void forwardIQRequest(JID fromJidInternal, JID toJidInternal, 
-				IQRequest originalRequest, Element payload, String platformId, 
-				Integer dialRetries, List<RayoNode> nodesDialed) throws Exception {
+				IQRequest originalRequest, Element payload, Dial dial, RayoNode node) throws Exception {
 		
 		IQRequest nattedRequest = getXmppFactory().createIQ(
 				fromJidInternal, toJidInternal, originalRequest.getType(),payload);
 		nattedRequest.setAttribute(ORIGINAL_REQUEST, originalRequest);
-		if (dialRetries != null) {
-			nattedRequest.setAttribute(DIAL_RETRIES, dialRetries);
-		}
-		if (nodesDialed != null) {
-			nattedRequest.setAttribute(NODES_DIALED, nodesDialed);			
-		}
-		if (platformId != null) {
-			nattedRequest.setAttribute(PLATFORM_DIALED, platformId);
+		if (dial != null) {
+			nattedRequest.setAttribute(DIAL, dial);
+			nattedRequest.setAttribute(NODE_DIALED, node);
 		}
 		nattedRequest.setID(originalRequest.getId());
 		nattedRequest.send();
@@ -782,7 +801,6 @@ public class GatewayServlet extends AbstractRayoServlet {
 		return false;
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	protected void doResponse(XmppServletResponse response) throws ServletException, IOException {
 
@@ -795,10 +813,16 @@ public class GatewayServlet extends AbstractRayoServlet {
 		XmppServletRequest nattedRequest = response.getRequest();
 		IQRequest originalRequest = (IQRequest)nattedRequest.getAttribute(ORIGINAL_REQUEST);
 		if (isDial(originalRequest)) {
-			List<RayoNode> nodesDialed = (List<RayoNode>)nattedRequest.getAttribute(NODES_DIALED);
+			Dial dial = (Dial)nattedRequest.getAttribute(DIAL);
+			RayoNode node = (RayoNode)nattedRequest.getAttribute(NODE_DIALED);
 			if (response.getElement("error") == null) {
 				// fetch call id and add it to the registry
 				String callId = response.getElement("ref").getAttribute("id");
+				if (!dialDispatcher.accepted(dial, node)) {
+					// Another node took the dial first
+					hangUp(callId);
+					return;
+				}
 	    		try {
 	    			// Note that the original request always has a resource assigned. So this outgoing call
 	    			// will be linked to that resourc
@@ -809,31 +833,10 @@ public class GatewayServlet extends AbstractRayoServlet {
 					log.error(e.getMessage(),e);
 				}
 			} else {
-				Element errorElement = response.getElement("error");
-				NodeList list = errorElement.getChildNodes();
-				for (int i=0;i<list.getLength();i++) {
-					Node errorNode = list.item(i);
-					if (!errorNode.getNodeName().equals("text")) {
-						try {
-							// Only retry dial on certain errors that could be caused by a concrete Rayo Node malfunctioning
-							Condition condition = toCondition(errorNode.getNodeName());
-							if (condition.equals(Condition.SERVICE_UNAVAILABLE) ||
-								condition.equals(Condition.GONE) ||
-								condition.equals(Condition.INTERNAL_SERVER_ERROR) ||
-								condition.equals(Condition.REMOTE_SERVER_NOT_FOUND) ||
-								condition.equals(Condition.REMOTE_SERVER_TIMEOUT)) {
-								
-								loadBalancer.nodeOperationFailed(nodesDialed.get(nodesDialed.size()-1));
-								resendDialRequest(response, nattedRequest, originalRequest, nodesDialed);
-								return;								
-							}
-						} catch (Exception e) {
-							log.error("Could not parse condition [%s]", errorNode.getNodeName());
-						}
-					}
-				}				
+				// The dispatcher forwards the error once no node is left to retry the dial
+				dialDispatcher.rejected(dial, node, response, isRetriable(response.getElement("error")));
+				return;
 			}
-			loadBalancer.nodeOperationSuceeded(nodesDialed.get(nodesDialed.size()-1));
 		} else {
 			Element refElement = response.getElement("ref");
 			if (refElement != null) {
@@ -863,26 +866,47 @@ public class GatewayServlet extends AbstractRayoServlet {
 		return Condition.valueOf(nodeName);
 	}
 
-	private void resendDialRequest(XmppServletResponse response,
-			XmppServletRequest nattedRequest, IQRequest originalRequest,
-			List<RayoNode> nodesDialed) {
-
-		Integer dialsRetried = (Integer)nattedRequest.getAttribute(DIAL_RETRIES);
-		if (dialsRetried > ((GatewayAdminService)getAdminService()).getMaxDialRetries()) {
-			log.error("Max number of dial retries reached for request [%s]. Dial request failed.", originalRequest);
-			forwardResponse(response, originalRequest);
-			return;
-		} else {
-			String platformId = (String)nattedRequest.getAttribute(PLATFORM_DIALED);
-			try {
-				sendDialRequest(originalRequest, platformId, nodesDialed, dialsRetried);
-				return;
-			} catch (Exception e) {
-				log.error(e.getMessage(),e);
-				forwardResponse(response, originalRequest);
-				return;
+	/*
+	 * Only retry dial on certain errors that could be caused by a concrete Rayo Node malfunctioning
+	 */
+	private boolean isRetriable(Element errorElement) {
+		
+		NodeList list = errorElement.getChildNodes();
+		for (int i=0;i<list.getLength();i++) {
+			Node errorNode = list.item(i);
+			if (!errorNode.getNodeName().equals("text")) {
+				try {
+					Condition condition = toCondition(errorNode.getNodeName());
+					if (condition.equals(Condition.SERVICE_UNAVAILABLE) ||
+						condition.equals(Condition.GONE) ||
+						condition.equals(Condition.INTERNAL_SERVER_ERROR) ||
+						condition.equals(Condition.REMOTE_SERVER_NOT_FOUND) ||
+						condition.equals(Condition.REMOTE_SERVER_TIMEOUT)) {
+						
+						return true;
+					}
+				} catch (Exception e) {
+					log.error("Could not parse condition [%s]", errorNode.getNodeName());
+				}
 			}
 		}
+		return false;
+	}
+
+	/*
+	 * Hangs up a call on the Rayo Node that hosts it
+	 */
+	private void hangUp(String callId) {
+		
+		try {
+			String nodeIp = ParticipantIDParser.getIpAddress(callId);
+			JID toJidInternal = getXmppFactory().createJID(callId + "@" + nodeIp);
+			JID fromJidInternal = getXmppFactory().createJID(getInternalDomain());
+        	sendPresenceError(fromJidInternal, toJidInternal);
+		} catch (Exception e) {
+			log.error("Could not hang up call with id [%s]", callId);
+			log.error(e.getMessage(),e);
+		}
 	}
 
 	/*
@@ -1025,8 +1049,18 @@ public class GatewayServlet extends AbstractRayoServlet {
 		this.gatewayStatistics = gatewayStatistics;
 	}
 	
+	public void setMixerFanOut(MixerFanOut mixerFanOut) {
+		this.mixerFanOut = mixerFanOut;
+	}
+	
+	public void setDialDispatcher(DialDispatcher dialDispatcher) {
+		this.dialDispatcher = dialDispatcher;
+	}
+	
 	public void setLoadBalancer(GatewayLoadBalancingStrategy loadBalancer) {	
 		this.loadBalancer = loadBalancer;
+		// Default dispatcher when none is configured
+		dialDispatcher.setLoadBalancer(loadBalancer);
 	}
 
 	public void setGatewayStorageService(GatewayStorageService gatewayStorageService) {
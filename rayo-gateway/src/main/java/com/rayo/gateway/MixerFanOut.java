@@ -0,0 +1,506 @@
+package com.rayo.gateway;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import com.rayo.gateway.jmx.MixerFanOutMXBean;
+import com.rayo.server.util.JIDUtils;
+import com.rayo.server.util.LatencyHistogram;
+import com.voxeo.logging.Loggerf;
+
+/**
+ * <p>Sends the events of a mixer to every application taking part in it.</p>
+ *
+ * <p>An active speaker event on a big conference has to reach every participant.
+ * Instead of sending all these presences one by one from the container thread, the
+ * targets are split among a fixed number of lanes. Every lane is a thread with its
+ * own queue and a target always goes to the same lane, so the presences sent to an
+ * application keep the order in which the mixer events arrived while presences to
+ * different applications are sent in parallel.</p>
+ *
+ * <p>When a lane queue is full the calling thread waits until the lane has room, so
+ * presences are never sent ahead of the ones already queued for the same target. With
+ * no lanes (<code>lanes</code> set to 0 or {@link #init()} not called) every presence
+ * is sent from the calling thread.</p>
+ *
+ * @author martin
+ *
+ */
+@ManagedResource(objectName="com.rayo.gateway:Type=MixerFanOut", description="Mixer Event Fan Out")
+public class MixerFanOut implements MixerFanOutMXBean {
+
+	private static final Loggerf log = Loggerf.getLogger(MixerFanOut.class);
+
+	/**
+	 * Sends a mixer event to one target
+	 */
+	public interface Delivery {
+
+		void deliver(String jid, String callId);
+
+		/**
+		 * Returns a delivery of the same event that can be used from another thread
+		 * while this one is being used
+		 */
+		Delivery copy();
+	}
+
+	private int lanes = 4;
+	private int queueSize = 1000;
+	private int maxTrackedMixers = 1000;
+
+	private volatile Lane[] workers;
+
+	private final AtomicLong fanOuts = new AtomicLong(0);
+	private final AtomicLong presencesSent = new AtomicLong(0);
+	private final AtomicLong overflows = new AtomicLong(0);
+	private final AtomicLong maxFanOutSize = new AtomicLong(0);
+	// Microseconds from the moment the mixer event arrives until its last presence is sent
+	private final LatencyHistogram fanOutLatency = new LatencyHistogram();
+	private final ConcurrentMap<String, MixerStats> mixers = new ConcurrentHashMap<String, MixerStats>();
+
+	public synchronized void init() {
+
+		if (workers == null && lanes > 0) {
+			log.info("Starting mixer fan out with %s lanes", lanes);
+			Lane[] workers = new Lane[lanes];
+			for (int i = 0; i < lanes; i++) {
+				workers[i] = new Lane(i);
+				workers[i].start();
+			}
+			this.workers = workers;
+		}
+	}
+
+	public void shutdown() {
+
+		Lane[] workers = null;
+		synchronized(this) {
+			workers = this.workers;
+			this.workers = null;
+		}
+		if (workers != null) {
+			log.info("Shutting down mixer fan out");
+			for (Lane lane: workers) {
+				// Lanes send what is left in their queues before finishing
+				lane.running = false;
+			}
+			for (Lane lane: workers) {
+				try {
+					lane.join(5000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the applications that have to receive a mixer event
+	 *
+	 * @param participants Calls in the mixer
+	 * @param clientJids Client full JID of each call
+	 * @param filteredApplications Bare JIDs of the applications that do not want mixer events
+	 *
+	 * @return Map<String, String> The call of every application that has to receive the event,
+	 * keyed by the application full JID. Every application is there only once.
+	 */
+	public static Map<String, String> resolveTargets(Collection<String> participants,
+			Map<String, String> clientJids, Collection<String> filteredApplications) {
+
+		Set<String> filtered = filteredApplications.isEmpty() ?
+				null : new HashSet<String>(filteredApplications);
+		Map<String, String> targets = new LinkedHashMap<String, String>(participants.size() * 2);
+		for (String participant: participants) {
+			String jid = clientJids.get(participant);
+			if (jid == null || targets.containsKey(jid)) {
+				continue;
+			}
+			if (filtered != null && filtered.contains(JIDUtils.getBareJid(jid))) {
+				continue;
+			}
+			targets.put(jid, participant);
+		}
+		return targets;
+	}
+
+	/**
+	 * Sends a mixer event to its targets
+	 *
+	 * @param mixerName Mixer that sent the event
+	 * @param targets Call of every target keyed by the target JID
+	 * @param received {@link System#nanoTime()} when the event arrived
+	 * @param delivery Sends the event to a target
+	 */
+	public void dispatch(String mixerName, Map<String, String> targets, long received, Delivery delivery) {
+
+		if (targets.isEmpty()) {
+			return;
+		}
+		Lane[] workers = this.workers;
+		if (workers == null) {
+			for (Map.Entry<String, String> target: targets.entrySet()) {
+				send(delivery, target.getKey(), target.getValue());
+			}
+			completed(mixerName, targets.size(), received);
+			return;
+		}
+
+		Map<Lane, Batch> batches = new HashMap<Lane, Batch>();
+		for (Map.Entry<String, String> target: targets.entrySet()) {
+			Lane lane = workers[(spread(target.getKey().hashCode()) & 0x7fffffff) % workers.length];
+			Batch batch = batches.get(lane);
+			if (batch == null) {
+				batch = new Batch();
+				batches.put(lane, batch);
+			}
+			batch.jids.add(target.getKey());
+			batch.callIds.add(target.getValue());
+		}
+		FanOut fanOut = new FanOut(mixerName, targets.size(), received, batches.size());
+		for (Map.Entry<Lane, Batch> entry: batches.entrySet()) {
+			Batch batch = entry.getValue();
+			batch.fanOut = fanOut;
+			batch.delivery = delivery.copy();
+			enqueue(entry.getKey(), batch);
+		}
+	}
+
+	private void enqueue(Lane lane, Batch batch) {
+
+		if (lane.queue.offer(batch)) {
+			return;
+		}
+		overflows.incrementAndGet();
+		try {
+			while (lane.running) {
+				if (lane.queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.error("Interrupted while waiting for room on %s. Dropping mixer event for %s targets",
+					lane.getName(), batch.jids.size());
+			batch.fanOut.batchSent();
+			return;
+		}
+		// The lane has been shut down once its queue is empty
+		lane.drained();
+		batch.run();
+	}
+
+	/**
+	 * Forgets the statistics of a mixer that is gone
+	 */
+	public void mixerRemoved(String mixerName) {
+
+		mixers.remove(mixerName);
+	}
+
+	private void send(Delivery delivery, String jid, String callId) {
+
+		try {
+			delivery.deliver(jid, callId);
+			presencesSent.incrementAndGet();
+		} catch (Exception e) {
+			// Keep sending to the remaining targets
+			log.error("Could not send mixer event to [%s]", jid, e);
+		}
+	}
+
+	private void completed(String mixerName, int size, long received) {
+
+		long latency = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - received);
+		fanOuts.incrementAndGet();
+		fanOutLatency.record(latency);
+		long max = maxFanOutSize.get();
+		while (size > max && !maxFanOutSize.compareAndSet(max, size)) {
+			max = maxFanOutSize.get();
+		}
+		MixerStats stats = mixers.get(mixerName);
+		if (stats == null && mixers.size() < maxTrackedMixers) {
+			MixerStats created = new MixerStats();
+			stats = mixers.putIfAbsent(mixerName, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+		if (stats != null) {
+			stats.record(latency);
+		}
+	}
+
+	private static int spread(int h) {
+
+		h ^= (h >>> 20) ^ (h >>> 12);
+		return h ^ (h >>> 7) ^ (h >>> 4);
+	}
+
+	/**
+	 * A mixer event being sent. The lane that sends the last batch records it.
+	 */
+	private class FanOut {
+
+		final String mixerName;
+		final int size;
+		final long received;
+		final AtomicInteger pending;
+
+		FanOut(String mixerName, int size, long received, int batches) {
+
+			this.mixerName = mixerName;
+			this.size = size;
+			this.received = received;
+			this.pending = new AtomicInteger(batches);
+		}
+
+		void batchSent() {
+
+			if (pending.decrementAndGet() == 0) {
+				completed(mixerName, size, received);
+			}
+		}
+	}
+
+	/**
+	 * The targets of a mixer event that go to the same lane
+	 */
+	private class Batch implements Runnable {
+
+		final List<String> jids = new ArrayList<String>();
+		final List<String> callIds = new ArrayList<String>();
+		FanOut fanOut;
+		Delivery delivery;
+
+		@Override
+		public void run() {
+
+			try {
+				for (int i = 0; i < jids.size(); i++) {
+					send(delivery, jids.get(i), callIds.get(i));
+				}
+			} finally {
+				fanOut.batchSent();
+			}
+		}
+	}
+
+	private class Lane extends Thread {
+
+		final BlockingQueue<Batch> queue = new LinkedBlockingQueue<Batch>(queueSize);
+		volatile boolean running = true;
+
+		Lane(int index) {
+
+			super("mixer-fanout-" + index);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+
+			while (running || !queue.isEmpty()) {
+				try {
+					Batch batch = queue.poll(100, TimeUnit.MILLISECONDS);
+					if (batch != null) {
+						batch.run();
+					}
+				} catch (InterruptedException e) {
+					running = false;
+				} catch (Exception e) {
+					log.error("Unexpected error in mixer fan out", e);
+				}
+			}
+		}
+
+		/**
+		 * Waits for the lane to send what was left on its queue after a shut down
+		 */
+		void drained() {
+
+			try {
+				join(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static class MixerStats {
+
+		final AtomicLong count = new AtomicLong(0);
+		final AtomicLong total = new AtomicLong(0);
+		final AtomicLong max = new AtomicLong(0);
+
+		void record(long latency) {
+
+			count.incrementAndGet();
+			total.addAndGet(latency);
+			long current = max.get();
+			while (latency > current && !max.compareAndSet(current, latency)) {
+				current = max.get();
+			}
+		}
+	}
+
+	// Configuration
+	/////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Sets the number of threads sending presences. Only used by {@link #init()}.
+	 */
+	public void setLanes(int lanes) {
+
+		this.lanes = lanes;
+	}
+
+	/**
+	 * Sets how many mixer events can wait on every lane
+	 */
+	public void setQueueSize(int queueSize) {
+
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * Sets the maximum number of mixers with their own statistics
+	 */
+	public void setMaxTrackedMixers(int maxTrackedMixers) {
+
+		this.maxTrackedMixers = maxTrackedMixers;
+	}
+
+	// Statistics
+	/////////////////////////////////////////////////////////////////////////////
+
+	@ManagedAttribute(description="Threads sending mixer events")
+	public int getLanes() {
+
+		Lane[] workers = this.workers;
+		return workers == null ? 0 : workers.length;
+	}
+
+	@ManagedAttribute(description="Batches of presences waiting on the lanes")
+	public int getQueuedBatches() {
+
+		int queued = 0;
+		Lane[] workers = this.workers;
+		if (workers != null) {
+			for (Lane lane: workers) {
+				queued+= lane.queue.size();
+			}
+		}
+		return queued;
+	}
+
+	@ManagedAttribute(description="Mixer events sent to their targets")
+	public long getFanOuts() {
+
+		return fanOuts.get();
+	}
+
+	@ManagedAttribute(description="Presences sent for mixer events")
+	public long getPresencesSent() {
+
+		return presencesSent.get();
+	}
+
+	@ManagedAttribute(description="Batches that had to wait for room on a full lane")
+	public long getOverflows() {
+
+		return overflows.get();
+	}
+
+	@ManagedAttribute(description="Mean number of targets of a mixer event")
+	public long getMeanFanOutSize() {
+
+		long count = fanOuts.get();
+		return count == 0 ? 0 : presencesSent.get() / count;
+	}
+
+	@ManagedAttribute(description="Maximum number of targets of a mixer event")
+	public long getMaxFanOutSize() {
+
+		return maxFanOutSize.get();
+	}
+
+	@ManagedAttribute(description="Mean microseconds until a mixer event reaches all its targets")
+	public long getMeanFanOutLatency() {
+
+		return fanOutLatency.getMean();
+	}
+
+	@ManagedAttribute(description="99th percentile of the microseconds until a mixer event reaches all its targets")
+	public long getFanOutLatency99() {
+
+		return fanOutLatency.getValueAtPercentile(99);
+	}
+
+	@ManagedAttribute(description="Maximum microseconds until a mixer event reaches all its targets")
+	public long getMaxFanOutLatency() {
+
+		return fanOutLatency.getMax();
+	}
+
+	@ManagedAttribute(description="Mixer events sent per mixer")
+	public Map<String, Long> getMixerFanOuts() {
+
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, MixerStats> entry: mixers.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().count.get());
+		}
+		return result;
+	}
+
+	@ManagedAttribute(description="Mean fan out microseconds per mixer")
+	public Map<String, Long> getMixerMeanLatencies() {
+
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, MixerStats> entry: mixers.entrySet()) {
+			MixerStats stats = entry.getValue();
+			long count = stats.count.get();
+			result.put(entry.getKey(), count == 0 ? 0 : stats.total.get() / count);
+		}
+		return result;
+	}
+
+	@ManagedAttribute(description="Maximum fan out microseconds per mixer")
+	public Map<String, Long> getMixerMaxLatencies() {
+
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, MixerStats> entry: mixers.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().max.get());
+		}
+		return result;
+	}
+
+	@ManagedOperation(description="Resets the mixer fan out statistics")
+	public void resetStatistics() {
+
+		fanOuts.set(0);
+		presencesSent.set(0);
+		overflows.set(0);
+		maxFanOutSize.set(0);
+		fanOutLatency.reset();
+		mixers.clear();
+	}
+}
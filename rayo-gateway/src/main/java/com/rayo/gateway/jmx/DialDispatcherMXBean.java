@@ -0,0 +1,25 @@
+package com.rayo.gateway.jmx;
+
+import java.util.Map;
+
+public interface DialDispatcherMXBean {
+
+	long getDialTimeout();
+	long getHedgeDelay();
+	long getDials();
+	long getDialsCompleted();
+	long getDialsFailed();
+	int getPendingDials();
+	long getAttempts();
+	long getRetries();
+	long getTimeouts();
+	long getHedges();
+	long getDuplicates();
+	long getMeanDialLatency();
+	long getDialLatency99();
+	long getMaxDialLatency();
+	Map<String, Long> getNodeDials();
+	Map<String, Long> getNodeMeanLatencies();
+	Map<String, Long> getNodeLatencies99();
+	void resetStatistics();
+}
@@ -0,0 +1,21 @@
+package com.rayo.gateway.jmx;
+
+import java.util.Map;
+
+public interface MixerFanOutMXBean {
+
+	int getLanes();
+	int getQueuedBatches();
+	long getFanOuts();
+	long getPresencesSent();
+	long getOverflows();
+	long getMeanFanOutSize();
+	long getMaxFanOutSize();
+	long getMeanFanOutLatency();
+	long getFanOutLatency99();
+	long getMaxFanOutLatency();
+	Map<String, Long> getMixerFanOuts();
+	Map<String, Long> getMixerMeanLatencies();
+	Map<String, Long> getMixerMaxLatencies();
+	void resetStatistics();
+}
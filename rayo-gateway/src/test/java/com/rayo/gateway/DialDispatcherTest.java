@@ -0,0 +1,433 @@
+package com.rayo.gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rayo.gateway.DialDispatcher.Dial;
+import com.rayo.gateway.DialDispatcher.DialSender;
+import com.rayo.server.storage.model.RayoNode;
+import com.rayo.storage.lb.GatewayLoadBalancingStrategy;
+
+public class DialDispatcherTest {
+
+	private RayoNode node1 = node("node1");
+	private RayoNode node2 = node("node2");
+	private RayoNode node3 = node("node3");
+
+	private DialDispatcher dispatcher;
+	private LoadBalancer loadBalancer;
+	private Sender sender;
+	private ManualScheduler clock;
+
+	@Before
+	public void setup() {
+
+		loadBalancer = new LoadBalancer(node1, node2, node3);
+		sender = new Sender();
+		clock = new ManualScheduler();
+
+		dispatcher = new DialDispatcher();
+		dispatcher.setLoadBalancer(loadBalancer);
+		dispatcher.setDialTimeout(1000);
+		dispatcher.setExecutor(clock);
+	}
+
+	@Test
+	public void testRetriesOnErrorUpToMaxAttempts() {
+
+		Dial dial = dispatcher.dispatch("dial", "staging", 2, sender);
+		dispatcher.rejected(dial, node1, "error1", true);
+		assertEquals(Arrays.asList(node1, node2), sender.sent);
+		assertTrue(sender.failed.isEmpty());
+
+		dispatcher.rejected(dial, node2, "error2", true);
+		// node3 is never tried
+		assertEquals(Arrays.asList(node1, node2), sender.sent);
+		assertEquals(Arrays.asList((Object)"error2"), sender.failed);
+		assertEquals(Arrays.asList(node1, node2), loadBalancer.failed);
+		assertEquals(2, dispatcher.getRetries());
+		assertEquals(2, dispatcher.getAttempts());
+		assertEquals(1, dispatcher.getDialsFailed());
+		assertEquals(0, dispatcher.getPendingDials());
+	}
+
+	@Test
+	public void testErrorsNotCausedByTheNodeAreNotRetried() {
+
+		Dial dial = dispatcher.dispatch("dial", "staging", 3, sender);
+		dispatcher.rejected(dial, node1, "bad-request", false);
+
+		assertEquals(Arrays.asList(node1), sender.sent);
+		assertEquals(Arrays.asList((Object)"bad-request"), sender.failed);
+		assertEquals(Arrays.asList(node1), loadBalancer.succeeded);
+		assertEquals(0, dispatcher.getRetries());
+	}
+
+	@Test
+	public void testTimeoutMovesToTheNextNode() {
+
+		Dial dial = dispatcher.dispatch("dial", "staging", 3, sender);
+		clock.advance(999);
+		assertEquals(Arrays.asList(node1), sender.sent);
+
+		clock.advance(1);
+		assertEquals(Arrays.asList(node1, node2), sender.sent);
+		assertEquals(1, dispatcher.getTimeouts());
+		assertEquals(Arrays.asList(node1), loadBalancer.failed);
+
+		assertTrue(dispatcher.accepted(dial, node2));
+		// The timers of the completed dial are cancelled
+		clock.advance(5000);
+		assertEquals(Arrays.asList(node1, node2), sender.sent);
+		assertEquals(1, dispatcher.getTimeouts());
+		assertEquals(1, dispatcher.getDialsCompleted());
+		assertEquals(0, dispatcher.getPendingDials());
+	}
+
+	@Test
+	public void testDialFailsWhenEveryNodeTimesOut() {
+
+		dispatcher.dispatch("dial", "staging", 2, sender);
+		clock.advance(2000);
+
+		assertEquals(Arrays.asList(node1, node2), sender.sent);
+		assertEquals(1, sender.failed.size());
+		assertNull(sender.failed.get(0));
+		assertEquals(2, dispatcher.getTimeouts());
+		assertEquals(1, dispatcher.getDialsFailed());
+	}
+
+	@Test
+	public void testHedgeSendsToTheNextNodeWithoutGivingUp() {
+
+		dispatcher.setHedgeDelay(200);
+		Dial dial = dispatcher.dispatch("dial", "staging", 3, sender);
+		clock.advance(200);
+
+		assertEquals(Arrays.asList(node1, node2), sender.sent);
+		assertEquals(1, dispatcher.getHedges());
+		assertTrue(loadBalancer.failed.isEmpty());
+
+		// The first node still wins and the hedged call has to be hung up
+		assertTrue(dispatcher.accepted(dial, node1));
+		assertFalse(dispatcher.accepted(dial, node2));
+		assertEquals(1, dispatcher.getDuplicates());
+		clock.advance(5000);
+		assertEquals(Arrays.asList(node1, node2), sender.sent);
+		assertEquals(0, dispatcher.getTimeouts());
+	}
+
+	@Test
+	public void testLateCallFromTimedOutNodeIsHungUpOnce() {
+
+		Dial dial = dispatcher.dispatch("dial", "staging", 3, sender);
+		clock.advance(1000);
+		assertTrue(dispatcher.accepted(dial, node2));
+
+		assertFalse(dispatcher.accepted(dial, node1));
+		assertEquals(1, dispatcher.getDuplicates());
+		assertEquals(1, dispatcher.getDialsCompleted());
+		assertTrue(sender.failed.isEmpty());
+	}
+
+	@Test
+	public void testLateCallFromTimedOutNodeIsTakenIfNobodyElseAnswered() {
+
+		Dial dial = dispatcher.dispatch("dial", "staging", 3, sender);
+		clock.advance(1000);
+		assertTrue(dispatcher.accepted(dial, node1));
+
+		// The node the dial moved on to has to hang up its call
+		assertFalse(dispatcher.accepted(dial, node2));
+		assertEquals(1, dispatcher.getDuplicates());
+		assertEquals(1, dispatcher.getDialsCompleted());
+	}
+
+	@Test
+	public void testLateErrorFromTimedOutNodeIsNotRetried() {
+
+		Dial dial = dispatcher.dispatch("dial", "staging", 3, sender);
+		clock.advance(1000);
+		assertEquals(Arrays.asList(node1, node2), sender.sent);
+
+		dispatcher.rejected(dial, node1, "late", true);
+		assertEquals(Arrays.asList(node1, node2), sender.sent);
+		assertEquals(0, dispatcher.getRetries());
+		// The node was reported once, by the timeout
+		assertEquals(Arrays.asList(node1), loadBalancer.failed);
+		assertTrue(sender.failed.isEmpty());
+
+		assertTrue(dispatcher.accepted(dial, node2));
+		assertEquals(1, dispatcher.getDialsCompleted());
+	}
+
+	@Test
+	public void testLateErrorFailsTheDialWhenNothingElseCanTakeIt() {
+
+		Dial dial = dispatcher.dispatch("dial", "staging", 1, sender);
+		clock.advance(1000);
+		assertEquals(1, sender.failed.size());
+
+		dispatcher.rejected(dial, node1, "late", true);
+		// The dial had already failed
+		assertEquals(1, sender.failed.size());
+		assertEquals(1, dispatcher.getDialsFailed());
+		assertEquals(0, dispatcher.getRetries());
+	}
+
+	@Test
+	public void testFailedSendGoesToTheNextNode() {
+
+		sender.broken.add(node1);
+		Dial dial = dispatcher.dispatch("dial", "staging", 3, sender);
+
+		assertEquals(Arrays.asList(node1, node2), sender.sent);
+		assertEquals(Arrays.asList(node1), loadBalancer.failed);
+		assertTrue(dispatcher.accepted(dial, node2));
+	}
+
+	@Test
+	public void testNoDialWithoutNodes() {
+
+		loadBalancer.nodes.clear();
+		assertNull(dispatcher.dispatch("dial", "staging", 3, sender));
+		assertEquals(0, dispatcher.getDials());
+	}
+
+	private static RayoNode node(String hostname) {
+
+		RayoNode node = new RayoNode();
+		node.setHostname(hostname);
+		return node;
+	}
+
+	private static class Sender implements DialSender {
+
+		final List<RayoNode> sent = new ArrayList<RayoNode>();
+		final List<Object> failed = new ArrayList<Object>();
+		final List<RayoNode> broken = new ArrayList<RayoNode>();
+
+		@Override
+		public void send(Dial dial, RayoNode node) throws Exception {
+
+			sent.add(node);
+			if (broken.contains(node)) {
+				throw new IllegalStateException("Could not send the dial to " + node.getHostname());
+			}
+		}
+
+		@Override
+		public void failed(Dial dial, Object lastResponse) {
+
+			failed.add(lastResponse);
+		}
+	}
+
+	private static class LoadBalancer implements GatewayLoadBalancingStrategy {
+
+		final List<RayoNode> nodes;
+		final List<RayoNode> failed = new ArrayList<RayoNode>();
+		final List<RayoNode> succeeded = new ArrayList<RayoNode>();
+
+		LoadBalancer(RayoNode... nodes) {
+
+			this.nodes = new ArrayList<RayoNode>(Arrays.asList(nodes));
+		}
+
+		@Override
+		public List<RayoNode> pickRayoNodes(String platformId) {
+
+			return new ArrayList<RayoNode>(nodes);
+		}
+
+		@Override
+		public RayoNode pickRayoNode(String platformId) {
+
+			return nodes.isEmpty() ? null : nodes.get(0);
+		}
+
+		@Override
+		public String pickClientResource(String jid) {
+
+			return null;
+		}
+
+		@Override
+		public void nodeOperationFailed(RayoNode node) {
+
+			failed.add(node);
+		}
+
+		@Override
+		public void nodeOperationSuceeded(RayoNode node) {
+
+			succeeded.add(node);
+		}
+
+		@Override
+		public void nodeOperationSuceeded(RayoNode node, long latency) {
+
+			succeeded.add(node);
+		}
+
+		@Override
+		public void clientOperationFailed(String fullJid) {}
+
+		@Override
+		public void clientOperationSuceeded(String fullJid) {}
+	}
+
+	/**
+	 * Runs tasks on the test thread. Scheduled tasks run when the test advances the clock.
+	 */
+	private static class ManualScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+
+		private long now;
+		private final List<Task> tasks = new ArrayList<Task>();
+
+		void advance(long millis) {
+
+			long target = now + millis;
+			while (true) {
+				Task next = null;
+				for (Task task: tasks) {
+					if (task.due <= target && (next == null || task.due < next.due)) {
+						next = task;
+					}
+				}
+				if (next == null) {
+					break;
+				}
+				tasks.remove(next);
+				now = next.due;
+				if (!next.cancelled) {
+					next.done = true;
+					next.runnable.run();
+				}
+			}
+			now = target;
+		}
+
+		@Override
+		public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+
+			Task task = new Task(command, now + unit.toMillis(delay));
+			tasks.add(task);
+			return task;
+		}
+
+		@Override
+		public void execute(Runnable command) {
+
+			command.run();
+		}
+
+		@Override
+		public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void shutdown() {}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			return new ArrayList<Runnable>();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return false;
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return false;
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) {
+			return false;
+		}
+
+		private class Task implements ScheduledFuture<Object> {
+
+			final Runnable runnable;
+			final long due;
+			boolean cancelled;
+			boolean done;
+
+			Task(Runnable runnable, long due) {
+
+				this.runnable = runnable;
+				this.due = due;
+			}
+
+			@Override
+			public long getDelay(TimeUnit unit) {
+				return unit.convert(due - now, TimeUnit.MILLISECONDS);
+			}
+
+			@Override
+			public int compareTo(Delayed other) {
+				long diff = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+				return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+			}
+
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+
+				if (done) {
+					return false;
+				}
+				cancelled = true;
+				return true;
+			}
+
+			@Override
+			public boolean isCancelled() {
+				return cancelled;
+			}
+
+			@Override
+			public boolean isDone() {
+				return done || cancelled;
+			}
+
+			@Override
+			public Object get() {
+				return null;
+			}
+
+			@Override
+			public Object get(long timeout, TimeUnit unit) {
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package com.rayo.gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class MixerFanOutTest {
+
+	private MixerFanOut fanOut = new MixerFanOut();
+
+	@After
+	public void shutdown() {
+
+		fanOut.shutdown();
+	}
+
+	@Test
+	public void testFullLaneKeepsTheOrderOfEvents() throws Exception {
+
+		final int events = 30;
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch sent = new CountDownLatch(events);
+		final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+		final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+
+		fanOut.setLanes(1);
+		fanOut.setQueueSize(2);
+		fanOut.init();
+
+		final Map<String, String> targets = Collections.singletonMap("app@example.com/1", "call1");
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < events; i++) {
+					fanOut.dispatch("mixer", targets, System.nanoTime(),
+							new SequenceDelivery(i, blocked, release, received, threads, sent));
+				}
+			}
+		};
+		producer.start();
+		assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+		// The lane is held on the first event, so the producer fills it and has to wait
+		long deadline = System.currentTimeMillis() + 5000;
+		while (fanOut.getOverflows() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(fanOut.getOverflows() > 0);
+		assertTrue(received.isEmpty());
+		release.countDown();
+
+		assertTrue(sent.await(10, TimeUnit.SECONDS));
+		producer.join(5000);
+		assertEquals(events, received.size());
+		for (int i = 0; i < events; i++) {
+			assertEquals(Integer.valueOf(i), received.get(i));
+		}
+		for (String thread: threads) {
+			assertEquals("mixer-fanout-0", thread);
+		}
+		assertEquals(events, fanOut.getPresencesSent());
+	}
+
+	private static class SequenceDelivery implements MixerFanOut.Delivery {
+
+		final int sequence;
+		final CountDownLatch blocked;
+		final CountDownLatch release;
+		final List<Integer> received;
+		final List<String> threads;
+		final CountDownLatch sent;
+
+		SequenceDelivery(int sequence, CountDownLatch blocked, CountDownLatch release,
+				List<Integer> received, List<String> threads, CountDownLatch sent) {
+
+			this.sequence = sequence;
+			this.blocked = blocked;
+			this.release = release;
+			this.received = received;
+			this.threads = threads;
+			this.sent = sent;
+		}
+
+		@Override
+		public void deliver(String jid, String callId) {
+
+			if (sequence == 0) {
+				blocked.countDown();
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			received.add(sequence);
+			threads.add(Thread.currentThread().getName());
+			sent.countDown();
+		}
+
+		@Override
+		public MixerFanOut.Delivery copy() {
+
+			return new SequenceDelivery(sequence, blocked, release, received, threads, sent);
+		}
+	}
+}
@@ -6,10 +6,8 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 
 import javax.media.mscontrol.MediaException;
@@ -33,7 +31,6 @@ import com.rayo.server.verb.VerbManager;
 import com.voxeo.logging.Loggerf;
 import com.voxeo.moho.NegotiateException;
 import com.voxeo.moho.Participant;
-import com.voxeo.moho.common.event.AutowiredEventListener;
 import com.voxeo.moho.event.Event;
 import com.voxeo.moho.event.EventSource;
 import com.voxeo.moho.event.Observer;
@@ -44,11 +41,11 @@ public abstract class AbstractActor<T extends Participant> extends ReflectiveAct
     private static final Loggerf log = Loggerf.getLogger(AbstractActor.class);
 	
     private Map<String, VerbHandler<?,?>> verbs = new HashMap<String, VerbHandler<?,?>>();
-    protected List<AutowiredEventListener> mohoListeners = new CopyOnWriteArrayList<AutowiredEventListener>();
+    protected MohoEventRouter mohoListeners = new MohoEventRouter();
     
     protected VerbManager verbManager;
 	protected T participant;
-    private Validator validator = new Validator();
+    private static final Validator validator = new Validator();
 
     public AbstractActor(T t) {
         this.participant = t;
@@ -124,8 +121,7 @@ public abstract class AbstractActor<T extends Participant> extends ReflectiveAct
         
         verbCreated();
 
-        AutowiredEventListener listener = new AutowiredEventListener(verbHandler);
-        mohoListeners.add(listener);
+        mohoListeners.add(verbHandler);
 
         verbs.put(verb.getId(), verbHandler);
 
@@ -184,11 +180,8 @@ public abstract class AbstractActor<T extends Participant> extends ReflectiveAct
     
     private void unregisterVerb(String id) {
         VerbHandler<?,?> verbHandler = verbs.remove(id);
-        for (int i = 0; i < mohoListeners.size(); i++) {
-            if (mohoListeners.get(i).getTarget() == verbHandler) {
-                mohoListeners.remove(i);
-                break;
-            }
+        if (verbHandler != null) {
+            mohoListeners.remove(verbHandler);
         }
     }
     
@@ -197,9 +190,7 @@ public abstract class AbstractActor<T extends Participant> extends ReflectiveAct
 
     @Message
     public void onMohoEvent(Event<EventSource> event) throws Exception {
-        for (AutowiredEventListener listener : mohoListeners) {
-            listener.onEvent(event);
-        }
+        mohoListeners.dispatch(event);
     }
     
 
@@ -294,7 +285,13 @@ public abstract class AbstractActor<T extends Participant> extends ReflectiveAct
     	
         return participant.getId();
     }
-    
+
+    @Override
+    public String getActorId() {
+
+        return participant.getId();
+    }
+
     public void setVerbManager(VerbManager verbManager) {
         this.verbManager = verbManager;
     }
@@ -0,0 +1,452 @@
+package com.rayo.server;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jetlang.core.RunnableExecutorImpl;
+import org.jetlang.fibers.Fiber;
+import org.jetlang.fibers.PoolFiberFactory;
+import org.jetlang.fibers.ThreadFiber;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import com.rayo.server.jmx.ActorRuntimeMXBean;
+import com.rayo.server.util.LatencyHistogram;
+import com.voxeo.logging.Loggerf;
+
+/**
+ * <p>Creates the fibers that run the actors and keeps the statistics of their mailboxes.</p>
+ *
+ * <p>The runtime works in one of these modes:</p>
+ * <ul>
+ * <li><code>LEGACY</code>: actors run on an unbounded cached thread pool, or on the
+ * <code>executor</code> set on the runtime. Any executor can be used here. For example, on
+ * a JVM with virtual threads an executor that starts a virtual thread per task runs
+ * every actor batch on its own virtual thread.</li>
+ * <li><code>BOUNDED</code>: actors run on a pool of at most <code>threads</code> threads. Load
+ * spikes queue work instead of creating threads. Actors that block, like an unjoin
+ * waiting for the media server, hold a pool thread while they wait, so the pool must be
+ * bigger than the number of actors expected to block at the same time.</li>
+ * <li><code>THREAD_PER_ACTOR</code>: every actor gets its own daemon thread, so an actor
+ * that blocks never delays any other actor. Thread count grows with the number of
+ * actors.</li>
+ * </ul>
+ *
+ * <p>The runtime starts in {@link #init()}, the init method of its bean. Fibers cannot be
+ * created before that, and a runtime that has been shut down cannot be started again.</p>
+ *
+ * <p>When <code>statistics</code> is enabled every actor reports to the runtime how long
+ * its messages wait in the mailbox and how long it takes to handle them. The aggregated
+ * values are exposed through JMX and the values of every actor through its
+ * {@link MailboxStatistics}. Statistics are disabled by default because they cost a
+ * timestamped envelope per message. They can be enabled at any time through JMX.</p>
+ *
+ * <p>Actors that are started without a runtime run on the {@link #getDefault() default}
+ * runtime.</p>
+ *
+ * @author martin
+ *
+ */
+@ManagedResource(objectName="com.rayo:Type=ActorRuntime", description="Actor Runtime")
+public class ActorRuntime implements ActorRuntimeMXBean {
+
+	private static final Loggerf log = Loggerf.getLogger(ActorRuntime.class);
+
+	public enum Mode { LEGACY, BOUNDED, THREAD_PER_ACTOR }
+
+	private Mode mode = Mode.LEGACY;
+	private int threads = 64;
+	private Executor executor;
+	private ActorStatistics actorStatistics;
+	private ActorTracer actorTracer;
+	private volatile boolean statistics;
+
+	private volatile PoolFiberFactory fiberFactory;
+	// Fiber factory set on the runtime and not disposed by it
+	private boolean ownFiberFactory = true;
+	// Pool created by the runtime and shut down with it
+	private ExecutorService pool;
+	private volatile boolean running;
+	// A runtime that has been shut down cannot be started again
+	private volatile boolean disposed;
+
+	private final AtomicInteger threadFibers = new AtomicInteger(0);
+	private final AtomicLong actorsStarted = new AtomicLong(0);
+	private final AtomicInteger liveActors = new AtomicInteger(0);
+	private final AtomicInteger maxMailboxDepth = new AtomicInteger(0);
+	// Microseconds
+	private final LatencyHistogram schedulingDelay = new LatencyHistogram();
+	private final LatencyHistogram runTime = new LatencyHistogram();
+
+	private static ActorRuntime defaultRuntime;
+	private static final Map<PoolFiberFactory, ActorRuntime> fiberFactoryRuntimes = new HashMap<PoolFiberFactory, ActorRuntime>();
+
+	/**
+	 * Runtime used by the actors that are started without one. It runs in 
+	 * <code>LEGACY</code> mode on daemon threads and it is never shut down.
+	 */
+	public static synchronized ActorRuntime getDefault() {
+
+		if (defaultRuntime == null) {
+			ActorRuntime runtime = new ActorRuntime();
+			runtime.setExecutor(Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger(0);
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "actor-default-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			}));
+			runtime.init();
+			defaultRuntime = runtime;
+		}
+		return defaultRuntime;
+	}
+
+	/**
+	 * Runtime that creates the fibers of the actors with the given fiber factory. Used 
+	 * by the deprecated <code>setFiberFactory</code> setters of the actors and their 
+	 * factories. Every fiber factory gets a single runtime.
+	 */
+	static ActorRuntime forFiberFactory(PoolFiberFactory fiberFactory) {
+
+		synchronized (fiberFactoryRuntimes) {
+			ActorRuntime runtime = fiberFactoryRuntimes.get(fiberFactory);
+			if (runtime == null) {
+				runtime = new ActorRuntime();
+				runtime.setFiberFactory(fiberFactory);
+				runtime.init();
+				fiberFactoryRuntimes.put(fiberFactory, runtime);
+			}
+			return runtime;
+		}
+	}
+
+	public synchronized void init() {
+
+		if (running) {
+			return;
+		}
+		if (disposed) {
+			throw new IllegalStateException("The actor runtime has been shut down");
+		}
+		log.info("Starting actor runtime in %s mode", mode);
+		switch (mode) {
+			case LEGACY:
+				if (fiberFactory != null) {
+					// Set on the runtime
+					break;
+				}
+				if (executor == null) {
+					pool = Executors.newCachedThreadPool();
+					executor = pool;
+				}
+				fiberFactory = new PoolFiberFactory(executor);
+				ownFiberFactory = true;
+				break;
+			case BOUNDED:
+				ThreadPoolExecutor bounded = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+						new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+							private final AtomicInteger count = new AtomicInteger(0);
+							@Override
+							public Thread newThread(Runnable runnable) {
+								Thread thread = new Thread(runnable, "actor-pool-" + count.incrementAndGet());
+								thread.setDaemon(true);
+								return thread;
+							}
+						});
+				bounded.allowCoreThreadTimeOut(true);
+				pool = bounded;
+				executor = pool;
+				fiberFactory = new PoolFiberFactory(executor);
+				ownFiberFactory = true;
+				break;
+			case THREAD_PER_ACTOR:
+				break;
+		}
+		running = true;
+	}
+
+	public synchronized void shutdown() {
+
+		if (!running) {
+			return;
+		}
+		log.info("Shutting down actor runtime");
+		running = false;
+		disposed = true;
+		if (fiberFactory != null) {
+			if (ownFiberFactory) {
+				fiberFactory.dispose();
+			}
+			fiberFactory = null;
+		}
+		if (pool != null) {
+			pool.shutdown();
+			if (executor == pool) {
+				executor = null;
+			}
+			pool = null;
+		}
+	}
+
+	/**
+	 * Creates a fiber for an actor. The fiber has to be started by the caller.
+	 *
+	 * @param name Name of the actor. Used to name the thread of the actor when every
+	 * actor has its own thread.
+	 * 
+	 * @throws IllegalStateException If the runtime has not been initialized or has been
+	 * shut down
+	 */
+	public Fiber create(String name) {
+
+		if (!running) {
+			throw new IllegalStateException(disposed ? "The actor runtime has been shut down"
+					: "The actor runtime has not been initialized");
+		}
+		if (mode == Mode.THREAD_PER_ACTOR) {
+			return new ThreadFiber(new RunnableExecutorImpl(),
+					"actor-" + threadFibers.incrementAndGet() + "-" + name, true);
+		}
+		PoolFiberFactory fiberFactory = this.fiberFactory;
+		if (fiberFactory == null) {
+			// Shut down while the fiber was being created
+			throw new IllegalStateException("The actor runtime has been shut down");
+		}
+		return fiberFactory.create();
+	}
+
+	void actorStarted() {
+
+		actorsStarted.incrementAndGet();
+		liveActors.incrementAndGet();
+	}
+
+	void actorStopped() {
+
+		liveActors.decrementAndGet();
+	}
+
+	/**
+	 * A message has been queued on an actor mailbox
+	 *
+	 * @param actor Actor the message was published to
+	 * @param depth Depth of the mailbox with the message
+	 */
+	void messageQueued(ReflectiveActor actor, int depth) {
+
+		if (actorStatistics != null) {
+			actorStatistics.messageQueued(actor, depth);
+		}
+		int max = maxMailboxDepth.get();
+		while (depth > max && !maxMailboxDepth.compareAndSet(max, depth)) {
+			max = maxMailboxDepth.get();
+		}
+	}
+
+	/**
+	 * An actor has handled a message
+	 *
+	 * @param actor Actor that handled the message
+	 * @param message Message or command of the request that has been handled
+	 * @param delay Microseconds the message waited in the mailbox
+	 * @param runTime Microseconds spent handling the message
+	 */
+	void messageHandled(ReflectiveActor actor, Object message, long delay, long runTime) {
+
+		schedulingDelay.record(delay);
+		this.runTime.record(runTime);
+		if (actorStatistics != null) {
+			actorStatistics.messageHandled(actor, message, delay, runTime);
+		}
+	}
+
+	// Configuration
+	/////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Sets how actors are run. Only used by {@link #init()}.
+	 */
+	public void setMode(Mode mode) {
+
+		this.mode = mode;
+	}
+
+	/**
+	 * Sets the number of threads of the pool in <code>BOUNDED</code> mode
+	 */
+	public void setThreads(int threads) {
+
+		this.threads = threads;
+	}
+
+	/**
+	 * Sets the executor that runs the actors in <code>LEGACY</code> mode. The runtime
+	 * does not shut it down.
+	 */
+	public void setExecutor(Executor executor) {
+
+		this.executor = executor;
+	}
+
+	/**
+	 * Sets the fiber factory that creates the fibers in <code>LEGACY</code> mode instead
+	 * of an executor. The runtime does not dispose it.
+	 */
+	public void setFiberFactory(PoolFiberFactory fiberFactory) {
+
+		this.fiberFactory = fiberFactory;
+		this.ownFiberFactory = false;
+	}
+
+	/**
+	 * Sets whether the actors record how long their messages wait in the mailbox and how
+	 * long they take to handle them. Disabled by default. The actor statistics are only
+	 * kept while it is enabled.
+	 */
+	@ManagedAttribute(description="Records the statistics of the messages handled by the actors")
+	public void setStatistics(boolean statistics) {
+
+		this.statistics = statistics;
+	}
+
+	@ManagedAttribute(description="Records the statistics of the messages handled by the actors")
+	public boolean isStatistics() {
+
+		return statistics;
+	}
+
+	/**
+	 * Sets where the statistics of every type of message are kept. Optional.
+	 */
+	public void setActorStatistics(ActorStatistics actorStatistics) {
+
+		this.actorStatistics = actorStatistics;
+	}
+
+	/**
+	 * Sets the tracer of the messages of the actors. Optional.
+	 */
+	public void setActorTracer(ActorTracer actorTracer) {
+
+		this.actorTracer = actorTracer;
+	}
+
+	public ActorTracer getActorTracer() {
+
+		return actorTracer;
+	}
+
+	// Statistics
+	/////////////////////////////////////////////////////////////////////////////
+
+	@ManagedAttribute(description="How actors are run")
+	public String getMode() {
+
+		return mode.toString();
+	}
+
+	@ManagedAttribute(description="Threads running actors")
+	public int getPoolSize() {
+
+		if (mode == Mode.THREAD_PER_ACTOR) {
+			return liveActors.get();
+		}
+		Executor executor = this.executor;
+		return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)executor).getPoolSize() : -1;
+	}
+
+	@ManagedAttribute(description="Threads busy running actors")
+	public int getActiveThreads() {
+
+		Executor executor = this.executor;
+		return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)executor).getActiveCount() : -1;
+	}
+
+	@ManagedAttribute(description="Actor batches waiting for a thread")
+	public int getQueuedBatches() {
+
+		Executor executor = this.executor;
+		return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)executor).getQueue().size() : 0;
+	}
+
+	@ManagedAttribute(description="Actors running")
+	public int getLiveActors() {
+
+		return liveActors.get();
+	}
+
+	@ManagedAttribute(description="Actors started")
+	public long getActorsStarted() {
+
+		return actorsStarted.get();
+	}
+
+	@ManagedAttribute(description="Messages handled by the actors")
+	public long getMessages() {
+
+		return runTime.getCount();
+	}
+
+	@ManagedAttribute(description="Maximum number of messages waiting on an actor mailbox")
+	public int getMaxMailboxDepth() {
+
+		return maxMailboxDepth.get();
+	}
+
+	@ManagedAttribute(description="Mean microseconds a message waits on an actor mailbox")
+	public long getMeanSchedulingDelay() {
+
+		return schedulingDelay.getMean();
+	}
+
+	@ManagedAttribute(description="99th percentile of the microseconds a message waits on an actor mailbox")
+	public long getSchedulingDelay99() {
+
+		return schedulingDelay.getValueAtPercentile(99);
+	}
+
+	@ManagedAttribute(description="Maximum microseconds a message waits on an actor mailbox")
+	public long getMaxSchedulingDelay() {
+
+		return schedulingDelay.getMax();
+	}
+
+	@ManagedAttribute(description="Mean microseconds an actor takes to handle a message")
+	public long getMeanRunTime() {
+
+		return runTime.getMean();
+	}
+
+	@ManagedAttribute(description="99th percentile of the microseconds an actor takes to handle a message")
+	public long getRunTime99() {
+
+		return runTime.getValueAtPercentile(99);
+	}
+
+	@ManagedAttribute(description="Maximum microseconds an actor takes to handle a message")
+	public long getMaxRunTime() {
+
+		return runTime.getMax();
+	}
+
+	@ManagedOperation(description="Resets the actor runtime statistics")
+	public void resetStatistics() {
+
+		maxMailboxDepth.set(0);
+		schedulingDelay.reset();
+		runTime.reset();
+	}
+}
@@ -0,0 +1,244 @@
+package com.rayo.server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import com.rayo.server.jmx.ActorStatisticsMXBean;
+import com.rayo.server.util.LatencyHistogram;
+import com.voxeo.logging.Loggerf;
+
+/**
+ * <p>Statistics of the messages handled by the actors, broken down by message type.</p>
+ *
+ * <p>For every type of message, e.g. a command or a Moho event, it keeps histograms of
+ * the time the messages wait in the actor mailboxes and of the time their handlers
+ * take to run. It also keeps the mailbox high-water mark of every type of actor.</p>
+ *
+ * <p>Handlers that run for longer than the slow handler threshold are logged with
+ * the id of the actor, i.e. the call or mixer id, and the type of the message. The
+ * threshold can be changed through JMX. A threshold of 0 disables the log.</p>
+ *
+ * <p>Times are in microseconds except the threshold, which is in milliseconds.</p>
+ *
+ * @author martin
+ *
+ */
+@ManagedResource(objectName="com.rayo:Type=ActorStatistics", description="Actor Statistics")
+public class ActorStatistics implements ActorStatisticsMXBean {
+
+	private static final Loggerf log = Loggerf.getLogger(ActorStatistics.class);
+
+	private final ConcurrentMap<Class<?>, MessageStatistics> messages = new ConcurrentHashMap<Class<?>, MessageStatistics>();
+	private final ConcurrentMap<Class<?>, AtomicInteger> mailboxDepths = new ConcurrentHashMap<Class<?>, AtomicInteger>();
+	private final AtomicLong slowHandlers = new AtomicLong(0);
+
+	private volatile long slowHandlerThreshold = 500;
+
+	/**
+	 * A message has been queued on an actor mailbox
+	 *
+	 * @param actor Actor the message was published to
+	 * @param depth Depth of the mailbox with the message
+	 */
+	void messageQueued(ReflectiveActor actor, int depth) {
+
+		AtomicInteger max = mailboxDepths.get(actor.getClass());
+		if (max == null) {
+			AtomicInteger created = new AtomicInteger(0);
+			max = mailboxDepths.putIfAbsent(actor.getClass(), created);
+			if (max == null) {
+				max = created;
+			}
+		}
+		int current = max.get();
+		while (depth > current && !max.compareAndSet(current, depth)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * An actor has handled a message
+	 *
+	 * @param actor Actor that handled the message
+	 * @param message Message or command of the request that has been handled
+	 * @param delay Microseconds the message waited in the mailbox
+	 * @param runTime Microseconds spent handling the message
+	 */
+	void messageHandled(ReflectiveActor actor, Object message, long delay, long runTime) {
+
+		MessageStatistics statistics = messages.get(message.getClass());
+		if (statistics == null) {
+			MessageStatistics created = new MessageStatistics(message.getClass().getSimpleName());
+			statistics = messages.putIfAbsent(message.getClass(), created);
+			if (statistics == null) {
+				statistics = created;
+			}
+		}
+		statistics.delay.record(delay);
+		statistics.runTime.record(runTime);
+
+		long threshold = slowHandlerThreshold;
+		if (threshold > 0 && runTime >= TimeUnit.MILLISECONDS.toMicros(threshold)) {
+			slowHandlers.incrementAndGet();
+			log.warn("Slow handler on %s [%s]. Message type: [%s]. Run time: [%sms]. Time in mailbox: [%sms]. Mailbox depth: [%s]",
+					actor.getClass().getSimpleName(), actor.getActorId(), statistics.type,
+					runTime / 1000, delay / 1000, actor.getMailboxStatistics().getDepth());
+		}
+	}
+
+	private static class MessageStatistics {
+
+		final String type;
+		final LatencyHistogram delay = new LatencyHistogram();
+		final LatencyHistogram runTime = new LatencyHistogram();
+
+		MessageStatistics(String type) {
+
+			this.type = type;
+		}
+	}
+
+	private interface Extractor {
+
+		long value(MessageStatistics statistics);
+	}
+
+	private Map<String, Long> collect(Extractor extractor) {
+
+		Map<String, Long> values = new TreeMap<String, Long>();
+		for (MessageStatistics statistics: messages.values()) {
+			long value = extractor.value(statistics);
+			// Two message classes may share a simple name
+			Long previous = values.get(statistics.type);
+			values.put(statistics.type, previous == null ? value : Math.max(previous, value));
+		}
+		return values;
+	}
+
+	@ManagedAttribute(description="Messages handled by message type")
+	public Map<String, Long> getMessages() {
+
+		Map<String, Long> values = new TreeMap<String, Long>();
+		for (MessageStatistics statistics: messages.values()) {
+			Long previous = values.get(statistics.type);
+			long count = statistics.runTime.getCount();
+			values.put(statistics.type, previous == null ? count : previous + count);
+		}
+		return values;
+	}
+
+	@ManagedAttribute(description="Mean microseconds a message waits on an actor mailbox by message type")
+	public Map<String, Long> getMeanSchedulingDelays() {
+
+		return collect(new Extractor() {
+			public long value(MessageStatistics statistics) {
+				return statistics.delay.getMean();
+			}
+		});
+	}
+
+	@ManagedAttribute(description="99th percentile of the microseconds a message waits on an actor mailbox by message type")
+	public Map<String, Long> getSchedulingDelays99() {
+
+		return collect(new Extractor() {
+			public long value(MessageStatistics statistics) {
+				return statistics.delay.getValueAtPercentile(99);
+			}
+		});
+	}
+
+	@ManagedAttribute(description="Maximum microseconds a message waits on an actor mailbox by message type")
+	public Map<String, Long> getMaxSchedulingDelays() {
+
+		return collect(new Extractor() {
+			public long value(MessageStatistics statistics) {
+				return statistics.delay.getMax();
+			}
+		});
+	}
+
+	@ManagedAttribute(description="Mean microseconds an actor takes to handle a message by message type")
+	public Map<String, Long> getMeanRunTimes() {
+
+		return collect(new Extractor() {
+			public long value(MessageStatistics statistics) {
+				return statistics.runTime.getMean();
+			}
+		});
+	}
+
+	@ManagedAttribute(description="99th percentile of the microseconds an actor takes to handle a message by message type")
+	public Map<String, Long> getRunTimes99() {
+
+		return collect(new Extractor() {
+			public long value(MessageStatistics statistics) {
+				return statistics.runTime.getValueAtPercentile(99);
+			}
+		});
+	}
+
+	@ManagedAttribute(description="99.9th percentile of the microseconds an actor takes to handle a message by message type")
+	public Map<String, Long> getRunTimes999() {
+
+		return collect(new Extractor() {
+			public long value(MessageStatistics statistics) {
+				return statistics.runTime.getValueAtPercentile(99.9);
+			}
+		});
+	}
+
+	@ManagedAttribute(description="Maximum microseconds an actor takes to handle a message by message type")
+	public Map<String, Long> getMaxRunTimes() {
+
+		return collect(new Extractor() {
+			public long value(MessageStatistics statistics) {
+				return statistics.runTime.getMax();
+			}
+		});
+	}
+
+	@ManagedAttribute(description="Maximum number of messages waiting on a mailbox by actor type")
+	public Map<String, Integer> getMaxMailboxDepths() {
+
+		Map<String, Integer> values = new TreeMap<String, Integer>();
+		for (Map.Entry<Class<?>, AtomicInteger> entry: mailboxDepths.entrySet()) {
+			values.put(entry.getKey().getSimpleName(), entry.getValue().get());
+		}
+		return values;
+	}
+
+	@ManagedAttribute(description="Handlers that took longer than the slow handler threshold")
+	public long getSlowHandlers() {
+
+		return slowHandlers.get();
+	}
+
+	@ManagedAttribute(description="Milliseconds after which a handler is logged as slow. 0 disables the log.")
+	public long getSlowHandlerThreshold() {
+
+		return slowHandlerThreshold;
+	}
+
+	@ManagedAttribute(description="Milliseconds after which a handler is logged as slow. 0 disables the log.")
+	public void setSlowHandlerThreshold(long slowHandlerThreshold) {
+
+		this.slowHandlerThreshold = slowHandlerThreshold;
+	}
+
+	@ManagedOperation(description="Resets the actor statistics")
+	public void resetStatistics() {
+
+		messages.clear();
+		mailboxDepths.clear();
+		slowHandlers.set(0);
+	}
+}
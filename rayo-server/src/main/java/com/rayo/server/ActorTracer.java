@@ -0,0 +1,193 @@
+package com.rayo.server;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import com.rayo.server.jmx.ActorTracerMXBean;
+
+/**
+ * <p>Trace of the messages and events of selected actors.</p>
+ *
+ * <p>Actors are traced when their id, i.e. the call or mixer id, has been added with
+ * {@link #traceCall(String)} or when they fall into the sample, one out of every
+ * <code>sampleRate</code> actors. By default no call is added and the sample rate is 0,
+ * so nothing is traced.</p>
+ *
+ * <p>Traced messages and events are stored in a ring buffer of records allocated up front.
+ * Storing a record copies a few references and never formats anything, so tracing a call
+ * costs almost nothing to the actor. Records are only turned into text when they are
+ * dumped through JMX. When the buffer is full the oldest records are overwritten.</p>
+ *
+ * @author martin
+ *
+ */
+@ManagedResource(objectName="com.rayo:Type=ActorTracer", description="Actor Tracer")
+public class ActorTracer implements ActorTracerMXBean {
+
+	public enum Kind { MESSAGE, REQUEST, QUEUED_EVENT, EVENT }
+
+	private volatile int sampleRate = 0;
+	private final ConcurrentMap<String, Boolean> tracedCalls = new ConcurrentHashMap<String, Boolean>();
+
+	private volatile TraceRecord[] records;
+	private final AtomicLong sequence = new AtomicLong(0);
+
+	public ActorTracer() {
+
+		setCapacity(4096);
+	}
+
+	/**
+	 * Tells if the messages of an actor have to be traced
+	 *
+	 * @param actorId Id of the actor. Can be <code>null</code>.
+	 */
+	public boolean isTraced(String actorId) {
+
+		if (actorId == null) {
+			return false;
+		}
+		if (!tracedCalls.isEmpty() && tracedCalls.containsKey(actorId)) {
+			return true;
+		}
+		int rate = sampleRate;
+		return rate > 0 && (actorId.hashCode() & Integer.MAX_VALUE) % rate == 0;
+	}
+
+	/**
+	 * Stores a trace record. The message is kept as is and only formatted on dumps.
+	 */
+	public void trace(String actorId, Kind kind, Object message) {
+
+		TraceRecord[] records = this.records;
+		TraceRecord record = records[(int)(sequence.getAndIncrement() % records.length)];
+		synchronized (record) {
+			record.timestamp = System.currentTimeMillis();
+			record.actorId = actorId;
+			record.kind = kind;
+			record.message = message;
+			record.thread = Thread.currentThread().getName();
+		}
+	}
+
+	private static class TraceRecord {
+
+		long timestamp;
+		String actorId;
+		Kind kind;
+		Object message;
+		String thread;
+	}
+
+	private List<String> dump(String callId, boolean all) {
+
+		TraceRecord[] records = this.records;
+		long last = sequence.get();
+		long first = Math.max(0, last - records.length);
+		SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+		List<String> lines = new ArrayList<String>();
+		for (long i = first; i < last; i++) {
+			TraceRecord record = records[(int)(i % records.length)];
+			synchronized (record) {
+				if (record.kind == null || (!all && !callId.equals(record.actorId))) {
+					continue;
+				}
+				lines.add(String.format("%s [%s] [%s] %s [%s]", format.format(new Date(record.timestamp)),
+						record.thread, record.actorId, record.kind, record.message));
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Sets the number of records kept. Drops the records traced so far.
+	 */
+	public void setCapacity(int capacity) {
+
+		TraceRecord[] records = new TraceRecord[capacity];
+		for (int i = 0; i < capacity; i++) {
+			records[i] = new TraceRecord();
+		}
+		this.records = records;
+		sequence.set(0);
+	}
+
+	@ManagedAttribute(description="Records kept by the tracer")
+	public int getCapacity() {
+
+		return records.length;
+	}
+
+	@ManagedAttribute(description="Records traced since the tracer was cleared")
+	public long getRecords() {
+
+		return sequence.get();
+	}
+
+	@ManagedAttribute(description="Traces one out of every N calls. 0 only traces the calls added by id.")
+	public int getSampleRate() {
+
+		return sampleRate;
+	}
+
+	@ManagedAttribute(description="Traces one out of every N calls. 0 only traces the calls added by id.")
+	public void setSampleRate(int sampleRate) {
+
+		this.sampleRate = sampleRate;
+	}
+
+	@ManagedAttribute(description="Calls traced by id")
+	public Set<String> getTracedCalls() {
+
+		return new TreeSet<String>(tracedCalls.keySet());
+	}
+
+	@ManagedOperation(description="Traces the messages of a call or mixer")
+	public void traceCall(String callId) {
+
+		tracedCalls.put(callId, Boolean.TRUE);
+	}
+
+	@ManagedOperation(description="Stops tracing the messages of a call or mixer")
+	public void untraceCall(String callId) {
+
+		tracedCalls.remove(callId);
+	}
+
+	@ManagedOperation(description="Traced messages of a call or mixer")
+	public List<String> dump(String callId) {
+
+		return dump(callId, false);
+	}
+
+	@ManagedOperation(description="Traced messages of every call")
+	public List<String> dumpAll() {
+
+		return dump(null, true);
+	}
+
+	@ManagedOperation(description="Drops the traced messages")
+	public void clear() {
+
+		for (TraceRecord record: records) {
+			synchronized (record) {
+				record.kind = null;
+				record.actorId = null;
+				record.message = null;
+				record.thread = null;
+			}
+		}
+		sequence.set(0);
+	}
+}
@@ -47,7 +47,6 @@ import com.voxeo.moho.Mixer;
 import com.voxeo.moho.MixerEndpoint;
 import com.voxeo.moho.Participant;
 import com.voxeo.moho.Participant.JoinType;
-import com.voxeo.moho.common.event.AutowiredEventListener;
 import com.voxeo.moho.event.CallCompleteEvent;
 import com.voxeo.moho.event.HangupEvent;
 import com.voxeo.moho.event.JoinCompleteEvent.Cause;
@@ -93,7 +92,7 @@ public class CallActor <T extends Call> extends AbstractActor<T> {
     	    
         	log.info("Received call event [%s]", call.getId());
             // Now we setup the moho handlers
-            mohoListeners.add(new AutowiredEventListener(this));
+            mohoListeners.add(this);
             participant.addObserver(new ActorEventListener(this));
 
             String dest = (String)participant.getAttribute(JoinCommand.TO);            
@@ -129,7 +128,7 @@ public class CallActor <T extends Call> extends AbstractActor<T> {
         	log.info("Received call event [%s]", calls.toString());
         	
             // Now we setup the moho handlers
-            mohoListeners.add(new AutowiredEventListener(this));
+            mohoListeners.add(this);
             participant.addObserver(new ActorEventListener(this));
 
             log.info("Joining call to multiple participants in Direct mode.", participant.getId());
@@ -17,6 +17,15 @@ import com.voxeo.moho.Endpoint;
 import com.voxeo.moho.IncomingCall;
 import com.voxeo.moho.event.AcceptableEvent.Reason;
 
+/**
+ * <p>Creates the {@link CallActor}s for incoming calls and for outgoing dial requests.</p>
+ * 
+ * <p>By default every call setup request is handled on the Call Manager's own fiber.
+ * Setting <code>setupShards</code> to a value greater than zero spreads dial commands and 
+ * incoming calls across that number of call setup fibers. Requests are hashed by call 
+ * id (incoming calls) or by dial target (dial commands) so requests for the same key 
+ * are always handled in order.</p>
+ */
 public class CallManager extends ReflectiveActor {
 
     private static final Loggerf log = Loggerf.getLogger(CallManager.class);
@@ -30,6 +39,71 @@ public class CallManager extends ReflectiveActor {
     
     private boolean removeUserPhoneParameter;
     
+    private int setupShards = 0;
+    private CallSetupShard[] shards;
+    
+    // Lifecycle
+    // ================================================================================
+
+    @Override
+    public synchronized void start() {
+    	
+    	super.start();
+    	if (setupShards > 0) {
+    		log.info("Starting call manager with %s call setup shards", setupShards);
+    		CallSetupShard[] shards = new CallSetupShard[setupShards];
+    		for (int i = 0; i < setupShards; i++) {
+    			shards[i] = new CallSetupShard(i, this);
+    			shards[i].start(getActorRuntime());
+    		}
+    		this.shards = shards;
+    	}
+    }
+    
+    @Override
+    public synchronized void stop() {
+    	
+    	if (shards != null) {
+    		for (CallSetupShard shard: shards) {
+    			shard.stop();
+    		}
+    		shards = null;
+    	}
+    	super.stop();
+    }
+    
+    @Override
+    public synchronized boolean publish(Object message) {
+    	
+    	if (shards != null && isRunning()) {
+    		if (message instanceof EventHandler) {
+    			// Shards read the handlers directly so they must be 
+    			// registered before any subsequent call gets routed
+    			addEventHandler((EventHandler)message);
+    			return true;
+    		}
+    		String key = getShardKey(message);
+    		if (key != null) {
+    			shards[(key.hashCode() & 0x7fffffff) % shards.length].publish(message);
+    			return true;
+    		}
+    	}
+    	return super.publish(message);
+    }
+    
+    private String getShardKey(Object message) {
+    	
+    	if (message instanceof IncomingCall) {
+    		return ((IncomingCall)message).getId();
+    	} else if (message instanceof Request) {
+    		Object command = ((Request)message).getCommand();
+    		if (command instanceof DialCommand && ((DialCommand)command).getTo() != null) {
+    			return ((DialCommand)command).getTo().toString();
+    		}
+    	}
+    	return null;
+    }
+    
     // Calls
     // ================================================================================
 
@@ -201,4 +275,22 @@ public class CallManager extends ReflectiveActor {
 	public void setRemoveUserPhoneParameter(boolean removeUserPhoneParameter) {
 		this.removeUserPhoneParameter = removeUserPhoneParameter;
 	}
+
+	/**
+	 * Sets the number of call setup fibers. A value of 0 (the default) keeps all
+	 * call setup serialized on the Call Manager's own fiber.
+	 * 
+	 * @param setupShards Number of call setup shards
+	 */
+	public void setSetupShards(int setupShards) {
+		this.setupShards = setupShards;
+	}
+	
+	public int getSetupShards() {
+		return setupShards;
+	}
+	
+	synchronized CallSetupShard[] getShards() {
+		return shards == null ? new CallSetupShard[0] : shards.clone();
+	}
 }
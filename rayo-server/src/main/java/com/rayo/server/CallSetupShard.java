@@ -0,0 +1,147 @@
+package com.rayo.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jetlang.channels.Channel;
+import org.jetlang.channels.MemoryChannel;
+import org.jetlang.core.Callback;
+import org.jetlang.fibers.Fiber;
+
+/**
+ * <p>One of the call setup lanes used by the {@link CallManager} when sharded call
+ * setup is enabled.</p>
+ *
+ * <p>Each shard owns its own fiber so messages routed to the same shard are handled
+ * in order while different shards run call setup in parallel. Shards keep track of
+ * their queue depth and of the time spent setting up calls so they can be monitored
+ * through JMX.</p>
+ *
+ * <p>Messages are handled by the call manager exactly like the ones handled on its own
+ * fiber, so they get the same tracing, statistics, replies to failed requests and
+ * event flushing. Only the fiber they run on is different.</p>
+ *
+ * @author martin
+ *
+ */
+class CallSetupShard implements Callback<Object> {
+
+	private final int index;
+	private final CallManager callManager;
+
+	private Fiber fiber;
+	private Channel<Object> channel;
+
+	private final AtomicInteger queueDepth = new AtomicInteger(0);
+	private final AtomicInteger maxQueueDepth = new AtomicInteger(0);
+	private final AtomicLong setups = new AtomicLong(0);
+	private final AtomicLong totalSetupTime = new AtomicLong(0);
+	private final AtomicLong maxSetupTime = new AtomicLong(0);
+
+	CallSetupShard(int index, CallManager callManager) {
+
+		this.index = index;
+		this.callManager = callManager;
+	}
+
+	void start(ActorRuntime actorRuntime) {
+
+		fiber = actorRuntime.create("CallSetupShard" + index);
+		channel = new MemoryChannel<Object>();
+		channel.subscribe(fiber, this);
+		fiber.start();
+	}
+
+	void stop() {
+
+		if (fiber != null) {
+			fiber.dispose();
+		}
+	}
+
+	void publish(Object message) {
+
+		int depth = queueDepth.incrementAndGet();
+		int max = maxQueueDepth.get();
+		while (depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+			max = maxQueueDepth.get();
+		}
+		channel.publish(new QueuedMessage(callManager.enqueue(message)));
+	}
+
+	@Override
+	public void onMessage(Object queued) {
+
+		queueDepth.decrementAndGet();
+		QueuedMessage message = (QueuedMessage)queued;
+		try {
+			callManager.onMessage(message.payload);
+		} finally {
+			long elapsed = System.nanoTime() - message.queued;
+			setups.incrementAndGet();
+			totalSetupTime.addAndGet(elapsed);
+			long max = maxSetupTime.get();
+			while (elapsed > max && !maxSetupTime.compareAndSet(max, elapsed)) {
+				max = maxSetupTime.get();
+			}
+		}
+	}
+
+	int getIndex() {
+
+		return index;
+	}
+
+	int getQueueDepth() {
+
+		return queueDepth.get();
+	}
+
+	int getMaxQueueDepth() {
+
+		return maxQueueDepth.get();
+	}
+
+	long getSetups() {
+
+		return setups.get();
+	}
+
+	/**
+	 * Average time in microseconds since a call setup request was queued
+	 * on this shard until it was fully processed
+	 */
+	long getAverageSetupTime() {
+
+		long count = setups.get();
+		if (count == 0) return 0;
+		return totalSetupTime.get() / count / 1000;
+	}
+
+	/**
+	 * Maximum time in microseconds since a call setup request was queued
+	 * on this shard until it was fully processed
+	 */
+	long getMaxSetupTime() {
+
+		return maxSetupTime.get() / 1000;
+	}
+
+	void resetStatistics() {
+
+		maxQueueDepth.set(queueDepth.get());
+		setups.set(0);
+		totalSetupTime.set(0);
+		maxSetupTime.set(0);
+	}
+
+	private static class QueuedMessage {
+
+		final Object payload;
+		final long queued = System.nanoTime();
+
+		QueuedMessage(Object payload) {
+			this.payload = payload;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.rayo.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import com.rayo.server.jmx.CallSetupStatisticsMXBean;
+
+/**
+ * Exposes the state of the {@link CallManager} call setup shards. All the maps 
+ * are keyed by shard name. Times are reported in microseconds.
+ * 
+ * @author martin
+ *
+ */
+@ManagedResource(objectName="com.rayo:Type=CallSetupStatistics", description="Call Setup Statistics")
+public class CallSetupStatistics implements CallSetupStatisticsMXBean {
+
+	private CallManager callManager;
+	
+	@ManagedAttribute(description="Number of call setup shards")
+	public int getSetupShards() {
+		
+		return callManager.getSetupShards();
+	}
+	
+	@ManagedAttribute(description="Call setup requests waiting on any shard")
+	public long getQueuedSetups() {
+		
+		long total = 0;
+		for (CallSetupShard shard: callManager.getShards()) {
+			total+= shard.getQueueDepth();
+		}
+		return total;
+	}
+	
+	@ManagedAttribute(description="Call setup requests waiting per shard")
+	public Map<String, Integer> getQueueDepths() {
+
+		Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+		for (CallSetupShard shard: callManager.getShards()) {
+			result.put(shardName(shard), shard.getQueueDepth());
+		}
+		return result;
+	}
+	
+	@ManagedAttribute(description="Queue depth high water mark per shard")
+	public Map<String, Integer> getMaxQueueDepths() {
+
+		Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+		for (CallSetupShard shard: callManager.getShards()) {
+			result.put(shardName(shard), shard.getMaxQueueDepth());
+		}
+		return result;
+	}
+	
+	@ManagedAttribute(description="Calls set up per shard")
+	public Map<String, Long> getSetups() {
+
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (CallSetupShard shard: callManager.getShards()) {
+			result.put(shardName(shard), shard.getSetups());
+		}
+		return result;
+	}
+
+	@ManagedAttribute(description="Average call setup latency per shard in microseconds")
+	public Map<String, Long> getAverageSetupTimes() {
+
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (CallSetupShard shard: callManager.getShards()) {
+			result.put(shardName(shard), shard.getAverageSetupTime());
+		}
+		return result;
+	}
+
+	@ManagedAttribute(description="Maximum call setup latency per shard in microseconds")
+	public Map<String, Long> getMaxSetupTimes() {
+
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (CallSetupShard shard: callManager.getShards()) {
+			result.put(shardName(shard), shard.getMaxSetupTime());
+		}
+		return result;
+	}
+	
+	@ManagedOperation(description="Resets call setup statistics")
+	public void resetStatistics() {
+		
+		for (CallSetupShard shard: callManager.getShards()) {
+			shard.resetStatistics();
+		}
+	}
+	
+	private String shardName(CallSetupShard shard) {
+		
+		return "shard-" + shard.getIndex();
+	}
+
+	public void setCallManager(CallManager callManager) {
+		this.callManager = callManager;
+	}
+}
@@ -12,7 +12,7 @@ public class DefaultCallActorFactory implements CallActorFactory {
 	private static final Loggerf log = Loggerf.getLogger(DefaultCallActorFactory.class);
 	
     private VerbManager verbManager;
-    private PoolFiberFactory fiberFactory;
+    private ActorRuntime actorRuntime;
     private CallStatistics callStatistics;
     private CdrManager cdrManager;
     private CallRegistry callRegistry;
@@ -33,7 +33,7 @@ public class DefaultCallActorFactory implements CallActorFactory {
         else {
             actor = new CallActor<Call>(call);
         }
-        actor.setFiberFactory(fiberFactory);
+        actor.setActorRuntime(actorRuntime);
         actor.setVerbManager(verbManager);
         actor.setCallStatistics(callStatistics);
         actor.setCdrManager(cdrManager);
@@ -51,12 +51,20 @@ public class DefaultCallActorFactory implements CallActorFactory {
         return verbManager;
     }
 
-    public void setFiberFactory(PoolFiberFactory fiberFactory) {
-        this.fiberFactory = fiberFactory;
+    public void setActorRuntime(ActorRuntime actorRuntime) {
+        this.actorRuntime = actorRuntime;
+    }
+
+    public ActorRuntime getActorRuntime() {
+        return actorRuntime;
     }
 
-    public PoolFiberFactory getFiberFactory() {
-        return fiberFactory;
+    /**
+     * @deprecated Use {@link #setActorRuntime(ActorRuntime)}
+     */
+    @Deprecated
+    public void setFiberFactory(PoolFiberFactory fiberFactory) {
+        this.actorRuntime = ActorRuntime.forFiberFactory(fiberFactory);
     }
 
 	public CallStatistics getCallStatistics() {
@@ -7,7 +7,7 @@ import com.voxeo.moho.Mixer;
 
 public class DefaultMixerActorFactory implements MixerActorFactory {
 
-	private PoolFiberFactory fiberFactory;
+	private ActorRuntime actorRuntime;
 	private VerbManager verbManager;
 	private MixerManager mixerManager;
 	
@@ -15,7 +15,7 @@ public class DefaultMixerActorFactory implements MixerActorFactory {
     public MixerActor create(Mixer mixer, String mixerName) {
 
     	MixerActor actor = new MixerActor(mixer, mixerName);
-        actor.setFiberFactory(fiberFactory);
+        actor.setActorRuntime(actorRuntime);
         actor.setVerbManager(verbManager);
         actor.setMixerManager(mixerManager);
         return actor;
@@ -29,12 +29,20 @@ public class DefaultMixerActorFactory implements MixerActorFactory {
         return verbManager;
     }
 
-    public void setFiberFactory(PoolFiberFactory fiberFactory) {
-        this.fiberFactory = fiberFactory;
+    public void setActorRuntime(ActorRuntime actorRuntime) {
+        this.actorRuntime = actorRuntime;
+    }
+
+    public ActorRuntime getActorRuntime() {
+        return actorRuntime;
     }
 
-    public PoolFiberFactory getFiberFactory() {
-        return fiberFactory;
+    /**
+     * @deprecated Use {@link #setActorRuntime(ActorRuntime)}
+     */
+    @Deprecated
+    public void setFiberFactory(PoolFiberFactory fiberFactory) {
+        this.actorRuntime = ActorRuntime.forFiberFactory(fiberFactory);
     }
 
 	public void setMixerManager(MixerManager mixerManager) {
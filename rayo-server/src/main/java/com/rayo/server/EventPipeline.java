@@ -0,0 +1,359 @@
+package com.rayo.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import com.rayo.server.jmx.EventPipelineMXBean;
+import com.rayo.server.util.LatencyHistogram;
+import com.voxeo.logging.Loggerf;
+
+/**
+ * <p>Moves event filtering, serialization and transport delivery off the actor fibers.</p>
+ *
+ * <p>Actors hand their events to the pipeline, which spreads them across a fixed set of
+ * worker lanes. Events are assigned to a lane by hashing their key (the call or mixer id),
+ * so every event of a call is delivered by the same lane and in the same order in which
+ * the actor fired it. Each worker drains its lane in batches of up to
+ * <code>maxBatchSize</code> events.</p>
+ *
+ * <p>Lanes are bounded. When a lane is full the producer blocks until the lane has room,
+ * which pushes the delay back onto the actor that produces the events. Events are never
+ * delivered on the producer thread while the pipeline is running, as they would overtake
+ * the events of the same call that are still queued. Producers that have been waiting
+ * for more than <code>offerTimeout</code> milliseconds are logged and counted as
+ * overflowed events.</p>
+ *
+ * <p>On shutdown every lane delivers the events it already has and stops. Producers
+ * queue their events while holding a read lock and shutdown stops the pipeline with the
+ * write lock, so no event can be queued on a lane that has already been stopped. Events
+ * submitted before the pipeline is started or after it has been shut down are delivered
+ * on the producer thread, once the lanes have delivered the events they had left.</p>
+ *
+ * @author martin
+ *
+ */
+@ManagedResource(objectName="com.rayo:Type=EventPipeline", description="Event Pipeline")
+public class EventPipeline implements EventPipelineMXBean {
+
+	private static final Loggerf log = Loggerf.getLogger(EventPipeline.class);
+
+	private int workers = 4;
+	private int queueSize = 10000;
+	private int maxBatchSize = 100;
+	private long offerTimeout = 100;
+
+	private EventHandler handler;
+	private Lane[] lanes;
+	private volatile boolean running;
+	// Held by producers while queuing and by shutdown while stopping the lanes
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final AtomicLong eventsProcessed = new AtomicLong(0);
+	private final AtomicLong batchesProcessed = new AtomicLong(0);
+	private final AtomicLong eventsOverflowed = new AtomicLong(0);
+	private final AtomicLong eventsFailed = new AtomicLong(0);
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	public synchronized void init() {
+
+		if (running) {
+			return;
+		}
+		log.info("Starting event pipeline with %s workers", workers);
+		lanes = new Lane[workers];
+		for (int i = 0; i < workers; i++) {
+			lanes[i] = new Lane(i);
+		}
+		running = true;
+		for (Lane lane: lanes) {
+			lane.start();
+		}
+	}
+
+	public synchronized void shutdown() {
+
+		if (!running) {
+			return;
+		}
+		log.info("Shutting down event pipeline");
+		// Waits for the producers that are queuing. Nothing is queued once this is set.
+		lock.writeLock().lock();
+		try {
+			running = false;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		// Lanes stop once they have delivered every event queued before this one.
+		// A full lane keeps draining, so this waits for room like any producer.
+		boolean interrupted = false;
+		for (Lane lane: lanes) {
+			while (true) {
+				try {
+					lane.queue.put(STOP);
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		for (Lane lane: lanes) {
+			try {
+				lane.join(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (lane.isAlive()) {
+				// The lane keeps delivering its events. Never deliver them from here too.
+				log.warn("Event pipeline lane %s is still delivering %s events", lane.index, lane.queue.size());
+			}
+		}
+	}
+
+	/**
+	 * Queues an event for delivery
+	 *
+	 * @param key Ordering key. Events with the same key are delivered in order.
+	 * @param event Event to deliver
+	 */
+	public void submit(String key, Object event) {
+
+		QueuedEvent queued = new QueuedEvent(event);
+		lock.readLock().lock();
+		try {
+			if (running) {
+				Lane lane = lanes[(key == null ? 0 : key.hashCode() & 0x7fffffff) % lanes.length];
+				boolean overflowed = false;
+				try {
+					// Lanes are only stopped with the write lock, so this one keeps draining
+					while (!lane.queue.offer(queued, offerTimeout, TimeUnit.MILLISECONDS)) {
+						if (!overflowed) {
+							overflowed = true;
+							eventsOverflowed.incrementAndGet();
+							log.warn("Event pipeline lane %s is full. Waiting for room [event=%s]", lane.index, event);
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					eventsFailed.incrementAndGet();
+					log.error("Interrupted while waiting for room on event pipeline lane %s. Dropping event [event=%s]", lane.index, event);
+				}
+				return;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		// Not running. Wait for shutdown to let the lanes deliver the events they had left.
+		synchronized (this) {
+			process(queued);
+		}
+	}
+
+	private void process(QueuedEvent queued) {
+
+		try {
+			handler.handle(queued.event);
+		} catch (Exception e) {
+			eventsFailed.incrementAndGet();
+			log.error("Exception while delivering event [event=%s]", queued.event, e);
+		}
+		eventsProcessed.incrementAndGet();
+		latency.record((System.nanoTime() - queued.queued) / 1000);
+	}
+
+	private class Lane extends Thread {
+
+		private final int index;
+		private final BlockingQueue<QueuedEvent> queue;
+
+		Lane(int index) {
+
+			super("rayo-event-pipeline-" + index);
+			setDaemon(true);
+			this.index = index;
+			this.queue = new LinkedBlockingQueue<QueuedEvent>(queueSize);
+		}
+
+		@Override
+		public void run() {
+
+			List<QueuedEvent> batch = new ArrayList<QueuedEvent>(maxBatchSize);
+			boolean stopped = false;
+			while (!stopped) {
+				try {
+					batch.add(queue.take());
+				} catch (InterruptedException e) {
+					continue;
+				}
+				queue.drainTo(batch, maxBatchSize - 1);
+				for (int i = 0; i < batch.size(); i++) {
+					QueuedEvent queued = batch.get(i);
+					if (queued == STOP) {
+						// Nothing is queued after it
+						stopped = true;
+					} else {
+						process(queued);
+					}
+				}
+				batchesProcessed.incrementAndGet();
+				batch.clear();
+			}
+		}
+	}
+
+	// Queued by shutdown to stop a lane
+	private static final QueuedEvent STOP = new QueuedEvent(null);
+
+	private static class QueuedEvent {
+
+		final Object event;
+		final long queued = System.nanoTime();
+
+		QueuedEvent(Object event) {
+			this.event = event;
+		}
+	}
+
+	// JMX
+	// ================================================================================
+
+	@ManagedAttribute(description="Number of worker lanes")
+	public int getWorkers() {
+		return workers;
+	}
+
+	@ManagedAttribute(description="Events waiting to be delivered")
+	public long getQueuedEvents() {
+
+		long total = 0;
+		Lane[] lanes = this.lanes;
+		if (lanes != null) {
+			for (Lane lane: lanes) {
+				total+= lane.queue.size();
+			}
+		}
+		return total;
+	}
+
+	@ManagedAttribute(description="Events waiting to be delivered per lane")
+	public Map<String, Integer> getQueueDepths() {
+
+		Map<String, Integer> depths = new LinkedHashMap<String, Integer>();
+		Lane[] lanes = this.lanes;
+		if (lanes != null) {
+			for (Lane lane: lanes) {
+				depths.put(lane.getName(), lane.queue.size());
+			}
+		}
+		return depths;
+	}
+
+	@ManagedAttribute(description="Lane capacity")
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	@ManagedAttribute(description="Events delivered")
+	public long getEventsProcessed() {
+		return eventsProcessed.get();
+	}
+
+	@ManagedAttribute(description="Events whose producer had to wait for room on a full lane")
+	public long getEventsOverflowed() {
+		return eventsOverflowed.get();
+	}
+
+	@ManagedAttribute(description="Events that failed to be delivered")
+	public long getEventsFailed() {
+		return eventsFailed.get();
+	}
+
+	@ManagedAttribute(description="Average number of events per batch")
+	public long getAverageBatchSize() {
+
+		long batches = batchesProcessed.get();
+		if (batches == 0) return 0;
+		return eventsProcessed.get() / batches;
+	}
+
+	@ManagedAttribute(description="Mean event latency in microseconds")
+	public long getMeanLatency() {
+		return latency.getMean();
+	}
+
+	@ManagedAttribute(description="Median event latency in microseconds")
+	public long getLatency50() {
+		return latency.getValueAtPercentile(50);
+	}
+
+	@ManagedAttribute(description="90th percentile event latency in microseconds")
+	public long getLatency90() {
+		return latency.getValueAtPercentile(90);
+	}
+
+	@ManagedAttribute(description="99th percentile event latency in microseconds")
+	public long getLatency99() {
+		return latency.getValueAtPercentile(99);
+	}
+
+	@ManagedAttribute(description="99.9th percentile event latency in microseconds")
+	public long getLatency999() {
+		return latency.getValueAtPercentile(99.9);
+	}
+
+	@ManagedAttribute(description="Maximum event latency in microseconds")
+	public long getMaxLatency() {
+		return latency.getMax();
+	}
+
+	@ManagedOperation(description="Resets the event pipeline statistics")
+	public void resetStatistics() {
+
+		eventsProcessed.set(0);
+		batchesProcessed.set(0);
+		eventsOverflowed.set(0);
+		eventsFailed.set(0);
+		latency.reset();
+	}
+
+	// Properties
+	// ================================================================================
+
+	public void setHandler(EventHandler handler) {
+		this.handler = handler;
+	}
+
+	public void setWorkers(int workers) {
+		this.workers = workers;
+	}
+
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	public void setOfferTimeout(long offerTimeout) {
+		this.offerTimeout = offerTimeout;
+	}
+}
@@ -20,7 +20,6 @@ import com.voxeo.moho.Call;
 import com.voxeo.moho.Endpoint;
 import com.voxeo.moho.IncomingCall;
 import com.voxeo.moho.SignalException;
-import com.voxeo.moho.common.event.AutowiredEventListener;
 import com.voxeo.moho.event.AcceptableEvent;
 import com.voxeo.moho.sip.SIPCallImpl;
 
@@ -58,7 +57,7 @@ public class IncomingCallActor extends CallActor<IncomingCall> {
         offer.setHeaders(headers);
 
         // Now we setup the moho handlers
-        mohoListeners.add(new AutowiredEventListener(this));
+        mohoListeners.add(this);
         call.addObserver(new ActorEventListener(this));
 
         // Send the OfferEvent
@@ -3,88 +3,104 @@ package com.rayo.server;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import com.rayo.server.jmx.JIDRegistryMXBean;
 import com.voxeo.logging.Loggerf;
 import com.voxeo.servlet.xmpp.JID;
 
 /**
- * <p>JID registry keeps a map of JIDs and origin domains mapped to call ids. This way we can obtain the JID 
- * and origin domain mapped to any call id without depending on the call's lifecycle. This way even if the 
- * call has been completed and wiped out from the system, you can still access to the JID that was mapped 
+ * <p>JID registry keeps a map of JIDs and origin domains mapped to call ids. This way we can obtain the JID
+ * and origin domain mapped to any call id without depending on the call's lifecycle. This way even if the
+ * call has been completed and wiped out from the system, you can still access to the JID that was mapped
  * to the call.</p>
- * 
- * <p>This class uses a thread to clean out any garbage that may have left due to calls not being finished up 
+ *
+ * <p>This class uses a thread to clean out any garbage that may have left due to calls not being finished up
  * properly</p>
- * 
+ *
+ * <p>There is no global lock. Calls are kept in a concurrent set per bare JID and only the set of
+ * the JID being updated is locked, so offers, dials and hangups of different clients never wait on
+ * each other. Removed calls are queued in removal order and, as every call waits the same purge
+ * timeout, the purging task only visits the calls that have actually expired. If more than
+ * <code>maxPendingPurges</code> removed calls are waiting, the oldest ones are purged right away
+ * so memory stays bounded under heavy churn.</p>
+ *
  * @author martin
  *
  */
-public class JIDRegistry {
+@ManagedResource(objectName="com.rayo:Type=JIDRegistry", description="JID Registry")
+public class JIDRegistry implements JIDRegistryMXBean {
 
 	Loggerf log = Loggerf.getLogger(JIDRegistry.class);
-	
+
 	// 5 minutes timeout for cleaning up calls that have already finished
 	long purgeTimeout = 5 * 60 * 1000;
 
-	// Purging task will run each 30 minutes
-	long purgingTaskInterval = 30 * 60 * 1000;
-	
-	private Map<String, JIDEntry> jids = new ConcurrentHashMap<String, JIDEntry>();	
-	private Map<String, List<String>> callsByJid = new ConcurrentHashMap<String, List<String>>();	
-	private ReadWriteLock callsByJidLock = new ReentrantReadWriteLock();
-	
-	private List<JIDEntry> toPurge = new ArrayList<JIDEntry>();
+	// Purging task will run each minute. It only visits expired calls so it is cheap to run often
+	long purgingTaskInterval = 60 * 1000;
+
+	// Maximum number of removed calls waiting to be purged
+	int maxPendingPurges = 100000;
+
+	private ConcurrentMap<String, JIDEntry> jids = new ConcurrentHashMap<String, JIDEntry>();
+	private ConcurrentMap<String, JIDCalls> callsByJid = new ConcurrentHashMap<String, JIDCalls>();
+
+	private Queue<JIDEntry> toPurge = new ConcurrentLinkedQueue<JIDEntry>();
+	private AtomicInteger pendingPurges = new AtomicInteger();
+
+	private AtomicLong purged = new AtomicLong();
+	private AtomicLong forcedPurges = new AtomicLong();
+	private AtomicLong purgeRuns = new AtomicLong();
+	private volatile long lastPurgeTime;
 
 	private Timer timer;
 
 	public JIDRegistry(long purgingTaskInterval, long purgeTimeout) {
-		
+
 		setPurgeTimeout(purgeTimeout);
 		setPurgingTaskInterval(purgingTaskInterval);
 		init();
 	}
-	
+
 	public JIDRegistry() {
 
 		init();
 	}
-	
+
 	private void init() {
-		
+
 		TimerTask task = new TimerTask() {
-			
+
 			@Override
 			public void run() {
-				
-				log.debug("Starting call purging task");
-				List<JIDEntry> list = new ArrayList<JIDEntry>();
-				list.addAll(toPurge);
-				Iterator<JIDEntry> it = list.iterator();
-				while (it.hasNext()) {
-					JIDEntry entry = it.next();
-					if (System.currentTimeMillis() - entry.time > purgeTimeout) {
-						log.debug("Purging call with mapped jid %s from the JID registry", entry.jid);
-						jids.remove(entry.key);
-						toPurge.remove(entry);
-					}
+
+				try {
+					purge();
+				} catch (Exception e) {
+					log.error("Error while purging the JID registry: %s", e.getMessage(), e);
 				}
 			}
 		};
-		
-		timer = new Timer();
-		timer.scheduleAtFixedRate(task, new Date(System.currentTimeMillis() + purgingTaskInterval), purgingTaskInterval);		
+
+		timer = new Timer("jid-registry-purge", true);
+		timer.scheduleAtFixedRate(task, new Date(System.currentTimeMillis() + purgingTaskInterval), purgingTaskInterval);
 	}
-	
+
 	public JID getJID(String callId) {
-		
+
 		if (callId == null) {
 			return null;
 		}
@@ -92,78 +108,208 @@ public class JIDRegistry {
 		if (entry == null) {
 			return null;
 		}
-		
+
 		return entry.jid;
 	}
-	
+
 	public void put(String callId, JID jid) {
-		
-		jids.put(callId, new JIDEntry(jid, -1L, callId));
-		
-		callsByJidLock.writeLock().lock();
-		List<String> calls = callsByJid.get(jid.getBareJID().toString());
-		if (calls == null) {
-			calls = new ArrayList<String>();
-			callsByJid.put(jid.getBareJID().toString(), calls);
+
+		JIDEntry entry = new JIDEntry(jid, -1L, callId);
+		JIDEntry previous = jids.put(callId, entry);
+		String bareJid = entry.bareJid;
+		if (previous != null && previous.time.get() == -1L && !previous.bareJid.equals(bareJid)) {
+			// The call has been mapped to a different client
+			removeCall(previous.bareJid, callId);
+		}
+
+		while (true) {
+			JIDCalls calls = callsByJid.get(bareJid);
+			if (calls == null) {
+				calls = new JIDCalls();
+				JIDCalls current = callsByJid.putIfAbsent(bareJid, calls);
+				if (current != null) {
+					calls = current;
+				}
+			}
+			synchronized(calls) {
+				// A set that has been emptied and unlinked cannot be used anymore
+				if (!calls.retired) {
+					calls.calls.add(callId);
+					return;
+				}
+			}
 		}
-		calls.add(callId);
-		callsByJidLock.writeLock().unlock();
 	}
-	
+
 	public void remove(String callId) {
-		
+
 		log.debug("Removing call id %s from the JID registry", callId);
 		JIDEntry jid = jids.get(callId);
-		if (jid != null) {
-			jid.time = System.currentTimeMillis();
+		// Only the first removal of a call stamps it and queues it for purging
+		if (jid != null && jid.time.compareAndSet(-1L, System.currentTimeMillis())) {
 			toPurge.add(jid);
-			
-			callsByJidLock.writeLock().lock();
-			List<String> calls = callsByJid.get(jid.jid.getBareJID().toString());
-			if (calls != null) {
-				calls.remove(callId);
+			if (pendingPurges.incrementAndGet() > maxPendingPurges) {
+				purge(true);
+			}
+			removeCall(jid.bareJid, callId);
+		}
+	}
+
+	private void removeCall(String bareJid, String callId) {
+
+		JIDCalls calls = callsByJid.get(bareJid);
+		if (calls != null) {
+			synchronized(calls) {
+				calls.calls.remove(callId);
+				if (calls.calls.isEmpty() && !calls.retired) {
+					calls.retired = true;
+					callsByJid.remove(bareJid, calls);
+				}
 			}
-			callsByJidLock.writeLock().unlock();
 		}
 	}
-	
+
 	public List<String> getCallsByJID(JID jid) {
-		
+
 		if (jid == null) {
 			log.warn("Trying to find calls for a null JID");
 			return new ArrayList<String>();
 		}
-		callsByJidLock.readLock().lock();
-		try {
-			List<String> values = callsByJid.get(jid.getBareJID().toString());
-			if (values == null) {
-				return Collections.emptyList();
-			} else {
-				return new ArrayList<String>(values);
+		JIDCalls calls = callsByJid.get(jid.getBareJID().toString());
+		if (calls == null) {
+			return Collections.emptyList();
+		}
+		// Callers end the calls they get back, so they need a snapshot
+		return new ArrayList<String>(calls.calls);
+	}
+
+	/**
+	 * Purges the removed calls that have been waiting for longer than the purge timeout
+	 */
+	@ManagedOperation(description="Purges the ended calls that have expired")
+	public void purge() {
+
+		log.debug("Starting call purging task");
+		purge(false);
+		purgeRuns.incrementAndGet();
+		lastPurgeTime = System.currentTimeMillis();
+	}
+
+	private void purge(boolean overflow) {
+
+		long now = System.currentTimeMillis();
+		while (true) {
+			JIDEntry entry = toPurge.peek();
+			if (entry == null) {
+				return;
+			}
+			boolean expired = now - entry.time.get() > purgeTimeout;
+			if (!expired && !(overflow && pendingPurges.get() > maxPendingPurges)) {
+				// Calls are queued in removal order so the rest have not expired either
+				return;
+			}
+			if (!toPurge.remove(entry)) {
+				// Somebody else purged it
+				continue;
+			}
+			pendingPurges.decrementAndGet();
+			// Do not purge the call if it has been mapped again after being removed
+			if (jids.remove(entry.key, entry)) {
+				log.debug("Purging call with mapped jid %s from the JID registry", entry.jid);
+				purged.incrementAndGet();
+				if (!expired) {
+					forcedPurges.incrementAndGet();
+				}
 			}
-		} finally {
-			callsByJidLock.readLock().unlock();
 		}
 	}
-	
+
 	public void setPurgingTaskInterval(long interval) {
-		
+
 		purgingTaskInterval = interval;
 	}
-	
+
 	public void setPurgeTimeout(long timeout) {
-		
+
 		purgeTimeout = timeout;
-	}	
-	
+	}
+
+	public void setMaxPendingPurges(int maxPendingPurges) {
+
+		this.maxPendingPurges = maxPendingPurges;
+	}
+
 	public int size() {
-		
+
 		return jids.size();
 	}
-	
+
+	@ManagedAttribute(description="Calls mapped in the registry, including ended calls waiting to be purged")
+	public int getSize() {
+
+		return size();
+	}
+
+	@ManagedAttribute(description="Ended calls waiting to be purged")
+	public int getPendingPurges() {
+
+		return pendingPurges.get();
+	}
+
+	@ManagedAttribute(description="Active calls")
+	public int getActiveCalls() {
+
+		return Math.max(0, jids.size() - pendingPurges.get());
+	}
+
+	@ManagedAttribute(description="Bare JIDs with active calls")
+	public int getActiveJIDs() {
+
+		return callsByJid.size();
+	}
+
+	@ManagedAttribute(description="Ended calls purged from the registry")
+	public long getPurgedCalls() {
+
+		return purged.get();
+	}
+
+	@ManagedAttribute(description="Ended calls purged before their timeout because too many calls were waiting")
+	public long getForcedPurges() {
+
+		return forcedPurges.get();
+	}
+
+	@ManagedAttribute(description="Number of times the purging task has run")
+	public long getPurgeRuns() {
+
+		return purgeRuns.get();
+	}
+
+	@ManagedAttribute(description="Last time the purging task ran")
+	public Date getLastPurgeTime() {
+
+		return lastPurgeTime == 0 ? null : new Date(lastPurgeTime);
+	}
+
+	@ManagedAttribute(description="Purge timeout in milliseconds")
+	public long getPurgeTimeout() {
+
+		return purgeTimeout;
+	}
+
+	@ManagedAttribute(description="Maximum number of ended calls waiting to be purged")
+	public int getMaxPendingPurges() {
+
+		return maxPendingPurges;
+	}
+
 	public void shutdown() {
-		
+
 		jids.clear();
+		callsByJid.clear();
+		toPurge.clear();
+		pendingPurges.set(0);
 		timer.cancel();
 	}
 }
@@ -171,12 +317,22 @@ public class JIDRegistry {
 class JIDEntry {
 	String key;
 	JID jid;
-	long time;
-	
+	String bareJid;
+	// Removal time, or -1 while the call is active
+	final AtomicLong time;
+
 	JIDEntry(JID jid, long time, String key) {
-		
+
 		this.key = key;
 		this.jid = jid;
-		this.time = time;
+		this.bareJid = jid.getBareJID().toString();
+		this.time = new AtomicLong(time);
 	}
 }
+
+class JIDCalls {
+
+	final Set<String> calls = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	// Set once the set is empty and has been unlinked from the registry
+	boolean retired;
+}
@@ -0,0 +1,109 @@
+package com.rayo.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Mailbox statistics of a single actor.</p>
+ *
+ * <p>The mailbox depth goes up when a message is published to the actor and down when
+ * the actor starts handling it. The scheduling delay is the time a message waits in the
+ * mailbox and the run time is the time the actor spends handling it. Times are kept in
+ * microseconds.</p>
+ *
+ * @author martin
+ *
+ */
+public class MailboxStatistics {
+
+	private final AtomicInteger depth = new AtomicInteger(0);
+	private final AtomicInteger maxDepth = new AtomicInteger(0);
+	private final AtomicLong messages = new AtomicLong(0);
+	private final AtomicLong totalDelay = new AtomicLong(0);
+	private final AtomicLong maxDelay = new AtomicLong(0);
+	private final AtomicLong totalRunTime = new AtomicLong(0);
+	private final AtomicLong maxRunTime = new AtomicLong(0);
+
+	/**
+	 * A message has been published to the actor
+	 *
+	 * @return int Mailbox depth after the message was added
+	 */
+	int enqueued() {
+
+		int current = depth.incrementAndGet();
+		int max = maxDepth.get();
+		while (current > max && !maxDepth.compareAndSet(max, current)) {
+			max = maxDepth.get();
+		}
+		return current;
+	}
+
+	/**
+	 * The actor has started handling a message
+	 */
+	void dequeued() {
+
+		depth.decrementAndGet();
+	}
+
+	/**
+	 * The actor has handled a message
+	 *
+	 * @param delay Microseconds the message waited in the mailbox
+	 * @param runTime Microseconds spent handling the message
+	 */
+	void handled(long delay, long runTime) {
+
+		messages.incrementAndGet();
+		totalDelay.addAndGet(delay);
+		totalRunTime.addAndGet(runTime);
+		max(maxDelay, delay);
+		max(maxRunTime, runTime);
+	}
+
+	private static void max(AtomicLong max, long value) {
+
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	public int getDepth() {
+
+		return depth.get();
+	}
+
+	public int getMaxDepth() {
+
+		return maxDepth.get();
+	}
+
+	public long getMessages() {
+
+		return messages.get();
+	}
+
+	public long getMeanDelay() {
+
+		long count = messages.get();
+		return count == 0 ? 0 : totalDelay.get() / count;
+	}
+
+	public long getMaxDelay() {
+
+		return maxDelay.get();
+	}
+
+	public long getMeanRunTime() {
+
+		long count = messages.get();
+		return count == 0 ? 0 : totalRunTime.get() / count;
+	}
+
+	public long getMaxRunTime() {
+
+		return maxRunTime.get();
+	}
+}
@@ -0,0 +1,125 @@
+package com.rayo.server;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>Dispatch table for the {@link Message} annotated handlers of an actor class.</p>
+ *
+ * <p>A single table is built per actor class the first time an actor of that class
+ * is started and it is shared by every instance of that class afterwards. Message
+ * classes are resolved against the handler parameter types only once, walking the
+ * message class hierarchy in the same order that {@link ReflectiveActor} used to do,
+ * and the resolved handler is cached by message class so dispatching a message is
+ * a single map lookup with no allocation.</p>
+ *
+ * @author martin
+ *
+ */
+final class MessageDispatcher {
+
+    private static final ConcurrentMap<Class<?>, MessageDispatcher> dispatchers =
+        new ConcurrentHashMap<Class<?>, MessageDispatcher>();
+
+    private static final Target NO_TARGET = new Target(null);
+
+    private final Map<Class<?>, Target> targets = new HashMap<Class<?>, Target>();
+    private final ConcurrentMap<Class<?>, Target> resolved = new ConcurrentHashMap<Class<?>, Target>();
+
+    private MessageDispatcher(Class<?> actorClass) {
+
+        for (Method method : actorClass.getMethods()) {
+            Class<?>[] types = method.getParameterTypes();
+            if (types.length != 1) {
+                continue; // method must have one parameter
+            }
+            if (method.getAnnotation(Message.class) == null) {
+                continue; // method must have a Message annotation
+            }
+            // Skip the language access checks on every invocation
+            method.setAccessible(true);
+            Target target = new Target(method);
+            targets.put(types[0], target);
+            resolved.put(types[0], target);
+        }
+    }
+
+    /**
+     * Returns the dispatch table for the given actor class, building it if
+     * this is the first time the class is seen.
+     *
+     * @param actorClass Actor class
+     *
+     * @return MessageDispatcher Dispatch table for the actor class
+     */
+    static MessageDispatcher forClass(Class<?> actorClass) {
+
+        MessageDispatcher dispatcher = dispatchers.get(actorClass);
+        if (dispatcher == null) {
+            dispatcher = new MessageDispatcher(actorClass);
+            MessageDispatcher existing = dispatchers.putIfAbsent(actorClass, dispatcher);
+            if (existing != null) {
+                dispatcher = existing;
+            }
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Finds the handler method for a message
+     *
+     * @param message Message
+     *
+     * @return Method Handler method or <code>null</code> if the actor class
+     * does not have any handler for this kind of messages
+     */
+    Method findMethod(Object message) {
+
+        return resolve(message.getClass()).method;
+    }
+
+    private Target resolve(Class<?> messageClass) {
+
+        Target target = resolved.get(messageClass);
+        if (target != null) {
+            return target;
+        }
+
+        Queue<Class<?>> queue = new LinkedList<Class<?>>();
+        queue.add(messageClass);
+
+        target = NO_TARGET;
+        while(!queue.isEmpty()) {
+            Class<?> clz = queue.poll();
+            Target candidate = targets.get(clz);
+            if (candidate != null) {
+                target = candidate;
+                break;
+            }
+            for (Class<?> iface : clz.getInterfaces()) {
+                queue.add(iface);
+            }
+            Class<?> superclz = clz.getSuperclass();
+            if(superclz != null && !superclz.equals(Object.class)) {
+                queue.add(superclz);
+            }
+        }
+
+        resolved.putIfAbsent(messageClass, target);
+        return target;
+    }
+
+    private static final class Target {
+
+        final Method method;
+
+        Target(Method method) {
+            this.method = method;
+        }
+    }
+}
@@ -12,7 +12,6 @@ import com.voxeo.logging.Loggerf;
 import com.voxeo.moho.Mixer;
 import com.voxeo.moho.Participant;
 import com.voxeo.moho.State;
-import com.voxeo.moho.common.event.AutowiredEventListener;
 import com.voxeo.moho.event.ActiveSpeakerEvent;
 
 public class MixerActor extends AbstractActor<Mixer> {
@@ -38,7 +37,7 @@ public class MixerActor extends AbstractActor<Mixer> {
     public void setupMohoListeners(Mixer mixer) {
     	
     	mohoObserver = new ActorEventListener(this);
-        mohoListeners.add(new AutowiredEventListener(this));
+        mohoListeners.add(this);
         mixer.addObserver(mohoObserver);
     }
     
@@ -0,0 +1,200 @@
+package com.rayo.server;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.voxeo.moho.State;
+import com.voxeo.moho.common.event.AutowiredEventListener;
+import com.voxeo.moho.event.Event;
+
+/**
+ * <p>Routes the Moho events received by an actor to the listeners that handle them.</p>
+ *
+ * <p>Listeners are registered with the event classes taken by their {@link State}
+ * annotated methods. The first time an event class is dispatched the router resolves
+ * which listeners handle it and caches them in registration order, so dispatching an
+ * event is a single map lookup and a loop over the listeners that handle it, with no
+ * allocation. Adding or removing a listener is a lookup by listener plus a copy of the
+ * cached routes of the event classes it handles, which only hold the listeners of
+ * those event classes instead of every listener of the actor.</p>
+ *
+ * <p>Events are delivered to the listeners that were registered when the event was
+ * dispatched, so listeners can be added or removed while an event is being dispatched,
+ * e.g. when a verb completes.</p>
+ *
+ * @author martin
+ *
+ */
+final class MohoEventRouter {
+
+    // Event classes handled by every listener class
+    private static final ConcurrentMap<Class<?>, Class<?>[]> handledEvents =
+        new ConcurrentHashMap<Class<?>, Class<?>[]>();
+
+    private static final Comparator<Registration> REGISTRATION_ORDER = new Comparator<Registration>() {
+        @Override
+        public int compare(Registration r1, Registration r2) {
+            return r1.order < r2.order ? -1 : (r1.order == r2.order ? 0 : 1);
+        }
+    };
+
+    private final Map<Object, Registration> registrations = new IdentityHashMap<Object, Registration>();
+    private final ConcurrentMap<Class<?>, AutowiredEventListener[]> routes =
+        new ConcurrentHashMap<Class<?>, AutowiredEventListener[]>();
+    private long order;
+
+    /**
+     * Registers a listener. Events are delivered to its {@link State} annotated methods.
+     * Registering the same listener twice has no effect.
+     *
+     * @param target Listener
+     */
+    synchronized void add(Object target) {
+
+        if (registrations.containsKey(target)) {
+            return;
+        }
+        Registration registration = new Registration(target, order++);
+        registrations.put(target, registration);
+        // The new listener is the last one registered, so it goes at the end of its routes
+        for (Map.Entry<Class<?>, AutowiredEventListener[]> route : routes.entrySet()) {
+            if (registration.handles(route.getKey())) {
+                AutowiredEventListener[] listeners = route.getValue();
+                AutowiredEventListener[] updated = new AutowiredEventListener[listeners.length + 1];
+                System.arraycopy(listeners, 0, updated, 0, listeners.length);
+                updated[listeners.length] = registration.listener;
+                route.setValue(updated);
+            }
+        }
+    }
+
+    /**
+     * Unregisters a listener
+     *
+     * @param target Listener
+     */
+    synchronized void remove(Object target) {
+
+        Registration registration = registrations.remove(target);
+        if (registration == null) {
+            return;
+        }
+        for (Map.Entry<Class<?>, AutowiredEventListener[]> route : routes.entrySet()) {
+            if (registration.handles(route.getKey())) {
+                AutowiredEventListener[] listeners = route.getValue();
+                AutowiredEventListener[] updated = new AutowiredEventListener[listeners.length - 1];
+                int j = 0;
+                for (AutowiredEventListener listener : listeners) {
+                    if (listener != registration.listener) {
+                        updated[j++] = listener;
+                    }
+                }
+                route.setValue(updated);
+            }
+        }
+    }
+
+    synchronized void clear() {
+
+        registrations.clear();
+        routes.clear();
+    }
+
+    synchronized int size() {
+
+        return registrations.size();
+    }
+
+    /**
+     * Delivers an event to every listener that handles it
+     *
+     * @param event Moho event
+     */
+    void dispatch(Event<?> event) throws Exception {
+
+        AutowiredEventListener[] listeners = routes.get(event.getClass());
+        if (listeners == null) {
+            listeners = route(event.getClass());
+        }
+        for (AutowiredEventListener listener : listeners) {
+            listener.onEvent(event);
+        }
+    }
+
+    /**
+     * Listeners that handle an event class, in registration order
+     */
+    synchronized AutowiredEventListener[] route(Class<?> eventClass) {
+
+        AutowiredEventListener[] listeners = routes.get(eventClass);
+        if (listeners != null) {
+            return listeners;
+        }
+        List<Registration> matches = new ArrayList<Registration>();
+        for (Registration registration : registrations.values()) {
+            if (registration.handles(eventClass)) {
+                matches.add(registration);
+            }
+        }
+        Collections.sort(matches, REGISTRATION_ORDER);
+        listeners = new AutowiredEventListener[matches.size()];
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i] = matches.get(i).listener;
+        }
+        routes.put(eventClass, listeners);
+        return listeners;
+    }
+
+    private static Class<?>[] handledEvents(Class<?> targetClass) {
+
+        Class<?>[] events = handledEvents.get(targetClass);
+        if (events == null) {
+            List<Class<?>> types = new ArrayList<Class<?>>();
+            for (Class<?> clz = targetClass; clz != null && clz != Object.class; clz = clz.getSuperclass()) {
+                for (Method method : clz.getDeclaredMethods()) {
+                    Class<?>[] parameters = method.getParameterTypes();
+                    if (parameters.length == 1 && method.getAnnotation(State.class) != null
+                            && Event.class.isAssignableFrom(parameters[0]) && !types.contains(parameters[0])) {
+                        types.add(parameters[0]);
+                    }
+                }
+            }
+            if (types.isEmpty()) {
+                // Nothing to index. Deliver every event and let the listener decide.
+                types.add(Event.class);
+            }
+            events = types.toArray(new Class<?>[types.size()]);
+            handledEvents.putIfAbsent(targetClass, events);
+        }
+        return events;
+    }
+
+    private static final class Registration {
+
+        final AutowiredEventListener listener;
+        final Class<?>[] events;
+        final long order;
+
+        Registration(Object target, long order) {
+            this.listener = new AutowiredEventListener(target);
+            this.events = handledEvents(target.getClass());
+            this.order = order;
+        }
+
+        boolean handles(Class<?> eventClass) {
+            for (Class<?> event : events) {
+                if (event.isAssignableFrom(eventClass)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
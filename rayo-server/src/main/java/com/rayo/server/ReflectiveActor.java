@@ -4,13 +4,10 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedHashSet;
-import java.util.LinkedList;
-import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import org.jetlang.channels.Channel;
 import org.jetlang.channels.MemoryChannel;
@@ -29,14 +26,38 @@ public abstract class ReflectiveActor implements Actor, Callback<Object> {
     private Fiber fiber;
     private Channel<Object> channel;
     private boolean running = false;
-    private Map<Class<?>, Method> targets = new HashMap<Class<?>, Method>();
-    private static Map<String, Method> globalMethodsCache = new ConcurrentHashMap<String, Method>();
+    private MessageDispatcher dispatcher;
 
-    private PoolFiberFactory fiberFactory;
-    private Set<EventHandler> eventHandlers = new LinkedHashSet<EventHandler>();
+    private ActorRuntime actorRuntime;
+    private Set<EventHandler> eventHandlers = new CopyOnWriteArraySet<EventHandler>();
+    private final MailboxStatistics mailboxStatistics = new MailboxStatistics();
 
     @Override
-    public void onMessage(Object message) {
+    public void onMessage(Object queued) {
+
+        if (!(queued instanceof QueuedMessage)) {
+            // Published while the statistics were disabled
+            handle(queued);
+            return;
+        }
+        QueuedMessage message = (QueuedMessage) queued;
+        long dispatched = System.nanoTime();
+        mailboxStatistics.dequeued();
+        try {
+            handle(message.payload);
+        } finally {
+            long delay = (dispatched - message.queued) / 1000;
+            long runTime = (System.nanoTime() - dispatched) / 1000;
+            mailboxStatistics.handled(delay, runTime);
+            Object payload = message.payload;
+            if (payload instanceof Request) {
+                payload = ((Request) payload).getCommand();
+            }
+            actorRuntime.messageHandled(this, payload, delay, runTime);
+        }
+    }
+
+    private void handle(Object message) {
 
         if (!running) {
             if (message instanceof Request) {
@@ -57,10 +78,11 @@ public abstract class ReflectiveActor implements Actor, Callback<Object> {
                 if (log.isDebugEnabled()) {
                 	log.debug("[%s] : Request [%s]", this, request);
                 }
+                trace(ActorTracer.Kind.REQUEST, command);
 
                 try {
 
-                    Method method = findMethod(command);
+                    Method method = dispatcher.findMethod(command);
 
                     if (method == null) {
                         log.warn("Could not find command handler for message [%s]", message);
@@ -85,14 +107,17 @@ public abstract class ReflectiveActor implements Actor, Callback<Object> {
                 }
             } else {
 
-                Method method = findMethod(message);
+                Method method = dispatcher.findMethod(message);
 
                 if (method == null) {
                     log.warn("Could not find command handler for message [%s]", message);
                     return;
                 }
 
-                log.info("Message [%s]", message);
+                if (log.isDebugEnabled()) {
+                    log.debug("Message [%s]", message);
+                }
+                trace(ActorTracer.Kind.MESSAGE, message);
                 method.invoke(this, message);
             }
 
@@ -108,41 +133,6 @@ public abstract class ReflectiveActor implements Actor, Callback<Object> {
         
     }
 
-    private Method findMethod(Object message) {
-        
-        Method method = globalMethodsCache.get(getMethodKey(message));
-        if (method != null) return method;
-        
-        Queue<Class<?>> queue = new LinkedList<Class<?>>();
-        queue.add(message.getClass());
-        
-        while(!queue.isEmpty()) {
-            Class<?> clz = queue.poll();
-            method = targets.get(clz);
-            if (method != null) {
-                break;
-            }
-            for (Class<?> iface : clz.getInterfaces()) {
-                queue.add(iface);
-            }
-            Class<?> superclz = clz.getSuperclass();
-            if(superclz != null && !superclz.equals(Object.class)) {
-                queue.add(superclz);
-            }
-        }
-        
-        if (method != null) {
-        	globalMethodsCache.put(getMethodKey(message), method);
-        }
-        
-        return method;
-    }
-
-    private String getMethodKey(Object message) {
-
-    	return this.getClass().toString() + message.getClass().toString();
-	}
-
 	/**
      * Continue after an exception by default
      * 
@@ -161,27 +151,21 @@ public abstract class ReflectiveActor implements Actor, Callback<Object> {
     @Override
     public synchronized void start() {
 
-        this.fiber = fiberFactory.create();
+        if (actorRuntime == null) {
+            actorRuntime = ActorRuntime.getDefault();
+        }
+        this.fiber = actorRuntime.create(getClass().getSimpleName());
         this.channel = new MemoryChannel<Object>();
 
         // Subscribe ourselves to receive events
         channel.subscribe(fiber, this);
 
-        final Method[] methods = this.getClass().getMethods();
-        for (final Method method : methods) {
-            final Class<?>[] types = method.getParameterTypes();
-            if (types.length != 1) {
-                continue; // method must have one parameter 
-            }
-            if (method.getAnnotation(Message.class) == null) {
-                continue; // method must have a Message annotation
-            }
-            final Class<?> commandClass = types[0];
-            targets.put(commandClass, method);
-        }
+        // Dispatch tables are built once per actor class and shared across instances
+        dispatcher = MessageDispatcher.forClass(getClass());
 
         fiber.start();
         running = true;
+        actorRuntime.actorStarted();
     }
 
     public void link(final ActorLink link) {
@@ -197,6 +181,7 @@ public abstract class ReflectiveActor implements Actor, Callback<Object> {
         if(running) {
             running = false;
             fiber.dispose();
+            actorRuntime.actorStopped();
         }
     }
 
@@ -204,7 +189,7 @@ public abstract class ReflectiveActor implements Actor, Callback<Object> {
     public synchronized boolean publish(Object message) {
 
         if (running) {
-            channel.publish(message);
+            channel.publish(enqueue(message));
         } else {
             log.info("Actor %s is disposed. Ignoring message. [%s]", this.getClass().getSimpleName(), message);
             if (message instanceof Request) {
@@ -214,20 +199,66 @@ public abstract class ReflectiveActor implements Actor, Callback<Object> {
         return running;
     }
 
-    public PoolFiberFactory getFiberFactory() {
-        return fiberFactory;
+    /**
+     * Returns the message as it has to be put on the mailbox and handed back to
+     * {@link #onMessage(Object)}. It is wrapped with the time it was queued when the
+     * statistics of the runtime are enabled.
+     */
+    Object enqueue(Object message) {
+
+        if (actorRuntime.isStatistics()) {
+            actorRuntime.messageQueued(this, mailboxStatistics.enqueued());
+            return new QueuedMessage(message);
+        }
+        return message;
+    }
+
+    public ActorRuntime getActorRuntime() {
+        return actorRuntime;
+    }
+
+    /**
+     * Sets the runtime that runs this actor. Actors started without a runtime run on
+     * the {@link ActorRuntime#getDefault() default} runtime.
+     */
+    public void setActorRuntime(ActorRuntime actorRuntime) {
+        this.actorRuntime = actorRuntime;
     }
 
+    /**
+     * @deprecated Use {@link #setActorRuntime(ActorRuntime)}. The fibers of the actor are
+     * created by a runtime that wraps the fiber factory.
+     */
+    @Deprecated
     public void setFiberFactory(PoolFiberFactory fiberFactory) {
-        this.fiberFactory = fiberFactory;
+        setActorRuntime(ActorRuntime.forFiberFactory(fiberFactory));
+    }
+
+    /**
+     * Id used to identify this actor on the logs, e.g. the id of a call
+     */
+    public String getActorId() {
+        return null;
+    }
+
+    /**
+     * Depth of the mailbox of this actor and how long its messages wait and take to run.
+     * Only recorded while the statistics of the runtime are enabled.
+     */
+    public MailboxStatistics getMailboxStatistics() {
+        return mailboxStatistics;
     }
     
-    private Queue<Object> eventQueue = new LinkedList<Object>();
+    // Call setup shards handle messages of the call manager on their own fibers
+    private Queue<Object> eventQueue = new ConcurrentLinkedQueue<Object>();
 
     private void flushEvents() {
         while(!eventQueue.isEmpty()) {
             Object message = eventQueue.poll();
-            log.info("Event [%s]", message);
+            if (log.isDebugEnabled()) {
+                log.debug("Event [%s]", message);
+            }
+            trace(ActorTracer.Kind.EVENT, message);
             for (EventHandler handler : eventHandlers) {
                 try {
                     handler.handle(message);
@@ -245,7 +276,10 @@ public abstract class ReflectiveActor implements Actor, Callback<Object> {
     
     protected void fire(Object message) {
         if(running) {
-            log.info("Queued Event [%s]", message);
+            if (log.isDebugEnabled()) {
+                log.debug("Queued Event [%s]", message);
+            }
+            trace(ActorTracer.Kind.QUEUED_EVENT, message);
             eventQueue.offer(message);
         }
         else {
@@ -253,6 +287,19 @@ public abstract class ReflectiveActor implements Actor, Callback<Object> {
         }
     }
     
+    /**
+     * Stores the message on the trace when this actor is being traced
+     */
+    private void trace(ActorTracer.Kind kind, Object message) {
+        ActorTracer tracer = actorRuntime == null ? null : actorRuntime.getActorTracer();
+        if (tracer != null) {
+            String actorId = getActorId();
+            if (tracer.isTraced(actorId)) {
+                tracer.trace(actorId, kind, message);
+            }
+        }
+    }
+
     public void addEventHandler(EventHandler handler) {
         eventHandlers.add(handler);
     }
@@ -265,4 +312,14 @@ public abstract class ReflectiveActor implements Actor, Callback<Object> {
         return Collections.unmodifiableSet(eventHandlers);
     }
 
+    private static class QueuedMessage {
+
+        final Object payload;
+        final long queued = System.nanoTime();
+
+        QueuedMessage(Object payload) {
+            this.payload = payload;
+        }
+    }
+
 }
@@ -0,0 +1,88 @@
+package com.rayo.server;
+
+import org.apache.xerces.dom.DocumentImpl;
+import org.dom4j.DocumentException;
+import org.dom4j.Element;
+import org.dom4j.io.DOMWriter;
+
+/**
+ * <p>Outbound event serialized once and shared by the CDR and every {@link Transport}.</p>
+ *
+ * <p>Events are serialized by the xml providers into a dom4j {@link Element}. Before,
+ * the CDR called <code>asXML()</code> on that element once per call and the XMPP
+ * transport converted it into a W3C DOM once per destination. This class converts each
+ * form lazily, at most once per event. The W3C DOM form is handed out as a copy because
+ * the container may take ownership of the element that is sent on a stanza.</p>
+ *
+ * @author martin
+ *
+ */
+public class SerializedEvent {
+
+	private final Element element;
+	private String xml;
+	private org.w3c.dom.Element dom;
+
+	public SerializedEvent(Element element) {
+
+		this.element = element;
+	}
+
+	/**
+	 * @return Element dom4j form of the event. Callers must not modify it.
+	 */
+	public Element getElement() {
+
+		return element;
+	}
+
+	/**
+	 * @return String Name of the event's root element, e.g. <code>offer</code>
+	 */
+	public String getName() {
+
+		return element.getName();
+	}
+
+	public String attributeValue(String name) {
+
+		return element.attributeValue(name);
+	}
+
+	/**
+	 * @return String Event serialized as text. Serialized only once.
+	 */
+	public synchronized String asXML() {
+
+		if (xml == null) {
+			xml = element.asXML();
+		}
+		return xml;
+	}
+
+	/**
+	 * Returns a W3C DOM copy of this event that the caller is free to attach to
+	 * an outbound stanza. The event is converted from dom4j only once. Later calls
+	 * return a deep copy of that first conversion.
+	 *
+	 * @return org.w3c.dom.Element W3C DOM copy of the event
+	 */
+	public synchronized org.w3c.dom.Element toDOM() {
+
+		if (dom == null) {
+			try {
+				// Passing the document class skips the JAXP lookup done by the default DOMWriter
+				dom = new DOMWriter(DocumentImpl.class).write(element.getDocument()).getDocumentElement();
+			} catch (DocumentException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return (org.w3c.dom.Element)dom.cloneNode(true);
+	}
+
+	@Override
+	public String toString() {
+
+		return asXML();
+	}
+}
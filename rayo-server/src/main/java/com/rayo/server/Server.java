@@ -2,9 +2,9 @@ package com.rayo.server;
 
 import static com.voxeo.utils.Objects.assertion;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.dom4j.Element;
 
@@ -21,10 +21,13 @@ import com.rayo.core.verb.Verb;
 import com.rayo.core.verb.VerbCommand;
 import com.rayo.core.verb.VerbEvent;
 import com.rayo.core.xml.XmlProvider;
+import com.rayo.core.xml.stream.DomStreamReader;
+import com.rayo.core.xml.stream.StaxCommandParser;
 import com.rayo.server.admin.RayoAdminService;
 import com.rayo.server.exception.RayoProtocolException;
 import com.rayo.server.exception.RayoProtocolException.Condition;
 import com.rayo.server.filter.FilterChain;
+import com.rayo.server.util.DomUtils;
 import com.voxeo.exceptions.NotFoundException;
 import com.voxeo.logging.Loggerf;
 
@@ -34,6 +37,9 @@ public class Server implements EventHandler, CommandHandler {
 	
 	private XmlProvider provider;
 	
+	// Optional. When set, the most frequent commands are parsed straight from the W3C DOM
+	private StaxCommandParser commandParser;
+	
 	private CallManager callManager;
 	private CallRegistry callRegistry;
 
@@ -49,15 +55,38 @@ public class Server implements EventHandler, CommandHandler {
     // TODO: Delete?
 	private FilterChain filtersChain;
     
+	// Optional. When set, events are delivered from the pipeline workers instead of the actor fibers
+	private EventPipeline eventPipeline;
 
-	private List<Transport> transports = new ArrayList<Transport>();
+	private List<Transport> transports = new CopyOnWriteArrayList<Transport>();
 	
 	public void start() {
+		if (eventPipeline != null) {
+			eventPipeline.setHandler(new EventHandler() {
+				@Override
+				public void handle(Object event) throws Exception {
+					dispatchEvent(event);
+				}
+			});
+		}
 		callManager.addEventHandler(this);
 	}
 	
 	@Override
 	public void handle(Object event) throws Exception {
+		if (eventPipeline != null) {
+			if (event instanceof CallEvent) {
+				eventPipeline.submit(((CallEvent)event).getCallId(), event);
+				return;
+			} else if (event instanceof MixerEvent) {
+				eventPipeline.submit(((MixerEvent)event).getMixerId(), event);
+				return;
+			}
+		}
+		dispatchEvent(event);
+	}
+	
+	private void dispatchEvent(Object event) {
 		if(event instanceof CallEvent) {
 			handleCallEvent((CallEvent) event);
 		}
@@ -87,8 +116,9 @@ public class Server implements EventHandler, CommandHandler {
     	}
     	
     	// Serialize to XML
-    	Element xml = provider.toXML(event);
-		assertion(xml != null, "Could not serialize event [event=%s]", event);
+    	Element element = provider.toXML(event);
+		assertion(element != null, "Could not serialize event [event=%s]", event);
+		SerializedEvent xml = new SerializedEvent(element);
 		
 		// Log to CDR
 		cdrManager.append(event.getCallId(), xml.asXML());
@@ -124,11 +154,13 @@ public class Server implements EventHandler, CommandHandler {
 	private void handleMixerEvent(MixerEvent event) {
 		
         // Serialize the event to XML
-        Element xml = provider.toXML(event);
-        assertion(xml != null, "Could not serialize event [event=%s]", event);
+        Element element = provider.toXML(event);
+        assertion(element != null, "Could not serialize event [event=%s]", event);
+        SerializedEvent xml = new SerializedEvent(element);
         
+        String cdr = xml.asXML();
         for (String callId: event.getParticipantIds()) {
-        	cdrManager.append(callId,xml.asXML());        	
+        	cdrManager.append(callId, cdr);
         }
 
     	// Extract event properties
@@ -159,6 +191,29 @@ public class Server implements EventHandler, CommandHandler {
         }
 	}
 
+    /**
+     * Handles a command that is parsed by the {@link StaxCommandParser} straight from the
+     * W3C DOM delivered by the container. Only commands for which {@link #isStreamed(org.w3c.dom.Element)}
+     * returns <code>true</code> can be handled by this method.
+     */
+    public void handleStreamedCommand(final String id, String componentId, org.w3c.dom.Element xml, final TransportCallback callback) {
+        try {
+            handleCommand(id, componentId, xml, commandParser.parse(new DomStreamReader(xml)), callback);
+        }
+        catch (Exception e) {
+            if(e instanceof ValidationException) {
+                rayoStatistics.validationError();
+            }
+            log.error("Failed to parse incoming command [id=%s, componentId=%s, xml=%s]", id, componentId, asXML(xml), e);
+            TransportCallback.handle(callback, null, e);
+        }
+    }
+
+    public boolean isStreamed(org.w3c.dom.Element xml) {
+
+        return commandParser != null && commandParser.handles(xml.getNamespaceURI(), xml.getLocalName());
+    }
+
     @Override
     public void handleCommand(final String id, String componentId, CallCommand command, final TransportCallback callback) {
         try {
@@ -174,7 +229,11 @@ public class Server implements EventHandler, CommandHandler {
     }
 
 	
-	private void handleCommand(final String id, String componentId, Element xml, Object command, final TransportCallback callback) {
+	/**
+	 * @param xml Command as a dom4j or a W3C DOM element. It is only serialized if the command
+	 * has to be written to the CDR.
+	 */
+	private void handleCommand(final String id, String componentId, Object xml, Object command, final TransportCallback callback) {
 		
     	try {
     	    rayoStatistics.commandReceived(command);
@@ -205,7 +264,7 @@ public class Server implements EventHandler, CommandHandler {
             
             if (actor instanceof CallActor) {
 	            callCommand.setCallId(id);
-	            cdrManager.append(id, xml.asXML());
+	            cdrManager.append(id, asXML(xml));
             }
             
             // Resolve component properties 
@@ -306,6 +365,14 @@ public class Server implements EventHandler, CommandHandler {
     }
 
     
+    private String asXML(Object xml) {
+
+        if (xml instanceof Element) {
+            return ((Element)xml).asXML();
+        }
+        return DomUtils.asXML((org.w3c.dom.Element)xml);
+    }
+
     public XmlProvider getProvider() {
         return provider;
     }
@@ -314,6 +381,14 @@ public class Server implements EventHandler, CommandHandler {
         this.provider = provider;
     }
 
+    public StaxCommandParser getCommandParser() {
+        return commandParser;
+    }
+
+    public void setCommandParser(StaxCommandParser commandParser) {
+        this.commandParser = commandParser;
+    }
+
     public CallManager getCallManager() {
         return callManager;
     }
@@ -382,4 +457,12 @@ public class Server implements EventHandler, CommandHandler {
         transports.add(transport);
     }
 
+    public EventPipeline getEventPipeline() {
+        return eventPipeline;
+    }
+
+    public void setEventPipeline(EventPipeline eventPipeline) {
+        this.eventPipeline = eventPipeline;
+    }
+
 }
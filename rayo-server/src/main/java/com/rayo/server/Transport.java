@@ -2,8 +2,6 @@ package com.rayo.server;
 
 import java.util.Collection;
 
-import org.dom4j.Element;
-
 public interface Transport {
 
 	/**
@@ -11,20 +9,20 @@ public interface Transport {
 	 * 
 	 * @param callId Id of the call
 	 * @param componentId Id of the component
-	 * @param body Event's body
+	 * @param body Event's body. It is shared with other transports so it must not be modified.
 	 * @return boolean <code>true</code> if the event was delivered and <code>false</code> otherwise.
 	 * @throws Exception If any unexpected error happens
 	 */
-	public boolean callEvent(String callId, String componentId, Element body) throws Exception;
+	public boolean callEvent(String callId, String componentId, SerializedEvent body) throws Exception;
 
 	/**
 	 * Delivers a mixer event on the specified transport
 	 * 
 	 * @param mixerId Id of the mixer
 	 * @param participants Collection of participant ids
-	 * @param body Event's body
+	 * @param body Event's body. It is shared with other transports so it must not be modified.
 	 * @return boolean <code>true</code> if the event was delivered and <code>false</code> otherwise.
 	 * @throws Exception If any unexpected error happens
 	 */
-	public boolean mixerEvent(String mixerId, Collection<String> participants, Element body) throws Exception;
+	public boolean mixerEvent(String mixerId, Collection<String> participants, SerializedEvent body) throws Exception;
 }
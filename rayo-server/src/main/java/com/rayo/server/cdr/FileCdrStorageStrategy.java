@@ -5,28 +5,63 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedOperation;
 import org.springframework.jmx.export.annotation.ManagedResource;
 
 import com.rayo.core.cdr.Cdr;
 import com.rayo.core.cdr.CdrException;
 import com.rayo.server.jmx.FileCdrMXBean;
+import com.rayo.server.util.LatencyHistogram;
 import com.voxeo.logging.Loggerf;
 
+/**
+ * <p>Stores CDRs in files. CDRs are written to a file per day within <code>baseFolder</code>
+ * or, for legacy setups, to the single file set in <code>path</code>.</p>
+ * 
+ * <p>By default every CDR is written and flushed on the thread that stores it, which is 
+ * the fiber of the call that has just ended. When <code>async</code> is enabled CDRs are 
+ * put in a bounded queue instead and a dedicated writer thread writes them to a 
+ * {@link FileChannel} in groups: a group is written when it reaches <code>maxBatchSize</code>
+ * CDRs or when its first CDR has been waiting for <code>commitInterval</code> milliseconds. 
+ * Daily rotation is also done by the writer thread so storing a CDR never waits on disk
+ * while the queue has room. CDRs are billing records and are never dropped: if the queue
+ * is full the thread storing the CDR waits for room and is counted as overflowed.</p>
+ * 
+ * <p>Once the storage has been shut down CDRs are rejected with a {@link CdrException}.
+ * Shutting down waits until every queued CDR has been written.</p>
+ * 
+ * @author martin
+ *
+ */
 @ManagedResource(objectName = "com.rayo:Type=Admin,name=File CDR", description = "Filebased CDR storage")
 public class FileCdrStorageStrategy implements CdrStorageStrategy, FileCdrMXBean {
 
 	private Loggerf logger = Loggerf.getLogger(FileCdrStorageStrategy.class);
-	private static final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+	// SimpleDateFormat is not thread safe
+	private static final ThreadLocal<SimpleDateFormat> sdf = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat("yyyy-MM-dd");
+		}
+	};
 	
 	// will keep this one for legacy reasons
-	private String path;
-	private String baseFolder = "/tmp/cdrs";
+	private volatile String path;
+	private volatile String baseFolder = "/tmp/cdrs";
 	
 	private boolean append = true;
 	private String lastUsedPath;
@@ -36,9 +71,29 @@ public class FileCdrStorageStrategy implements CdrStorageStrategy, FileCdrMXBean
 	// Lock to enable File settings hot replacement
 	private final ReadWriteLock lock = new ReentrantReadWriteLock();
 	
+	private boolean async = false;
+	private int queueSize = 10000;
+	private int maxBatchSize = 256;
+	private long commitInterval = 10;
+	private boolean forceOnCommit = false;
+	
+	// Held by the threads storing CDRs while queuing and by shutdown while stopping the writer
+	private final ReadWriteLock queueLock = new ReentrantReadWriteLock();
+	private BlockingQueue<QueuedCdr> queue;
+	private CdrWriter writer;
+	private volatile boolean shutdown;
+	
+	private final AtomicLong storedCdrs = new AtomicLong(0);
+	private final AtomicLong overflowedCdrs = new AtomicLong(0);
+	private final AtomicLong failedCdrs = new AtomicLong(0);
+	private final AtomicLong batches = new AtomicLong(0);
+	// Microseconds from the moment a CDR is stored until it is on disk
+	private final LatencyHistogram writeLatency = new LatencyHistogram();
+	
 	public void init() throws IOException {
 	
 		logger.info("Initializing Filebased CDR storage");
+		shutdown = false;
 		
 		if (baseFolder == null && path == null) {
 			throw new IllegalStateException("Don't know where to write CDRs. You need to set the baseFolder variable.");
@@ -62,14 +117,58 @@ public class FileCdrStorageStrategy implements CdrStorageStrategy, FileCdrMXBean
 					parent.mkdirs();
 				}
 			}
-			out = new BufferedOutputStream(new FileOutputStream(file,append));
+			if (!async) {
+				out = new BufferedOutputStream(new FileOutputStream(file,append));
+			} else if (!append) {
+				// The writer always appends, so the file is emptied here like the stream does
+				new FileOutputStream(file, false).close();
+			}
 		}	
 		lastUsedPath = null;
+		
+		if (async) {
+			startWriter();
+		}
+	}
+	
+	private void startWriter() {
+		
+		queueLock.writeLock().lock();
+		try {
+			if (writer == null) {
+				logger.info("Starting asynchronous CDR writer");
+				queue = new ArrayBlockingQueue<QueuedCdr>(queueSize);
+				writer = new CdrWriter(queue);
+				writer.start();
+			}
+		} finally {
+			queueLock.writeLock().unlock();
+		}
 	}
 	
 	public void shutdown() {
 		
 		logger.info("Shutting down filebased CDR storage");
+		CdrWriter writer = null;
+		// Waits for the threads that are queuing. Nothing is queued once the queue is unset.
+		queueLock.writeLock().lock();
+		try {
+			shutdown = true;
+			writer = this.writer;
+			this.writer = null;
+			queue = null;
+		} finally {
+			queueLock.writeLock().unlock();
+		}
+		if (writer != null) {
+			// The writer drains the queue before it finishes
+			writer.running = false;
+			try {
+				writer.join(10000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 		if (out != null) {
 			try {
 				out.close();
@@ -82,6 +181,24 @@ public class FileCdrStorageStrategy implements CdrStorageStrategy, FileCdrMXBean
 	@Override
 	public void store(Cdr cdr) throws CdrException {
 		
+		if (async) {
+			queueLock.readLock().lock();
+			try {
+				BlockingQueue<QueuedCdr> queue = this.queue;
+				if (queue != null) {
+					enqueue(queue, cdr);
+					return;
+				}
+			} finally {
+				queueLock.readLock().unlock();
+			}
+		}
+		if (shutdown) {
+			failedCdrs.incrementAndGet();
+			throw new CdrException(String.format("CDR storage has been shut down. Could not store CDR for call %s", cdr.getCallId()));
+		}
+		
+		long start = System.nanoTime();
 		try {
 			if (baseFolder != null) {
 				out = getFileStream(cdr);
@@ -89,6 +206,8 @@ public class FileCdrStorageStrategy implements CdrStorageStrategy, FileCdrMXBean
 			lock.readLock().lock();
 			out.write(cdr.toString().getBytes());
 			out.flush();
+			storedCdrs.incrementAndGet();
+			writeLatency.record((System.nanoTime() - start) / 1000);
 		} catch (IOException e) {
 			throw new CdrException(e);
 		} finally {
@@ -96,10 +215,27 @@ public class FileCdrStorageStrategy implements CdrStorageStrategy, FileCdrMXBean
 		}
 	}
 	
+	private void enqueue(BlockingQueue<QueuedCdr> queue, Cdr cdr) throws CdrException {
+		
+		QueuedCdr queued = new QueuedCdr(cdr);
+		if (queue.offer(queued)) {
+			return;
+		}
+		// The writer keeps draining until shutdown, which waits for this thread
+		overflowedCdrs.incrementAndGet();
+		try {
+			queue.put(queued);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failedCdrs.incrementAndGet();
+			throw new CdrException(String.format("Interrupted while waiting for room on the CDR queue. Could not store CDR for call %s", cdr.getCallId()));
+		}
+	}
+	
 	private synchronized OutputStream getFileStream(Cdr cdr) {
 
 		OutputStream oldOut = out;
-		path = sdf.format(new Date(cdr.getStartTime()));
+		path = sdf.get().format(new Date(cdr.getStartTime()));
 		if (!path.equals(lastUsedPath)) {
 			File f = new File(baseFolder + "/" + path + ".xml");
 			if (!f.exists()) {
@@ -137,7 +273,7 @@ public class FileCdrStorageStrategy implements CdrStorageStrategy, FileCdrMXBean
 	String getCurrentFilePath() {
 		
 		if (baseFolder != null) {
-			String path = sdf.format(new Date());
+			String path = sdf.get().format(new Date());
 			return baseFolder + "/" + path + ".xml";
 		} else {
 			return path;
@@ -164,6 +300,105 @@ public class FileCdrStorageStrategy implements CdrStorageStrategy, FileCdrMXBean
 		}
 	}
 
+	@ManagedAttribute(description="Whether CDRs are written by a dedicated writer thread")
+	public boolean isAsync() {
+		
+		return async;
+	}
+	
+	@ManagedAttribute(description="CDRs waiting to be written")
+	public int getQueueDepth() {
+		
+		BlockingQueue<QueuedCdr> queue = this.queue;
+		return queue == null ? 0 : queue.size();
+	}
+	
+	@ManagedAttribute(description="Maximum number of CDRs waiting to be written")
+	public int getQueueSize() {
+		
+		return queueSize;
+	}
+	
+	@ManagedAttribute(description="CDRs written")
+	public long getStoredCdrs() {
+		
+		return storedCdrs.get();
+	}
+	
+	@ManagedAttribute(description="CDRs whose caller had to wait because the queue was full")
+	public long getOverflowedCdrs() {
+		
+		return overflowedCdrs.get();
+	}
+	
+	@ManagedAttribute(description="CDRs that could not be written")
+	public long getFailedCdrs() {
+		
+		return failedCdrs.get();
+	}
+	
+	@ManagedAttribute(description="Average number of CDRs written together")
+	public long getAverageBatchSize() {
+		
+		long count = batches.get();
+		return count == 0 ? 0 : (storedCdrs.get() + failedCdrs.get()) / count;
+	}
+	
+	@ManagedAttribute(description="Mean time in microseconds from storing a CDR until it is written")
+	public long getMeanWriteLatency() {
+		
+		return writeLatency.getMean();
+	}
+	
+	@ManagedAttribute(description="99th percentile of the time in microseconds from storing a CDR until it is written")
+	public long getWriteLatency99() {
+		
+		return writeLatency.getValueAtPercentile(99);
+	}
+	
+	@ManagedAttribute(description="Maximum time in microseconds from storing a CDR until it is written")
+	public long getMaxWriteLatency() {
+		
+		return writeLatency.getMax();
+	}
+	
+	@ManagedOperation(description="Resets CDR writing statistics")
+	public void resetStatistics() {
+		
+		storedCdrs.set(0);
+		overflowedCdrs.set(0);
+		failedCdrs.set(0);
+		batches.set(0);
+		writeLatency.reset();
+	}
+
+	public void setAsync(boolean async) {
+		this.async = async;
+	}
+
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Maximum time in milliseconds a CDR waits for other CDRs to be written with
+	 */
+	public void setCommitInterval(long commitInterval) {
+		this.commitInterval = commitInterval;
+	}
+
+	/**
+	 * Whether every group of CDRs is forced to the storage device. Defaults to false, 
+	 * which leaves CDRs in the OS buffers like flushing the stream did.
+	 */
+	public void setForceOnCommit(boolean forceOnCommit) {
+		this.forceOnCommit = forceOnCommit;
+	}
+
 	public void setPath(String path) {
 		this.path = path;
 	}
@@ -183,9 +418,180 @@ public class FileCdrStorageStrategy implements CdrStorageStrategy, FileCdrMXBean
 
 	public void setBaseFolder(String baseFolder) {
 		
-		if (baseFolder.endsWith("/")) {
+		if (baseFolder != null && baseFolder.endsWith("/")) {
 			baseFolder = baseFolder.substring(0, baseFolder.length()-1);
 		}
 		this.baseFolder = baseFolder;
 	}
+	
+	private static class QueuedCdr {
+		
+		// CDRs are not modified once they are stored, so they are serialized by the writer
+		final Cdr cdr;
+		final long queued = System.nanoTime();
+		
+		QueuedCdr(Cdr cdr) {
+			
+			this.cdr = cdr;
+		}
+	}
+	
+	/**
+	 * Drains the queue and writes CDRs in groups. Consecutive CDRs for the same file 
+	 * are written with a single gathering write.
+	 */
+	private class CdrWriter extends Thread {
+		
+		volatile boolean running = true;
+		
+		private final BlockingQueue<QueuedCdr> queue;
+		// Only used by the writer thread
+		private String currentFile;
+		private FileChannel channel;
+		private long reportedOverflows;
+		
+		CdrWriter(BlockingQueue<QueuedCdr> queue) {
+			
+			super("cdr-file-writer");
+			setDaemon(true);
+			this.queue = queue;
+		}
+		
+		@Override
+		public void run() {
+			
+			List<QueuedCdr> batch = new ArrayList<QueuedCdr>(maxBatchSize);
+			while (running || !queue.isEmpty()) {
+				try {
+					QueuedCdr first = queue.poll(100, TimeUnit.MILLISECONDS);
+					if (first == null) {
+						continue;
+					}
+					batch.add(first);
+					fill(batch, first.queued + TimeUnit.MILLISECONDS.toNanos(commitInterval));
+					write(batch);
+					reportOverflows();
+				} catch (InterruptedException e) {
+					// Finish what is in the queue before exiting
+					running = false;
+				} catch (Exception e) {
+					logger.error("Unexpected error in CDR writer", e);
+				} finally {
+					batch.clear();
+				}
+			}
+			close();
+		}
+		
+		/**
+		 * Adds CDRs to the group until it is full or the commit interval of its first 
+		 * CDR expires. Never waits for long so a shutdown is noticed quickly.
+		 */
+		private void fill(List<QueuedCdr> batch, long deadline) throws InterruptedException {
+			
+			while (batch.size() < maxBatchSize) {
+				queue.drainTo(batch, maxBatchSize - batch.size());
+				long remaining = deadline - System.nanoTime();
+				if (batch.size() >= maxBatchSize || remaining <= 0 || !running) {
+					return;
+				}
+				QueuedCdr next = queue.poll(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(100)), TimeUnit.NANOSECONDS);
+				if (next != null) {
+					batch.add(next);
+				}
+			}
+		}
+		
+		private void write(List<QueuedCdr> batch) {
+			
+			batches.incrementAndGet();
+			lock.readLock().lock();
+			try {
+				int start = 0;
+				while (start < batch.size()) {
+					String file = fileFor(batch.get(start));
+					int end = start + 1;
+					while (end < batch.size() && file.equals(fileFor(batch.get(end)))) {
+						end++;
+					}
+					write(file, batch, start, end);
+					start = end;
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+		
+		private void write(String file, List<QueuedCdr> batch, int start, int end) {
+			
+			ByteBuffer[] buffers = new ByteBuffer[end - start];
+			long remaining = 0;
+			for (int i = start; i < end; i++) {
+				buffers[i - start] = ByteBuffer.wrap(batch.get(i).cdr.toString().getBytes());
+				remaining+= buffers[i - start].remaining();
+			}
+			try {
+				FileChannel channel = channelFor(file);
+				while (remaining > 0) {
+					remaining-= channel.write(buffers);
+				}
+				if (forceOnCommit) {
+					channel.force(false);
+				}
+				long now = System.nanoTime();
+				for (int i = start; i < end; i++) {
+					writeLatency.record((now - batch.get(i).queued) / 1000);
+				}
+				storedCdrs.addAndGet(end - start);
+			} catch (IOException ioe) {
+				logger.error("Could not write %s CDRs to %s", end - start, file, ioe);
+				failedCdrs.addAndGet(end - start);
+				// Reopen the file on the next write
+				close();
+			}
+		}
+		
+		private void reportOverflows() {
+			
+			long overflowed = overflowedCdrs.get();
+			if (overflowed > reportedOverflows) {
+				logger.warn("CDR queue is full. %s CDRs had to wait for room", overflowed - reportedOverflows);
+			}
+			reportedOverflows = overflowed;
+		}
+		
+		private String fileFor(QueuedCdr cdr) {
+			
+			String baseFolder = FileCdrStorageStrategy.this.baseFolder;
+			if (baseFolder != null) {
+				return baseFolder + "/" + sdf.get().format(new Date(cdr.cdr.getStartTime())) + ".xml";
+			}
+			return path;
+		}
+		
+		private FileChannel channelFor(String file) throws IOException {
+			
+			if (channel == null || !file.equals(currentFile)) {
+				close();
+				File f = new File(file);
+				logger.debug("Will store CDR at %s", f.getAbsolutePath());
+				channel = new FileOutputStream(f, true).getChannel();
+				currentFile = file;
+			}
+			return channel;
+		}
+		
+		private void close() {
+			
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException ioe) {
+					logger.error(ioe.getMessage(), ioe);
+				}
+				channel = null;
+				currentFile = null;
+			}
+		}
+	}
 }
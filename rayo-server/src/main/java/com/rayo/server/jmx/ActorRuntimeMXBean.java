@@ -0,0 +1,22 @@
+package com.rayo.server.jmx;
+
+public interface ActorRuntimeMXBean {
+
+	public String getMode();
+	public boolean isStatistics();
+	public void setStatistics(boolean statistics);
+	public int getPoolSize();
+	public int getActiveThreads();
+	public int getQueuedBatches();
+	public int getLiveActors();
+	public long getActorsStarted();
+	public long getMessages();
+	public int getMaxMailboxDepth();
+	public long getMeanSchedulingDelay();
+	public long getSchedulingDelay99();
+	public long getMaxSchedulingDelay();
+	public long getMeanRunTime();
+	public long getRunTime99();
+	public long getMaxRunTime();
+	public void resetStatistics();
+}
@@ -0,0 +1,20 @@
+package com.rayo.server.jmx;
+
+import java.util.Map;
+
+public interface ActorStatisticsMXBean {
+
+	public Map<String, Long> getMessages();
+	public Map<String, Long> getMeanSchedulingDelays();
+	public Map<String, Long> getSchedulingDelays99();
+	public Map<String, Long> getMaxSchedulingDelays();
+	public Map<String, Long> getMeanRunTimes();
+	public Map<String, Long> getRunTimes99();
+	public Map<String, Long> getRunTimes999();
+	public Map<String, Long> getMaxRunTimes();
+	public Map<String, Integer> getMaxMailboxDepths();
+	public long getSlowHandlers();
+	public long getSlowHandlerThreshold();
+	public void setSlowHandlerThreshold(long slowHandlerThreshold);
+	public void resetStatistics();
+}
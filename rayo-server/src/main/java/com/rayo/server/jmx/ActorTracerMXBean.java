@@ -0,0 +1,18 @@
+package com.rayo.server.jmx;
+
+import java.util.List;
+import java.util.Set;
+
+public interface ActorTracerMXBean {
+
+	public int getSampleRate();
+	public void setSampleRate(int sampleRate);
+	public int getCapacity();
+	public long getRecords();
+	public Set<String> getTracedCalls();
+	public void traceCall(String callId);
+	public void untraceCall(String callId);
+	public List<String> dump(String callId);
+	public List<String> dumpAll();
+	public void clear();
+}
@@ -10,6 +10,7 @@ import java.util.Map;
 import com.rayo.server.CallActor;
 import com.rayo.server.CallRegistry;
 import com.rayo.server.CdrManager;
+import com.rayo.server.MailboxStatistics;
 import com.rayo.server.verb.VerbHandler;
 import com.rayo.core.cdr.Cdr;
 
@@ -137,6 +138,12 @@ public class Call {
 		return verbs;
 	}
 	
+	public MailboxStatistics getMailbox() {
+		
+		CallActor<?> actor = callRegistry.get(call.getId());
+		return actor == null ? null : actor.getMailboxStatistics();
+	}
+	
 	public Cdr getCdr() {
 		
 		return cdrManager.getCdr(call.getId());
@@ -0,0 +1,18 @@
+package com.rayo.server.jmx;
+
+public interface CallRoutingMXBean {
+
+	public int getRoutedCalls();
+	public int getShards();
+	public boolean isReadThrough();
+	public int getPendingWrites();
+	public long getReplicatedWrites();
+	public long getFailedWrites();
+	public long getBlockedWrites();
+	public long getReadThroughs();
+	public long getReloadedCalls();
+	public long getMeanReplicationLag();
+	public long getReplicationLag99();
+	public long getMaxReplicationLag();
+	public void resetStatistics();
+}
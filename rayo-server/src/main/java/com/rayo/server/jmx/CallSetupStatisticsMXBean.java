@@ -0,0 +1,15 @@
+package com.rayo.server.jmx;
+
+import java.util.Map;
+
+public interface CallSetupStatisticsMXBean {
+
+	public int getSetupShards();
+	public long getQueuedSetups();
+	public Map<String, Integer> getQueueDepths();
+	public Map<String, Integer> getMaxQueueDepths();
+	public Map<String, Long> getSetups();
+	public Map<String, Long> getAverageSetupTimes();
+	public Map<String, Long> getMaxSetupTimes();
+	public void resetStatistics();
+}
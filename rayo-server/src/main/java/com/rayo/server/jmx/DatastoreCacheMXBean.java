@@ -0,0 +1,21 @@
+package com.rayo.server.jmx;
+
+import java.util.Map;
+
+public interface DatastoreCacheMXBean {
+
+	public Map<String, Integer> getSizes();
+	public Map<String, Long> getHits();
+	public Map<String, Long> getMisses();
+	public Map<String, Long> getExpirations();
+	public Map<String, Long> getInvalidations();
+	public Map<String, Long> getEvictions();
+	public Map<String, Long> getTimeToLive();
+	public double getHitRatio();
+	public long getMeanHitAge();
+	public long getHitAge99();
+	public long getMaxHitAge();
+	public int getMaxSize();
+	public void clear();
+	public void resetStatistics();
+}
@@ -0,0 +1,22 @@
+package com.rayo.server.jmx;
+
+import java.util.Map;
+
+public interface EventPipelineMXBean {
+
+	public int getWorkers();
+	public int getQueueSize();
+	public long getQueuedEvents();
+	public Map<String, Integer> getQueueDepths();
+	public long getEventsProcessed();
+	public long getEventsOverflowed();
+	public long getEventsFailed();
+	public long getAverageBatchSize();
+	public long getMeanLatency();
+	public long getLatency50();
+	public long getLatency90();
+	public long getLatency99();
+	public long getLatency999();
+	public long getMaxLatency();
+	public void resetStatistics();
+}
@@ -3,4 +3,15 @@ package com.rayo.server.jmx;
 public interface FileCdrMXBean {
 
 	public void changeFile(String filename);
+	public boolean isAsync();
+	public int getQueueDepth();
+	public int getQueueSize();
+	public long getStoredCdrs();
+	public long getOverflowedCdrs();
+	public long getFailedCdrs();
+	public long getAverageBatchSize();
+	public long getMeanWriteLatency();
+	public long getWriteLatency99();
+	public long getMaxWriteLatency();
+	public void resetStatistics();
 }
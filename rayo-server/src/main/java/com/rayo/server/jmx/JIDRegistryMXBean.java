@@ -0,0 +1,18 @@
+package com.rayo.server.jmx;
+
+import java.util.Date;
+
+public interface JIDRegistryMXBean {
+
+	public int getSize();
+	public int getPendingPurges();
+	public int getActiveCalls();
+	public int getActiveJIDs();
+	public long getPurgedCalls();
+	public long getForcedPurges();
+	public long getPurgeRuns();
+	public Date getLastPurgeTime();
+	public long getPurgeTimeout();
+	public int getMaxPendingPurges();
+	public void purge();
+}
@@ -17,8 +17,6 @@ import org.dom4j.dom.DOMElement;
 import org.dom4j.io.DOMReader;
 import org.dom4j.io.DOMWriter;
 import org.w3c.dom.Element;
-import org.w3c.dom.ls.DOMImplementationLS;
-import org.w3c.dom.ls.LSSerializer;
 
 import com.rayo.server.admin.AdminService;
 import com.rayo.server.exception.ErrorMapping;
@@ -96,6 +94,22 @@ public abstract class AbstractRayoServlet extends XmppServlet implements AdminLi
 					request.getSession().getId());
 		}
 
+		// Commands that can be streamed skip the copy into a dom4j tree
+		Element streamed = DomUtils.firstChildElement((Element)request.getElement());
+		if (streamed != null && isStreamed(streamed)) {
+			try {
+				if (!validJid(request.getTo())) {
+					sendIqError(request, StanzaError.Type.CANCEL, StanzaError.Condition.JID_MALFORMED, String.format("Malformed JID", request.getTo()));
+				} else {
+					processStreamedIQRequest(request, streamed);
+				}
+			} catch (Exception e) {
+				getLog().error("Exception processing IQ request", e);
+				sendIqError(request, StanzaError.Type.CANCEL, StanzaError.Condition.INTERNAL_SERVER_ERROR, e.getMessage());
+			}
+			return;
+		}
+
 		DOMElement requestElement = null;
 		try {
 			requestElement = toDOM(request.getElement());
@@ -150,6 +164,33 @@ public abstract class AbstractRayoServlet extends XmppServlet implements AdminLi
         
 	protected abstract void processIQRequest(IQRequest request, DOMElement payload);
 
+	/**
+	 * Tells if an IQ payload is handled by {@link #processStreamedIQRequest(IQRequest, Element)}
+	 * straight from the W3C DOM delivered by the container. By default nothing is.
+	 *
+	 * @param payload IQ payload
+	 *
+	 * @return boolean <code>true</code> if the payload is streamed
+	 */
+	protected boolean isStreamed(Element payload) {
+		
+		return false;
+	}
+
+	/**
+	 * Handles a payload for which {@link #isStreamed(Element)} returned <code>true</code>. 
+	 * By default the request is copied into a dom4j tree and handled by 
+	 * {@link #processIQRequest(IQRequest, DOMElement)} like any other request.
+	 *
+	 * @param request IQ request
+	 * @param payload IQ payload
+	 */
+	protected void processStreamedIQRequest(IQRequest request, Element payload) throws DocumentException {
+		
+		DOMElement requestElement = toDOM(request.getElement());
+		processIQRequest(request, (DOMElement)requestElement.elementIterator().next());
+	}
+
 	@Override
 	public void onQuiesceModeEntered() {
 	}
@@ -263,10 +304,7 @@ public abstract class AbstractRayoServlet extends XmppServlet implements AdminLi
 	
 	protected static String asXML (org.w3c.dom.Element element) {
 		
-		DOMImplementationLS impl = (DOMImplementationLS)element.getOwnerDocument().getImplementation();
-		LSSerializer serializer = impl.createLSSerializer();
-		serializer.getDomConfig().setParameter("xml-declaration", false);
-		return serializer.writeToString(element);
+		return DomUtils.asXML(element);
 	}
 	
 	public static DOMElement toDOM (org.dom4j.Element dom4jElement) throws DocumentException {
@@ -22,6 +22,7 @@ import com.rayo.core.HangupCommand;
 import com.rayo.core.OfferEvent;
 import com.rayo.server.JIDRegistry;
 import com.rayo.server.MixerManager;
+import com.rayo.server.SerializedEvent;
 import com.rayo.server.Server;
 import com.rayo.server.Transport;
 import com.rayo.server.TransportCallback;
@@ -90,7 +91,7 @@ public class RayoServlet extends AbstractRayoServlet implements Transport {
 
 
 	@Override
-	public boolean callEvent(String callId, String componentId, Element body) throws Exception {
+	public boolean callEvent(String callId, String componentId, SerializedEvent body) throws Exception {
 
         JID jid = null;
         JID from = null;
@@ -126,9 +127,8 @@ public class RayoServlet extends AbstractRayoServlet implements Transport {
 
         from.setResource(componentId);
 
-        // TODO: ouch
         try {
-	        org.w3c.dom.Element documentElement = toDomElement(body);
+	        org.w3c.dom.Element documentElement = body.toDOM();
 	        PresenceMessage presence = getXmppFactory().createPresence(from, jid, null, documentElement);
 	        if (presence != null) {
 		        presence.send();
@@ -148,7 +148,7 @@ public class RayoServlet extends AbstractRayoServlet implements Transport {
 	}
 	
 	@Override
-	public boolean mixerEvent(String mixerId, Collection<String> participants, Element body) {
+	public boolean mixerEvent(String mixerId, Collection<String> participants, SerializedEvent body) {
 
         JID from = getXmppFactory().createJID(mixerId + "@" + getLocalDomain());
 
@@ -178,8 +178,7 @@ public class RayoServlet extends AbstractRayoServlet implements Transport {
         
         for (JID jid : destinations) {
             try {
-                // TODO: ouch
-                org.w3c.dom.Element documentElement = toDomElement(body);  
+                org.w3c.dom.Element documentElement = body.toDOM();  
                 PresenceMessage presence = getXmppFactory().createPresence(from, jid, null, documentElement);
                 presence.send();
                 xmppMessageListenersGroup.onPresenceSent(presence);
@@ -203,11 +202,28 @@ public class RayoServlet extends AbstractRayoServlet implements Transport {
     @Override
     protected void processIQRequest(final IQRequest request, DOMElement payload) {
 
+        processCommand(request, payload, false);
+    }
+
+    @Override
+    protected boolean isStreamed(org.w3c.dom.Element payload) {
+
+        return server.isStreamed(payload);
+    }
+
+    @Override
+    protected void processStreamedIQRequest(IQRequest request, org.w3c.dom.Element payload) {
+
+        processCommand(request, payload, true);
+    }
+
+    private void processCommand(final IQRequest request, org.w3c.dom.Element payload, boolean streamed) {
+
         xmppMessageListenersGroup.onIQReceived(request);
         
         // Handle outbound 'dial' command
-        if (payload.getName().equals("dial")) {
-            server.handleCommand(null, null, payload, new TransportCallback() {
+        if (payload.getLocalName().equals("dial")) {
+            handleCommand(null, null, payload, streamed, new TransportCallback() {
                 public void handle(Element result, Exception err) {
                     if (err != null) {
                         sendIqError(request, err);
@@ -223,9 +239,9 @@ public class RayoServlet extends AbstractRayoServlet implements Transport {
         } 
         
         //TODO: Refactor this. Right now it is necessary to get mixers output working.
-        else if (payload.getName().equals("join")) {
-            String mixerName = payload.attributeValue("mixer-name");
-            if (mixerName != null) {
+        else if (payload.getLocalName().equals("join")) {
+            String mixerName = payload.getAttribute("mixer-name");
+            if (mixerName != null && mixerName.length() > 0) {
                 jidRegistry.put(mixerName, request.getFrom().getBareJID());
             }
         }
@@ -242,7 +258,7 @@ public class RayoServlet extends AbstractRayoServlet implements Transport {
             componentId = UUID.randomUUID().toString();
         }
         
-        server.handleCommand(callId, componentId, payload, new TransportCallback() {
+        handleCommand(callId, componentId, payload, streamed, new TransportCallback() {
             public void handle(Element result, Exception err) {
                 if(err != null) {
                     sendIqError(request, err);
@@ -257,6 +273,15 @@ public class RayoServlet extends AbstractRayoServlet implements Transport {
         });
 
     }
+
+    private void handleCommand(String callId, String componentId, org.w3c.dom.Element payload, boolean streamed, TransportCallback callback) {
+
+        if (streamed) {
+            server.handleStreamedCommand(callId, componentId, payload, callback);
+        } else {
+            server.handleCommand(callId, componentId, (Element)payload, callback);
+        }
+    }
     
     public JID getCallDestination(URI offerTo) throws RayoProtocolException{
     	
@@ -0,0 +1,338 @@
+package com.rayo.server.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>Finds the first {@link PropertiesValue} whose pattern matches an address.</p>
+ *
+ * <p>The patterns of the properties datastore are contained-in matches: the address
+ * <code>+13457800</code> becomes <code>.*\+13457800.*</code>. Most of them are plain
+ * addresses or numbers where the only special characters are dots, <code>.*</code>
+ * wildcards and the odd quantifier like the <code>+</code> in <code>tel:+1234</code>.
+ * For those patterns the longest literal run is added to a trie, an Aho-Corasick
+ * automaton, so a single pass over the address finds every pattern whose literal part
+ * occurs in it. Candidates that have wildcards are confirmed with their
+ * regular expression. Patterns with any other regular expression construct are kept in
+ * a separate list and are the only ones that are matched one by one.</p>
+ *
+ * <p>Every pattern keeps its position in the routing table and the lowest matching
+ * position wins, so the result is always the same as scanning the table in order.
+ * Results are cached by address until the cache reaches its maximum size, when it is
+ * cleared.</p>
+ *
+ * <p>Instances are immutable apart from the cache. Any change in the routing table
+ * requires building a new router.</p>
+ *
+ * @author martin
+ *
+ */
+public class AddressRouter {
+
+	private static final String NO_MATCH = new String();
+
+	private static final int ROOT = 0;
+
+	private final PropertiesValue[] routes;
+	private final boolean[] verify;
+	private final int[] regexpRoutes;
+
+	// Trie flattened into arrays. Edges of every node are sorted by character.
+	private final int[] firstEdge;
+	private final int[] edgeCount;
+	private final char[] edgeChars;
+	private final int[] edgeTargets;
+	private final int[] failure;
+	private final int[] outputLink;
+	private final int[] firstRoute;
+	private final int[] routeCount;
+	private final int[] nodeRoutes;
+
+	private final ConcurrentMap<String, String> cache = new ConcurrentHashMap<String, String>();
+	private final int cacheSize;
+
+	public AddressRouter(Collection<PropertiesValue> values, int cacheSize) {
+
+		this.cacheSize = cacheSize;
+		routes = values.toArray(new PropertiesValue[values.size()]);
+		verify = new boolean[routes.length];
+
+		TrieNode root = new TrieNode();
+		int nodes = 1;
+		List<Integer> regexps = new ArrayList<Integer>();
+		for (int i = 0; i < routes.length; i++) {
+			String key = literalKey(routes[i].getPattern().pattern(), i);
+			if (key == null) {
+				regexps.add(i);
+			} else {
+				TrieNode node = root;
+				for (int j = 0; j < key.length(); j++) {
+					TrieNode child = node.get(key.charAt(j));
+					if (child == null) {
+						child = node.add(key.charAt(j));
+						nodes++;
+					}
+					node = child;
+				}
+				node.addRoute(i);
+			}
+		}
+		regexpRoutes = new int[regexps.size()];
+		for (int i = 0; i < regexpRoutes.length; i++) {
+			regexpRoutes[i] = regexps.get(i);
+		}
+
+		firstEdge = new int[nodes];
+		edgeCount = new int[nodes];
+		edgeChars = new char[nodes - 1];
+		edgeTargets = new int[nodes - 1];
+		failure = new int[nodes];
+		outputLink = new int[nodes];
+		firstRoute = new int[nodes];
+		routeCount = new int[nodes];
+		nodeRoutes = new int[routes.length - regexpRoutes.length];
+
+		// Numbers the nodes breadth first, so every node comes after its failure node
+		TrieNode[] queue = new TrieNode[nodes];
+		queue[0] = root;
+		int tail = 1;
+		int edges = 0;
+		int routesAdded = 0;
+		for (int id = 0; id < nodes; id++) {
+			TrieNode node = queue[id];
+			firstEdge[id] = edges;
+			edgeCount[id] = node.size;
+			for (int j = 0; j < node.size; j++) {
+				edgeChars[edges] = node.chars[j];
+				edgeTargets[edges] = tail;
+				queue[tail++] = node.children[j];
+				edges++;
+			}
+			firstRoute[id] = routesAdded;
+			routeCount[id] = node.routeCount;
+			System.arraycopy(node.routes, 0, nodeRoutes, routesAdded, node.routeCount);
+			routesAdded+= node.routeCount;
+			queue[id] = null;
+		}
+
+		failure[ROOT] = ROOT;
+		outputLink[ROOT] = -1;
+		for (int id = 0; id < nodes; id++) {
+			for (int e = firstEdge[id]; e < firstEdge[id] + edgeCount[id]; e++) {
+				int child = edgeTargets[e];
+				int fail = ROOT;
+				if (id != ROOT) {
+					int state = failure[id];
+					while (state != ROOT && next(state, edgeChars[e]) == -1) {
+						state = failure[state];
+					}
+					int target = next(state, edgeChars[e]);
+					fail = target == -1 ? ROOT : target;
+				}
+				failure[child] = fail;
+				outputLink[child] = routeCount[fail] > 0 ? fail : outputLink[fail];
+			}
+		}
+	}
+
+	/**
+	 * Returns the application of the first route that matches the address
+	 *
+	 * @param address Address
+	 *
+	 * @return String Application or <code>null</code> if no route matches
+	 */
+	public String lookup(String address) {
+
+		String cached = cache.get(address);
+		if (cached != null) {
+			return cached == NO_MATCH ? null : cached;
+		}
+
+		int best = Integer.MAX_VALUE;
+		int state = ROOT;
+		for (int i = 0, length = address.length(); i < length; i++) {
+			char c = address.charAt(i);
+			int target = next(state, c);
+			while (target == -1 && state != ROOT) {
+				state = failure[state];
+				target = next(state, c);
+			}
+			state = target == -1 ? ROOT : target;
+			for (int node = routeCount[state] > 0 ? state : outputLink[state]; node != -1; node = outputLink[node]) {
+				for (int r = firstRoute[node], end = r + routeCount[node]; r < end && nodeRoutes[r] < best; r++) {
+					int route = nodeRoutes[r];
+					if (!verify[route] || routes[route].getPattern().matcher(address).matches()) {
+						best = route;
+					}
+				}
+			}
+		}
+		for (int route: regexpRoutes) {
+			if (route >= best) {
+				break;
+			}
+			if (routes[route].getPattern().matcher(address).matches()) {
+				best = route;
+				break;
+			}
+		}
+
+		String result = best == Integer.MAX_VALUE ? null : routes[best].getApplication();
+		if (cache.size() >= cacheSize) {
+			cache.clear();
+		}
+		if (cacheSize > 0) {
+			cache.put(address, result == null ? NO_MATCH : result);
+		}
+		return result;
+	}
+
+	public int size() {
+
+		return routes.length;
+	}
+
+	/**
+	 * Number of routes that are matched with their regular expression on every lookup
+	 */
+	public int getRegexpRoutes() {
+
+		return regexpRoutes.length;
+	}
+
+	private int next(int state, char c) {
+
+		int low = firstEdge[state];
+		int high = low + edgeCount[state] - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			char current = edgeChars[mid];
+			if (current < c) {
+				low = mid + 1;
+			} else if (current > c) {
+				high = mid - 1;
+			} else {
+				return edgeTargets[mid];
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the longest literal run of a pattern made only of literals, dots, quantified
+	 * literals and <code>.*</code> wildcards, or <code>null</code> if the pattern uses
+	 * anything else.
+	 * Flags the route for verification unless the pattern is a single literal wrapped
+	 * in wildcards, which matches whenever the literal is found.
+	 */
+	private String literalKey(String regexp, int route) {
+
+		StringBuilder current = new StringBuilder();
+		String longest = "";
+		int runs = 0;
+		boolean wildcards = false;
+		boolean afterLiteral = false;
+		int length = regexp.length();
+		int i = 0;
+		while (i <= length) {
+			char c = i < length ? regexp.charAt(i) : 0;
+			boolean literal = false;
+			if (i == length) {
+				// end of pattern closes the last run
+			} else if ((c == '+' || c == '*' || c == '?') && afterLiteral) {
+				// Quantified character, like the + in tel:+1234. It ends the run and only
+				// stays in it if it is mandatory.
+				if (i + 1 < length && "+*?{".indexOf(regexp.charAt(i + 1)) != -1) {
+					return null;
+				}
+				if (c != '+') {
+					current.setLength(current.length() - 1);
+				}
+				wildcards = true;
+			} else if (c == '\\') {
+				if (i + 1 >= length || Character.isLetterOrDigit(regexp.charAt(i + 1))) {
+					return null;
+				}
+				c = regexp.charAt(++i);
+				literal = true;
+			} else if (c == '.') {
+				if (i + 1 < length && regexp.charAt(i + 1) == '*') {
+					if (i + 2 < length && (regexp.charAt(i + 2) == '?' || regexp.charAt(i + 2) == '+')) {
+						return null;
+					}
+					i++;
+					if (i != 1 && i != length - 1) {
+						wildcards = true;
+					}
+				} else {
+					wildcards = true;
+				}
+			} else if ("[](){}*+?^$|".indexOf(c) != -1) {
+				return null;
+			} else {
+				literal = true;
+			}
+			afterLiteral = literal;
+			if (literal) {
+				current.append(c);
+			} else if (current.length() > 0) {
+				runs++;
+				if (current.length() > longest.length()) {
+					longest = current.toString();
+				}
+				current.setLength(0);
+			}
+			i++;
+		}
+		if (longest.length() == 0) {
+			return null;
+		}
+		verify[route] = wildcards || runs > 1 || !regexp.startsWith(".*") || !regexp.endsWith(".*");
+		return longest;
+	}
+
+	private static class TrieNode {
+
+		char[] chars = new char[0];
+		TrieNode[] children = new TrieNode[0];
+		int size;
+		int[] routes = new int[0];
+		int routeCount;
+
+		TrieNode get(char c) {
+
+			int index = Arrays.binarySearch(chars, 0, size, c);
+			return index < 0 ? null : children[index];
+		}
+
+		TrieNode add(char c) {
+
+			int index = -(Arrays.binarySearch(chars, 0, size, c) + 1);
+			if (size == chars.length) {
+				chars = Arrays.copyOf(chars, Math.max(2, size * 2));
+				children = Arrays.copyOf(children, chars.length);
+			}
+			System.arraycopy(chars, index, chars, index + 1, size - index);
+			System.arraycopy(children, index, children, index + 1, size - index);
+			TrieNode child = new TrieNode();
+			chars[index] = c;
+			children[index] = child;
+			size++;
+			return child;
+		}
+
+		void addRoute(int route) {
+
+			// Routes are added in order so they stay sorted
+			if (routeCount == routes.length) {
+				routes = Arrays.copyOf(routes, Math.max(1, routeCount * 2));
+			}
+			routes[routeCount++] = route;
+		}
+	}
+}
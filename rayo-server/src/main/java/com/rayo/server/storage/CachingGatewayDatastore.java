@@ -0,0 +1,922 @@
+package com.rayo.server.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import com.rayo.server.jmx.DatastoreCacheMXBean;
+import com.rayo.server.storage.model.Application;
+import com.rayo.server.storage.model.GatewayCall;
+import com.rayo.server.storage.model.GatewayClient;
+import com.rayo.server.storage.model.GatewayMixer;
+import com.rayo.server.storage.model.GatewayVerb;
+import com.rayo.server.storage.model.RayoNode;
+import com.rayo.server.util.JIDUtils;
+import com.rayo.server.util.LatencyHistogram;
+
+/**
+ * <p>Read-through near cache in front of any {@link GatewayDatastore}.</p>
+ *
+ * <p>The gateway looks up the call, the mixer, the mixer filters and the verb of every
+ * event that a Rayo Node sends. With a clustered datastore each one of these lookups is
+ * a network round trip. This decorator keeps the results of those lookups, and of the
+ * client and application lookups done for every client command, in memory so only the
+ * first lookup goes to the datastore.</p>
+ *
+ * <p>Every write done through this datastore invalidates the entries it affects, so
+ * the gateway always reads its own writes. Writes done by other gateways of the cluster
+ * are only seen once the cached entry expires. That is why every entity has its own time
+ * to live: calls and verbs do not change once they are stored and can be kept for long,
+ * while mixer participants and filters change with every join and unjoin and are kept
+ * for a couple of seconds. A time to live of 0 disables the cache for that entity.</p>
+ *
+ * <p>Missing entities are never cached. Each entity cache holds at most
+ * <code>maxSize</code> entries. When it is full, expired entries are dropped and, if
+ * that is not enough, a quarter of the entries is evicted.</p>
+ *
+ * <p>Rayo nodes, platforms and every lookup returning collections that are not on the
+ * routing path go straight to the wrapped datastore.</p>
+ *
+ * @author martin
+ *
+ */
+@ManagedResource(objectName="com.rayo.gateway:Type=DatastoreCache", description="Gateway Datastore Cache")
+public class CachingGatewayDatastore implements GatewayDatastore, DatastoreCacheMXBean {
+
+	private GatewayDatastore datastore;
+
+	private int maxSize = 50000;
+
+	private NearCache<GatewayCall> calls = new NearCache<GatewayCall>("calls", 30000);
+	private NearCache<GatewayMixer> mixers = new NearCache<GatewayMixer>("mixers", 2000);
+	private NearCache<GatewayVerb> verbs = new NearCache<GatewayVerb>("verbs", 30000);
+	private NearCache<List<String>> filters = new NearCache<List<String>>("filters", 2000);
+	private NearCache<GatewayClient> clients = new NearCache<GatewayClient>("clients", 30000);
+	private NearCache<Application> applications = new NearCache<Application>("applications", 60000);
+	private NearCache<Application> addresses = new NearCache<Application>("addresses", 60000);
+
+	@SuppressWarnings("rawtypes")
+	private NearCache[] caches = new NearCache[] {calls, mixers, verbs, filters, clients, applications, addresses};
+
+	private LatencyHistogram hitAges = new LatencyHistogram();
+
+	public CachingGatewayDatastore() {}
+
+	public CachingGatewayDatastore(GatewayDatastore datastore) {
+
+		this.datastore = datastore;
+	}
+
+	// Calls
+	/////////////////////////////////////////////////////////////////////////////
+
+	@Override
+	public GatewayCall getCall(String callId) {
+
+		Entry<GatewayCall> entry = calls.get(callId);
+		if (entry != null) {
+			return entry.value;
+		}
+		Entry<GatewayCall> reservation = calls.reserve(callId);
+		GatewayCall call = datastore.getCall(callId);
+		calls.put(callId, call, reservation);
+		return call;
+	}
+
+	@Override
+	public Map<String, GatewayCall> getCalls(Collection<String> callIds) {
+
+		Map<String, GatewayCall> result = new HashMap<String, GatewayCall>(callIds.size() * 2);
+		List<String> missing = new ArrayList<String>();
+		for (String callId: callIds) {
+			Entry<GatewayCall> entry = calls.get(callId);
+			if (entry != null) {
+				result.put(callId, entry.value);
+			} else {
+				missing.add(callId);
+			}
+		}
+		if (!missing.isEmpty()) {
+			// Only the calls that are not cached go to the datastore, all of them at once
+			List<Entry<GatewayCall>> reservations = new ArrayList<Entry<GatewayCall>>(missing.size());
+			for (String callId: missing) {
+				reservations.add(calls.reserve(callId));
+			}
+			Map<String, GatewayCall> found = datastore.getCalls(missing);
+			for (int i = 0; i < missing.size(); i++) {
+				String callId = missing.get(i);
+				GatewayCall call = found.get(callId);
+				calls.put(callId, call, reservations.get(i));
+				if (call != null) {
+					result.put(callId, call);
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public String getNodeForCall(String callId) {
+
+		if (calls.ttl <= 0) {
+			return datastore.getNodeForCall(callId);
+		}
+		GatewayCall call = getCall(callId);
+		return call == null ? null : call.getNodeJid();
+	}
+
+	@Override
+	public GatewayCall storeCall(GatewayCall call) throws DatastoreException {
+
+		try {
+			return datastore.storeCall(call);
+		} finally {
+			calls.invalidate(call.getCallId());
+		}
+	}
+
+	@Override
+	public GatewayCall removeCall(String callId) throws DatastoreException {
+
+		try {
+			return datastore.removeCall(callId);
+		} finally {
+			calls.invalidate(callId);
+		}
+	}
+
+	@Override
+	public Collection<GatewayCall> removeCalls(Collection<String> callIds) throws DatastoreException {
+
+		try {
+			return datastore.removeCalls(callIds);
+		} finally {
+			for (String callId: callIds) {
+				calls.invalidate(callId);
+			}
+		}
+	}
+
+	@Override
+	public Collection<String> getCallsForNode(String rayoNode) {
+
+		return datastore.getCallsForNode(rayoNode);
+	}
+
+	@Override
+	public Collection<String> getCallsForClient(String jid) {
+
+		return datastore.getCallsForClient(jid);
+	}
+
+	@Override
+	public Collection<String> getCalls() {
+
+		return datastore.getCalls();
+	}
+
+	// Mixers and verbs
+	/////////////////////////////////////////////////////////////////////////////
+
+	@Override
+	public GatewayMixer getMixer(String mixerName) {
+
+		Entry<GatewayMixer> entry = mixers.get(mixerName);
+		if (entry != null) {
+			return entry.value;
+		}
+		Entry<GatewayMixer> reservation = mixers.reserve(mixerName);
+		GatewayMixer mixer = datastore.getMixer(mixerName);
+		mixers.put(mixerName, mixer, reservation);
+		return mixer;
+	}
+
+	@Override
+	public GatewayMixer storeMixer(GatewayMixer mixer) throws DatastoreException {
+
+		try {
+			return datastore.storeMixer(mixer);
+		} finally {
+			mixers.invalidate(mixer.getName());
+		}
+	}
+
+	@Override
+	public GatewayMixer removeMixer(String mixerName) throws DatastoreException {
+
+		try {
+			return datastore.removeMixer(mixerName);
+		} finally {
+			mixers.invalidate(mixerName);
+			verbs.invalidatePrefix(verbKey(mixerName, ""));
+		}
+	}
+
+	@Override
+	public Collection<GatewayMixer> getMixers() {
+
+		return datastore.getMixers();
+	}
+
+	@Override
+	public void addCallToMixer(String callId, String mixerName) throws DatastoreException {
+
+		try {
+			datastore.addCallToMixer(callId, mixerName);
+		} finally {
+			mixers.invalidate(mixerName);
+		}
+	}
+
+	@Override
+	public void removeCallFromMixer(String callId, String mixerName) throws DatastoreException {
+
+		try {
+			datastore.removeCallFromMixer(callId, mixerName);
+		} finally {
+			mixers.invalidate(mixerName);
+		}
+	}
+
+	@Override
+	public GatewayVerb getVerb(String mixerName, String verbId) {
+
+		if (mixerName == null || verbId == null) {
+			return datastore.getVerb(mixerName, verbId);
+		}
+		String key = verbKey(mixerName, verbId);
+		Entry<GatewayVerb> entry = verbs.get(key);
+		if (entry != null) {
+			return entry.value;
+		}
+		Entry<GatewayVerb> reservation = verbs.reserve(key);
+		GatewayVerb verb = datastore.getVerb(mixerName, verbId);
+		verbs.put(key, verb, reservation);
+		return verb;
+	}
+
+	@Override
+	public void addVerbToMixer(GatewayVerb verb, String mixerName) throws DatastoreException {
+
+		try {
+			datastore.addVerbToMixer(verb, mixerName);
+		} finally {
+			verbs.invalidate(verbKey(mixerName, verb.getVerbId()));
+		}
+	}
+
+	@Override
+	public void removeVerbFromMixer(String verbId, String mixerName) throws DatastoreException {
+
+		try {
+			datastore.removeVerbFromMixer(verbId, mixerName);
+		} finally {
+			verbs.invalidate(verbKey(mixerName, verbId));
+		}
+	}
+
+	@Override
+	public List<GatewayVerb> getVerbs(String mixerName) {
+
+		return datastore.getVerbs(mixerName);
+	}
+
+	@Override
+	public List<GatewayVerb> getVerbs() {
+
+		return datastore.getVerbs();
+	}
+
+	private String verbKey(String mixerName, String verbId) {
+
+		return mixerName + '/' + verbId;
+	}
+
+	// Filters
+	/////////////////////////////////////////////////////////////////////////////
+
+	@Override
+	public List<String> getFilteredApplications(String id) throws DatastoreException {
+
+		Entry<List<String>> entry = filters.get(id);
+		if (entry != null) {
+			return entry.value;
+		}
+		Entry<List<String>> reservation = filters.reserve(id);
+		List<String> applications = datastore.getFilteredApplications(id);
+		if (applications != null) {
+			// The list is shared by every thread reading the filters from now on
+			applications = Collections.unmodifiableList(applications);
+		}
+		filters.put(id, applications, reservation);
+		return applications;
+	}
+
+	@Override
+	public void createFilter(String jid, String id) throws DatastoreException {
+
+		try {
+			datastore.createFilter(jid, id);
+		} finally {
+			filters.invalidate(id);
+		}
+	}
+
+	@Override
+	public void removeFilter(String jid, String id) throws DatastoreException {
+
+		try {
+			datastore.removeFilter(jid, id);
+		} finally {
+			filters.invalidate(id);
+		}
+	}
+
+	@Override
+	public void removeFilters(String id) throws DatastoreException {
+
+		try {
+			datastore.removeFilters(id);
+		} finally {
+			filters.invalidate(id);
+		}
+	}
+
+	// Clients
+	/////////////////////////////////////////////////////////////////////////////
+
+	@Override
+	public GatewayClient getClient(String clientJid) {
+
+		Entry<GatewayClient> entry = clients.get(clientJid);
+		if (entry != null) {
+			return entry.value;
+		}
+		Entry<GatewayClient> reservation = clients.reserve(clientJid);
+		GatewayClient client = datastore.getClient(clientJid);
+		clients.put(clientJid, client, reservation);
+		return client;
+	}
+
+	@Override
+	public GatewayClient storeClient(GatewayClient client) throws DatastoreException {
+
+		try {
+			return datastore.storeClient(client);
+		} finally {
+			// Clients are looked up both by full and by bare JID
+			clients.invalidate(client.getJid());
+			clients.invalidate(client.getBareJid());
+		}
+	}
+
+	@Override
+	public GatewayClient removeClient(String clientJid) throws DatastoreException {
+
+		try {
+			return datastore.removeClient(clientJid);
+		} finally {
+			clients.invalidate(clientJid);
+			clients.invalidate(JIDUtils.getBareJid(clientJid));
+		}
+	}
+
+	@Override
+	public List<String> getClientResources(String clientJid) {
+
+		return datastore.getClientResources(clientJid);
+	}
+
+	@Override
+	public List<String> getClients() {
+
+		return datastore.getClients();
+	}
+
+	// Applications
+	/////////////////////////////////////////////////////////////////////////////
+
+	@Override
+	public Application getApplication(String jid) {
+
+		Entry<Application> entry = applications.get(jid);
+		if (entry != null) {
+			return entry.value;
+		}
+		Entry<Application> reservation = applications.reserve(jid);
+		Application application = datastore.getApplication(jid);
+		applications.put(jid, application, reservation);
+		return application;
+	}
+
+	@Override
+	public Application getApplicationForAddress(String address) {
+
+		Entry<Application> entry = addresses.get(address);
+		if (entry != null) {
+			return entry.value;
+		}
+		Entry<Application> reservation = addresses.reserve(address);
+		Application application = datastore.getApplicationForAddress(address);
+		addresses.put(address, application, reservation);
+		return application;
+	}
+
+	@Override
+	public Application storeApplication(Application application) throws DatastoreException {
+
+		try {
+			return datastore.storeApplication(application);
+		} finally {
+			applications.invalidate(application.getBareJid());
+		}
+	}
+
+	@Override
+	public Application updateApplication(Application application) throws DatastoreException {
+
+		try {
+			return datastore.updateApplication(application);
+		} finally {
+			applications.invalidate(application.getBareJid());
+			// Addresses are cached with the application they point to
+			addresses.invalidateAll();
+		}
+	}
+
+	@Override
+	public Application removeApplication(String jid) throws DatastoreException {
+
+		try {
+			return datastore.removeApplication(jid);
+		} finally {
+			applications.invalidate(jid);
+			addresses.invalidateAll();
+		}
+	}
+
+	@Override
+	public void storeAddress(String address, String jid) throws DatastoreException {
+
+		try {
+			datastore.storeAddress(address, jid);
+		} finally {
+			addresses.invalidate(address);
+		}
+	}
+
+	@Override
+	public void storeAddresses(Collection<String> addressList, String jid) throws DatastoreException {
+
+		try {
+			datastore.storeAddresses(addressList, jid);
+		} finally {
+			for (String address: addressList) {
+				addresses.invalidate(address);
+			}
+		}
+	}
+
+	@Override
+	public void removeAddress(String address) throws DatastoreException {
+
+		try {
+			datastore.removeAddress(address);
+		} finally {
+			addresses.invalidate(address);
+		}
+	}
+
+	@Override
+	public List<Application> getApplications() {
+
+		return datastore.getApplications();
+	}
+
+	@Override
+	public List<String> getAddressesForApplication(String jid) {
+
+		return datastore.getAddressesForApplication(jid);
+	}
+
+	// Rayo Nodes
+	/////////////////////////////////////////////////////////////////////////////
+
+	@Override
+	public RayoNode storeNode(RayoNode node) throws DatastoreException {
+
+		return datastore.storeNode(node);
+	}
+
+	@Override
+	public RayoNode updateNode(RayoNode node) throws DatastoreException {
+
+		return datastore.updateNode(node);
+	}
+
+	@Override
+	public RayoNode removeNode(String rayoNode) throws DatastoreException {
+
+		return datastore.removeNode(rayoNode);
+	}
+
+	@Override
+	public RayoNode getNode(String rayoNode) {
+
+		return datastore.getNode(rayoNode);
+	}
+
+	@Override
+	public String getNodeForIpAddress(String ipAddress) {
+
+		return datastore.getNodeForIpAddress(ipAddress);
+	}
+
+	@Override
+	public List<RayoNode> getRayoNodesForPlatform(String platformId) {
+
+		return datastore.getRayoNodesForPlatform(platformId);
+	}
+
+	@Override
+	public Collection<String> getPlatforms() {
+
+		return datastore.getPlatforms();
+	}
+
+	// Configuration
+	/////////////////////////////////////////////////////////////////////////////
+
+	public void setDatastore(GatewayDatastore datastore) {
+
+		this.datastore = datastore;
+	}
+
+	public GatewayDatastore getDatastore() {
+
+		return datastore;
+	}
+
+	/**
+	 * Sets the maximum number of entries kept for each entity
+	 */
+	public void setMaxSize(int maxSize) {
+
+		this.maxSize = maxSize;
+	}
+
+	public void setCallTtl(long ttl) {
+
+		calls.ttl = ttl;
+	}
+
+	public void setMixerTtl(long ttl) {
+
+		mixers.ttl = ttl;
+	}
+
+	public void setVerbTtl(long ttl) {
+
+		verbs.ttl = ttl;
+	}
+
+	public void setFilterTtl(long ttl) {
+
+		filters.ttl = ttl;
+	}
+
+	public void setClientTtl(long ttl) {
+
+		clients.ttl = ttl;
+	}
+
+	public void setApplicationTtl(long ttl) {
+
+		applications.ttl = ttl;
+		addresses.ttl = ttl;
+	}
+
+	// Statistics
+	/////////////////////////////////////////////////////////////////////////////
+
+	@ManagedAttribute(description="Cached entries per entity")
+	public Map<String, Integer> getSizes() {
+
+		Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+		for (NearCache<?> cache: caches) {
+			result.put(cache.name, cache.entries.size());
+		}
+		return result;
+	}
+
+	@ManagedAttribute(description="Lookups served from the cache per entity")
+	public Map<String, Long> getHits() {
+
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (NearCache<?> cache: caches) {
+			result.put(cache.name, cache.hits.get());
+		}
+		return result;
+	}
+
+	@ManagedAttribute(description="Lookups sent to the datastore per entity")
+	public Map<String, Long> getMisses() {
+
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (NearCache<?> cache: caches) {
+			result.put(cache.name, cache.misses.get());
+		}
+		return result;
+	}
+
+	@ManagedAttribute(description="Entries found expired per entity")
+	public Map<String, Long> getExpirations() {
+
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (NearCache<?> cache: caches) {
+			result.put(cache.name, cache.expirations.get());
+		}
+		return result;
+	}
+
+	@ManagedAttribute(description="Entries invalidated by writes done through this gateway per entity")
+	public Map<String, Long> getInvalidations() {
+
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (NearCache<?> cache: caches) {
+			result.put(cache.name, cache.invalidations.get());
+		}
+		return result;
+	}
+
+	@ManagedAttribute(description="Entries evicted because the cache was full per entity")
+	public Map<String, Long> getEvictions() {
+
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (NearCache<?> cache: caches) {
+			result.put(cache.name, cache.evictions.get());
+		}
+		return result;
+	}
+
+	@ManagedAttribute(description="Time to live in milliseconds per entity")
+	public Map<String, Long> getTimeToLive() {
+
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (NearCache<?> cache: caches) {
+			result.put(cache.name, cache.ttl);
+		}
+		return result;
+	}
+
+	@ManagedAttribute(description="Ratio of lookups served from the cache")
+	public double getHitRatio() {
+
+		long hits = 0;
+		long lookups = 0;
+		for (NearCache<?> cache: caches) {
+			long cacheHits = cache.hits.get();
+			hits+= cacheHits;
+			lookups+= cacheHits + cache.misses.get();
+		}
+		return lookups == 0 ? 0 : (double)hits / lookups;
+	}
+
+	@ManagedAttribute(description="Mean age in milliseconds of the entries served from the cache")
+	public long getMeanHitAge() {
+
+		return hitAges.getMean();
+	}
+
+	@ManagedAttribute(description="99th percentile of the age in milliseconds of the entries served from the cache")
+	public long getHitAge99() {
+
+		return hitAges.getValueAtPercentile(99);
+	}
+
+	@ManagedAttribute(description="Maximum age in milliseconds of the entries served from the cache")
+	public long getMaxHitAge() {
+
+		return hitAges.getMax();
+	}
+
+	@ManagedAttribute(description="Maximum number of entries per entity")
+	public int getMaxSize() {
+
+		return maxSize;
+	}
+
+	@ManagedOperation(description="Drops every cached entry")
+	public void clear() {
+
+		for (NearCache<?> cache: caches) {
+			cache.invalidateAll();
+		}
+	}
+
+	@ManagedOperation(description="Resets the cache statistics")
+	public void resetStatistics() {
+
+		for (NearCache<?> cache: caches) {
+			cache.hits.set(0);
+			cache.misses.set(0);
+			cache.expirations.set(0);
+			cache.invalidations.set(0);
+			cache.evictions.set(0);
+		}
+		hitAges.reset();
+	}
+
+	/**
+	 * Cached value. Entries without a value are reservations taken by the lookups that
+	 * are reading the value from the datastore.
+	 */
+	static class Entry<V> {
+
+		final V value;
+		final long created;
+		final long expires;
+
+		Entry(V value, long created, long expires) {
+
+			this.value = value;
+			this.created = created;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Cache of one entity. A lookup that misses reserves the key before reading from
+	 * the datastore and the value read only replaces that reservation. Invalidating a
+	 * key removes whatever the key holds, reservation included, so a lookup racing with
+	 * a write never caches the value the write has just replaced, while lookups of
+	 * other keys are not affected.
+	 */
+	class NearCache<V> {
+
+		final String name;
+		volatile long ttl;
+
+		final ConcurrentMap<String, Entry<V>> entries = new ConcurrentHashMap<String, Entry<V>>();
+		final AtomicBoolean evicting = new AtomicBoolean();
+
+		final AtomicLong hits = new AtomicLong();
+		final AtomicLong misses = new AtomicLong();
+		final AtomicLong expirations = new AtomicLong();
+		final AtomicLong invalidations = new AtomicLong();
+		final AtomicLong evictions = new AtomicLong();
+
+		NearCache(String name, long ttl) {
+
+			this.name = name;
+			this.ttl = ttl;
+		}
+
+		Entry<V> get(String key) {
+
+			if (key == null || ttl <= 0) {
+				return null;
+			}
+			Entry<V> entry = entries.get(key);
+			if (entry == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+			long now = System.currentTimeMillis();
+			if (now >= entry.expires) {
+				if (entries.remove(key, entry) && entry.value != null) {
+					expirations.incrementAndGet();
+				}
+				misses.incrementAndGet();
+				return null;
+			}
+			if (entry.value == null) {
+				// Being read by another lookup
+				misses.incrementAndGet();
+				return null;
+			}
+			hits.incrementAndGet();
+			hitAges.record(now - entry.created);
+			return entry;
+		}
+
+		/**
+		 * Reserves a key before its value is read from the datastore. Lookups of the
+		 * same key share the reservation. Reservations of lookups that never put their
+		 * value expire like any other entry.
+		 *
+		 * @return Entry<V> Reservation to pass to {@link #put(String, Object, Entry)} or
+		 * <code>null</code> if the cache is disabled
+		 */
+		Entry<V> reserve(String key) {
+
+			long timeToLive = ttl;
+			if (key == null || timeToLive <= 0 || maxSize <= 0) {
+				return null;
+			}
+			long now = System.currentTimeMillis();
+			Entry<V> reservation = new Entry<V>(null, now, now + timeToLive);
+			Entry<V> current = entries.putIfAbsent(key, reservation);
+			return current == null ? reservation : current;
+		}
+
+		/**
+		 * Caches a value read from the datastore. The value is only kept if the key
+		 * still holds the reservation taken before the read, i.e. if the key has not
+		 * been invalidated since then.
+		 */
+		void put(String key, V value, Entry<V> reservation) {
+
+			if (reservation == null) {
+				return;
+			}
+			long timeToLive = ttl;
+			if (value == null || timeToLive <= 0) {
+				// Missing entities are never cached
+				if (reservation.value == null) {
+					entries.remove(key, reservation);
+				}
+				return;
+			}
+			long now = System.currentTimeMillis();
+			if (entries.size() >= maxSize) {
+				evict(now);
+			}
+			entries.replace(key, reservation, new Entry<V>(value, now, now + timeToLive));
+		}
+
+		void invalidate(String key) {
+
+			if (key == null) {
+				return;
+			}
+			Entry<V> entry = entries.remove(key);
+			if (entry != null && entry.value != null) {
+				invalidations.incrementAndGet();
+			}
+		}
+
+		void invalidatePrefix(String prefix) {
+
+			for (Map.Entry<String, Entry<V>> entry: entries.entrySet()) {
+				if (entry.getKey().startsWith(prefix) && entries.remove(entry.getKey(), entry.getValue())
+						&& entry.getValue().value != null) {
+					invalidations.incrementAndGet();
+				}
+			}
+		}
+
+		void invalidateAll() {
+
+			Iterator<Entry<V>> it = entries.values().iterator();
+			while (it.hasNext()) {
+				if (it.next().value != null) {
+					invalidations.incrementAndGet();
+				}
+				it.remove();
+			}
+		}
+		/**
+		 * Drops the expired entries and, if the cache is still full, enough entries to
+		 * get back to three quarters of its size. Only one thread evicts at a time, the
+		 * rest carry on and may take the cache slightly over its size.
+		 */
+		private void evict(long now) {
+
+			if (!evicting.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				Iterator<Entry<V>> it = entries.values().iterator();
+				while (it.hasNext()) {
+					if (now >= it.next().expires) {
+						it.remove();
+						expirations.incrementAndGet();
+					}
+				}
+				int target = maxSize - maxSize / 4;
+				it = entries.values().iterator();
+				while (entries.size() > target && it.hasNext()) {
+					it.next();
+					it.remove();
+					evictions.incrementAndGet();
+				}
+			} finally {
+				evicting.set(false);
+			}
+		}
+	}
+}
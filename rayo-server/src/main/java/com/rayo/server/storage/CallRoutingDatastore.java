@@ -0,0 +1,847 @@
+package com.rayo.server.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import com.rayo.server.jmx.CallRoutingMXBean;
+import com.rayo.server.storage.model.Application;
+import com.rayo.server.storage.model.GatewayCall;
+import com.rayo.server.storage.model.GatewayClient;
+import com.rayo.server.storage.model.GatewayMixer;
+import com.rayo.server.storage.model.GatewayVerb;
+import com.rayo.server.storage.model.RayoNode;
+import com.rayo.server.util.LatencyHistogram;
+import com.voxeo.logging.Loggerf;
+
+/**
+ * <p>Keeps the calls of the gateway in a {@link CallRoutingTable} in front of any
+ * {@link GatewayDatastore}.</p>
+ *
+ * <p>The gateway looks up the call of every event and command it routes. This
+ * decorator answers those lookups from memory and registers and unregisters calls
+ * in memory too. The wrapped datastore becomes a backup of the routing table: call
+ * writes are queued and replicated to it in order by a background thread.</p>
+ *
+ * <p>With <code>readThrough</code> enabled, calls that are not in the routing table
+ * are looked up in the wrapped datastore, so calls registered by other gateways of
+ * a cluster, and the calls that were active when this gateway restarted, are still 
+ * found. Calls whose removal has not been replicated yet are never read back from 
+ * the datastore. With <code>readThrough</code> disabled the wrapped datastore only 
+ * backs this gateway, and the routing table is loaded from it when the gateway starts.</p>
+ *
+ * <p>Registering a call checks that its rayo node exists against the nodes this 
+ * decorator has already seen. Nodes are looked up in the wrapped datastore again 
+ * after <code>nodeTtl</code> milliseconds, so nodes removed by other gateways are 
+ * eventually noticed.</p>
+ *
+ * <p>When the replication queue is full, call writes wait for room in the queue.
+ * Every other entity goes straight to the wrapped datastore.</p>
+ *
+ * @author martin
+ *
+ */
+@ManagedResource(objectName="com.rayo.gateway:Type=CallRouting", description="Gateway Call Routing")
+public class CallRoutingDatastore implements GatewayDatastore, CallRoutingMXBean {
+
+	private Loggerf logger = Loggerf.getLogger(CallRoutingDatastore.class);
+
+	private GatewayDatastore datastore;
+
+	private int shards = 64;
+	private int queueSize = 100000;
+	private boolean readThrough = true;
+	private long nodeTtl = 5000;
+
+	private CallRoutingTable table = new CallRoutingTable(shards);
+
+	private BlockingQueue<Replication> queue;
+	private Replicator replicator;
+	// Removals queued but not written yet. Hides the stale copy of the datastore.
+	private final ConcurrentMap<String, Replication> pendingRemovals = new ConcurrentHashMap<String, Replication>();
+	private final AtomicInteger pendingWrites = new AtomicInteger(0);
+	// Rayo nodes known to exist and the moment they were last found
+	private final ConcurrentMap<String, Long> knownNodes = new ConcurrentHashMap<String, Long>();
+
+	private final AtomicLong replicatedWrites = new AtomicLong(0);
+	private final AtomicLong failedWrites = new AtomicLong(0);
+	private final AtomicLong blockedWrites = new AtomicLong(0);
+	private final AtomicLong readThroughs = new AtomicLong(0);
+	private volatile long reloadedCalls;
+	// Milliseconds from the moment a write is queued until it is in the datastore
+	private final LatencyHistogram replicationLag = new LatencyHistogram();
+
+	public CallRoutingDatastore() {}
+
+	public CallRoutingDatastore(GatewayDatastore datastore) {
+
+		this.datastore = datastore;
+	}
+
+	/**
+	 * Starts replicating. Without read through the routing table is loaded from the 
+	 * wrapped datastore first.
+	 */
+	public void init() {
+
+		table = new CallRoutingTable(shards);
+		long count = 0;
+		if (readThrough) {
+			// The datastore may hold the calls of other gateways. Calls are read 
+			// through when they are looked up instead of being owned by this table.
+			logger.info("Call routing table will read through the calls found in the datastore");
+		} else {
+			logger.info("Loading call routing table");
+			Collection<String> callIds = datastore.getCalls();
+			if (!callIds.isEmpty()) {
+				for (GatewayCall call: datastore.getCalls(callIds).values()) {
+					table.put(call);
+					count++;
+				}
+			}
+			logger.info("Loaded %s calls into the call routing table", count);
+		}
+		reloadedCalls = count;
+
+		synchronized(this) {
+			if (replicator == null) {
+				queue = new LinkedBlockingQueue<Replication>(queueSize);
+				replicator = new Replicator();
+				replicator.start();
+			}
+		}
+	}
+
+	/**
+	 * Replicates every queued write and stops replicating
+	 */
+	public void shutdown() {
+
+		logger.info("Shutting down call routing replication");
+		Replicator replicator = null;
+		synchronized(this) {
+			replicator = this.replicator;
+			this.replicator = null;
+		}
+		if (replicator != null) {
+			// The replicator drains the queue before it finishes
+			replicator.running = false;
+			try {
+				replicator.join(10000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Waits until every queued write has been replicated or the timeout expires
+	 *
+	 * @return boolean <code>true</code> if there are no writes left
+	 */
+	public boolean flush(long timeoutMillis) throws InterruptedException {
+
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (pendingWrites.get() > 0) {
+			if (System.currentTimeMillis() >= deadline) {
+				return false;
+			}
+			Thread.sleep(1);
+		}
+		return true;
+	}
+
+	// Calls
+	/////////////////////////////////////////////////////////////////////////////
+
+	@Override
+	public GatewayCall storeCall(GatewayCall call) throws DatastoreException {
+
+		if (!isKnownNode(call.getNodeJid())) {
+			throw new RayoNodeNotFoundException();
+		}
+		table.put(call);
+		replicate(new Replication(call));
+		return call;
+	}
+
+	/**
+	 * Tells if a rayo node exists. Only goes to the datastore when the node has not 
+	 * been seen in the last <code>nodeTtl</code> milliseconds.
+	 */
+	private boolean isKnownNode(String rayoNode) {
+
+		long now = System.currentTimeMillis();
+		Long found = knownNodes.get(rayoNode);
+		if (found != null && now - found < nodeTtl) {
+			return true;
+		}
+		if (datastore.getNode(rayoNode) == null) {
+			knownNodes.remove(rayoNode);
+			return false;
+		}
+		knownNodes.put(rayoNode, now);
+		return true;
+	}
+
+	@Override
+	public GatewayCall removeCall(String callId) throws DatastoreException {
+
+		Replication removal = new Replication(Collections.singletonList(callId));
+		GatewayCall call = remove(callId, removal);
+		if (call == null) {
+			if (!readThrough || pendingRemovals.containsKey(callId)) {
+				return null;
+			}
+			// Registered by another gateway
+			readThroughs.incrementAndGet();
+			return datastore.removeCall(callId);
+		}
+		replicate(removal);
+		return call;
+	}
+
+	@Override
+	public Collection<GatewayCall> removeCalls(Collection<String> callIds) throws DatastoreException {
+
+		// A single replication removes all the calls found in the table with one 
+		// bulk removal on the datastore
+		List<String> removedIds = new ArrayList<String>(callIds.size());
+		Replication removal = new Replication(removedIds);
+		List<GatewayCall> removed = new ArrayList<GatewayCall>(callIds.size());
+		List<String> remote = new ArrayList<String>();
+		for (String callId: callIds) {
+			GatewayCall call = remove(callId, removal);
+			if (call != null) {
+				removedIds.add(callId);
+				removed.add(call);
+			} else if (readThrough && !pendingRemovals.containsKey(callId)) {
+				remote.add(callId);
+			}
+		}
+		if (!removedIds.isEmpty()) {
+			replicate(removal);
+		}
+		if (!remote.isEmpty()) {
+			// Registered by other gateways
+			readThroughs.addAndGet(remote.size());
+			removed.addAll(datastore.removeCalls(remote));
+		}
+		return removed;
+	}
+
+	/**
+	 * Takes a call out of the routing table. The call is flagged as being removed by 
+	 * the given replication before it leaves the table, so readers never see the 
+	 * datastore copy. Returns <code>null</code> and drops the flag if the call is not 
+	 * in the table.
+	 */
+	private GatewayCall remove(String callId, Replication removal) {
+
+		Replication previous = pendingRemovals.put(callId, removal);
+		GatewayCall call = table.remove(callId);
+		if (call == null) {
+			if (previous != null) {
+				// Already being removed
+				pendingRemovals.replace(callId, removal, previous);
+			} else {
+				pendingRemovals.remove(callId, removal);
+			}
+		}
+		return call;
+	}
+
+	@Override
+	public GatewayCall getCall(String callId) {
+
+		GatewayCall call = table.get(callId);
+		if (call == null && readThrough && !pendingRemovals.containsKey(callId)) {
+			readThroughs.incrementAndGet();
+			call = datastore.getCall(callId);
+		}
+		return call;
+	}
+
+	@Override
+	public Map<String, GatewayCall> getCalls(Collection<String> callIds) {
+
+		Map<String, GatewayCall> calls = new HashMap<String, GatewayCall>(callIds.size() * 2);
+		List<String> missing = new ArrayList<String>();
+		for (String callId: callIds) {
+			GatewayCall call = table.get(callId);
+			if (call != null) {
+				calls.put(callId, call);
+			} else if (readThrough && !pendingRemovals.containsKey(callId)) {
+				missing.add(callId);
+			}
+		}
+		if (!missing.isEmpty()) {
+			readThroughs.addAndGet(missing.size());
+			for (GatewayCall call: datastore.getCalls(missing).values()) {
+				if (!pendingRemovals.containsKey(call.getCallId())) {
+					calls.put(call.getCallId(), call);
+				}
+			}
+		}
+		return calls;
+	}
+
+	@Override
+	public String getNodeForCall(String callId) {
+
+		GatewayCall call = table.get(callId);
+		if (call != null) {
+			return call.getNodeJid();
+		}
+		if (readThrough && !pendingRemovals.containsKey(callId)) {
+			readThroughs.incrementAndGet();
+			return datastore.getNodeForCall(callId);
+		}
+		return null;
+	}
+
+	@Override
+	public Collection<String> getCallsForNode(String rayoNode) {
+
+		Collection<String> calls = table.getCallsForNode(rayoNode);
+		if (readThrough) {
+			calls = merge(calls, datastore.getCallsForNode(rayoNode));
+		}
+		return calls;
+	}
+
+	@Override
+	public Collection<String> getCallsForClient(String jid) {
+
+		Collection<String> calls = table.getCallsForClient(jid);
+		if (readThrough) {
+			calls = merge(calls, datastore.getCallsForClient(jid));
+		}
+		return calls;
+	}
+
+	@Override
+	public Collection<String> getCalls() {
+
+		Collection<String> calls = table.getCalls();
+		if (readThrough) {
+			calls = merge(calls, datastore.getCalls());
+		}
+		return calls;
+	}
+
+	/**
+	 * Adds the calls found in the datastore to the calls found in the routing table,
+	 * leaving out the calls being removed and the calls the routing table has moved
+	 */
+	private Collection<String> merge(Collection<String> routed, Collection<String> stored) {
+
+		readThroughs.incrementAndGet();
+		Set<String> result = new LinkedHashSet<String>(routed);
+		for (String callId: stored) {
+			if (!pendingRemovals.containsKey(callId) && table.get(callId) == null) {
+				result.add(callId);
+			}
+		}
+		return result;
+	}
+
+	private void replicate(Replication replication) throws DatastoreException {
+
+		BlockingQueue<Replication> queue = null;
+		synchronized(this) {
+			if (replicator != null) {
+				queue = this.queue;
+			}
+		}
+		if (queue == null) {
+			// Not started yet. Writes straight to the datastore.
+			replication.apply();
+			return;
+		}
+		pendingWrites.incrementAndGet();
+		if (!queue.offer(replication)) {
+			blockedWrites.incrementAndGet();
+			try {
+				queue.put(replication);
+			} catch (InterruptedException e) {
+				pendingWrites.decrementAndGet();
+				replication.unflag();
+				Thread.currentThread().interrupt();
+				throw new DatastoreException("Interrupted while queueing the replication of calls " + replication.callIds);
+			}
+		}
+	}
+
+	/**
+	 * A call write waiting to be replicated to the datastore
+	 */
+	private class Replication {
+
+		final Collection<String> callIds;
+		// Call to store. null removes the calls.
+		final GatewayCall call;
+		final long queued = System.currentTimeMillis();
+
+		Replication(GatewayCall call) {
+
+			this.callIds = Collections.singletonList(call.getCallId());
+			this.call = call;
+		}
+
+		Replication(Collection<String> callIds) {
+
+			this.callIds = callIds;
+			this.call = null;
+		}
+
+		void apply() throws DatastoreException {
+
+			try {
+				if (call != null) {
+					datastore.storeCall(call);
+				} else if (callIds.size() == 1) {
+					datastore.removeCall(callIds.iterator().next());
+				} else {
+					datastore.removeCalls(callIds);
+				}
+			} finally {
+				unflag();
+			}
+		}
+
+		void unflag() {
+
+			if (call == null) {
+				for (String callId: callIds) {
+					pendingRemovals.remove(callId, this);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replicates the queued writes in the order they were queued
+	 */
+	private class Replicator extends Thread {
+
+		volatile boolean running = true;
+
+		Replicator() {
+
+			super("call-routing-replicator");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+
+			while (running || !queue.isEmpty()) {
+				Replication replication = null;
+				try {
+					replication = queue.poll(100, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					// Finish what is in the queue before exiting
+					running = false;
+					continue;
+				}
+				if (replication == null) {
+					continue;
+				}
+				try {
+					replication.apply();
+					replicatedWrites.incrementAndGet();
+					replicationLag.record(System.currentTimeMillis() - replication.queued);
+				} catch (Exception e) {
+					failedWrites.incrementAndGet();
+					logger.error("Could not replicate calls %s to the datastore: %s", replication.callIds, e.getMessage());
+				} finally {
+					pendingWrites.decrementAndGet();
+				}
+			}
+		}
+	}
+
+	// Mixers and verbs
+	/////////////////////////////////////////////////////////////////////////////
+
+	@Override
+	public GatewayMixer storeMixer(GatewayMixer mixer) throws DatastoreException {
+
+		return datastore.storeMixer(mixer);
+	}
+
+	@Override
+	public GatewayMixer removeMixer(String mixerName) throws DatastoreException {
+
+		return datastore.removeMixer(mixerName);
+	}
+
+	@Override
+	public GatewayMixer getMixer(String mixerName) {
+
+		return datastore.getMixer(mixerName);
+	}
+
+	@Override
+	public Collection<GatewayMixer> getMixers() {
+
+		return datastore.getMixers();
+	}
+
+	@Override
+	public void addCallToMixer(String callId, String mixerName) throws DatastoreException {
+
+		datastore.addCallToMixer(callId, mixerName);
+	}
+
+	@Override
+	public void removeCallFromMixer(String callId, String mixerName) throws DatastoreException {
+
+		datastore.removeCallFromMixer(callId, mixerName);
+	}
+
+	@Override
+	public void addVerbToMixer(GatewayVerb verb, String mixerName) throws DatastoreException {
+
+		datastore.addVerbToMixer(verb, mixerName);
+	}
+
+	@Override
+	public void removeVerbFromMixer(String verbId, String mixerName) throws DatastoreException {
+
+		datastore.removeVerbFromMixer(verbId, mixerName);
+	}
+
+	@Override
+	public List<GatewayVerb> getVerbs(String mixerName) {
+
+		return datastore.getVerbs(mixerName);
+	}
+
+	@Override
+	public List<GatewayVerb> getVerbs() {
+
+		return datastore.getVerbs();
+	}
+
+	@Override
+	public GatewayVerb getVerb(String mixerName, String verbId) {
+
+		return datastore.getVerb(mixerName, verbId);
+	}
+
+	// Filters
+	/////////////////////////////////////////////////////////////////////////////
+
+	@Override
+	public void createFilter(String jid, String id) throws DatastoreException {
+
+		datastore.createFilter(jid, id);
+	}
+
+	@Override
+	public void removeFilter(String jid, String id) throws DatastoreException {
+
+		datastore.removeFilter(jid, id);
+	}
+
+	@Override
+	public void removeFilters(String id) throws DatastoreException {
+
+		datastore.removeFilters(id);
+	}
+
+	@Override
+	public List<String> getFilteredApplications(String id) throws DatastoreException {
+
+		return datastore.getFilteredApplications(id);
+	}
+
+	// Clients
+	/////////////////////////////////////////////////////////////////////////////
+
+	@Override
+	public GatewayClient storeClient(GatewayClient client) throws DatastoreException {
+
+		return datastore.storeClient(client);
+	}
+
+	@Override
+	public GatewayClient removeClient(String clientJid) throws DatastoreException {
+
+		return datastore.removeClient(clientJid);
+	}
+
+	@Override
+	public GatewayClient getClient(String clientJid) {
+
+		return datastore.getClient(clientJid);
+	}
+
+	@Override
+	public List<String> getClientResources(String clientJid) {
+
+		return datastore.getClientResources(clientJid);
+	}
+
+	@Override
+	public List<String> getClients() {
+
+		return datastore.getClients();
+	}
+
+	// Applications
+	/////////////////////////////////////////////////////////////////////////////
+
+	@Override
+	public Application storeApplication(Application application) throws DatastoreException {
+
+		return datastore.storeApplication(application);
+	}
+
+	@Override
+	public Application updateApplication(Application application) throws DatastoreException {
+
+		return datastore.updateApplication(application);
+	}
+
+	@Override
+	public Application getApplication(String jid) {
+
+		return datastore.getApplication(jid);
+	}
+
+	@Override
+	public List<Application> getApplications() {
+
+		return datastore.getApplications();
+	}
+
+	@Override
+	public Application removeApplication(String jid) throws DatastoreException {
+
+		return datastore.removeApplication(jid);
+	}
+
+	@Override
+	public void storeAddress(String address, String jid) throws DatastoreException {
+
+		datastore.storeAddress(address, jid);
+	}
+
+	@Override
+	public void storeAddresses(Collection<String> addresses, String jid) throws DatastoreException {
+
+		datastore.storeAddresses(addresses, jid);
+	}
+
+	@Override
+	public Application getApplicationForAddress(String address) {
+
+		return datastore.getApplicationForAddress(address);
+	}
+
+	@Override
+	public List<String> getAddressesForApplication(String jid) {
+
+		return datastore.getAddressesForApplication(jid);
+	}
+
+	@Override
+	public void removeAddress(String address) throws DatastoreException {
+
+		datastore.removeAddress(address);
+	}
+
+	// Rayo Nodes
+	/////////////////////////////////////////////////////////////////////////////
+
+	@Override
+	public RayoNode storeNode(RayoNode node) throws DatastoreException {
+
+		RayoNode stored = datastore.storeNode(node);
+		knownNodes.put(node.getHostname(), System.currentTimeMillis());
+		return stored;
+	}
+
+	@Override
+	public RayoNode updateNode(RayoNode node) throws DatastoreException {
+
+		RayoNode updated = datastore.updateNode(node);
+		knownNodes.put(node.getHostname(), System.currentTimeMillis());
+		return updated;
+	}
+
+	@Override
+	public RayoNode removeNode(String rayoNode) throws DatastoreException {
+
+		RayoNode removed = datastore.removeNode(rayoNode);
+		knownNodes.remove(rayoNode);
+		return removed;
+	}
+
+	@Override
+	public RayoNode getNode(String rayoNode) {
+
+		return datastore.getNode(rayoNode);
+	}
+
+	@Override
+	public String getNodeForIpAddress(String ipAddress) {
+
+		return datastore.getNodeForIpAddress(ipAddress);
+	}
+
+	@Override
+	public List<RayoNode> getRayoNodesForPlatform(String platformId) {
+
+		return datastore.getRayoNodesForPlatform(platformId);
+	}
+
+	@Override
+	public Collection<String> getPlatforms() {
+
+		return datastore.getPlatforms();
+	}
+
+	// Configuration
+	/////////////////////////////////////////////////////////////////////////////
+
+	public void setDatastore(GatewayDatastore datastore) {
+
+		this.datastore = datastore;
+	}
+
+	public GatewayDatastore getDatastore() {
+
+		return datastore;
+	}
+
+	/**
+	 * Sets the number of shards of the routing table. Only used by {@link #init()}.
+	 */
+	public void setShards(int shards) {
+
+		this.shards = shards;
+	}
+
+	/**
+	 * Sets how many call writes can wait to be replicated
+	 */
+	public void setQueueSize(int queueSize) {
+
+		this.queueSize = queueSize;
+	}
+
+	public void setReadThrough(boolean readThrough) {
+
+		this.readThrough = readThrough;
+	}
+
+	public void setNodeTtl(long nodeTtl) {
+
+		this.nodeTtl = nodeTtl;
+	}
+
+	// Statistics
+	/////////////////////////////////////////////////////////////////////////////
+
+	@ManagedAttribute(description="Calls in the routing table")
+	public int getRoutedCalls() {
+
+		return table.size();
+	}
+
+	@ManagedAttribute(description="Shards of the routing table")
+	public int getShards() {
+
+		return table.getShards();
+	}
+
+	@ManagedAttribute(description="Whether calls missing in the routing table are looked up in the datastore")
+	public boolean isReadThrough() {
+
+		return readThrough;
+	}
+
+	@ManagedAttribute(description="Call writes waiting to be replicated to the datastore")
+	public int getPendingWrites() {
+
+		return pendingWrites.get();
+	}
+
+	@ManagedAttribute(description="Call writes replicated to the datastore")
+	public long getReplicatedWrites() {
+
+		return replicatedWrites.get();
+	}
+
+	@ManagedAttribute(description="Call writes that could not be replicated to the datastore")
+	public long getFailedWrites() {
+
+		return failedWrites.get();
+	}
+
+	@ManagedAttribute(description="Call writes that waited because the replication queue was full")
+	public long getBlockedWrites() {
+
+		return blockedWrites.get();
+	}
+
+	@ManagedAttribute(description="Call lookups sent to the datastore")
+	public long getReadThroughs() {
+
+		return readThroughs.get();
+	}
+
+	@ManagedAttribute(description="Calls loaded from the datastore when the gateway started without read through")
+	public long getReloadedCalls() {
+
+		return reloadedCalls;
+	}
+
+	@ManagedAttribute(description="Mean time in milliseconds until a call write is replicated")
+	public long getMeanReplicationLag() {
+
+		return replicationLag.getMean();
+	}
+
+	@ManagedAttribute(description="99th percentile of the time in milliseconds until a call write is replicated")
+	public long getReplicationLag99() {
+
+		return replicationLag.getValueAtPercentile(99);
+	}
+
+	@ManagedAttribute(description="Maximum time in milliseconds until a call write is replicated")
+	public long getMaxReplicationLag() {
+
+		return replicationLag.getMax();
+	}
+
+	@ManagedOperation(description="Resets the call routing statistics")
+	public void resetStatistics() {
+
+		replicatedWrites.set(0);
+		failedWrites.set(0);
+		blockedWrites.set(0);
+		readThroughs.set(0);
+		replicationLag.reset();
+	}
+}
@@ -0,0 +1,212 @@
+package com.rayo.server.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.rayo.server.storage.model.GatewayCall;
+
+/**
+ * <p>In-memory table with the calls routed by a gateway.</p>
+ *
+ * <p>Calls are partitioned by the hash of their id into a fixed number of shards.
+ * Looking up a call by its id never locks. Registering and unregistering a call
+ * only locks its shard, as every shard keeps its own node and client indexes, so
+ * writes for calls on different shards never contend. Looking up the calls of a
+ * node or of a client visits every shard.</p>
+ *
+ * @author martin
+ *
+ */
+public class CallRoutingTable {
+
+	private final Shard[] shards;
+	private final int mask;
+
+	public CallRoutingTable() {
+
+		this(64);
+	}
+
+	/**
+	 * Creates a routing table. The number of shards is rounded up to the next
+	 * power of two.
+	 */
+	public CallRoutingTable(int shards) {
+
+		int size = 1;
+		while (size < shards) {
+			size <<= 1;
+		}
+		this.shards = new Shard[size];
+		for (int i = 0; i < size; i++) {
+			this.shards[i] = new Shard();
+		}
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Adds a call to the table
+	 *
+	 * @return GatewayCall The call that was previously in the table with the same id
+	 * or <code>null</code> if there was none
+	 */
+	public GatewayCall put(GatewayCall call) {
+
+		Shard shard = shardFor(call.getCallId());
+		synchronized(shard) {
+			GatewayCall previous = shard.calls.put(call.getCallId(), call);
+			if (previous != null) {
+				shard.unindex(previous);
+			}
+			shard.index(call);
+			return previous;
+		}
+	}
+
+	/**
+	 * Removes a call from the table
+	 *
+	 * @return GatewayCall The removed call or <code>null</code> if the call was not
+	 * in the table
+	 */
+	public GatewayCall remove(String callId) {
+
+		Shard shard = shardFor(callId);
+		synchronized(shard) {
+			GatewayCall call = shard.calls.remove(callId);
+			if (call != null) {
+				shard.unindex(call);
+			}
+			return call;
+		}
+	}
+
+	public GatewayCall get(String callId) {
+
+		return shardFor(callId).calls.get(callId);
+	}
+
+	public Collection<String> getCallsForNode(String nodeJid) {
+
+		List<String> result = new ArrayList<String>();
+		for (Shard shard: shards) {
+			synchronized(shard) {
+				Set<String> calls = shard.byNode.get(nodeJid);
+				if (calls != null) {
+					result.addAll(calls);
+				}
+			}
+		}
+		return result;
+	}
+
+	public Collection<String> getCallsForClient(String clientJid) {
+
+		List<String> result = new ArrayList<String>();
+		for (Shard shard: shards) {
+			synchronized(shard) {
+				Set<String> calls = shard.byClient.get(clientJid);
+				if (calls != null) {
+					result.addAll(calls);
+				}
+			}
+		}
+		return result;
+	}
+
+	public Collection<String> getCalls() {
+
+		List<String> result = new ArrayList<String>();
+		for (Shard shard: shards) {
+			result.addAll(shard.calls.keySet());
+		}
+		return result;
+	}
+
+	public int size() {
+
+		int size = 0;
+		for (Shard shard: shards) {
+			size+= shard.calls.size();
+		}
+		return size;
+	}
+
+	public int getShards() {
+
+		return shards.length;
+	}
+
+	public void clear() {
+
+		for (Shard shard: shards) {
+			synchronized(shard) {
+				shard.calls.clear();
+				shard.byNode.clear();
+				shard.byClient.clear();
+			}
+		}
+	}
+
+	private Shard shardFor(String callId) {
+
+		// Spreads the hash so ids sharing a suffix do not end up on the same shard
+		int h = callId.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return shards[h & mask];
+	}
+
+	static class Shard {
+
+		final ConcurrentHashMap<String, GatewayCall> calls = new ConcurrentHashMap<String, GatewayCall>();
+		// Only accessed holding the shard monitor
+		final Map<String, Set<String>> byNode = new HashMap<String, Set<String>>();
+		final Map<String, Set<String>> byClient = new HashMap<String, Set<String>>();
+
+		void index(GatewayCall call) {
+
+			add(byNode, call.getNodeJid(), call.getCallId());
+			add(byClient, call.getClientJid(), call.getCallId());
+		}
+
+		void unindex(GatewayCall call) {
+
+			remove(byNode, call.getNodeJid(), call.getCallId());
+			remove(byClient, call.getClientJid(), call.getCallId());
+		}
+
+		private void add(Map<String, Set<String>> index, String jid, String callId) {
+
+			if (jid == null) {
+				return;
+			}
+			Set<String> calls = index.get(jid);
+			if (calls == null) {
+				calls = new HashSet<String>();
+				index.put(jid, calls);
+			}
+			calls.add(callId);
+		}
+
+		private void remove(Map<String, Set<String>> index, String jid, String callId) {
+
+			if (jid == null) {
+				return;
+			}
+			Set<String> calls = index.get(jid);
+			if (calls != null) {
+				calls.remove(callId);
+				if (calls.isEmpty()) {
+					index.remove(jid);
+				}
+			}
+		}
+	}
+}
@@ -5,8 +5,11 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.rayo.server.storage.ApplicationNotFoundException;
@@ -59,6 +62,8 @@ public class DefaultGatewayStorageService implements GatewayStorageService {
 	private GatewayDatastore store;
 	
 	private ReentrantLock nodeLock = new ReentrantLock();
+	
+	private List<RayoNodeListener> nodeListeners = new CopyOnWriteArrayList<RayoNodeListener>();
 			
 	@Override
 	public String getPlatformForClient(JID clientJid) {
@@ -133,7 +138,9 @@ public class DefaultGatewayStorageService implements GatewayStorageService {
 						if (rayoNode.getIpAddress() == null) {
 							rayoNode.setIpAddress(InetAddress.getByName(rayoNode.getHostname()).getHostAddress());
 						}
-						return store.updateNode(rayoNode);
+						RayoNode updated = store.updateNode(rayoNode);
+						fireRayoNodeChanged(rayoNode.getHostname());
+						return updated;
 					}
 				} finally {
 					nodeLock.unlock();
@@ -143,7 +150,9 @@ public class DefaultGatewayStorageService implements GatewayStorageService {
 			if (rayoNode.getIpAddress() == null) {
 				rayoNode.setIpAddress(InetAddress.getByName(rayoNode.getHostname()).getHostAddress());
 			}
-			return store.storeNode(rayoNode);
+			RayoNode stored = store.storeNode(rayoNode);
+			fireRayoNodeChanged(rayoNode.getHostname());
+			return stored;
 		} catch (UnknownHostException uhe) {
 			throw new GatewayException("Unknown host", uhe);
 		}
@@ -155,7 +164,9 @@ public class DefaultGatewayStorageService implements GatewayStorageService {
 		
 		nodeLock.lock();
 		try {
-			return store.updateNode(rayoNode);
+			RayoNode updated = store.updateNode(rayoNode);
+			fireRayoNodeChanged(rayoNode.getHostname());
+			return updated;
 		} finally {
 			nodeLock.unlock();
 		}
@@ -173,6 +184,7 @@ public class DefaultGatewayStorageService implements GatewayStorageService {
 		nodeLock.lock();
 		try {
 			store.removeNode(rayoNode);
+			fireRayoNodeChanged(rayoNode);
 		} finally {
 			nodeLock.unlock();
 		}
@@ -235,6 +247,22 @@ public class DefaultGatewayStorageService implements GatewayStorageService {
 		 store.removeCall(callId);
 	}
 	
+	@Override
+	public Collection<String> unregistercalls(Collection<String> callIds) throws GatewayException {
+
+		List<String> removed = new ArrayList<String>();
+		if (callIds.isEmpty()) {
+			return removed;
+		}
+		for (GatewayCall call: store.removeCalls(callIds)) {
+			removed.add(call.getCallId());
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Unregistered %s calls out of %s", removed.size(), callIds.size());
+		}
+		return removed;
+	}
+	
 	@Override
 	public String getclientJID(String callId) {
 
@@ -244,6 +272,19 @@ public class DefaultGatewayStorageService implements GatewayStorageService {
 		}
 		return null;
 	}
+
+	@Override
+	public Map<String, String> getclientJIDs(Collection<String> callIds) {
+
+		Map<String, String> jids = new HashMap<String, String>(callIds.size() * 2);
+		if (callIds.isEmpty()) {
+			return jids;
+		}
+		for (GatewayCall call: store.getCalls(callIds).values()) {
+			jids.put(call.getCallId(), call.getClientJid());
+		}
+		return jids;
+	}
 	
 	@SuppressWarnings("unchecked")
 	@Override
@@ -430,5 +471,32 @@ public class DefaultGatewayStorageService implements GatewayStorageService {
 	public void setStore(GatewayDatastore store) {
 		
 		this.store = store;
-	}	
+	}
+	
+	/**
+	 * Adds a listener that will be notified every time a Rayo Node is registered, 
+	 * updated or unregistered through this storage service
+	 * 
+	 * @param listener Listener
+	 */
+	public void addRayoNodeListener(RayoNodeListener listener) {
+		
+		nodeListeners.add(listener);
+	}
+	
+	public void removeRayoNodeListener(RayoNodeListener listener) {
+		
+		nodeListeners.remove(listener);
+	}
+	
+	private void fireRayoNodeChanged(String rayoNode) {
+		
+		for (RayoNodeListener listener: nodeListeners) {
+			try {
+				listener.rayoNodeChanged(rayoNode);
+			} catch (Exception e) {
+				log.error("Error notifying change on Rayo Node [%s]: %s", rayoNode, e.getMessage(), e);
+			}
+		}
+	}
 }
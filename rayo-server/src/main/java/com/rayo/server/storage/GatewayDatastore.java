@@ -3,6 +3,7 @@ package com.rayo.server.storage;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import com.rayo.server.storage.model.Application;
 import com.rayo.server.storage.model.GatewayCall;
@@ -130,6 +131,17 @@ public interface GatewayDatastore {
 	 */
 	GatewayCall removeCall(String callId) throws DatastoreException;
 	
+	/**
+	 * <p>Removes a set of calls from the DHT with as few round trips as the DHT allows. 
+	 * Ids with no call are ignored.</p>
+	 * <p>See also {@link GatewayStorageService#unregistercalls(Collection)}.</p>
+	 * 
+	 * @param callIds Ids of the calls to be removed
+	 * @return Collection<GatewayCall> The calls that have been removed
+	 * @throws DatastoreException If there is any issues while removing the calls
+	 */
+	Collection<GatewayCall> removeCalls(Collection<String> callIds) throws DatastoreException;
+	
 	/**
 	 * <p>Returns a collection of calls that are currently linked with the specified 
 	 * Rayo Node. It will return an empty collection if no calls can be found for the given 
@@ -175,6 +187,17 @@ public interface GatewayDatastore {
 	 */
 	GatewayCall getCall(String callId);
 	
+	/**
+	 * <p>Returns the calls with the given ids keyed by call id, reading them with as few 
+	 * round trips as the DHT allows. Ids with no call are left out of the map.</p>
+	 * 
+	 * <p>See also {@link GatewayStorageService#getclientJIDs(Collection)}.</p>
+	 * 
+	 * @param callIds Call ids
+	 * @return Map<String, GatewayCall> Calls that could be found
+	 */
+	Map<String, GatewayCall> getCalls(Collection<String> callIds);
+	
 	/**
 	 * <p>Stores a client application on the DHT. A client application is different from 
 	 * an {@link Application} in the sense that it represents a client session instead of 
@@ -3,6 +3,7 @@ package com.rayo.server.storage;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import com.rayo.server.storage.DatastoreException;
 import com.rayo.server.storage.GatewayDatastore;
@@ -202,6 +203,17 @@ public interface GatewayStorageService {
 	 * @throws GatewayException If there is any issues while unregistering the call
 	 */
 	void unregistercall(String callId) throws GatewayException;
+	
+	/**
+	 * <p>Unregisters a set of calls at once. This is the bulk version of 
+	 * {@link #unregistercall(String)} used when a client application goes offline 
+	 * and all its calls have to be cleaned up.</p>
+	 * 
+	 * @param callIds Ids of the calls to be unregistered
+	 * @return Collection<String> Ids of the calls that have been unregistered
+	 * @throws GatewayException If there is any issues while unregistering the calls
+	 */
+	Collection<String> unregistercalls(Collection<String> callIds) throws GatewayException;
 
 	/**
 	 * <p>Returns a collection of calls that are currently linked with the specified 
@@ -253,6 +265,19 @@ public interface GatewayStorageService {
 	 * @return {@link JID} Client full JID
 	 */
 	String getclientJID(String callId);
+
+	/**
+	 * <p>Returns the client full JID associated with each one of the given calls. 
+	 * This is the bulk version of {@link #getclientJID(String)} used when an event 
+	 * has to be sent to every participant of a mixer.</p>
+	 * 
+	 * <p>Calls that cannot be found are not included in the returned map.</p>
+	 * 
+	 * @param callIds Ids of the calls for which we want to find the client full JIDs
+	 * 
+	 * @return Map<String, String> Client full JID of each call id
+	 */
+	Map<String, String> getclientJIDs(Collection<String> callIds);
 	
 	/**
 	 * <p>Returns a list of available resources for the specified client JID.</p>
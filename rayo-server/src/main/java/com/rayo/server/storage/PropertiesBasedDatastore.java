@@ -18,7 +18,6 @@ import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.regex.Matcher;
 
 import org.springframework.core.io.Resource;
 
@@ -74,6 +73,14 @@ public class PropertiesBasedDatastore implements GatewayDatastore {
 	
 	private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 	
+	/*
+	 * Routing table built from the map above. It is rebuilt on the first lookup after 
+	 * any change in the mappings. 
+	 */
+	private volatile AddressRouter router;
+	
+	private int lookupCacheSize = 10000;
+	
 	/*
 	 * This in memory datastore will be used to store all the data that cannot be stored 
 	 * in the properties file. As the file is way too simple.  
@@ -167,6 +174,12 @@ public class PropertiesBasedDatastore implements GatewayDatastore {
 		return delegateStore.getCall(callId);
 	}
 	
+	@Override
+	public Map<String, GatewayCall> getCalls(Collection<String> callIds) {
+
+		return delegateStore.getCalls(callIds);
+	}
+	
 	@Override
 	public Collection<String> getCalls() {
 
@@ -293,6 +306,11 @@ public class PropertiesBasedDatastore implements GatewayDatastore {
 		return delegateStore.removeCall(id);
 	}
 
+	@Override
+	public Collection<GatewayCall> removeCalls(Collection<String> callIds) throws DatastoreException {
+		return delegateStore.removeCalls(callIds);
+	}
+
 	public Collection<String> getCalls(String jid) {
 		return delegateStore.getCalls(jid);
 	}
@@ -413,6 +431,7 @@ public class PropertiesBasedDatastore implements GatewayDatastore {
 		if (map.get(address) == null) {
 			PropertiesValue entry = new PropertiesValue(address,jid);
 			map.put(address, entry);
+			router = null;
 		}
 	}
 
@@ -426,7 +445,9 @@ public class PropertiesBasedDatastore implements GatewayDatastore {
 		Lock lock = PropertiesBasedDatastore.this.lock.writeLock();
 		try {
 			lock.lock();
-			map.remove(address);			
+			if (map.remove(address) != null) {
+				router = null;
+			}
 			delegateStore.removeAddress(address);
 		} finally {
 			try {
@@ -539,6 +560,7 @@ public class PropertiesBasedDatastore implements GatewayDatastore {
 		try {
 			lock.lock();
 			map.clear();
+			router = null;
 			if (properties.isReadable()) {
 	
 				InputStream is = null;
@@ -598,34 +620,55 @@ public class PropertiesBasedDatastore implements GatewayDatastore {
 	
 	/**
 	 * Returns an application jid for the given address URI. It will go through all the 
-	 * different regexp expressions associated with the application and get the first one
+	 * different regexp expressions associated with the application and get the first one.
+	 * See {@link AddressRouter} for how the expressions are matched.
 	 * 
 	 * @param uri Address
 	 * @return String JId of the application that matches the address
 	 */
 	public String lookup(URI uri) {
 		
-		Lock lock = this.lock.readLock();
-		try {
-			lock.lock();
-			for(String key: map.keySet()) {
-				PropertiesValue entry = map.get(key);
-				Matcher matcher = entry.getPattern().matcher(uri.toString());
-				if (matcher.matches()) {
-					String value = entry.getApplication();
-					if (logger.isDebugEnabled()) {
-						logger.debug("Found a match for %s : %s", uri.toString(), value);
-					}
-					return value;
-				}
-			}
-			if (logger.isDebugEnabled()) {
+		String value = getRouter().lookup(uri.toString());
+		if (logger.isDebugEnabled()) {
+			if (value != null) {
+				logger.debug("Found a match for %s : %s", uri.toString(), value);
+			} else {
 				logger.debug("We didn't find any Regexp match for %s", uri.toString());
 			}
-			return null;
-		} finally {
-			lock.unlock();
 		}
+		return value;
+	}
+	
+	private AddressRouter getRouter() {
+		
+		AddressRouter router = this.router;
+		if (router == null) {
+			Lock lock = this.lock.readLock();
+			try {
+				lock.lock();
+				// Mappings cannot change while the read lock is held
+				router = this.router;
+				if (router == null) {
+					router = new AddressRouter(map.values(), lookupCacheSize);
+					this.router = router;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		return router;
+	}
+	
+	/**
+	 * Sets the maximum number of addresses whose lookup result is cached. 
+	 * Defaults to 10000. Use 0 to disable the cache.
+	 * 
+	 * @param lookupCacheSize Maximum number of cached lookups
+	 */
+	public void setLookupCacheSize(int lookupCacheSize) {
+		
+		this.lookupCacheSize = lookupCacheSize;
+		router = null;
 	}
 	
 	int getLoadFailures() {
@@ -0,0 +1,22 @@
+package com.rayo.server.storage;
+
+/**
+ * <p>Gets notified when a Rayo Node is registered, updated or unregistered through a
+ * {@link DefaultGatewayStorageService}. Load balancers use it to refresh the nodes they
+ * keep in memory instead of reading them from the datastore on every request.</p>
+ *
+ * <p>Only the changes done through the storage service that has the listener are
+ * notified. Changes done by other gateways sharing the same datastore are not.</p>
+ *
+ * @author martin
+ *
+ */
+public interface RayoNodeListener {
+
+	/**
+	 * Called after a Rayo Node has been stored, updated or removed
+	 *
+	 * @param rayoNode Hostname of the Rayo Node
+	 */
+	void rayoNodeChanged(String rayoNode);
+}
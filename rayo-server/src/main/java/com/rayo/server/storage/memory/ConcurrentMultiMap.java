@@ -0,0 +1,153 @@
+package com.rayo.server.storage.memory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * <p>Map of keys to sets of values used by the {@link InMemoryDatastore} for its
+ * secondary indexes.</p>
+ *
+ * <p>Reads never lock. A write only locks the set of its key, so writes on different
+ * keys never contend. Sets are created atomically the first time a value is added to
+ * a key and dropped once they are empty. A dropped set is flagged as retired before it
+ * leaves the map, so a value is never added to a set that is no longer in the map.</p>
+ *
+ * <p>Ordered multimaps keep values in the order they were added and are meant for
+ * small sets that change rarely. Unordered multimaps are meant for large sets that
+ * change often.</p>
+ *
+ * @author martin
+ *
+ */
+class ConcurrentMultiMap<K, V> {
+
+	private final ConcurrentMap<K, Values<V>> map = new ConcurrentHashMap<K, Values<V>>();
+	private final boolean ordered;
+	private final boolean retainEmpty;
+
+	/**
+	 * @param ordered Whether values are kept in the order they were added
+	 * @param retainEmpty Whether keys stay in the map once they have no values
+	 */
+	ConcurrentMultiMap(boolean ordered, boolean retainEmpty) {
+
+		this.ordered = ordered;
+		this.retainEmpty = retainEmpty;
+	}
+
+	/**
+	 * Adds a value to a key
+	 *
+	 * @return boolean <code>true</code> if the value was not there already
+	 */
+	boolean put(K key, V value) {
+
+		while (true) {
+			Values<V> values = map.get(key);
+			if (values == null) {
+				Values<V> created = new Values<V>(ordered);
+				values = map.putIfAbsent(key, created);
+				if (values == null) {
+					values = created;
+				}
+			}
+			synchronized(values) {
+				if (!values.retired) {
+					return values.set.add(value);
+				}
+			}
+			// Retired while we got it. It is gone from the map or about to be.
+			map.remove(key, values);
+		}
+	}
+
+	/**
+	 * Removes a value from a key
+	 *
+	 * @return boolean <code>true</code> if the value was there
+	 */
+	boolean remove(K key, V value) {
+
+		Values<V> values = map.get(key);
+		if (values == null) {
+			return false;
+		}
+		synchronized(values) {
+			boolean removed = values.set.remove(value);
+			if (values.set.isEmpty() && !retainEmpty && !values.retired) {
+				values.retired = true;
+				map.remove(key, values);
+			}
+			return removed;
+		}
+	}
+
+	/**
+	 * Removes a key and returns the values it had
+	 */
+	Collection<V> removeAll(K key) {
+
+		Values<V> values = map.remove(key);
+		if (values == null) {
+			return Collections.emptyList();
+		}
+		synchronized(values) {
+			values.retired = true;
+			return new ArrayList<V>(values.set);
+		}
+	}
+
+	/**
+	 * Returns a copy of the values of a key. Never <code>null</code>.
+	 */
+	List<V> get(K key) {
+
+		Values<V> values = map.get(key);
+		if (values == null) {
+			return new ArrayList<V>(0);
+		}
+		return new ArrayList<V>(values.set);
+	}
+
+	/**
+	 * Returns a live read-only view of the values of a key. Never <code>null</code>.
+	 */
+	Collection<V> view(K key) {
+
+		Values<V> values = map.get(key);
+		if (values == null) {
+			return Collections.emptySet();
+		}
+		return Collections.unmodifiableSet(values.set);
+	}
+
+	boolean contains(K key, V value) {
+
+		Values<V> values = map.get(key);
+		return values != null && values.set.contains(value);
+	}
+
+	Set<K> keySet() {
+
+		return map.keySet();
+	}
+
+	private static class Values<V> {
+
+		final Set<V> set;
+		// Only changes holding the monitor of this object
+		boolean retired;
+
+		Values(boolean ordered) {
+
+			set = ordered ? new CopyOnWriteArraySet<V>() :
+				Collections.newSetFromMap(new ConcurrentHashMap<V, Boolean>());
+		}
+	}
+}
@@ -2,16 +2,13 @@ package com.rayo.server.storage.memory;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentMap;
 
 import com.rayo.server.storage.ApplicationAlreadyExistsException;
 import com.rayo.server.storage.ApplicationNotFoundException;
@@ -28,409 +25,288 @@ import com.rayo.server.storage.model.RayoNode;
 import com.rayo.server.util.JIDUtils;
 
 /**
- * <p>Fully in-memory Map based implementation of the {@link GatewayDatastore} interface.</p> 
- * 
- * <p>This datastore is not intended to be usable in clustered Gateways as it will only 
- * work on a single-box scenario. It is provided as a reference implementation and can be 
- * useful if you plan to use only a single Gateway.</p> 
- * 
+ * <p>Fully in-memory Map based implementation of the {@link GatewayDatastore} interface.</p>
+ *
+ * <p>This datastore is not intended to be usable in clustered Gateways as it will only
+ * work on a single-box scenario. It is provided as a reference implementation and can be
+ * useful if you plan to use only a single Gateway.</p>
+ *
+ * <p>There are no global locks. Every entity lives in its own concurrent map and the
+ * secondary indexes are {@link ConcurrentMultiMap}s that only lock the key being
+ * written, so registering a call never waits for lookups or writes of other calls,
+ * mixers or applications. Indexes hold keys instead of entities, so updated entities
+ * are never served stale through an index.</p>
+ *
  * @author martin
  *
  */
 public class InMemoryDatastore implements GatewayDatastore {
 
-	private ReadWriteLock applicationsLock = new ReentrantReadWriteLock();
-	private ReadWriteLock nodesLock = new ReentrantReadWriteLock();
-	private ReadWriteLock callsLock = new ReentrantReadWriteLock();
-	private ReadWriteLock mixersLock = new ReentrantReadWriteLock();
-	private ReadWriteLock filtersLock = new ReentrantReadWriteLock();
-	
-	private Map<String, RayoNode> nodesMap = new ConcurrentHashMap<String, RayoNode>();
-	private Map<String, RayoNode> ipsMap = new ConcurrentHashMap<String, RayoNode>();
-	private Map<String, List<RayoNode>> platformsMap = new ConcurrentHashMap<String, List<RayoNode>>();
+	private ConcurrentMap<String, RayoNode> nodesMap = new ConcurrentHashMap<String, RayoNode>();
+	private ConcurrentMap<String, String> ipsMap = new ConcurrentHashMap<String, String>();
+	// Platforms are kept even when they have no nodes left
+	private ConcurrentMultiMap<String, String> platformsMap = new ConcurrentMultiMap<String, String>(true, true);
 
-	private Map<String, GatewayCall> callsMap = new ConcurrentHashMap<String, GatewayCall>();
-	private Map<String, List<GatewayCall>> jidsMap = new ConcurrentHashMap<String, List<GatewayCall>>();
+	private ConcurrentMap<String, GatewayCall> callsMap = new ConcurrentHashMap<String, GatewayCall>();
+	private ConcurrentMultiMap<String, String> jidsMap = new ConcurrentMultiMap<String, String>(false, false);
 
-	private Map<String, GatewayClient> clientsMap = new ConcurrentHashMap<String, GatewayClient>();
-	private Map<String, List<String>> resourcesMap = new ConcurrentHashMap<String, List<String>>();
-	private Map<String, Application> applicationsMap = new ConcurrentHashMap<String, Application>();
-	private Map<String, Application> addressesMap = new ConcurrentHashMap<String, Application>();
-	private Map<String, List<String>> appToAddressesMap = new ConcurrentHashMap<String, List<String>>();
+	private ConcurrentMap<String, GatewayClient> clientsMap = new ConcurrentHashMap<String, GatewayClient>();
+	private ConcurrentMultiMap<String, String> resourcesMap = new ConcurrentMultiMap<String, String>(true, false);
+	private ConcurrentMap<String, Application> applicationsMap = new ConcurrentHashMap<String, Application>();
+	private ConcurrentMap<String, String> addressesMap = new ConcurrentHashMap<String, String>();
+	private ConcurrentMultiMap<String, String> appToAddressesMap = new ConcurrentMultiMap<String, String>(true, false);
 
-	private Map<String, GatewayMixer> mixersMap = new ConcurrentHashMap<String, GatewayMixer>();
-	private Map<String, List<GatewayVerb>> verbsMap = new ConcurrentHashMap<String, List<GatewayVerb>>();
-	private Map<String, List<String>> filtersMap = new ConcurrentHashMap<String, List<String>>();
+	private ConcurrentMap<String, GatewayMixer> mixersMap = new ConcurrentHashMap<String, GatewayMixer>();
+	private ConcurrentMultiMap<String, String> participantsMap = new ConcurrentMultiMap<String, String>(false, false);
+	private ConcurrentMultiMap<String, GatewayVerb> verbsMap = new ConcurrentMultiMap<String, GatewayVerb>(true, false);
+	private ConcurrentMultiMap<String, String> filtersMap = new ConcurrentMultiMap<String, String>(true, false);
 
 	@Override
 	public RayoNode storeNode(RayoNode node) throws DatastoreException {
 
-		if (getNode(node.getHostname()) != null) {
+		if (nodesMap.putIfAbsent(node.getHostname(), node) != null) {
 			throw new RayoNodeAlreadyExistsException();
 		}
-		return store(node);
+		index(null, node);
+		return node;
 	}
-	
+
 	@Override
 	public RayoNode updateNode(RayoNode node) throws DatastoreException {
 
-		if (getNode(node.getHostname()) == null) {
+		RayoNode original = nodesMap.replace(node.getHostname(), node);
+		if (original == null) {
 			throw new RayoNodeNotFoundException();
 		}
-		return store(node);
-	}
-	
-	private RayoNode store(RayoNode node) throws DatastoreException {
-		
-		Lock nodeLock = nodesLock.writeLock();
-		nodeLock.lock();
-		try {
-			RayoNode original = nodesMap.get(node.getHostname());
-			nodesMap.put(node.getHostname(), node);
-			ipsMap.put(node.getIpAddress(), node);
-			for(String platform: node.getPlatforms()) {
-				List<RayoNode> nodes = platformsMap.get(platform);
-				if (nodes == null) {
-					nodes = new ArrayList<RayoNode>();
-					platformsMap.put(platform, nodes);
-				} else {
-					if (nodes.contains(original)) {
-						nodes.remove(original);
-					}
-				}
-				nodes.add(node);
-			}
-		} finally {
-			nodeLock.unlock();
-		}				
+		index(original, node);
 		return node;
 	}
 
-	@Override
-	public RayoNode removeNode(String id) throws DatastoreException {
+	private void index(RayoNode original, RayoNode node) {
 
-		Lock nodeLock = nodesLock.writeLock();
-		nodeLock.lock();
-		try {
-			RayoNode node = getNode(id);
-			if (node ==  null) {
-				throw new RayoNodeNotFoundException();
+		String hostname = node.getHostname();
+		if (original != null) {
+			if (!original.getIpAddress().equals(node.getIpAddress())) {
+				ipsMap.remove(original.getIpAddress(), hostname);
 			}
-			nodesMap.remove(node.getHostname());
-			ipsMap.remove(node.getIpAddress());
-			
-			for(String platform: node.getPlatforms()) {
-				List<RayoNode> nodes = platformsMap.get(platform);
-				if (nodes != null) {
-					nodes.remove(node);
+			for (String platform: original.getPlatforms()) {
+				if (!node.getPlatforms().contains(platform)) {
+					platformsMap.remove(platform, hostname);
 				}
 			}
-			
-			return node;
-		} finally {
-			nodeLock.unlock();
 		}
+		ipsMap.put(node.getIpAddress(), hostname);
+		for(String platform: node.getPlatforms()) {
+			platformsMap.put(platform, hostname);
+		}
+	}
+
+	@Override
+	public RayoNode removeNode(String id) throws DatastoreException {
+
+		RayoNode node = nodesMap.remove(id);
+		if (node ==  null) {
+			throw new RayoNodeNotFoundException();
+		}
+		ipsMap.remove(node.getIpAddress(), node.getHostname());
+		for(String platform: node.getPlatforms()) {
+			platformsMap.remove(platform, node.getHostname());
+		}
+		return node;
 	}
-	
+
 	@Override
 	public String getNodeForCall(String callId) {
-		
+
 		GatewayCall call = getCall(callId);
 		if (call != null) {
 			return call.getNodeJid();
 		}
 		return null;
 	}
-	
+
 	@Override
 	public RayoNode getNode(String id) {
-		
-		Lock nodeLock = nodesLock.readLock();
-		nodeLock.lock();
-		try {
-			return nodesMap.get(id);
-		} finally {
-			nodeLock.unlock();
-		}
+
+		return nodesMap.get(id);
 	}
-	
-	@SuppressWarnings("unchecked")
+
 	public List<RayoNode> getRayoNodesForPlatform(String platformId) {
-		
-		Lock nodeLock = nodesLock.readLock();
-		nodeLock.lock();
-		try {
-			List<RayoNode> nodes = platformsMap.get(platformId);
-			if (nodes == null) {
-				nodes = Collections.EMPTY_LIST;
+
+		List<RayoNode> nodes = new ArrayList<RayoNode>();
+		for (String hostname: platformsMap.view(platformId)) {
+			RayoNode node = nodesMap.get(hostname);
+			if (node != null) {
+				nodes.add(node);
 			}
-			return nodes;
-		} finally {
-			nodeLock.unlock();
 		}
+		return nodes;
 	}
-	
+
 	@Override
 	public String getNodeForIpAddress(String ip) {
-		
-		Lock nodeLock = nodesLock.readLock();
-		nodeLock.lock();
-		try {
-			RayoNode node = ipsMap.get(ip);
-			if (node != null) {
-				return node.getHostname();
-			}
-		} finally {
-			nodeLock.unlock();
-		}
-		return null;
+
+		return ipsMap.get(ip);
 	}
-	
+
 	public List<String> getPlatforms() {
 
-		Lock nodeLock = nodesLock.readLock();
-		nodeLock.lock();
-		try {
-			return new ArrayList<String>(platformsMap.keySet());
-		} finally {
-			nodeLock.unlock();
-		}		
+		return new ArrayList<String>(platformsMap.keySet());
 	}
-	
+
 	@Override
 	public GatewayCall storeCall(GatewayCall call) throws DatastoreException {
-		
+
 		RayoNode node = getNode(call.getNodeJid());
 		if (node == null) {
 			throw new RayoNodeNotFoundException();
 		}
-		Lock callLock = callsLock.writeLock();
-		callLock.lock();
-		try {
-			callsMap.put(call.getCallId(), call);
-			addCallToJid(call, call.getClientJid());
-			addCallToJid(call, node.getHostname());
-		} finally {
-			callLock.unlock();
+		GatewayCall previous = callsMap.put(call.getCallId(), call);
+		if (previous != null) {
+			unindex(previous, previous.getNodeJid());
+		}
+		jidsMap.put(call.getClientJid(), call.getCallId());
+		jidsMap.put(node.getHostname(), call.getCallId());
+		GatewayCall current = callsMap.get(call.getCallId());
+		if (current != call) {
+			// Removed or replaced while it was being indexed
+			if (current == null || !call.getClientJid().equals(current.getClientJid())) {
+				jidsMap.remove(call.getClientJid(), call.getCallId());
+			}
+			if (current == null || !node.getHostname().equals(current.getNodeJid())) {
+				jidsMap.remove(node.getHostname(), call.getCallId());
+			}
 		}
-		
 		return call;
 	}
-	
-	private void addCallToJid(GatewayCall call, String jid) {
-		
-		List<GatewayCall> calls = jidsMap.get(jid);
-		if (calls == null) {
-			calls = new ArrayList<GatewayCall>();
-			jidsMap.put(jid, calls);
-		}
-		if (!calls.contains(call)) {
-			calls.add(call);
-		}
+
+	private void unindex(GatewayCall call, String nodeJid) {
+
+		jidsMap.remove(call.getClientJid(), call.getCallId());
+		jidsMap.remove(nodeJid, call.getCallId());
 	}
-	
+
 	@Override
 	public GatewayCall getCall(String id) {
-		
-		Lock callLock = callsLock.readLock();
-		callLock.lock();
-		try {
-			return callsMap.get(id);
-		} finally {
-			callLock.unlock();
+
+		return callsMap.get(id);
+	}
+
+	@Override
+	public Map<String, GatewayCall> getCalls(Collection<String> callIds) {
+
+		Map<String, GatewayCall> calls = new HashMap<String, GatewayCall>(callIds.size() * 2);
+		for (String id: callIds) {
+			GatewayCall call = callsMap.get(id);
+			if (call != null) {
+				calls.put(id, call);
+			}
 		}
+		return calls;
 	}
-	
+
 	@Override
 	public GatewayCall removeCall(String id) throws DatastoreException {
-				
-		Lock callLock = callsLock.writeLock();
-		callLock.lock();
-		try {
-			GatewayCall call = getCall(id);
-			callsMap.remove(call.getCallId());
-			removeCallFromJid(call, call.getClientJid());
-			removeCallFromJid(call, call.getNodeJid());
-			
-			return call;
-		} finally {
-			callLock.unlock();
-		}
-	}
-	
-	private void removeCallFromJid(GatewayCall call, String jid) {
-		
-		List<GatewayCall> calls = jidsMap.get(jid);
-		if (calls != null) {
-			calls.remove(call);
-		}
-	}
-	
-	public Collection<String> getCalls(String jid) {
-		
-		Lock callLock = callsLock.readLock();
-		callLock.lock();
-		try {
-			List<String> ids = new ArrayList<String>();
-			List<GatewayCall> calls = jidsMap.get(jid);
-			if (calls != null) {
-				for(GatewayCall call: calls) {
-					ids.add(call.getCallId());
-				}
-			}
-			return ids;
-		} finally {
-			callLock.unlock();
+
+		GatewayCall call = callsMap.remove(id);
+		if (call != null) {
+			unindex(call, call.getNodeJid());
 		}
+		return call;
 	}
-	
+
 	@Override
-	public Collection<String> getCalls() {
-		
-		Lock callLock = callsLock.readLock();
-		callLock.lock();
-		try {
-			List<String> ids = new ArrayList<String>();
-			for(GatewayCall call: callsMap.values()) {
-				ids.add(call.getCallId());
+	public Collection<GatewayCall> removeCalls(Collection<String> callIds) throws DatastoreException {
+
+		List<GatewayCall> calls = new ArrayList<GatewayCall>(callIds.size());
+		for (String id: callIds) {
+			GatewayCall call = callsMap.remove(id);
+			if (call != null) {
+				unindex(call, call.getNodeJid());
+				calls.add(call);
 			}
-			return ids;
-		} finally {
-			callLock.unlock();
 		}
+		return calls;
+	}
+
+	public Collection<String> getCalls(String jid) {
+
+		return jidsMap.get(jid);
 	}
-	
+
+	@Override
+	public Collection<String> getCalls() {
+
+		return new ArrayList<String>(callsMap.keySet());
+	}
+
 	@Override
 	public Collection<String> getCallsForClient(String jid) {
 
 		return getCalls(jid);
 	}
-	
+
 	@Override
 	public Collection<String> getCallsForNode(String jid) {
 
 		return getCalls(jid);
 	}
-	
+
 	public GatewayClient storeClient(GatewayClient client) throws DatastoreException {
-		
-		Lock applicationLock = applicationsLock.writeLock();
-		applicationLock.lock();
-		try {
-			clientsMap.put(client.getJid(), client);
-			List<String> resources = resourcesMap.get(client.getBareJid());
-			if (resources == null) {
-				resources = new ArrayList<String>();
-				resourcesMap.put(client.getBareJid(), resources);
-			}
-			if (!resources.contains(client.getResource())) {
-				resources.add(client.getResource());
-			}
-		} finally {
-			applicationLock.unlock();
-		}
-		
+
+		clientsMap.put(client.getJid(), client);
+		resourcesMap.put(client.getBareJid(), client.getResource());
 		return client;
 	}
-	
+
 	@Override
 	public GatewayClient removeClient(String jid) throws DatastoreException {
-				
-		Lock applicationLock = applicationsLock.writeLock();
-		applicationLock.lock();
-		try {
-			GatewayClient client = getClient(jid);
-			clientsMap.remove(jid);
-			List<String> resources = resourcesMap.get(client.getBareJid());
-			if (resources != null) {
-				resources.remove(client.getResource());
-			}
-			return client;
-		} finally {
-			applicationLock.unlock();
+
+		GatewayClient client = clientsMap.remove(jid);
+		if (client != null) {
+			resourcesMap.remove(client.getBareJid(), client.getResource());
 		}
+		return client;
 	}
-	
+
 	@Override
 	public GatewayClient getClient(String jid) {
-		
-		Lock applicationLock = applicationsLock.readLock();
-		applicationLock.lock();
-		try {
-			return clientsMap.get(jid);
-		} finally {
-			applicationLock.unlock();
-		}
+
+		return clientsMap.get(jid);
 	}
-	
-	@SuppressWarnings("unchecked")
+
 	@Override
 	public List<String> getClientResources(String bareJid) {
-		
-		Lock applicationLock = applicationsLock.readLock();
-		applicationLock.lock();
-		try {
-			List<String> resources = resourcesMap.get(bareJid);
-			if (resources != null) {		
-				return Collections.unmodifiableList(resources);
-			} else {
-				return Collections.EMPTY_LIST;
-			}
-		} finally {
-			applicationLock.unlock();
-		}
+
+		return resourcesMap.get(bareJid);
 	}
-		
-	@SuppressWarnings({ "rawtypes", "unchecked" })
+
 	@Override
 	public List<String> getClients() {
-	
-		Lock applicationLock = applicationsLock.readLock();
-		applicationLock.lock();
-		try {
-			Set<String> clients = new HashSet<String>();
-			for (String client : clientsMap.keySet()) {
-				clients.add(JIDUtils.getBareJid(client));
-			}
-			
-			return new ArrayList(clients);
-		} finally {
-			applicationLock.unlock();
+
+		Set<String> clients = new HashSet<String>();
+		for (String client : clientsMap.keySet()) {
+			clients.add(JIDUtils.getBareJid(client));
 		}
+		return new ArrayList<String>(clients);
 	}
-	
+
 	@Override
 	public Application storeApplication(Application application) throws DatastoreException {
 
-		if (getApplication(application.getBareJid()) != null) {
+		if (applicationsMap.putIfAbsent(application.getBareJid(), application) != null) {
 			throw new ApplicationAlreadyExistsException();
 		}
-		
-		return saveApplication(application);
+		return application;
 	}
-	
-	
+
+
 	@Override
 	public Application updateApplication(Application application) throws DatastoreException {
 
-		if (getApplication(application.getBareJid()) == null) {
+		if (applicationsMap.replace(application.getBareJid(), application) == null) {
 			throw new ApplicationNotFoundException();
 		}
-		
-		return saveApplication(application);
-	}
-	
-	
-	private Application saveApplication(Application application) throws DatastoreException {
-
-		Lock applicationLock = applicationsLock.writeLock();
-		applicationLock.lock();
-		try {
-			applicationsMap.put(application.getBareJid(), application);
-		} finally {
-			applicationLock.unlock();
-		}
-		
 		return application;
 	}
 
@@ -438,65 +314,38 @@ public class InMemoryDatastore implements GatewayDatastore {
 	public Application getApplication(String jid) {
 
 		if (jid == null) return null;
-		
-		Lock applicationLock = applicationsLock.readLock();
-		applicationLock.lock();
-		try {
-			return applicationsMap.get(jid);
-		} finally {
-			applicationLock.unlock();
-		}
+
+		return applicationsMap.get(jid);
 	}
-	
+
 
 	@Override
 	public List<Application> getApplications() {
 
-		Lock applicationLock = applicationsLock.readLock();
-		applicationLock.lock();
-		try {
-			return new ArrayList<Application>(applicationsMap.values());
-		} finally {
-			applicationLock.unlock();
-		}
+		return new ArrayList<Application>(applicationsMap.values());
 	}
-	
+
 	@Override
 	public Application removeApplication(String jid) throws DatastoreException {
 
-		Application application = getApplication(jid);
+		Application application = applicationsMap.remove(jid);
 		if (application == null) {
 			throw new ApplicationNotFoundException();
 		}
-		
-		Lock applicationLock = applicationsLock.writeLock();
-		applicationLock.lock();
-		try {
-			applicationsMap.remove(jid);
-			List<String> addresses = appToAddressesMap.get(jid);
-			if (addresses != null) {
-				for(String address: addresses) {
-					addressesMap.remove(address);					
-				}
-			}
-			appToAddressesMap.remove(jid);
-		} finally {
-			applicationLock.unlock();
+		for(String address: appToAddressesMap.removeAll(jid)) {
+			addressesMap.remove(address, jid);
 		}
-		
 		return application;
 	}
-	
+
 	@Override
 	public Application getApplicationForAddress(String address) {
 
-		Lock applicationLock = applicationsLock.readLock();
-		applicationLock.lock();
-		try {
-			return addressesMap.get(address);
-		} finally {
-			applicationLock.unlock();
+		String jid = addressesMap.get(address);
+		if (jid == null) {
+			return null;
 		}
+		return applicationsMap.get(jid);
 	}
 
 	@Override
@@ -506,7 +355,7 @@ public class InMemoryDatastore implements GatewayDatastore {
 		addresses.add(address);
 		storeAddresses(addresses, appId);
 	}
-	
+
 	@Override
 	public void storeAddresses(Collection<String> addresses, String jid) throws DatastoreException {
 
@@ -514,297 +363,164 @@ public class InMemoryDatastore implements GatewayDatastore {
 		if (application == null) {
 			throw new ApplicationNotFoundException();
 		}
-		Lock applicationLock = applicationsLock.writeLock();
-		applicationLock.lock();
-		try {
-			for (String address: addresses) {
-				addressesMap.put(address, application);
-				List<String> addr = appToAddressesMap.get(application.getBareJid());
-				if (addr == null) {
-					addr = new ArrayList<String>();
-					appToAddressesMap.put(application.getBareJid(), addr);
-				}
-				if (!addr.contains(address)) {
-					addr.add(address);
-				}
+		String bareJid = application.getBareJid();
+		for (String address: addresses) {
+			String previous = addressesMap.put(address, bareJid);
+			if (previous != null && !previous.equals(bareJid)) {
+				// The address moves to another application
+				appToAddressesMap.remove(previous, address);
 			}
-		} finally {
-			applicationLock.unlock();
+			appToAddressesMap.put(bareJid, address);
 		}
 	}
-	
+
 	@Override
 	public void removeAddress(String address) throws DatastoreException {
 
-		Lock applicationLock = applicationsLock.writeLock();
-		applicationLock.lock();
-		try {
-			Application application = getApplicationForAddress(address);
-			if (application != null) {
-				addressesMap.remove(address);
-				List<String> addresses = appToAddressesMap.get(application.getBareJid());
-				if (addresses != null) {
-					addresses.remove(address);
-					appToAddressesMap.put(application.getBareJid(), addresses);
-				}
-			}
-		} finally {
-			applicationLock.unlock();
-		}		
+		String jid = addressesMap.remove(address);
+		if (jid != null) {
+			appToAddressesMap.remove(jid, address);
+		}
 	}
-	
-	@SuppressWarnings("unchecked")
+
 	@Override
 	public List<String> getAddressesForApplication(String appId) {
 
-		Lock applicationLock = applicationsLock.readLock();
-		applicationLock.lock();
-		try {
-			List<String> addresses = appToAddressesMap.get(appId);
-			if (addresses != null) {
-				return new ArrayList<String>(addresses);
-			} else {
-				return Collections.EMPTY_LIST;
-			}
-		} finally {
-			applicationLock.unlock();
-		}
+		return appToAddressesMap.get(appId);
 	}
-	
+
 	@Override
 	public GatewayMixer getMixer(String mixerName) {
 
-		Lock mixerLock = mixersLock.readLock();
-		mixerLock.lock();
-		try {
-			return mixersMap.get(mixerName);
-		} finally {
-			mixerLock.unlock();
+		GatewayMixer mixer = mixersMap.get(mixerName);
+		if (mixer == null) {
+			return null;
 		}
+		return snapshot(mixer, participantsMap.get(mixerName));
+	}
+
+	/**
+	 * Mixers are handed out as copies so their participants can be changed while
+	 * other threads are reading them
+	 */
+	private GatewayMixer snapshot(GatewayMixer mixer, List<String> participants) {
+
+		GatewayMixer copy = new GatewayMixer(mixer.getName(), mixer.getNodeJid());
+		copy.addCalls(participants);
+		return copy;
 	}
-	
-	@SuppressWarnings({ "unchecked", "rawtypes" })
+
 	@Override
 	public Collection<GatewayMixer> getMixers() {
 
-		Lock mixerLock = mixersLock.readLock();
-		mixerLock.lock();
-		try {
-			return new ArrayList(mixersMap.values());
-		} finally {
-			mixerLock.unlock();
+		List<GatewayMixer> mixers = new ArrayList<GatewayMixer>();
+		for (GatewayMixer mixer: mixersMap.values()) {
+			mixers.add(snapshot(mixer, participantsMap.get(mixer.getName())));
 		}
+		return mixers;
 	}
-	
+
 	@Override
 	public GatewayMixer removeMixer(String mixerName) throws DatastoreException {
 
-		Lock mixerLock = mixersLock.writeLock();
-		mixerLock.lock();
-		try {
-			return mixersMap.remove(mixerName);
-		} finally {
-			mixerLock.unlock();
+		GatewayMixer mixer = mixersMap.remove(mixerName);
+		if (mixer == null) {
+			return null;
 		}
+		return snapshot(mixer, new ArrayList<String>(participantsMap.removeAll(mixerName)));
 	}
-	
+
 	@Override
 	public GatewayMixer storeMixer(GatewayMixer mixer) throws DatastoreException {
 
-		Lock mixerLock = mixersLock.writeLock();
-		mixerLock.lock();
-		try {
-			mixersMap.put(mixer.getName(), mixer);
-			return mixer;
-		} finally {
-			mixerLock.unlock();
+		mixersMap.put(mixer.getName(), new GatewayMixer(mixer.getName(), mixer.getNodeJid()));
+		participantsMap.removeAll(mixer.getName());
+		for (String callId: mixer.getParticipants()) {
+			participantsMap.put(mixer.getName(), callId);
 		}
+		return mixer;
 	}
-	
+
 	@Override
 	public void addCallToMixer(String callId, String mixerName) throws DatastoreException {
 
-		Lock mixerLock = mixersLock.writeLock();
-		mixerLock.lock();
-		try {
-			GatewayMixer mixer = mixersMap.get(mixerName);
-			mixer.addCall(callId);
-		} finally {
-			mixerLock.unlock();
+		if (mixersMap.containsKey(mixerName)) {
+			participantsMap.put(mixerName, callId);
 		}
 	}
-	
-	
+
+
 	@Override
 	public void removeCallFromMixer(String callId, String mixerName) throws DatastoreException {
 
-		Lock mixerLock = mixersLock.writeLock();
-		mixerLock.lock();
-		try {
-			GatewayMixer mixer = mixersMap.get(mixerName);
-			mixer.removeCall(callId);
-		} finally {
-			mixerLock.unlock();
-		}
+		participantsMap.remove(mixerName, callId);
 	}
-	
+
 	@Override
 	public void addVerbToMixer(GatewayVerb verb, String mixerName) {
 
-		Lock mixerLock = mixersLock.writeLock();
-		mixerLock.lock();
-		try {
-			List<GatewayVerb> verbs = verbsMap.get(mixerName);
-			if (verbs == null) {
-				verbs = new ArrayList<GatewayVerb>();
-				verbsMap.put(mixerName, verbs);				
-			}
-			if (!verbs.contains(verb)) {
-				verbs.add(verb);
-			}
-		} finally {
-			mixerLock.unlock();
-		}
+		verbsMap.put(mixerName, verb);
 	}
-	
+
 	@Override
 	public void removeVerbFromMixer(String verbId, String mixerName)
 			throws DatastoreException {
 
-		Lock mixerLock = mixersLock.writeLock();
-		mixerLock.lock();
-		try {
-			List<GatewayVerb> verbs = verbsMap.get(mixerName);
-			if (verbs != null) {
-				Iterator<GatewayVerb> it = verbs.iterator();
-				while (it.hasNext()) {
-					if (it.next().getVerbId().equals(verbId)) {
-						it.remove();
-					}
-				}
+		for (GatewayVerb verb: verbsMap.view(mixerName)) {
+			if (verb.getVerbId().equals(verbId)) {
+				verbsMap.remove(mixerName, verb);
 			}
-		} finally {
-			mixerLock.unlock();
 		}
 	}
-	
+
 	@Override
 	public GatewayVerb getVerb(String mixerName, String verbId) {
 
-		Lock mixerLock = mixersLock.readLock();
-		mixerLock.lock();
-		try {
-			List<GatewayVerb> verbs = verbsMap.get(mixerName);
-			if (verbs != null) {
-				for(GatewayVerb verb: verbs) {
-					if (verb.getVerbId().equals(verbId)) {
-						return verb;
-					}
-				}
+		for(GatewayVerb verb: verbsMap.view(mixerName)) {
+			if (verb.getVerbId().equals(verbId)) {
+				return verb;
 			}
-		} finally {
-			mixerLock.unlock();
 		}
 		return null;
 	}
-	
-	@SuppressWarnings("unchecked")
+
 	@Override
 	public List<GatewayVerb> getVerbs(String mixerName) {
 
-
-		Lock mixerLock = mixersLock.readLock();
-		mixerLock.lock();
-		try {
-			List<GatewayVerb> verbs = verbsMap.get(mixerName);
-			if (verbs == null) {
-				verbs = Collections.EMPTY_LIST;
-			}
-			return verbs;
-		} finally {
-			mixerLock.unlock();
-		}
+		return verbsMap.get(mixerName);
 	}
-	
+
 	@Override
 	public List<GatewayVerb> getVerbs() {
 
 		List<GatewayVerb> verbs = new ArrayList<GatewayVerb>();
-		Lock mixerLock = mixersLock.readLock();
-		mixerLock.lock();
-		try {
-			for (List<GatewayVerb> it: verbsMap.values()) {
-				if (!it.isEmpty()) {
-					verbs.addAll(it);
-				}
-			}
-		} finally {
-			mixerLock.unlock();
+		for (String mixerName: verbsMap.keySet()) {
+			verbs.addAll(verbsMap.view(mixerName));
 		}
 		return verbs;
 	}
-	
+
 	@Override
 	public void createFilter(String jid, String id) throws DatastoreException {
 
-		Lock filterLock = filtersLock.writeLock();
-		filterLock.lock();
-		try {
-			List<String> filters = filtersMap.get(id);
-			if (filters == null) {
-				filters = new ArrayList<String>();
-				filtersMap.put(id, filters);				
-			}
-			if (!filters.contains(jid)) {
-				filters.add(jid);
-			}
-		} finally {
-			filterLock.unlock();
-		}		
+		filtersMap.put(id, jid);
 	}
-	
+
 	@Override
 	public void removeFilter(String jid, String id) throws DatastoreException {
 
-		Lock filterLock = filtersLock.writeLock();
-		filterLock.lock();
-		try {
-			List<String> filters = filtersMap.get(id);
-			if (filters != null) {
-				filters.remove(jid);
-			}
-		} finally {
-			filterLock.unlock();
-		}			
+		filtersMap.remove(id, jid);
 	}
-	
+
 	@Override
 	public void removeFilters(String id) throws DatastoreException {
 
-		Lock filterLock = filtersLock.writeLock();
-		filterLock.lock();
-		try {
-			filtersMap.remove(id);
-		} finally {
-			filterLock.unlock();
-		}		
+		filtersMap.removeAll(id);
 	}
-	
-	@SuppressWarnings("unchecked")
+
 	@Override
 	public List<String> getFilteredApplications(String id) throws DatastoreException {
 
-		Lock filterLock = filtersLock.writeLock();
-		filterLock.lock();
-		try {
-			List<String> filters = filtersMap.get(id);
-			if (filters != null) {
-				return new ArrayList<String>(filters);
-			} else {
-				return Collections.EMPTY_LIST;
-			}
-		} finally {
-			filterLock.unlock();
-		}	
+		return filtersMap.get(id);
 	}
 }
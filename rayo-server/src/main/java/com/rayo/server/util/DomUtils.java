@@ -2,6 +2,8 @@ package com.rayo.server.util;
 
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.w3c.dom.ls.DOMImplementationLS;
+import org.w3c.dom.ls.LSSerializer;
 
 import com.voxeo.servlet.xmpp.IQRequest;
 import com.voxeo.servlet.xmpp.IQResponse;
@@ -58,4 +60,29 @@ public class DomUtils {
 			   element.getNamespaceURI().startsWith("urn:xmpp:rayo") ||
 			   element.getNamespaceURI().startsWith("urn:xmpp:tropo");
 	}
+
+	/**
+	 * Returns the first child element of the given element
+	 *
+	 * @param element Parent element
+	 *
+	 * @return org.w3c.dom.Element First child element or <code>null</code> if there is none
+	 */
+	public static org.w3c.dom.Element firstChildElement(org.w3c.dom.Element element) {
+		
+		for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE) {
+				return (org.w3c.dom.Element)child;
+			}
+		}
+		return null;
+	}
+	
+	public static String asXML(org.w3c.dom.Element element) {
+		
+		DOMImplementationLS impl = (DOMImplementationLS)element.getOwnerDocument().getImplementation();
+		LSSerializer serializer = impl.createLSSerializer();
+		serializer.getDomConfig().setParameter("xml-declaration", false);
+		return serializer.writeToString(element);
+	}
 }
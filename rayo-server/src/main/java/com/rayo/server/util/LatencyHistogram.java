@@ -0,0 +1,118 @@
+package com.rayo.server.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Lock free histogram for latency measurements.</p>
+ *
+ * <p>Values are stored in log-linear buckets: each power of two range is split into
+ * 8 linear sub-buckets, which keeps the relative error of any reported percentile
+ * under 12.5% regardless of the magnitude of the recorded values. Recording a value
+ * is a couple of atomic increments and never allocates, so it is safe to use on hot
+ * paths. The unit of the recorded values is up to the caller.</p>
+ *
+ * @author martin
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (62 - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong(0);
+	private final AtomicLong total = new AtomicLong(0);
+	private final AtomicLong max = new AtomicLong(0);
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 *
+	 * @param value Value to record
+	 */
+	public void record(long value) {
+
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(indexFor(value));
+		count.incrementAndGet();
+		total.addAndGet(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	public long getCount() {
+
+		return count.get();
+	}
+
+	public long getMax() {
+
+		return max.get();
+	}
+
+	public long getMean() {
+
+		long c = count.get();
+		if (c == 0) return 0;
+		return total.get() / c;
+	}
+
+	/**
+	 * Returns the upper bound of the bucket that contains the given percentile
+	 *
+	 * @param percentile Percentile, e.g. 99.9
+	 *
+	 * @return long Value at the given percentile or 0 if nothing has been recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+
+		long c = count.get();
+		if (c == 0) return 0;
+
+		long target = (long)Math.ceil((percentile / 100.0) * c);
+		if (target < 1) target = 1;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen+= counts.get(i);
+			if (seen >= target) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public void reset() {
+
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+	static int indexFor(long value) {
+
+		if (value < SUB_BUCKETS) {
+			return (int)value;
+		}
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		int shift = msb - SUB_BUCKET_BITS;
+		return ((shift + 1) << SUB_BUCKET_BITS) + (int)((value >> shift) & (SUB_BUCKETS - 1));
+	}
+
+	static long upperBound(int index) {
+
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = (index >> SUB_BUCKET_BITS) - 1;
+		long sub = index & (SUB_BUCKETS - 1);
+		return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+	}
+}
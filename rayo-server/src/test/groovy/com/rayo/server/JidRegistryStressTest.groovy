@@ -0,0 +1,161 @@
+package com.rayo.server;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.voxeo.servlet.xmpp.JID;
+
+class JidRegistryStressTest {
+
+	def threads = 8
+	def callsPerThread = 20000
+	def jidRegistry
+	def jids
+	
+	@Before
+	public void init() {
+	
+		// Purging is driven by the test
+		jidRegistry = new JIDRegistry(60000, 0)
+		jids = (0..3).collect { createJID("client${it}@localhost") }
+	}
+	
+	@After
+	public void dispose() {
+		
+		jidRegistry.shutdown();
+	}
+	
+	@Test
+	public void testConcurrentChurn() {
+
+		def errors = run { thread, i ->
+			def callId = "${thread}-${i}".toString()
+			def jid = jids[i % jids.size()]
+			jidRegistry.put(callId, jid)
+			assertTrue jidRegistry.getCallsByJID(jid).contains(callId)
+			assertEquals jid, jidRegistry.getJID(callId)
+			jidRegistry.remove(callId)
+			assertFalse jidRegistry.getCallsByJID(jid).contains(callId)
+		}
+		assertEquals 0, errors
+
+		jids.each { assertTrue jidRegistry.getCallsByJID(it).isEmpty() }
+		assertEquals 0, jidRegistry.activeJIDs
+		assertEquals 0, jidRegistry.activeCalls
+		
+		Thread.sleep(10)
+		jidRegistry.purge()
+		assertEquals 0, jidRegistry.size()
+		assertEquals 0, jidRegistry.pendingPurges
+		assertEquals threads * callsPerThread, jidRegistry.purgedCalls
+	}
+	
+	@Test
+	public void testActiveCallsSurviveChurn() {
+
+		// Long lived calls of every client must not be lost while other calls come and go
+		jids.eachWithIndex { jid, i -> jidRegistry.put("active-${i}".toString(), jid) }
+		
+		def errors = run { thread, i ->
+			def callId = "${thread}-${i}".toString()
+			jidRegistry.put(callId, jids[i % jids.size()])
+			jidRegistry.remove(callId)
+		}
+		assertEquals 0, errors
+		
+		jids.eachWithIndex { jid, i -> assertEquals(["active-${i}".toString()], jidRegistry.getCallsByJID(jid)) }
+		assertEquals jids.size(), jidRegistry.activeJIDs
+	}
+	
+	@Test
+	public void testPendingPurgesAreBounded() {
+		
+		jidRegistry.purgeTimeout = 60000
+		jidRegistry.maxPendingPurges = 1000
+		
+		def errors = run { thread, i ->
+			def callId = "${thread}-${i}".toString()
+			jidRegistry.put(callId, jids[i % jids.size()])
+			jidRegistry.remove(callId)
+		}
+		assertEquals 0, errors
+		
+		// A few threads may be over the limit at the same time before purging
+		assertTrue jidRegistry.pendingPurges <= 1000 + threads
+		assertTrue jidRegistry.size() <= 1000 + threads
+		assertTrue jidRegistry.forcedPurges > 0
+	}
+	
+	@Test
+	public void testConcurrentRemovesQueueCallOnce() {
+
+		callsPerThread.times { i -> jidRegistry.put("call-${i}".toString(), jids[i % jids.size()]) }
+
+		// Every thread removes the same calls
+		def errors = run { thread, i ->
+			jidRegistry.remove("call-${i}".toString())
+		}
+		assertEquals 0, errors
+		assertEquals callsPerThread, jidRegistry.pendingPurges
+		assertEquals 0, jidRegistry.activeJIDs
+		assertEquals 0, jidRegistry.activeCalls
+
+		Thread.sleep(10)
+		jidRegistry.purge()
+		assertEquals 0, jidRegistry.size()
+		assertEquals 0, jidRegistry.pendingPurges
+		assertEquals callsPerThread, jidRegistry.purgedCalls
+	}
+
+	@Test
+	public void testRemappedCallIsNotPurged() {
+		
+		def jid = jids[0]
+		jidRegistry.put("abcd", jid)
+		jidRegistry.remove("abcd")
+		jidRegistry.put("abcd", jids[1])
+		
+		Thread.sleep(10)
+		jidRegistry.purge()
+		assertEquals jids[1], jidRegistry.getJID("abcd")
+		assertEquals(["abcd"], jidRegistry.getCallsByJID(jids[1]))
+		assertTrue jidRegistry.getCallsByJID(jid).isEmpty()
+	}
+	
+	def run(Closure closure) {
+		
+		def errors = new AtomicInteger()
+		def latch = new CountDownLatch(threads)
+		def executor = Executors.newFixedThreadPool(threads)
+		threads.times { thread ->
+			executor.execute {
+				try {
+					callsPerThread.times { i -> closure(thread, i) }
+				} catch (Throwable t) {
+					t.printStackTrace()
+					errors.incrementAndGet()
+				} finally {
+					latch.countDown()
+				}
+			}
+		}
+		assertTrue latch.await(60, TimeUnit.SECONDS)
+		executor.shutdown()
+		return errors.get()
+	}
+	
+	def createJID(def value) {
+		
+		def bareJid = [toString: { value }] as JID
+		def jid = [toString: { value }, getBareJID: { bareJid }] as JID
+	}
+}
@@ -0,0 +1,148 @@
+package com.rayo.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Runs a load of simulated call actors on every {@link ActorRuntime} mode.</p>
+ *
+ * <p>Every actor gets a stream of short media events. Some of the actors also block
+ * for a while at the start, like a call unjoining from the media server, so the
+ * benchmark shows how blocked actors delay the others on every mode. The report has
+ * the time to handle every message, the time messages wait in the mailboxes and the
+ * peak number of threads.</p>
+ *
+ * <p>Arguments: actors, events per actor, one blocking actor out of every N actors,
+ * blocking time in milliseconds and threads of the bounded mode.</p>
+ *
+ * <pre>java -cp ... com.rayo.server.ActorRuntimeBenchmark 5000 20 10 50 64</pre>
+ *
+ * @author martin
+ *
+ */
+public class ActorRuntimeBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		int actors = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int events = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		int blockEvery = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		long blockTime = args.length > 3 ? Long.parseLong(args[3]) : 50;
+		int threads = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+
+		System.out.println(String.format("%s actors, %s events per actor, 1 out of %s actors blocks %sms, %s bounded threads",
+				actors, events, blockEvery, blockTime, threads));
+		System.out.println("mode\tms\tmsg/s\tmean delay us\t99% delay us\tmax delay us\tpeak threads");
+		for (ActorRuntime.Mode mode: ActorRuntime.Mode.values()) {
+			// Warm up
+			run(mode, Math.min(actors, 500), events, blockEvery, 1, threads, false);
+			run(mode, actors, events, blockEvery, blockTime, threads, true);
+		}
+	}
+
+	private static void run(ActorRuntime.Mode mode, int actors, int events, int blockEvery,
+			long blockTime, int threads, boolean report) throws Exception {
+
+		ActorRuntime runtime = new ActorRuntime();
+		runtime.setMode(mode);
+		runtime.setThreads(threads);
+		runtime.init();
+
+		int blocking = blockEvery > 0 ? (actors + blockEvery - 1) / blockEvery : 0;
+		CountDownLatch done = new CountDownLatch(actors * events + blocking);
+		SimulatedCallActor[] calls = new SimulatedCallActor[actors];
+		for (int i = 0; i < actors; i++) {
+			calls[i] = new SimulatedCallActor(done);
+			calls[i].setActorRuntime(runtime);
+			calls[i].start();
+		}
+
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		threadBean.resetPeakThreadCount();
+		runtime.resetStatistics();
+		long init = System.nanoTime();
+		for (int i = 0; i < actors; i++) {
+			if (blockEvery > 0 && i % blockEvery == 0) {
+				calls[i].publish(new Block(blockTime));
+			}
+		}
+		for (int event = 0; event < events; event++) {
+			for (int i = 0; i < actors; i++) {
+				calls[i].publish(new MediaEvent(event));
+			}
+		}
+		if (!done.await(5, TimeUnit.MINUTES)) {
+			throw new IllegalStateException(done.getCount() + " messages were not handled");
+		}
+		long elapsed = System.nanoTime() - init;
+
+		if (report) {
+			long messages = actors * (long)events + blocking;
+			System.out.println(String.format("%s\t%s\t%s\t%s\t%s\t%s\t%s", mode,
+					TimeUnit.NANOSECONDS.toMillis(elapsed),
+					messages * 1000000000L / elapsed,
+					runtime.getMeanSchedulingDelay(),
+					runtime.getSchedulingDelay99(),
+					runtime.getMaxSchedulingDelay(),
+					threadBean.getPeakThreadCount()));
+		}
+		for (SimulatedCallActor call: calls) {
+			call.stop();
+		}
+		runtime.shutdown();
+	}
+
+	public static class MediaEvent {
+
+		final int sequence;
+
+		MediaEvent(int sequence) {
+
+			this.sequence = sequence;
+		}
+	}
+
+	public static class Block {
+
+		final long time;
+
+		Block(long time) {
+
+			this.time = time;
+		}
+	}
+
+	/**
+	 * Actor with the handlers of a call: short media events and the odd blocking command
+	 */
+	public static class SimulatedCallActor extends ReflectiveActor {
+
+		private final CountDownLatch done;
+		private long checksum;
+
+		SimulatedCallActor(CountDownLatch done) {
+
+			this.done = done;
+		}
+
+		@Message
+		public void onMediaEvent(MediaEvent event) {
+
+			// Some work, like building the Rayo event of a Moho event
+			for (int i = 0; i < 200; i++) {
+				checksum = checksum * 31 + event.sequence + i;
+			}
+			done.countDown();
+		}
+
+		@Message
+		public void onBlock(Block block) throws InterruptedException {
+
+			// Like waiting on unjoin().get()
+			Thread.sleep(block.time);
+			done.countDown();
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package com.rayo.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.jetlang.fibers.PoolFiberFactory;
+import org.junit.After;
+import org.junit.Test;
+
+public class ActorRuntimeTest {
+
+	private ActorRuntime runtime;
+
+	@After
+	public void shutdown() {
+
+		if (runtime != null) {
+			runtime.shutdown();
+		}
+	}
+
+	@Test
+	public void testLegacyMode() throws Exception {
+
+		assertMessagesHandledInOrder(ActorRuntime.Mode.LEGACY);
+	}
+
+	@Test
+	public void testBoundedMode() throws Exception {
+
+		assertMessagesHandledInOrder(ActorRuntime.Mode.BOUNDED);
+		assertTrue(runtime.getPoolSize() <= 2);
+	}
+
+	@Test
+	public void testThreadPerActorMode() throws Exception {
+
+		List<TestActor> actors = assertMessagesHandledInOrder(ActorRuntime.Mode.THREAD_PER_ACTOR);
+		Set<String> threads = new HashSet<String>();
+		for (TestActor actor: actors) {
+			threads.addAll(actor.threads);
+		}
+		// Every actor runs on its own thread
+		assertEquals(actors.size(), threads.size());
+	}
+
+	@Test
+	public void testMailboxStatistics() throws Exception {
+
+		runtime = new ActorRuntime();
+		runtime.setMode(ActorRuntime.Mode.BOUNDED);
+		runtime.setThreads(1);
+		runtime.setStatistics(true);
+		runtime.init();
+
+		TestActor actor = new TestActor(new CountDownLatch(3));
+		actor.setActorRuntime(runtime);
+		actor.start();
+		actor.publish(Long.valueOf(50));
+		actor.publish(Integer.valueOf(1));
+		actor.publish(Integer.valueOf(2));
+		assertTrue(actor.latch.await(5, TimeUnit.SECONDS));
+		awaitMessages(3);
+		actor.stop();
+
+		MailboxStatistics statistics = actor.getMailboxStatistics();
+		assertEquals(0, statistics.getDepth());
+		assertTrue(statistics.getMaxDepth() >= 2);
+		assertEquals(3, statistics.getMessages());
+		// The other messages waited for the one that sleeps
+		assertTrue(statistics.getMaxDelay() >= 40000);
+		assertTrue(statistics.getMaxRunTime() >= 40000);
+		assertEquals(3, runtime.getMessages());
+		assertEquals(0, runtime.getLiveActors());
+		assertEquals(1, runtime.getActorsStarted());
+	}
+
+	@Test
+	public void testStatisticsDisabledByDefault() throws Exception {
+
+		runtime = new ActorRuntime();
+		runtime.setMode(ActorRuntime.Mode.BOUNDED);
+		runtime.setThreads(1);
+		runtime.init();
+		assertFalse(runtime.isStatistics());
+
+		TestActor actor = new TestActor(new CountDownLatch(2));
+		actor.setActorRuntime(runtime);
+		actor.start();
+		actor.publish(Integer.valueOf(1));
+		actor.publish(Integer.valueOf(2));
+		assertTrue(actor.latch.await(5, TimeUnit.SECONDS));
+		actor.stop();
+
+		assertEquals(2, actor.received.size());
+		assertEquals(0, actor.getMailboxStatistics().getMessages());
+		assertEquals(0, actor.getMailboxStatistics().getMaxDepth());
+		assertEquals(0, runtime.getMessages());
+	}
+
+	@Test
+	public void testActorWithoutRuntimeRunsOnDefaultRuntime() throws Exception {
+
+		TestActor actor = new TestActor(new CountDownLatch(1));
+		actor.start();
+		assertSame(ActorRuntime.getDefault(), actor.getActorRuntime());
+		actor.publish(Integer.valueOf(1));
+		assertTrue(actor.latch.await(5, TimeUnit.SECONDS));
+		actor.stop();
+		assertFalse(actor.isRunning());
+	}
+
+	@SuppressWarnings("deprecation")
+	@Test
+	public void testDeprecatedFiberFactory() throws Exception {
+
+		PoolFiberFactory fiberFactory = new PoolFiberFactory(Executors.newCachedThreadPool());
+		try {
+			TestActor actor = new TestActor(new CountDownLatch(1));
+			actor.setFiberFactory(fiberFactory);
+			TestActor other = new TestActor(new CountDownLatch(1));
+			other.setFiberFactory(fiberFactory);
+			// Actors of the same fiber factory share a runtime
+			assertSame(actor.getActorRuntime(), other.getActorRuntime());
+
+			actor.start();
+			actor.publish(Integer.valueOf(1));
+			assertTrue(actor.latch.await(5, TimeUnit.SECONDS));
+			actor.stop();
+		} finally {
+			fiberFactory.dispose();
+		}
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testCreateBeforeInit() throws Exception {
+
+		runtime = new ActorRuntime();
+		runtime.create("test");
+	}
+
+	@Test
+	public void testCreateAfterShutdown() throws Exception {
+
+		runtime = new ActorRuntime();
+		runtime.setMode(ActorRuntime.Mode.BOUNDED);
+		runtime.init();
+		runtime.shutdown();
+
+		// The pool must not be started again
+		try {
+			runtime.create("test");
+			fail("Expected the runtime to be shut down");
+		} catch (IllegalStateException e) {
+		}
+		try {
+			runtime.init();
+			fail("Expected the runtime to be shut down");
+		} catch (IllegalStateException e) {
+		}
+		assertEquals(-1, runtime.getPoolSize());
+	}
+
+	private List<TestActor> assertMessagesHandledInOrder(ActorRuntime.Mode mode) throws Exception {
+
+		runtime = new ActorRuntime();
+		runtime.setMode(mode);
+		runtime.setThreads(2);
+		runtime.init();
+
+		int messages = 200;
+		List<TestActor> actors = new ArrayList<TestActor>();
+		CountDownLatch latch = new CountDownLatch(10 * messages);
+		for (int i = 0; i < 10; i++) {
+			TestActor actor = new TestActor(latch);
+			actor.setActorRuntime(runtime);
+			actor.start();
+			actors.add(actor);
+		}
+		assertEquals(10, runtime.getLiveActors());
+		for (int i = 0; i < messages; i++) {
+			for (TestActor actor: actors) {
+				actor.publish(Integer.valueOf(i));
+			}
+		}
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+		for (TestActor actor: actors) {
+			assertEquals(messages, actor.received.size());
+			for (int i = 0; i < messages; i++) {
+				assertEquals(Integer.valueOf(i), actor.received.get(i));
+			}
+			actor.stop();
+		}
+		return actors;
+	}
+
+	/*
+	 * Statistics are recorded right after the handler returns
+	 */
+	private void awaitMessages(long messages) throws InterruptedException {
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (runtime.getMessages() < messages && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(messages, runtime.getMessages());
+	}
+
+	public static class TestActor extends ReflectiveActor {
+
+		final CountDownLatch latch;
+		final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+		final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+
+		TestActor(CountDownLatch latch) {
+
+			this.latch = latch;
+		}
+
+		@Message
+		public void onInteger(Integer message) {
+
+			received.add(message);
+			threads.add(Thread.currentThread().getName());
+			latch.countDown();
+		}
+
+		@Message
+		public void onSleep(Long millis) throws InterruptedException {
+
+			Thread.sleep(millis);
+			latch.countDown();
+		}
+	}
+}
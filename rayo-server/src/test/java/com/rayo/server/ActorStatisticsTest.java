@@ -0,0 +1,90 @@
+package com.rayo.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rayo.server.ActorRuntimeTest.TestActor;
+
+public class ActorStatisticsTest {
+
+	private ActorRuntime runtime;
+	private ActorStatistics statistics;
+
+	@Before
+	public void setup() {
+
+		statistics = new ActorStatistics();
+		runtime = new ActorRuntime();
+		runtime.setMode(ActorRuntime.Mode.BOUNDED);
+		runtime.setThreads(1);
+		runtime.setStatistics(true);
+		runtime.setActorStatistics(statistics);
+		runtime.init();
+	}
+
+	@After
+	public void shutdown() {
+
+		runtime.shutdown();
+	}
+
+	@Test
+	public void testStatisticsByMessageType() throws Exception {
+
+		statistics.setSlowHandlerThreshold(20);
+
+		TestActor actor = new TestActor(new CountDownLatch(4));
+		actor.setActorRuntime(runtime);
+		actor.start();
+		actor.publish(Long.valueOf(30));
+		actor.publish(Integer.valueOf(1));
+		actor.publish(Integer.valueOf(2));
+		actor.publish(Integer.valueOf(3));
+		assertTrue(actor.latch.await(5, TimeUnit.SECONDS));
+		awaitMessages(4);
+		actor.stop();
+
+		assertEquals(Long.valueOf(1), statistics.getMessages().get("Long"));
+		assertEquals(Long.valueOf(3), statistics.getMessages().get("Integer"));
+		assertTrue(statistics.getMaxRunTimes().get("Long") >= 25000);
+		assertTrue(statistics.getMaxRunTimes().get("Integer") < 25000);
+		// Integers waited for the handler of the Long
+		assertTrue(statistics.getMaxSchedulingDelays().get("Integer") >= 25000);
+		assertTrue(statistics.getMaxMailboxDepths().get("TestActor") >= 3);
+		assertEquals(1, statistics.getSlowHandlers());
+	}
+
+	@Test
+	public void testSlowHandlerLogDisabled() throws Exception {
+
+		statistics.setSlowHandlerThreshold(0);
+
+		TestActor actor = new TestActor(new CountDownLatch(1));
+		actor.setActorRuntime(runtime);
+		actor.start();
+		actor.publish(Long.valueOf(10));
+		assertTrue(actor.latch.await(5, TimeUnit.SECONDS));
+		awaitMessages(1);
+		actor.stop();
+
+		assertEquals(0, statistics.getSlowHandlers());
+		statistics.resetStatistics();
+		assertTrue(statistics.getMessages().isEmpty());
+	}
+
+	private void awaitMessages(long messages) throws InterruptedException {
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (runtime.getMessages() < messages && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(messages, runtime.getMessages());
+	}
+}
@@ -0,0 +1,123 @@
+package com.rayo.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rayo.server.ActorRuntimeTest.TestActor;
+
+public class ActorTracerTest {
+
+	private ActorRuntime runtime;
+	private ActorTracer tracer;
+
+	@Before
+	public void setup() {
+
+		tracer = new ActorTracer();
+		runtime = new ActorRuntime();
+		runtime.setMode(ActorRuntime.Mode.BOUNDED);
+		runtime.setThreads(2);
+		runtime.setActorTracer(tracer);
+		runtime.init();
+	}
+
+	@After
+	public void shutdown() {
+
+		runtime.shutdown();
+	}
+
+	@Test
+	public void testNothingTracedByDefault() throws Exception {
+
+		run(new IdentifiedActor("call1", 3));
+		assertEquals(0, tracer.getRecords());
+		assertTrue(tracer.dumpAll().isEmpty());
+	}
+
+	@Test
+	public void testTraceCall() throws Exception {
+
+		tracer.traceCall("call1");
+		run(new IdentifiedActor("call1", 3));
+		run(new IdentifiedActor("call2", 3));
+
+		List<String> trace = tracer.dump("call1");
+		assertEquals(3, trace.size());
+		for (String line: trace) {
+			assertTrue(line.contains("[call1] MESSAGE"));
+		}
+		assertTrue(tracer.dump("call2").isEmpty());
+
+		tracer.untraceCall("call1");
+		assertTrue(tracer.getTracedCalls().isEmpty());
+		run(new IdentifiedActor("call1", 3));
+		assertEquals(3, tracer.dump("call1").size());
+	}
+
+	@Test
+	public void testSampleRate() throws Exception {
+
+		tracer.setSampleRate(1);
+		assertFalse(tracer.isTraced(null));
+		run(new IdentifiedActor("call1", 2));
+		run(new IdentifiedActor("call2", 2));
+		assertEquals(4, tracer.dumpAll().size());
+	}
+
+	@Test
+	public void testOldestRecordsAreOverwritten() throws Exception {
+
+		tracer.setCapacity(4);
+		tracer.traceCall("call1");
+		run(new IdentifiedActor("call1", 10));
+
+		List<String> trace = tracer.dump("call1");
+		assertEquals(4, trace.size());
+		assertTrue(trace.get(0).endsWith("[6]"));
+		assertTrue(trace.get(3).endsWith("[9]"));
+		assertEquals(10, tracer.getRecords());
+
+		tracer.clear();
+		assertTrue(tracer.dumpAll().isEmpty());
+	}
+
+	private void run(IdentifiedActor actor) throws Exception {
+
+		actor.setActorRuntime(runtime);
+		actor.start();
+		for (int i = 0; i < actor.messages; i++) {
+			actor.publish(Integer.valueOf(i));
+		}
+		assertTrue(actor.latch.await(5, TimeUnit.SECONDS));
+		actor.stop();
+	}
+
+	static class IdentifiedActor extends TestActor {
+
+		final String id;
+		final int messages;
+
+		IdentifiedActor(String id, int messages) {
+
+			super(new CountDownLatch(messages));
+			this.id = id;
+			this.messages = messages;
+		}
+
+		@Override
+		public String getActorId() {
+
+			return id;
+		}
+	}
+}
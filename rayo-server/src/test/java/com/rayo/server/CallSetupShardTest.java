@@ -0,0 +1,248 @@
+package com.rayo.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rayo.core.CallRef;
+import com.rayo.core.DialCommand;
+import com.voxeo.moho.IncomingCall;
+
+public class CallSetupShardTest {
+
+	private ActorRuntime runtime;
+	private TestCallManager callManager;
+
+	@Before
+	public void setup() {
+
+		// Every fiber gets its own named thread
+		runtime = new ActorRuntime();
+		runtime.setMode(ActorRuntime.Mode.THREAD_PER_ACTOR);
+		runtime.init();
+
+		callManager = new TestCallManager();
+		callManager.setActorRuntime(runtime);
+		callManager.setSetupShards(4);
+		callManager.start();
+	}
+
+	@After
+	public void shutdown() {
+
+		callManager.stop();
+		runtime.shutdown();
+	}
+
+	@Test
+	public void testDialsOfTheSameTargetRunInOrderOnOneShard() throws Exception {
+
+		int targets = 8;
+		int dials = 50;
+		final CountDownLatch latch = new CountDownLatch(targets * dials);
+		final List<Response> responses = Collections.synchronizedList(new ArrayList<Response>());
+		for (int i = 0; i < dials; i++) {
+			for (int j = 0; j < targets; j++) {
+				callManager.publish(new Request(dial("sip:target" + j, String.valueOf(i)), new ResponseHandler() {
+					@Override
+					public void handle(Response response) throws Exception {
+						responses.add(response);
+						latch.countDown();
+					}
+				}));
+			}
+		}
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+		for (Response response: responses) {
+			assertTrue(response.isSuccess());
+			assertTrue(response.getValue() instanceof CallRef);
+		}
+		Map<String, String> shardOfTarget = new HashMap<String, String>();
+		Map<String, Integer> lastOfTarget = new HashMap<String, Integer>();
+		for (String[] setup: callManager.getSetups()) {
+			String target = setup[0];
+			int seq = Integer.parseInt(setup[2]);
+			// Setup runs on a shard fiber, never on the fiber of the call manager
+			assertTrue(setup[1], setup[1].endsWith("-CallSetupShard" + shardIndex(target)));
+			String shard = shardOfTarget.put(target, setup[1]);
+			if (shard != null) {
+				assertEquals(shard, setup[1]);
+			}
+			Integer last = lastOfTarget.put(target, seq);
+			assertEquals(last == null ? 0 : last + 1, seq);
+		}
+		assertEquals(targets, shardOfTarget.size());
+
+		long setups = 0;
+		for (CallSetupShard shard: callManager.getShards()) {
+			setups+= shard.getSetups();
+			assertEquals(0, shard.getQueueDepth());
+		}
+		assertEquals(targets * dials, setups);
+	}
+
+	@Test
+	public void testIncomingCallsRunOnTheirShard() throws Exception {
+
+		for (int i = 0; i < 20; i++) {
+			callManager.publish(incomingCall("call" + i));
+		}
+		callManager.awaitSetups(20);
+
+		for (String[] setup: callManager.getSetups()) {
+			assertTrue(setup[1], setup[1].endsWith("-CallSetupShard" + shardIndex(setup[0])));
+		}
+	}
+
+	@Test
+	public void testFailedDialIsRepliedWithTheException() throws Exception {
+
+		final CountDownLatch latch = new CountDownLatch(1);
+		final List<Response> responses = new ArrayList<Response>();
+		callManager.publish(new Request(dial("sip:fail", "0"), new ResponseHandler() {
+			@Override
+			public void handle(Response response) throws Exception {
+				responses.add(response);
+				latch.countDown();
+			}
+		}));
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+		assertFalse(responses.get(0).isSuccess());
+		assertSame(TestCallManager.FAILURE, responses.get(0).getValue());
+		// The call manager keeps running
+		assertTrue(callManager.isRunning());
+	}
+
+	@Test
+	public void testEventsFiredDuringSetupAreFlushed() throws Exception {
+
+		final CountDownLatch latch = new CountDownLatch(1);
+		final List<Object> events = Collections.synchronizedList(new ArrayList<Object>());
+		callManager.publish(new EventHandler() {
+			@Override
+			public void handle(Object event) throws Exception {
+				events.add(event);
+				latch.countDown();
+			}
+		});
+		callManager.publish(incomingCall("call"));
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+		assertEquals(Collections.singletonList("setup call"), events);
+	}
+
+	@Test
+	public void testSetupIsMeasuredByTheActorRuntime() throws Exception {
+
+		runtime.setStatistics(true);
+		for (int i = 0; i < 10; i++) {
+			callManager.publish(incomingCall("call" + i));
+		}
+		callManager.awaitSetups(10);
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (runtime.getMessages() < 10 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(10, runtime.getMessages());
+		assertEquals(10, callManager.getMailboxStatistics().getMessages());
+		assertEquals(0, callManager.getMailboxStatistics().getDepth());
+	}
+
+	private String shardIndex(String key) {
+
+		return String.valueOf((key.hashCode() & 0x7fffffff) % callManager.getSetupShards());
+	}
+
+	private DialCommand dial(String to, String seq) {
+
+		DialCommand command = new DialCommand();
+		command.setTo(URI.create(to));
+		command.setHeaders(Collections.singletonMap("seq", seq));
+		return command;
+	}
+
+	private IncomingCall incomingCall(final String id) {
+
+		return (IncomingCall)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {IncomingCall.class},
+			new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					if (method.getName().equals("getId") || method.getName().equals("toString")) {
+						return id;
+					}
+					if (method.getName().equals("hashCode")) {
+						return System.identityHashCode(proxy);
+					}
+					if (method.getName().equals("equals")) {
+						return proxy == args[0];
+					}
+					return null;
+				}
+			});
+	}
+
+	/*
+	 * Records the key and the thread of every setup instead of creating calls
+	 */
+	public static class TestCallManager extends CallManager {
+
+		static final Exception FAILURE = new Exception("Dial failed");
+
+		private final List<String[]> setups = Collections.synchronizedList(new ArrayList<String[]>());
+
+		@Override
+		@Message
+		public CallRef onDial(DialCommand command) throws Exception {
+
+			if (command.getTo().toString().equals("sip:fail")) {
+				throw FAILURE;
+			}
+			setups.add(new String[] {command.getTo().toString(), Thread.currentThread().getName(), command.getHeaders().get("seq")});
+			return new CallRef(command.getTo().toString());
+		}
+
+		@Override
+		@Message
+		public void onIncomingCall(IncomingCall call) {
+
+			fire("setup " + call.getId());
+			setups.add(new String[] {call.getId(), Thread.currentThread().getName()});
+		}
+
+		List<String[]> getSetups() {
+
+			synchronized (setups) {
+				return new ArrayList<String[]>(setups);
+			}
+		}
+
+		void awaitSetups(int count) throws InterruptedException {
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while (setups.size() < count && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(count, setups.size());
+		}
+	}
+}
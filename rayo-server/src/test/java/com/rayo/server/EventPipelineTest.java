@@ -0,0 +1,246 @@
+package com.rayo.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EventPipelineTest {
+
+	private EventPipeline pipeline;
+	
+	@Before
+	public void setup() {
+		
+		pipeline = new EventPipeline();
+		pipeline.setWorkers(4);
+		pipeline.setQueueSize(100);
+	}
+	
+	@After
+	public void shutdown() {
+		
+		pipeline.shutdown();
+	}
+	
+	@Test
+	public void testEventsOfTheSameKeyAreDeliveredInOrder() throws Exception {
+
+		final int calls = 20;
+		final int eventsPerCall = 500;
+		final CountDownLatch latch = new CountDownLatch(calls * eventsPerCall);
+		final Map<String, List<Integer>> received = Collections.synchronizedMap(new HashMap<String, List<Integer>>());
+		
+		pipeline.setHandler(new EventHandler() {
+			@Override
+			public void handle(Object event) throws Exception {
+				String[] parts = ((String)event).split(":");
+				List<Integer> list = received.get(parts[0]);
+				if (list == null) {
+					list = Collections.synchronizedList(new ArrayList<Integer>());
+					received.put(parts[0], list);
+				}
+				list.add(Integer.valueOf(parts[1]));
+				latch.countDown();
+			}
+		});
+		pipeline.init();
+		
+		for (int i = 0; i < eventsPerCall; i++) {
+			for (int j = 0; j < calls; j++) {
+				pipeline.submit("call" + j, "call" + j + ":" + i);
+			}
+		}
+		
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+		assertEquals(calls, received.size());
+		for (List<Integer> events: received.values()) {
+			assertEquals(eventsPerCall, events.size());
+			for (int i = 0; i < eventsPerCall; i++) {
+				assertEquals(Integer.valueOf(i), events.get(i));
+			}
+		}
+		assertEquals(calls * eventsPerCall, pipeline.getEventsProcessed());
+	}
+	
+	@Test
+	public void testFullLaneKeepsTheOrderOfEvents() throws Exception {
+
+		final int events = 50;
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch latch = new CountDownLatch(events + 1);
+		final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+		final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+
+		pipeline.setWorkers(1);
+		pipeline.setQueueSize(5);
+		pipeline.setOfferTimeout(10);
+		pipeline.setHandler(new EventHandler() {
+			@Override
+			public void handle(Object event) throws Exception {
+				Integer value = (Integer)event;
+				if (value == 0) {
+					// Hold the lane until the producer has filled it
+					blocked.countDown();
+					release.await(10, TimeUnit.SECONDS);
+				}
+				received.add(value);
+				threads.add(Thread.currentThread().getName());
+				latch.countDown();
+			}
+		});
+		pipeline.init();
+
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < events; i++) {
+					pipeline.submit("call", Integer.valueOf(i));
+				}
+			}
+		};
+		pipeline.submit("call", Integer.valueOf(0));
+		assertTrue(blocked.await(5, TimeUnit.SECONDS));
+		producer.start();
+		// Let the producer fill the lane and wait for room
+		long deadline = System.currentTimeMillis() + 5000;
+		while (pipeline.getEventsOverflowed() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(pipeline.getEventsOverflowed() > 0);
+		assertTrue(received.isEmpty());
+		release.countDown();
+
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+		producer.join(5000);
+		// First the held event, then every event submitted by the producer in order
+		assertEquals(events + 1, received.size());
+		assertEquals(Integer.valueOf(0), received.get(0));
+		for (int i = 0; i < events; i++) {
+			assertEquals(Integer.valueOf(i), received.get(i + 1));
+		}
+		for (String thread: threads) {
+			assertEquals("rayo-event-pipeline-0", thread);
+		}
+	}
+
+	@Test
+	public void testNoEventsAreLostWhenSubmittedDuringShutdown() throws Exception {
+
+		final int producers = 8;
+		final Map<String, List<Integer>> received = Collections.synchronizedMap(new HashMap<String, List<Integer>>());
+		final AtomicInteger submitted = new AtomicInteger();
+		final AtomicBoolean stop = new AtomicBoolean();
+
+		pipeline.setQueueSize(10);
+		pipeline.setHandler(new EventHandler() {
+			@Override
+			public void handle(Object event) throws Exception {
+				String[] parts = ((String)event).split(":");
+				received.get(parts[0]).add(Integer.valueOf(parts[1]));
+			}
+		});
+		pipeline.init();
+
+		final CountDownLatch started = new CountDownLatch(producers);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < producers; i++) {
+			final String key = "call" + i;
+			received.put(key, Collections.synchronizedList(new ArrayList<Integer>()));
+			Thread producer = new Thread() {
+				@Override
+				public void run() {
+					started.countDown();
+					// Keeps submitting after the pipeline has been shut down
+					for (int j = 0; !stop.get() || j < 1000; j++) {
+						pipeline.submit(key, key + ":" + j);
+						submitted.incrementAndGet();
+					}
+				}
+			};
+			threads.add(producer);
+			producer.start();
+		}
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		Thread.sleep(50);
+		pipeline.shutdown();
+		stop.set(true);
+		for (Thread producer: threads) {
+			producer.join(10000);
+		}
+
+		int total = 0;
+		for (List<Integer> events: received.values()) {
+			for (int i = 0; i < events.size(); i++) {
+				assertEquals(Integer.valueOf(i), events.get(i));
+			}
+			total+= events.size();
+		}
+		assertEquals(submitted.get(), total);
+		assertEquals(total, pipeline.getEventsProcessed());
+	}
+
+	@Test
+	public void testShutdownDoesNotInterruptDelivery() throws Exception {
+
+		final CountDownLatch delivering = new CountDownLatch(1);
+		final List<Object> received = Collections.synchronizedList(new ArrayList<Object>());
+		final AtomicBoolean interrupted = new AtomicBoolean();
+
+		pipeline.setWorkers(1);
+		pipeline.setHandler(new EventHandler() {
+			@Override
+			public void handle(Object event) throws Exception {
+				if ("slow".equals(event)) {
+					delivering.countDown();
+					try {
+						Thread.sleep(200);
+					} catch (InterruptedException e) {
+						interrupted.set(true);
+					}
+				}
+				received.add(event);
+			}
+		});
+		pipeline.init();
+
+		pipeline.submit("call", "slow");
+		pipeline.submit("call", "queued");
+		assertTrue(delivering.await(5, TimeUnit.SECONDS));
+		pipeline.shutdown();
+		pipeline.submit("call", "late");
+
+		assertFalse(interrupted.get());
+		assertEquals(Arrays.asList("slow", "queued", "late"), received);
+	}
+
+	@Test
+	public void testEventsAreDeliveredInlineWhenNotStarted() throws Exception {
+
+		final List<Object> received = new ArrayList<Object>();
+		pipeline.setHandler(new EventHandler() {
+			@Override
+			public void handle(Object event) throws Exception {
+				received.add(event);
+			}
+		});
+		
+		pipeline.submit("call", "event");
+		assertEquals(1, received.size());
+	}
+}
@@ -0,0 +1,114 @@
+package com.rayo.server;
+
+import java.lang.management.ManagementFactory;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.io.DOMWriter;
+
+/**
+ * <p>Measures the cost of preparing an outbound event for the CDR and for a number 
+ * of XMPP destinations. It compares the old path, where each consumer serialized the 
+ * dom4j element on its own, with {@link SerializedEvent}.</p>
+ * 
+ * <p>Reports average latency and, when the JVM supports it, bytes allocated per event 
+ * for offer, end and mixer events at fan-outs of 1, 10 and 100 destinations.</p>
+ * 
+ * @author martin
+ *
+ */
+public class EventSerializationBenchmark {
+
+	private static final int[] FANOUTS = new int[] {1, 10, 100};
+	
+	public static void main(String[] args) throws Exception {
+		
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		
+		Element[] events = new Element[] {offer(), end(), mixer()};
+		
+		// Warm up
+		for (Element event: events) {
+			run(event, 10, iterations, true);
+			run(event, 10, iterations, false);
+		}
+
+		System.out.println("event\tfanout\tlegacy us/event\tlegacy bytes/event\tcached us/event\tcached bytes/event");
+		for (Element event: events) {
+			for (int fanout: FANOUTS) {
+				long[] legacy = run(event, fanout, iterations, true);
+				long[] cached = run(event, fanout, iterations, false);
+				System.out.println(String.format("%s\t%s\t%s\t%s\t%s\t%s", 
+						event.getName(), fanout, legacy[0], legacy[1], cached[0], cached[1]));
+			}
+		}
+	}
+	
+	private static long[] run(Element event, int fanout, int iterations, boolean legacy) throws Exception {
+		
+		long sink = 0;
+		long bytes = allocatedBytes();
+		long init = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			if (legacy) {
+				// CDR, then one DOM conversion per destination
+				sink+= event.asXML().length();
+				for (int j = 0; j < fanout; j++) {
+					sink+= new DOMWriter().write(event.getDocument()).getDocumentElement().getChildNodes().getLength();
+				}
+			} else {
+				SerializedEvent serialized = new SerializedEvent(event);
+				sink+= serialized.asXML().length();
+				for (int j = 0; j < fanout; j++) {
+					sink+= serialized.toDOM().getChildNodes().getLength();
+				}
+			}
+		}
+		long elapsed = System.nanoTime() - init;
+		long allocated = allocatedBytes() - bytes;
+		if (sink == 42) {
+			System.out.println();
+		}
+		return new long[] {elapsed / iterations / 1000, allocated < 0 ? -1 : allocated / iterations};
+	}
+
+	private static long allocatedBytes() {
+		
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+	
+	private static Element offer() {
+		
+		Document document = DocumentHelper.createDocument();
+		Element offer = document.addElement("offer", "urn:xmpp:rayo:1");
+		offer.addAttribute("to", "tel:+18003211212");
+		offer.addAttribute("from", "tel:+13058881212");
+		for (int i = 0; i < 10; i++) {
+			Element header = offer.addElement("header");
+			header.addAttribute("name", "X-Header-" + i);
+			header.addAttribute("value", "value-" + i);
+		}
+		return offer;
+	}
+	
+	private static Element end() {
+		
+		Document document = DocumentHelper.createDocument();
+		Element end = document.addElement("end", "urn:xmpp:rayo:1");
+		end.addElement("hangup");
+		return end;
+	}
+	
+	private static Element mixer() {
+		
+		Document document = DocumentHelper.createDocument();
+		Element speaking = document.addElement("started-speaking", "urn:xmpp:rayo:1");
+		speaking.addAttribute("call-id", "e3a7a6b4-9b3e-4b3a-9a0e-3c1e4b2d9f10");
+		return speaking;
+	}
+}
@@ -0,0 +1,124 @@
+package com.rayo.server;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Compares the old string keyed reflective lookup used by {@link ReflectiveActor} 
+ * with the per class dispatch tables in {@link MessageDispatcher}.</p>
+ * 
+ * <p>Run it from the command line with -server and a warmed up JVM, e.g.:</p>
+ * <pre>java -cp ... com.rayo.server.MessageDispatchBenchmark [iterations]</pre>
+ * 
+ * @author martin
+ *
+ */
+public class MessageDispatchBenchmark {
+
+	private static final int ROUNDS = 5;
+	
+	public static void main(String[] args) throws Exception {
+		
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+		
+		BenchmarkActor actor = new BenchmarkActor();
+		Object[] messages = new Object[] {
+			"a string", Integer.valueOf(1), new StringBuilder("sb"), Long.valueOf(2)
+		};
+		
+		LegacyDispatcher legacy = new LegacyDispatcher(BenchmarkActor.class);
+		MessageDispatcher dispatcher = MessageDispatcher.forClass(BenchmarkActor.class);
+		
+		System.out.println("Running message dispatch benchmark with " + iterations + " messages per round");
+		for (int round = 0; round < ROUNDS; round++) {
+			long init = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				Object message = messages[i & 3];
+				legacy.findMethod(actor, message).invoke(actor, message);
+			}
+			long legacyTime = System.nanoTime() - init;
+
+			init = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				Object message = messages[i & 3];
+				dispatcher.findMethod(message).invoke(actor, message);
+			}
+			long tableTime = System.nanoTime() - init;
+			
+			System.out.println(String.format("Round %s. Legacy dispatch: %s ns/msg. Dispatch table: %s ns/msg", 
+					round, legacyTime / iterations, tableTime / iterations));
+		}
+		System.out.println("Handled " + actor.count + " messages");
+	}
+	
+	public static class BenchmarkActor {
+		
+		long count;
+		
+		@Message
+		public void onString(String message) {
+			count++;
+		}
+		
+		@Message
+		public void onNumber(Number message) {
+			count++;
+		}
+		
+		@Message
+		public void onSequence(CharSequence message) {
+			count++;
+		}
+	}
+	
+	/**
+	 * Copy of the lookup that ReflectiveActor did before dispatch tables were added
+	 */
+	static class LegacyDispatcher {
+
+	    private Map<Class<?>, Method> targets = new HashMap<Class<?>, Method>();
+	    private static Map<String, Method> globalMethodsCache = new ConcurrentHashMap<String, Method>();
+	    
+	    LegacyDispatcher(Class<?> actorClass) {
+	    	
+	        for (Method method : actorClass.getMethods()) {
+	            Class<?>[] types = method.getParameterTypes();
+	            if (types.length == 1 && method.getAnnotation(Message.class) != null) {
+	            	targets.put(types[0], method);
+	            }
+	        }
+	    }
+	    
+	    Method findMethod(Object actor, Object message) {
+	        
+	        String key = actor.getClass().toString() + message.getClass().toString();
+	        Method method = globalMethodsCache.get(key);
+	        if (method != null) return method;
+	        
+	        Queue<Class<?>> queue = new LinkedList<Class<?>>();
+	        queue.add(message.getClass());
+	        while(!queue.isEmpty()) {
+	            Class<?> clz = queue.poll();
+	            method = targets.get(clz);
+	            if (method != null) {
+	                break;
+	            }
+	            for (Class<?> iface : clz.getInterfaces()) {
+	                queue.add(iface);
+	            }
+	            Class<?> superclz = clz.getSuperclass();
+	            if(superclz != null && !superclz.equals(Object.class)) {
+	                queue.add(superclz);
+	            }
+	        }
+	        if (method != null) {
+	        	globalMethodsCache.put(key, method);
+	        }
+	        return method;
+	    }
+	}
+}
@@ -0,0 +1,50 @@
+package com.rayo.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import com.rayo.server.MessageDispatchBenchmark.BenchmarkActor;
+
+public class MessageDispatcherTest {
+
+	@Test
+	public void testDispatchersAreSharedPerClass() throws Exception {
+		
+		assertSame(MessageDispatcher.forClass(BenchmarkActor.class), 
+				   MessageDispatcher.forClass(BenchmarkActor.class));
+	}
+	
+	@Test
+	public void testExactMatch() throws Exception {
+		
+		MessageDispatcher dispatcher = MessageDispatcher.forClass(BenchmarkActor.class);
+		assertEquals("onString", dispatcher.findMethod("hello").getName());
+	}
+	
+	@Test
+	public void testSuperclassMatch() throws Exception {
+		
+		MessageDispatcher dispatcher = MessageDispatcher.forClass(BenchmarkActor.class);
+		assertEquals("onNumber", dispatcher.findMethod(Integer.valueOf(3)).getName());
+		// Resolved entries are cached so a second lookup must return the same handler
+		assertEquals("onNumber", dispatcher.findMethod(Integer.valueOf(4)).getName());
+	}
+	
+	@Test
+	public void testInterfaceMatch() throws Exception {
+		
+		MessageDispatcher dispatcher = MessageDispatcher.forClass(BenchmarkActor.class);
+		assertEquals("onSequence", dispatcher.findMethod(new StringBuilder()).getName());
+	}
+	
+	@Test
+	public void testNoHandler() throws Exception {
+		
+		MessageDispatcher dispatcher = MessageDispatcher.forClass(BenchmarkActor.class);
+		assertNull(dispatcher.findMethod(new Object()));
+		assertNull(dispatcher.findMethod(new Object()));
+	}
+}
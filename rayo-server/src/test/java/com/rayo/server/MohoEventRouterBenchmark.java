@@ -0,0 +1,130 @@
+package com.rayo.server;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.rayo.server.test.MockCall;
+import com.voxeo.moho.State;
+import com.voxeo.moho.common.event.AutowiredEventListener;
+import com.voxeo.moho.common.event.MohoCallCompleteEvent;
+import com.voxeo.moho.common.event.MohoOutputCompleteEvent;
+import com.voxeo.moho.event.CallCompleteEvent;
+import com.voxeo.moho.event.Event;
+import com.voxeo.moho.event.EventSource;
+import com.voxeo.moho.event.OutputCompleteEvent;
+
+/**
+ * <p>Compares the old delivery of Moho events to every listener of an actor with the
+ * delivery of {@link MohoEventRouter} to the listeners that handle each event.</p>
+ *
+ * <p>The actor has 1, 10 and 50 live verbs. Verbs only handle the completion of their
+ * own output and the actor handles the completion of the call, like the handlers of a
+ * call running an IVR flow. The benchmark reports the time to deliver an event and the
+ * time to start a verb, deliver its completion and remove it while the other verbs
+ * are running.</p>
+ *
+ * <p>Run it from the command line with -server, e.g.:</p>
+ * <pre>java -cp ... com.rayo.server.MohoEventRouterBenchmark [events]</pre>
+ *
+ * @author martin
+ *
+ */
+public class MohoEventRouterBenchmark {
+
+	private static final int ROUNDS = 5;
+	private static final int[] VERBS = new int[] { 1, 10, 50 };
+
+	public static void main(String[] args) throws Exception {
+
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+		MockCall call = new MockCall();
+		Event<?>[] events = new Event<?>[] {
+			new MohoOutputCompleteEvent<EventSource>(call, OutputCompleteEvent.Cause.END, null),
+			new MohoOutputCompleteEvent<EventSource>(call, OutputCompleteEvent.Cause.END, null),
+			new MohoOutputCompleteEvent<EventSource>(call, OutputCompleteEvent.Cause.END, null),
+			new MohoCallCompleteEvent(call, CallCompleteEvent.Cause.NEAR_END_DISCONNECT)
+		};
+
+		System.out.println("Running Moho event dispatch benchmark with " + iterations + " events per round");
+		for (int verbs : VERBS) {
+			ActorHandler actor = new ActorHandler();
+			List<AutowiredEventListener> legacy = new CopyOnWriteArrayList<AutowiredEventListener>();
+			MohoEventRouter router = new MohoEventRouter();
+			legacy.add(new AutowiredEventListener(actor));
+			router.add(actor);
+			for (int i = 0; i < verbs; i++) {
+				VerbHandler verb = new VerbHandler();
+				legacy.add(new AutowiredEventListener(verb));
+				router.add(verb);
+			}
+
+			for (int round = 0; round < ROUNDS; round++) {
+				long init = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					Event<?> event = events[i & 3];
+					for (AutowiredEventListener listener : legacy) {
+						listener.onEvent(event);
+					}
+				}
+				long legacyTime = System.nanoTime() - init;
+
+				init = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					router.dispatch(events[i & 3]);
+				}
+				long routerTime = System.nanoTime() - init;
+
+				int lifecycles = iterations / 10;
+				init = System.nanoTime();
+				for (int i = 0; i < lifecycles; i++) {
+					VerbHandler verb = new VerbHandler();
+					legacy.add(new AutowiredEventListener(verb));
+					for (AutowiredEventListener listener : legacy) {
+						listener.onEvent(events[0]);
+					}
+					for (int j = 0; j < legacy.size(); j++) {
+						if (legacy.get(j).getTarget() == verb) {
+							legacy.remove(j);
+							break;
+						}
+					}
+				}
+				long legacyVerbTime = System.nanoTime() - init;
+
+				init = System.nanoTime();
+				for (int i = 0; i < lifecycles; i++) {
+					VerbHandler verb = new VerbHandler();
+					router.add(verb);
+					router.dispatch(events[0]);
+					router.remove(verb);
+				}
+				long routerVerbTime = System.nanoTime() - init;
+
+				System.out.println(String.format("%s verbs. Round %s. All listeners: %s ns/event, %s ns/verb. Event router: %s ns/event, %s ns/verb",
+						verbs, round, legacyTime / iterations, legacyVerbTime / lifecycles,
+						routerTime / iterations, routerVerbTime / lifecycles));
+			}
+		}
+	}
+
+	public static class ActorHandler {
+
+		long count;
+
+		@State
+		public void onCallComplete(CallCompleteEvent event) {
+			count++;
+		}
+	}
+
+	public static class VerbHandler {
+
+		long count;
+
+		@State
+		public void onOutputComplete(OutputCompleteEvent<EventSource> event) {
+			count++;
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package com.rayo.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.rayo.server.test.MockCall;
+import com.voxeo.moho.State;
+import com.voxeo.moho.common.event.MohoCallCompleteEvent;
+import com.voxeo.moho.common.event.MohoOutputCompleteEvent;
+import com.voxeo.moho.event.CallCompleteEvent;
+import com.voxeo.moho.event.Event;
+import com.voxeo.moho.event.EventSource;
+import com.voxeo.moho.event.OutputCompleteEvent;
+
+public class MohoEventRouterTest {
+
+	private MockCall call = new MockCall();
+	private MohoEventRouter router = new MohoEventRouter();
+	private List<Object> received = new ArrayList<Object>();
+
+	@Test
+	public void testEventsAreRoutedByEventClass() throws Exception {
+
+		OutputListener output = new OutputListener();
+		CallListener callListener = new CallListener();
+		router.add(output);
+		router.add(callListener);
+
+		router.dispatch(outputComplete());
+		router.dispatch(callComplete());
+		router.dispatch(outputComplete());
+
+		assertEquals(2, output.events);
+		assertEquals(1, callListener.events);
+		assertEquals(1, router.route(MohoOutputCompleteEvent.class).length);
+		assertSame(output, router.route(MohoOutputCompleteEvent.class)[0].getTarget());
+		assertEquals(1, router.route(MohoCallCompleteEvent.class).length);
+		assertSame(callListener, router.route(MohoCallCompleteEvent.class)[0].getTarget());
+	}
+
+	@Test
+	public void testListenersWithoutStateMethodsGetEveryEvent() throws Exception {
+
+		router.add(new Object());
+		router.add(new OutputListener());
+
+		assertEquals(2, router.route(MohoOutputCompleteEvent.class).length);
+		assertEquals(1, router.route(MohoCallCompleteEvent.class).length);
+	}
+
+	@Test
+	public void testEventsAreDeliveredInRegistrationOrder() throws Exception {
+
+		OutputListener first = new OutputListener();
+		OutputListener second = new OutputListener();
+		OutputListener third = new OutputListener();
+		router.add(first);
+		router.add(second);
+		router.add(third);
+
+		router.dispatch(outputComplete());
+		assertEquals(3, received.size());
+		assertSame(first, received.get(0));
+		assertSame(second, received.get(1));
+		assertSame(third, received.get(2));
+
+		router.remove(second);
+		router.add(second);
+		received.clear();
+		router.dispatch(outputComplete());
+		assertSame(first, received.get(0));
+		assertSame(third, received.get(1));
+		assertSame(second, received.get(2));
+	}
+
+	@Test
+	public void testListenersRemovedWhileDispatching() throws Exception {
+
+		OutputListener removed = new OutputListener();
+		RemovingListener remover = new RemovingListener(removed);
+		router.add(remover);
+		router.add(removed);
+
+		// Listeners registered when the event was dispatched get the event
+		router.dispatch(outputComplete());
+		assertEquals(1, remover.events);
+		assertEquals(1, removed.events);
+
+		router.dispatch(outputComplete());
+		assertEquals(2, remover.events);
+		assertEquals(1, removed.events);
+	}
+
+	@Test
+	public void testAddAndRemove() throws Exception {
+
+		OutputListener output = new OutputListener();
+		router.add(output);
+		router.add(output);
+		assertEquals(1, router.size());
+		router.dispatch(outputComplete());
+		assertEquals(1, output.events);
+
+		router.remove(new OutputListener());
+		assertEquals(1, router.size());
+		router.remove(output);
+		assertEquals(0, router.size());
+		router.dispatch(outputComplete());
+		assertEquals(1, output.events);
+
+		router.add(output);
+		router.add(new CallListener());
+		router.clear();
+		assertEquals(0, router.size());
+		assertEquals(0, router.route(MohoOutputCompleteEvent.class).length);
+	}
+
+	private Event<?> outputComplete() {
+
+		return new MohoOutputCompleteEvent<EventSource>(call, OutputCompleteEvent.Cause.END, null);
+	}
+
+	private Event<?> callComplete() {
+
+		return new MohoCallCompleteEvent(call, CallCompleteEvent.Cause.NEAR_END_DISCONNECT);
+	}
+
+	public class OutputListener {
+
+		int events;
+
+		@State
+		public void onOutputComplete(OutputCompleteEvent<EventSource> event) {
+			events++;
+			received.add(this);
+		}
+	}
+
+	public class RemovingListener {
+
+		final Object removed;
+		int events;
+
+		RemovingListener(Object removed) {
+			this.removed = removed;
+		}
+
+		@State
+		public void onOutputComplete(OutputCompleteEvent<EventSource> event) {
+			events++;
+			router.remove(removed);
+		}
+	}
+
+	public class CallListener {
+
+		int events;
+
+		@State
+		public void onCallComplete(CallCompleteEvent event) {
+			events++;
+			received.add(this);
+		}
+	}
+}
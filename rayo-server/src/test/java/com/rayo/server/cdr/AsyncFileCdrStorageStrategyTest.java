@@ -0,0 +1,177 @@
+package com.rayo.server.cdr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.math.RandomUtils;
+import org.apache.commons.lang.time.DateUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rayo.core.cdr.Cdr;
+import com.rayo.core.cdr.CdrException;
+
+public class AsyncFileCdrStorageStrategyTest {
+
+	private FileCdrStorageStrategy storage;
+	private File folder;
+	
+	@Before
+	public void setup() throws Exception {
+		
+		storage = new FileCdrStorageStrategy();
+		storage.setAsync(true);
+		storage.setBaseFolder("target/test" + RandomUtils.nextInt(10000));
+		folder = new File(storage.getBaseFolder());
+	}
+	
+	@After
+	public void cleanup() throws Exception {
+		
+		storage.shutdown();
+		FileUtils.deleteDirectory(folder);
+	}
+	
+	@Test
+	public void testCdrsAreWrittenOnShutdown() throws Exception {
+		
+		storage.setCommitInterval(60000);
+		storage.init();
+		
+		Date now = new Date();
+		for (int i = 0; i < 10; i++) {
+			storage.store(cdr("call" + i, now));
+		}
+		storage.shutdown();
+		
+		File file = new File(folder, new SimpleDateFormat("yyyy-MM-dd").format(now) + ".xml");
+		assertEquals(10, FileUtils.readLines(file).size());
+		assertEquals(10, storage.getStoredCdrs());
+		assertEquals(0, storage.getQueueDepth());
+	}
+	
+	@Test
+	public void testCdrFilesRollOver() throws Exception {
+		
+		storage.init();
+		
+		Date now = new Date();
+		Date tomorrow = DateUtils.addDays(now, 1);
+		storage.store(cdr("today", now));
+		storage.store(cdr("tomorrow", tomorrow));
+		storage.store(cdr("today2", now));
+		storage.shutdown();
+
+		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+		assertEquals(2, folder.listFiles().length);
+		assertEquals(2, FileUtils.readLines(new File(folder, sdf.format(now) + ".xml")).size());
+		assertEquals(1, FileUtils.readLines(new File(folder, sdf.format(tomorrow) + ".xml")).size());
+	}
+	
+	@Test
+	public void testAppendsToExistingFile() throws Exception {
+		
+		Date now = new Date();
+		storage.init();
+		storage.store(cdr("first", now));
+		storage.shutdown();
+		
+		storage = new FileCdrStorageStrategy();
+		storage.setAsync(true);
+		storage.setBaseFolder(folder.getPath());
+		storage.init();
+		storage.store(cdr("second", now));
+		storage.shutdown();
+		
+		File file = new File(folder, new SimpleDateFormat("yyyy-MM-dd").format(now) + ".xml");
+		assertEquals(2, FileUtils.readLines(file).size());
+	}
+	
+	@Test
+	public void testConcurrentProducers() throws Exception {
+		
+		final int threads = 8;
+		final int cdrs = 2000;
+		storage.setQueueSize(100);
+		storage.init();
+		
+		final Date now = new Date();
+		final CountDownLatch latch = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++) {
+			final int thread = i;
+			new Thread() {
+				public void run() {
+					try {
+						for (int j = 0; j < cdrs; j++) {
+							storage.store(cdr(thread + "-" + j, now));
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					} finally {
+						latch.countDown();
+					}
+				}
+			}.start();
+		}
+		latch.await();
+		storage.shutdown();
+
+		// Producers wait for room on the full queue instead of dropping CDRs
+		File file = new File(folder, new SimpleDateFormat("yyyy-MM-dd").format(now) + ".xml");
+		assertEquals(threads * cdrs, FileUtils.readLines(file).size());
+		assertEquals(threads * cdrs, storage.getStoredCdrs());
+		assertEquals(0, storage.getFailedCdrs());
+		assertTrue(storage.getAverageBatchSize() >= 1);
+	}
+	
+	@Test
+	public void testCdrsAreRejectedAfterShutdown() throws Exception {
+		
+		storage.init();
+		storage.shutdown();
+		
+		try {
+			storage.store(cdr("late", new Date()));
+			fail("Expected the storage to be shut down");
+		} catch (CdrException e) {
+		}
+		assertEquals(0, storage.getStoredCdrs());
+		assertEquals(1, storage.getFailedCdrs());
+	}
+	
+	@Test
+	public void testOverwritesFileWhenNotAppending() throws Exception {
+		
+		folder.mkdirs();
+		File file = new File(folder, "cdrs.xml");
+		FileUtils.writeStringToFile(file, "old\n");
+		
+		storage = new FileCdrStorageStrategy();
+		storage.setAsync(true);
+		storage.setBaseFolder(null);
+		storage.setPath(file.getPath());
+		storage.setAppend(false);
+		storage.init();
+		storage.store(cdr("new", new Date()));
+		storage.shutdown();
+		
+		assertEquals(1, FileUtils.readLines(file).size());
+		assertTrue(FileUtils.readFileToString(file).contains("new"));
+	}
+	
+	private Cdr cdr(String callId, Date start) {
+		
+		Cdr cdr = new Cdr();
+		cdr.setCallId(callId);
+		cdr.setStartTime(start.getTime());
+		return cdr;
+	}
+}
@@ -0,0 +1,90 @@
+package com.rayo.server.cdr;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.rayo.core.cdr.Cdr;
+
+/**
+ * <p>Compares storing CDRs with the synchronous {@link FileCdrStorageStrategy}, which 
+ * writes and flushes every CDR on the calling thread, with the asynchronous writer.</p>
+ * 
+ * <p>Several threads store CDRs at the same time, like the fibers of calls hanging up 
+ * at the same time would. Reports the average time a producer spends storing a CDR, 
+ * the total time until every CDR is on disk and the average group size.</p>
+ * 
+ * @author martin
+ *
+ */
+public class FileCdrBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int cdrs = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		File folder = new File(System.getProperty("java.io.tmpdir"), "cdr-benchmark-" + System.currentTimeMillis());
+
+		// Warm up
+		run(false, folder, threads, cdrs / 10);
+		run(true, folder, threads, cdrs / 10);
+
+		System.out.println("mode\tstore us\ttotal ms\tstored\toverflowed\tavg batch");
+		run(false, folder, threads, cdrs);
+		run(true, folder, threads, cdrs);
+
+		for (File file: folder.listFiles()) {
+			file.delete();
+		}
+		folder.delete();
+	}
+
+	private static void run(boolean async, File folder, int threads, final int cdrs) throws Exception {
+
+		final FileCdrStorageStrategy storage = new FileCdrStorageStrategy();
+		storage.setAsync(async);
+		storage.setQueueSize(threads * cdrs);
+		storage.setBaseFolder(folder.getAbsolutePath());
+		storage.init();
+
+		final Cdr cdr = new Cdr();
+		cdr.setCallId("0f4b1a2c-7f39-4b22-8a57-2b7c1c4f7a11");
+		cdr.setFrom("sip:usera@example.com");
+		cdr.setTo("sip:userb@example.com");
+		cdr.setStartTime(System.currentTimeMillis());
+		cdr.setEndTime(System.currentTimeMillis());
+		cdr.setState("DISCONNECTED");
+		for (int i = 0; i < 5; i++) {
+			cdr.add("<offer xmlns=\"urn:xmpp:rayo:1\" to=\"sip:userb@example.com\" from=\"sip:usera@example.com\"/>");
+		}
+
+		final AtomicLong storeTime = new AtomicLong();
+		final CountDownLatch latch = new CountDownLatch(threads);
+		long init = System.nanoTime();
+		for (int i = 0; i < threads; i++) {
+			new Thread() {
+				public void run() {
+					try {
+						long start = System.nanoTime();
+						for (int j = 0; j < cdrs; j++) {
+							storage.store(cdr);
+						}
+						storeTime.addAndGet(System.nanoTime() - start);
+					} catch (Exception e) {
+						e.printStackTrace();
+					} finally {
+						latch.countDown();
+					}
+				}
+			}.start();
+		}
+		latch.await();
+		// Shutting down waits until everything is written
+		storage.shutdown();
+		long total = System.nanoTime() - init;
+
+		System.out.println(String.format("%s\t%s\t%s\t%s\t%s\t%s", async ? "async" : "sync",
+				storeTime.get() / 1000.0 / (threads * cdrs), total / 1000000,
+				storage.getStoredCdrs(), storage.getOverflowedCdrs(), storage.getAverageBatchSize()));
+	}
+}
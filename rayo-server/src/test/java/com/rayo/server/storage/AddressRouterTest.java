@@ -0,0 +1,86 @@
+package com.rayo.server.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class AddressRouterTest {
+
+	@Test
+	public void testFirstMatchWins() throws Exception {
+		
+		AddressRouter router = router(
+			".*usera@localhost.*", "usera",
+			".*@localhost.*", "others",
+			"usera", "never");
+		
+		assertEquals("usera", router.lookup("sip:usera@localhost"));
+		assertEquals("others", router.lookup("sip:userb@localhost"));
+		assertNull(router.lookup("sip:userb@remotehost"));
+	}
+	
+	@Test
+	public void testRegexpsKeepTheirPosition() throws Exception {
+		
+		AddressRouter router = router(
+			"sip:user[0-9]+@localhost", "numbered",
+			"sip:user1@localhost", "user1",
+			".*", "all");
+		
+		assertEquals(2, router.getRegexpRoutes());
+		assertEquals("numbered", router.lookup("sip:user1@localhost"));
+		assertEquals("all", router.lookup("sip:usera@localhost"));
+	}
+	
+	@Test
+	public void testDotsAreWildcards() throws Exception {
+		
+		AddressRouter router = router(
+			"sip:a.b@localhost", "dotted",
+			"sip:arabbit@.*", "rabbit");
+		
+		assertEquals(0, router.getRegexpRoutes());
+		assertEquals("dotted", router.lookup("sip:a.b@localhost"));
+		assertEquals("dotted", router.lookup("sip:axb@localhost"));
+		assertEquals("rabbit", router.lookup("sip:arabbit@127.0.0.1"));
+		assertNull(router.lookup("sip:ab@localhost"));
+	}
+	
+	@Test
+	public void testNumbers() throws Exception {
+		
+		AddressRouter router = router(
+			"+13457800", "plus",
+			"tel:+3491", "tel");
+		
+		assertEquals(0, router.getRegexpRoutes());
+		assertEquals("plus", router.lookup("sip:+13457800123@gw.example.com"));
+		assertNull(router.lookup("sip:13457800123@gw.example.com"));
+		// The + is a quantifier when it is not at the beginning 
+		assertEquals("tel", router.lookup("tel::::3491000"));
+		assertNull(router.lookup("tel+3491000"));
+	}
+	
+	@Test
+	public void testCachedLookups() throws Exception {
+		
+		AddressRouter router = router(".*@localhost", "local");
+		for (int i = 0; i < 3; i++) {
+			assertEquals("local", router.lookup("sip:a@localhost"));
+			assertNull(router.lookup("sip:a@remotehost"));
+		}
+	}
+	
+	private AddressRouter router(String... mappings) {
+		
+		List<PropertiesValue> values = new ArrayList<PropertiesValue>();
+		for (int i = 0; i < mappings.length; i+=2) {
+			values.add(new PropertiesValue(mappings[i], mappings[i + 1]));
+		}
+		return new AddressRouter(values, 2);
+	}
+}
@@ -0,0 +1,132 @@
+package com.rayo.server.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <p>Compares the {@link AddressRouter} used by {@link PropertiesBasedDatastore#lookup(java.net.URI)}
+ * with the linear scan over every pattern that the datastore used to do.</p>
+ *
+ * <p>Routing tables of 10k and 100k routes are generated with SIP addresses, phone
+ * numbers, a few real regular expressions and a catch-all route at the end. Lookups
+ * pick random addresses, some of them falling through to the catch-all route. The
+ * router is measured with and without its lookup cache. Reports the average lookup
+ * time in microseconds.</p>
+ *
+ * @author martin
+ *
+ */
+public class AddressRoutingBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		int lookups = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int[] sizes = new int[] {10000, 100000};
+
+		System.out.println("routes\tregexp routes\tbuild ms\tlinear us\trouter us\tcached router us");
+		for (int size: sizes) {
+			List<PropertiesValue> routes = routes(size);
+			String[] addresses = addresses(size, lookups);
+
+			long init = System.nanoTime();
+			AddressRouter router = new AddressRouter(routes, 0);
+			long build = (System.nanoTime() - init) / 1000000;
+			AddressRouter cached = new AddressRouter(routes, 10000);
+
+			// Warm up
+			linear(routes, addresses);
+			routed(router, addresses);
+			routed(cached, addresses);
+
+			System.out.println(String.format("%s\t%s\t%s\t%s\t%s\t%s", size, router.getRegexpRoutes(), build,
+					linear(routes, addresses), routed(router, addresses), routed(cached, addresses)));
+		}
+	}
+
+	private static List<PropertiesValue> routes(int size) {
+
+		List<PropertiesValue> routes = new ArrayList<PropertiesValue>();
+		for (int i = 0; i < size; i++) {
+			switch (i % 4) {
+				case 0:
+					routes.add(new PropertiesValue("sip:user" + i + "@apps.example.com", "app" + i + "@apps.tropo.com"));
+					break;
+				case 1:
+					routes.add(new PropertiesValue("+1415" + (5000000 + i), "app" + i + "@apps.tropo.com"));
+					break;
+				case 2:
+					routes.add(new PropertiesValue(".*sipusername" + i + "@.*", "app" + i + "@apps.tropo.com"));
+					break;
+				default:
+					if (i % 1000 == 3) {
+						routes.add(new PropertiesValue("sip:[a-z]+" + i + "@regexp\\.example\\.com", "app" + i + "@apps.tropo.com"));
+					} else {
+						routes.add(new PropertiesValue("tel:+3491" + (1000000 + i), "app" + i + "@apps.tropo.com"));
+					}
+			}
+		}
+		routes.add(new PropertiesValue(".*", "default@apps.tropo.com"));
+		return routes;
+	}
+
+	private static String[] addresses(int size, int lookups) {
+
+		Random random = new Random(42);
+		String[] addresses = new String[lookups];
+		for (int i = 0; i < lookups; i++) {
+			int route = random.nextInt(size);
+			switch (random.nextInt(5)) {
+				case 0:
+					addresses[i] = "sip:user" + (route - route % 4) + "@apps.example.com";
+					break;
+				case 1:
+					addresses[i] = "sip:+1415" + (5000000 + route - route % 4 + 1) + "@gw.example.com:5060";
+					break;
+				case 2:
+					addresses[i] = "sip:sipusername" + (route - route % 4 + 2) + "@10.0.0.1";
+					break;
+				case 3:
+					addresses[i] = "tel:+3491" + (1000000 + route - route % 4 + 3);
+					break;
+				default:
+					addresses[i] = "sip:unknown" + route + "@nowhere.example.com";
+			}
+		}
+		return addresses;
+	}
+
+	private static double linear(List<PropertiesValue> routes, String[] addresses) {
+
+		long sink = 0;
+		long init = System.nanoTime();
+		for (String address: addresses) {
+			for (PropertiesValue route: routes) {
+				if (route.getPattern().matcher(address).matches()) {
+					sink+= route.getApplication().length();
+					break;
+				}
+			}
+		}
+		return report(init, sink, addresses.length);
+	}
+
+	private static double routed(AddressRouter router, String[] addresses) {
+
+		long sink = 0;
+		long init = System.nanoTime();
+		for (String address: addresses) {
+			sink+= router.lookup(address).length();
+		}
+		return report(init, sink, addresses.length);
+	}
+
+	private static double report(long init, long sink, int lookups) {
+
+		long elapsed = System.nanoTime() - init;
+		if (sink == 42) {
+			System.out.println();
+		}
+		return elapsed / 1000.0 / lookups;
+	}
+}
@@ -11,6 +11,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
 import org.junit.Test;
 
@@ -228,6 +229,48 @@ public abstract class BaseDatastoreTest {
 		assertNull(store.getCall("1234"));
 	}
 
+	@Test
+	public void testGetCallsByIds() throws Exception {
+
+		RayoNode node = buildRayoNode("localhost","127.0.0.1", new String[] { "staging" });
+		store.storeNode(node);
+		GatewayCall call1 = new GatewayCall("1234", node.getHostname(), "clienta@jabber.org");
+		GatewayCall call2 = new GatewayCall("5678", node.getHostname(), "clientb@jabber.org");
+		store.storeCall(call1);
+		store.storeCall(call2);
+
+		Map<String, GatewayCall> calls = store.getCalls(Arrays.asList("1234", "5678", "abcd"));
+		assertEquals(2, calls.size());
+		assertEquals(call1, calls.get("1234"));
+		assertEquals("clienta@jabber.org", calls.get("1234").getClientJid());
+		assertEquals(call2, calls.get("5678"));
+		assertEquals("clientb@jabber.org", calls.get("5678").getClientJid());
+	}
+
+	@Test
+	public void testGetCallsByIdsNotFound() throws Exception {
+
+		assertTrue(store.getCalls(Arrays.asList("1234", "5678")).isEmpty());
+	}
+
+	@Test
+	public void testRemoveCalls() throws Exception {
+
+		RayoNode node = buildRayoNode("localhost","127.0.0.1", new String[] { "staging" });
+		store.storeNode(node);
+		store.storeCall(new GatewayCall("1234", node.getHostname(), "clienta@jabber.org"));
+		store.storeCall(new GatewayCall("5678", node.getHostname(), "clienta@jabber.org"));
+		store.storeCall(new GatewayCall("9012", node.getHostname(), "clientb@jabber.org"));
+
+		Collection<GatewayCall> removed = store.removeCalls(Arrays.asList("1234", "5678", "abcd"));
+		assertEquals(2, removed.size());
+		assertNull(store.getCall("1234"));
+		assertNull(store.getCall("5678"));
+		assertNotNull(store.getCall("9012"));
+		assertTrue(store.getCallsForClient("clienta@jabber.org").isEmpty());
+		assertEquals(1, store.getCallsForNode(node.getHostname()).size());
+	}
+
 	@Test
 	public void testGetNodeForCall() throws Exception {
 
@@ -0,0 +1,195 @@
+package com.rayo.server.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import com.rayo.server.storage.memory.InMemoryDatastore;
+import com.rayo.server.storage.model.GatewayCall;
+
+/**
+ * <p>Measures the datastore round trips of a client going offline with many active
+ * calls, which the gateway used to clean up with one unregistercall per call, and of
+ * resolving the client of every call, which the gateway does for every mixer event
+ * and when a Rayo Node goes away.</p>
+ *
+ * <p>The datastore is an {@link InMemoryDatastore} that waits a fixed time on every
+ * request to stand for the network round trip of a clustered datastore. A bulk
+ * request counts as a single round trip.</p>
+ *
+ * <p>Arguments: calls per client, disconnects and request latency in microseconds.</p>
+ *
+ * @author martin
+ *
+ */
+public class BulkDatastoreBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		int calls = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int disconnects = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		long latency = args.length > 2 ? Long.parseLong(args[2]) : 500;
+
+		RoundTripDatastore store = new RoundTripDatastore(TimeUnit.MICROSECONDS.toNanos(latency));
+		store.storeNode(BaseDatastoreTest.buildRayoNode("node", "127.0.0.1", new String[] {"staging"}));
+		DefaultGatewayStorageService service = new DefaultGatewayStorageService();
+		service.setStore(store);
+
+		// Warm up
+		disconnect(service, store, calls, 1, false);
+		disconnect(service, store, calls, 1, true);
+		resolve(service, store, calls, 1, false);
+		resolve(service, store, calls, 1, true);
+
+		System.out.println(String.format("%s calls per client, %s disconnects, %sus per datastore request",
+				calls, disconnects, latency));
+		System.out.println("operation\tround trips\tms/operation");
+		report("disconnect, per call", store, disconnect(service, store, calls, disconnects, false), disconnects);
+		report("disconnect, bulk", store, disconnect(service, store, calls, disconnects, true), disconnects);
+		report("resolve jids, per call", store, resolve(service, store, calls, disconnects, false), disconnects);
+		report("resolve jids, bulk", store, resolve(service, store, calls, disconnects, true), disconnects);
+	}
+
+	private static void report(String name, RoundTripDatastore store, long elapsed, int operations) {
+
+		int requests = store.requests.getAndSet(0);
+		System.out.println(String.format("%s\t%s\t%.2f", name,
+				requests / operations, elapsed / 1000000.0 / operations));
+	}
+
+	private static List<String> populate(RoundTripDatastore store, String client, int calls) throws Exception {
+
+		List<String> callIds = new ArrayList<String>(calls);
+		for (int i = 0; i < calls; i++) {
+			String callId = client + "-call" + i;
+			store.storeCall(new GatewayCall(callId, "node", client));
+			callIds.add(callId);
+		}
+		store.requests.set(0);
+		return callIds;
+	}
+
+	/**
+	 * Same datastore requests as GatewayServlet.processClientPresence when a client
+	 * goes offline
+	 */
+	private static long disconnect(DefaultGatewayStorageService service, RoundTripDatastore store,
+			int calls, int disconnects, boolean bulk) throws Exception {
+
+		long elapsed = 0;
+		int requests = 0;
+		for (int i = 0; i < disconnects; i++) {
+			String client = "client" + i + "@jabber.org/rayo";
+			populate(store, client, calls);
+			long init = System.nanoTime();
+			Collection<String> callIds = service.getCallsForClient(client);
+			if (bulk) {
+				service.unregistercalls(callIds);
+			} else {
+				for (String callId: callIds) {
+					service.unregistercall(callId);
+				}
+			}
+			elapsed+= System.nanoTime() - init;
+			requests+= store.requests.get();
+			if (!service.getCallsForClient(client).isEmpty()) {
+				throw new IllegalStateException("Calls left for " + client);
+			}
+		}
+		store.requests.set(requests);
+		return elapsed;
+	}
+
+	/**
+	 * Finds the client of every call as GatewayServlet does before sending mixer
+	 * events or the end of the calls of a Rayo Node
+	 */
+	private static long resolve(DefaultGatewayStorageService service, RoundTripDatastore store,
+			int calls, int operations, boolean bulk) throws Exception {
+
+		String client = "resolve@jabber.org/rayo";
+		List<String> callIds = populate(store, client, calls);
+		long elapsed = 0;
+		for (int i = 0; i < operations; i++) {
+			long init = System.nanoTime();
+			int found = 0;
+			if (bulk) {
+				Map<String, String> jids = service.getclientJIDs(callIds);
+				found = jids.size();
+			} else {
+				for (String callId: callIds) {
+					if (service.getclientJID(callId) != null) {
+						found++;
+					}
+				}
+			}
+			elapsed+= System.nanoTime() - init;
+			if (found != calls) {
+				throw new IllegalStateException(String.format("Found %s calls out of %s", found, calls));
+			}
+		}
+		int requests = store.requests.get();
+		store.removeCalls(callIds);
+		store.requests.set(requests);
+		return elapsed;
+	}
+
+	/**
+	 * In-memory datastore that waits on every call request as if it was a remote datastore
+	 */
+	static class RoundTripDatastore extends InMemoryDatastore {
+
+		final long latency;
+		final AtomicInteger requests = new AtomicInteger();
+
+		RoundTripDatastore(long latency) {
+
+			this.latency = latency;
+		}
+
+		private void roundTrip() {
+
+			requests.incrementAndGet();
+			LockSupport.parkNanos(latency);
+		}
+
+		@Override
+		public GatewayCall getCall(String id) {
+
+			roundTrip();
+			return super.getCall(id);
+		}
+
+		@Override
+		public Map<String, GatewayCall> getCalls(Collection<String> callIds) {
+
+			roundTrip();
+			return super.getCalls(callIds);
+		}
+
+		@Override
+		public GatewayCall removeCall(String id) throws DatastoreException {
+
+			roundTrip();
+			return super.removeCall(id);
+		}
+
+		@Override
+		public Collection<GatewayCall> removeCalls(Collection<String> callIds) throws DatastoreException {
+
+			roundTrip();
+			return super.removeCalls(callIds);
+		}
+
+		@Override
+		public Collection<String> getCallsForClient(String jid) {
+
+			roundTrip();
+			return super.getCallsForClient(jid);
+		}
+	}
+}
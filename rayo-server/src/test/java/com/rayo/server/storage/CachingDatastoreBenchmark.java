@@ -0,0 +1,192 @@
+package com.rayo.server.storage;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import com.rayo.server.storage.memory.InMemoryDatastore;
+import com.rayo.server.storage.model.GatewayCall;
+import com.rayo.server.storage.model.GatewayMixer;
+import com.rayo.server.storage.model.GatewayVerb;
+
+/**
+ * <p>Measures the lookups the gateway does to route a mixer event: the mixer, its
+ * filters, the verb that sent the event and the client of every participant. The
+ * datastore is an {@link InMemoryDatastore} that waits a fixed time on every read
+ * to stand for the network round trip of a clustered datastore.</p>
+ *
+ * <p>A small fraction of the events joins or unjoins a call, which invalidates the
+ * mixer entry like it happens on a real gateway.</p>
+ *
+ * <p>Arguments: events per thread, threads, read latency in microseconds, mixers and
+ * participants per mixer.</p>
+ *
+ * @author martin
+ *
+ */
+public class CachingDatastoreBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		int events = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		long latency = args.length > 2 ? Long.parseLong(args[2]) : 500;
+		int mixers = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+		int participants = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+
+		SlowDatastore slow = new SlowDatastore(TimeUnit.MICROSECONDS.toNanos(latency));
+		populate(slow, mixers, participants);
+		CachingGatewayDatastore cache = new CachingGatewayDatastore(slow);
+
+		// Warm up
+		run(slow, events / 10, threads, mixers, participants);
+		run(cache, events / 10, threads, mixers, participants);
+		cache.clear();
+		cache.resetStatistics();
+
+		System.out.println(String.format("%s threads, %sus per datastore read, %s mixers with %s participants",
+				threads, latency, mixers, participants));
+		System.out.println("datastore\tevents/s\tus/event\treads/event");
+		report("plain", slow, run(slow, events, threads, mixers, participants), events * threads);
+		report("cached", slow, run(cache, events, threads, mixers, participants), events * threads);
+		System.out.println(String.format("hit ratio %.3f, mean hit age %sms, invalidations %s",
+				cache.getHitRatio(), cache.getMeanHitAge(), cache.getInvalidations()));
+	}
+
+	private static void report(String name, SlowDatastore slow, long elapsed, int events) {
+
+		int reads = slow.reads.getAndSet(0);
+		System.out.println(String.format("%s\t%s\t%s\t%.2f", name,
+				events * 1000000000L / elapsed, elapsed / 1000 / events, (double)reads / events));
+	}
+
+	private static void populate(GatewayDatastore store, int mixers, int participants) throws Exception {
+
+		store.storeNode(BaseDatastoreTest.buildRayoNode("node", "127.0.0.1", new String[] {"staging"}));
+		for (int i = 0; i < mixers; i++) {
+			String mixer = "mixer" + i;
+			store.storeMixer(new GatewayMixer(mixer, "node"));
+			for (int j = 0; j < participants; j++) {
+				String callId = mixer + "-call" + j;
+				store.storeCall(new GatewayCall(callId, "node", "client" + j + "@jabber.org/rayo"));
+				store.addCallToMixer(callId, mixer);
+			}
+			store.addVerbToMixer(new GatewayVerb(mixer, "verb", "client0@jabber.org"), mixer);
+			store.createFilter("client1@jabber.org", mixer);
+		}
+		if (store instanceof SlowDatastore) {
+			((SlowDatastore)store).reads.set(0);
+		}
+	}
+
+	private static long run(final GatewayDatastore store, final int events, int threads,
+			final int mixers, final int participants) throws Exception {
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicInteger sink = new AtomicInteger();
+		for (int t = 0; t < threads; t++) {
+			final int seed = t;
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						int routed = 0;
+						for (int i = 0; i < events; i++) {
+							String mixerName = "mixer" + ((seed * 31 + i) % mixers);
+							if (i % 100 == 99) {
+								// A participant leaves and joins again
+								String callId = mixerName + "-call0";
+								store.removeCallFromMixer(callId, mixerName);
+								store.addCallToMixer(callId, mixerName);
+							}
+							routed+= route(store, mixerName);
+						}
+						sink.addAndGet(routed);
+					} catch (Exception e) {
+						e.printStackTrace();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		long init = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - init;
+		if (sink.get() == 42) {
+			System.out.println();
+		}
+		return elapsed;
+	}
+
+	/**
+	 * Same lookups as GatewayServlet.processMixerPresence
+	 */
+	private static int route(GatewayDatastore store, String mixerName) throws Exception {
+
+		GatewayMixer mixer = store.getMixer(mixerName);
+		List<String> filtered = store.getFilteredApplications(mixer.getName());
+		GatewayVerb verb = store.getVerb(mixer.getName(), "verb");
+		int targets = verb != null ? 1 : 0;
+		for (String participant: mixer.getParticipants()) {
+			GatewayCall call = store.getCall(participant);
+			if (call != null && !filtered.contains(call.getClientJid())) {
+				targets++;
+			}
+		}
+		return targets;
+	}
+
+	/**
+	 * In-memory datastore that waits on every read as if it was a remote datastore
+	 */
+	static class SlowDatastore extends InMemoryDatastore {
+
+		final long latency;
+		final AtomicInteger reads = new AtomicInteger();
+
+		SlowDatastore(long latency) {
+
+			this.latency = latency;
+		}
+
+		private void roundTrip() {
+
+			reads.incrementAndGet();
+			LockSupport.parkNanos(latency);
+		}
+
+		@Override
+		public GatewayCall getCall(String id) {
+
+			roundTrip();
+			return super.getCall(id);
+		}
+
+		@Override
+		public GatewayMixer getMixer(String mixerName) {
+
+			roundTrip();
+			return super.getMixer(mixerName);
+		}
+
+		@Override
+		public GatewayVerb getVerb(String mixerName, String verbId) {
+
+			roundTrip();
+			return super.getVerb(mixerName, verbId);
+		}
+
+		@Override
+		public List<String> getFilteredApplications(String id) throws DatastoreException {
+
+			roundTrip();
+			return super.getFilteredApplications(id);
+		}
+	}
+}
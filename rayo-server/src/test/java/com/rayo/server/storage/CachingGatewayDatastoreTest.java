@@ -0,0 +1,243 @@
+package com.rayo.server.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rayo.server.storage.memory.InMemoryDatastore;
+import com.rayo.server.storage.model.GatewayCall;
+import com.rayo.server.storage.model.GatewayMixer;
+import com.rayo.server.storage.model.GatewayVerb;
+
+/**
+ * Runs the datastore tests through the cache and checks the cache on its own
+ */
+public class CachingGatewayDatastoreTest extends BaseDatastoreTest {
+
+	private CountingDatastore backend;
+	private CachingGatewayDatastore cache;
+
+	@Before
+	public void setup() {
+
+		backend = new CountingDatastore();
+		cache = new CachingGatewayDatastore(backend);
+		store = cache;
+	}
+
+	@Test
+	public void testReadsThroughOnce() throws Exception {
+
+		storeCall("1234");
+
+		assertEquals("localhost", cache.getCall("1234").getNodeJid());
+		assertEquals("localhost", cache.getNodeForCall("1234"));
+		assertEquals("client@jabber.org", cache.getCall("1234").getClientJid());
+
+		assertEquals(1, backend.callReads.get());
+		assertEquals(new Long(2), cache.getHits().get("calls"));
+		assertEquals(new Long(1), cache.getMisses().get("calls"));
+	}
+
+	@Test
+	public void testBulkLookupOnlyReadsMissingCalls() throws Exception {
+
+		storeCall("1234");
+		storeCall("5678");
+		cache.getCall("1234");
+
+		Map<String, GatewayCall> calls = cache.getCalls(Arrays.asList("1234", "5678"));
+		assertEquals(2, calls.size());
+		assertEquals(Arrays.asList("5678"), backend.bulkReads);
+
+		// Both cached now
+		assertEquals(2, cache.getCalls(Arrays.asList("1234", "5678")).size());
+		assertEquals(1, backend.bulkReads.size());
+
+		cache.removeCalls(Arrays.asList("1234", "5678"));
+		assertTrue(cache.getCalls(Arrays.asList("1234", "5678")).isEmpty());
+	}
+
+	@Test
+	public void testMissingEntitiesAreNotCached() throws Exception {
+
+		assertNull(cache.getCall("1234"));
+		storeCall("1234");
+		assertNotNull(cache.getCall("1234"));
+	}
+
+	@Test
+	public void testOwnWritesInvalidate() throws Exception {
+
+		storeCall("1234");
+		cache.storeMixer(new GatewayMixer("mixer", "localhost"));
+		assertEquals(0, cache.getMixer("mixer").getParticipants().size());
+
+		cache.addCallToMixer("1234", "mixer");
+		assertEquals(1, cache.getMixer("mixer").getParticipants().size());
+
+		cache.createFilter("app@jabber.org", "mixer");
+		assertEquals(1, cache.getFilteredApplications("mixer").size());
+		cache.removeFilters("mixer");
+		assertEquals(0, cache.getFilteredApplications("mixer").size());
+
+		cache.addVerbToMixer(new GatewayVerb("mixer", "verb", "app@jabber.org"), "mixer");
+		assertNotNull(cache.getVerb("mixer", "verb"));
+		cache.removeVerbFromMixer("verb", "mixer");
+		assertNull(cache.getVerb("mixer", "verb"));
+
+		assertNotNull(cache.getCall("1234"));
+		cache.removeCall("1234");
+		assertNull(cache.getCall("1234"));
+		assertTrue(cache.getInvalidations().get("calls") > 0);
+	}
+
+	@Test
+	public void testInvalidationDuringReadOnlyDropsThatKey() throws Exception {
+
+		storeCall("1234");
+		storeCall("5678");
+
+		// Another call is removed while 1234 is read from the datastore
+		backend.duringCallRead = new Runnable() {
+			public void run() {
+				try {
+					cache.removeCall("5678");
+				} catch (DatastoreException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		assertNotNull(cache.getCall("1234"));
+		backend.duringCallRead = null;
+		assertNotNull(cache.getCall("1234"));
+		assertEquals(1, backend.callReads.get());
+
+		// The call itself is moved while it is read, so the value read is stale
+		backend.duringCallRead = new Runnable() {
+			public void run() {
+				try {
+					cache.storeCall(new GatewayCall("5678", "localhost", "other@jabber.org"));
+				} catch (DatastoreException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		backend.removeCall("5678");
+		backend.storeCall(new GatewayCall("5678", "localhost", "client@jabber.org"));
+		assertEquals("client@jabber.org", cache.getCall("5678").getClientJid());
+		backend.duringCallRead = null;
+		assertEquals("other@jabber.org", cache.getCall("5678").getClientJid());
+		assertEquals(3, backend.callReads.get());
+	}
+
+	@Test
+	public void testRemovingMixerInvalidatesItsVerbs() throws Exception {
+
+		cache.storeMixer(new GatewayMixer("mixer", "localhost"));
+		cache.addVerbToMixer(new GatewayVerb("mixer", "verb", "app@jabber.org"), "mixer");
+		assertNotNull(cache.getVerb("mixer", "verb"));
+
+		backend.removeVerbFromMixer("verb", "mixer");
+		cache.removeMixer("mixer");
+
+		assertNull(cache.getVerb("mixer", "verb"));
+	}
+
+	@Test
+	public void testForeignWritesSeenAfterExpiration() throws Exception {
+
+		cache.setCallTtl(50);
+		storeCall("1234");
+		assertNotNull(cache.getCall("1234"));
+
+		// Another gateway removes the call
+		backend.removeCall("1234");
+		assertNotNull(cache.getCall("1234"));
+
+		Thread.sleep(100);
+		assertNull(cache.getCall("1234"));
+		assertEquals(new Long(1), cache.getExpirations().get("calls"));
+	}
+
+	@Test
+	public void testZeroTtlDisablesCache() throws Exception {
+
+		cache.setCallTtl(0);
+		storeCall("1234");
+		cache.getCall("1234");
+		cache.getCall("1234");
+
+		assertEquals(2, backend.callReads.get());
+		assertEquals(new Integer(0), cache.getSizes().get("calls"));
+	}
+
+	@Test
+	public void testSizeIsBounded() throws Exception {
+
+		cache.setMaxSize(100);
+		for (int i = 0; i < 1000; i++) {
+			storeCall(String.valueOf(i));
+			cache.getCall(String.valueOf(i));
+		}
+
+		assertTrue(cache.getSizes().get("calls") <= 100);
+		assertTrue(cache.getEvictions().get("calls") > 0);
+	}
+
+	@Test
+	public void testClear() throws Exception {
+
+		storeCall("1234");
+		cache.getCall("1234");
+		cache.clear();
+		cache.getCall("1234");
+
+		assertEquals(2, backend.callReads.get());
+	}
+
+	private void storeCall(String callId) throws Exception {
+
+		if (cache.getNode("localhost") == null) {
+			cache.storeNode(buildRayoNode("localhost", "127.0.0.1", new String[] { "staging" }));
+		}
+		cache.storeCall(new GatewayCall(callId, "localhost", "client@jabber.org"));
+	}
+
+	class CountingDatastore extends InMemoryDatastore {
+
+		AtomicInteger callReads = new AtomicInteger();
+		List<String> bulkReads = new ArrayList<String>();
+		volatile Runnable duringCallRead;
+
+		@Override
+		public GatewayCall getCall(String id) {
+
+			callReads.incrementAndGet();
+			GatewayCall call = super.getCall(id);
+			Runnable write = duringCallRead;
+			if (write != null) {
+				write.run();
+			}
+			return call;
+		}
+
+		@Override
+		public Map<String, GatewayCall> getCalls(Collection<String> callIds) {
+
+			bulkReads.addAll(callIds);
+			return super.getCalls(callIds);
+		}
+	}
+}
@@ -0,0 +1,328 @@
+package com.rayo.server.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rayo.server.storage.memory.InMemoryDatastore;
+import com.rayo.server.storage.model.GatewayCall;
+import com.rayo.server.storage.model.RayoNode;
+
+/**
+ * Runs the datastore tests through the routing table and checks the routing table
+ * on its own
+ */
+public class CallRoutingDatastoreTest extends BaseDatastoreTest {
+
+	private BackupDatastore backend;
+	private CallRoutingDatastore routing;
+
+	@Before
+	public void setup() {
+
+		backend = new BackupDatastore();
+		routing = new CallRoutingDatastore(backend);
+		routing.init();
+		store = routing;
+	}
+
+	@After
+	public void shutdown() {
+
+		backend.removals.countDown();
+		routing.shutdown();
+	}
+
+	@Test
+	public void testLookupsServedFromTable() throws Exception {
+
+		storeCall("1234", "localhost");
+
+		assertEquals("localhost", routing.getNodeForCall("1234"));
+		assertEquals("client@jabber.org", routing.getCall("1234").getClientJid());
+		assertEquals(0, backend.callReads.get());
+		assertEquals(1, routing.getRoutedCalls());
+	}
+
+	@Test
+	public void testWritesAreReplicated() throws Exception {
+
+		backend.removals.countDown();
+		storeCall("1234", "localhost");
+		storeCall("abcd", "localhost");
+		routing.removeCall("1234");
+
+		assertTrue(routing.flush(5000));
+		assertNull(backend.getCall("1234"));
+		assertNotNull(backend.getCall("abcd"));
+		assertEquals(3, routing.getReplicatedWrites());
+		assertEquals(0, routing.getPendingWrites());
+	}
+
+	@Test
+	public void testTableReloadedOnInit() throws Exception {
+
+		backend.removals.countDown();
+		storeCall("1234", "localhost");
+		storeCall("abcd", "localhost");
+		assertTrue(routing.flush(5000));
+		routing.shutdown();
+
+		// Gateway restarts
+		CallRoutingDatastore restarted = new CallRoutingDatastore(backend);
+		restarted.setReadThrough(false);
+		restarted.init();
+		try {
+			assertEquals(2, restarted.getReloadedCalls());
+			assertEquals(2, restarted.getRoutedCalls());
+			assertEquals("localhost", restarted.getNodeForCall("abcd"));
+			assertEquals(2, restarted.getCallsForNode("localhost").size());
+		} finally {
+			restarted.shutdown();
+		}
+	}
+
+	@Test
+	public void testCallsReadThroughAfterRestart() throws Exception {
+
+		backend.removals.countDown();
+		storeCall("1234", "localhost");
+		assertTrue(routing.flush(5000));
+		routing.shutdown();
+		// Registered by another gateway
+		backend.storeCall(new GatewayCall("abcd", "localhost", "client@jabber.org"));
+
+		// Gateway restarts
+		CallRoutingDatastore restarted = new CallRoutingDatastore(backend);
+		restarted.init();
+		try {
+			assertEquals(0, restarted.getReloadedCalls());
+			assertEquals(0, restarted.getRoutedCalls());
+			assertEquals("localhost", restarted.getNodeForCall("1234"));
+			assertEquals(2, restarted.getCallsForNode("localhost").size());
+			assertNotNull(restarted.removeCall("1234"));
+			assertNull(backend.getCall("1234"));
+		} finally {
+			restarted.shutdown();
+		}
+	}
+
+	@Test
+	public void testCallsCheckedAgainstKnownNodes() throws Exception {
+
+		routing.storeNode(buildRayoNode("localhost", "127.0.0.1", new String[] { "staging" }));
+		routing.storeCall(new GatewayCall("1234", "localhost", "client@jabber.org"));
+		routing.storeCall(new GatewayCall("5678", "localhost", "client@jabber.org"));
+		assertEquals(0, backend.nodeReads.get());
+
+		// Stored by another gateway
+		backend.storeNode(buildRayoNode("remote", "127.0.0.2", new String[] { "staging" }));
+		routing.storeCall(new GatewayCall("remote1", "remote", "client@jabber.org"));
+		routing.storeCall(new GatewayCall("remote2", "remote", "client@jabber.org"));
+		assertEquals(1, backend.nodeReads.get());
+
+		routing.removeNode("localhost");
+		try {
+			routing.storeCall(new GatewayCall("abcd", "localhost", "client@jabber.org"));
+			fail("Expected RayoNodeNotFoundException");
+		} catch (RayoNodeNotFoundException e) {
+			// Expected
+		}
+
+		// Removed by another gateway. Noticed once the node expires.
+		routing.setNodeTtl(0);
+		backend.removeNode("remote");
+		try {
+			routing.storeCall(new GatewayCall("remote3", "remote", "client@jabber.org"));
+			fail("Expected RayoNodeNotFoundException");
+		} catch (RayoNodeNotFoundException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testReadsThroughCallsOfOtherGateways() throws Exception {
+
+		storeCall("1234", "localhost");
+		// Registered by another gateway
+		backend.storeCall(new GatewayCall("abcd", "localhost", "client@jabber.org"));
+
+		assertNotNull(routing.getCall("abcd"));
+		assertEquals(2, routing.getCallsForNode("localhost").size());
+		assertEquals(2, routing.getCallsForClient("client@jabber.org").size());
+
+		routing.setReadThrough(false);
+		assertNull(routing.getCall("abcd"));
+		assertEquals(1, routing.getCallsForNode("localhost").size());
+	}
+
+	@Test
+	public void testPendingRemovalHidesStoredCall() throws Exception {
+
+		storeCall("1234", "localhost");
+		assertTrue(backend.stored.await(5, TimeUnit.SECONDS));
+
+		// The backend does not remove calls until the latch is released
+		assertNotNull(routing.removeCall("1234"));
+		assertNotNull(backend.getCall("1234"));
+		assertNull(routing.getCall("1234"));
+		assertNull(routing.getNodeForCall("1234"));
+		assertEquals(0, routing.getCalls().size());
+		assertNull(routing.removeCall("1234"));
+
+		backend.removals.countDown();
+		assertTrue(routing.flush(5000));
+		assertNull(backend.getCall("1234"));
+	}
+
+	@Test
+	public void testCallMovedToAnotherNode() throws Exception {
+
+		storeCall("1234", "localhost");
+		storeCall("1234", "localhost1");
+
+		assertEquals(0, routing.getCallsForNode("localhost").size());
+		assertEquals(1, routing.getCallsForNode("localhost1").size());
+		assertEquals("localhost1", routing.getNodeForCall("1234"));
+	}
+
+	@Test
+	public void testTableIsSharded() throws Exception {
+
+		CallRoutingTable table = new CallRoutingTable(10);
+		assertEquals(16, table.getShards());
+		for (int i = 0; i < 1000; i++) {
+			table.put(new GatewayCall("call" + i, "node" + (i % 3), "client" + (i % 7) + "@jabber.org"));
+		}
+		assertEquals(1000, table.size());
+		assertEquals(334, table.getCallsForNode("node0").size());
+		assertEquals(143, table.getCallsForClient("client0@jabber.org").size());
+		for (int i = 0; i < 1000; i+= 2) {
+			table.remove("call" + i);
+		}
+		assertEquals(500, table.getCalls().size());
+		assertEquals(167, table.getCallsForNode("node1").size());
+	}
+
+	@Test
+	public void testBulkRemovalIsReplicatedOnce() throws Exception {
+
+		storeCall("1234", "localhost");
+		storeCall("5678", "localhost");
+		storeCall("abcd", "localhost");
+		assertTrue(routing.flush(5000));
+
+		assertEquals(3, routing.removeCalls(Arrays.asList("1234", "5678", "abcd")).size());
+		// Not replicated yet but never read back from the backup
+		assertTrue(routing.getCalls(Arrays.asList("1234", "5678", "abcd")).isEmpty());
+		assertNull(routing.getCall("5678"));
+		assertEquals(3, backend.getCalls().size());
+
+		backend.removals.countDown();
+		assertTrue(routing.flush(5000));
+		assertEquals(0, backend.getCalls().size());
+		assertEquals(1, backend.bulkRemovals.get());
+	}
+
+	@Test
+	public void testBulkLookupReadsThroughOnce() throws Exception {
+
+		backend.storeNode(buildRayoNode("remote", "127.0.0.2", new String[] { "staging" }));
+		backend.storeCall(new GatewayCall("remote1", "remote", "client@jabber.org"));
+		backend.storeCall(new GatewayCall("remote2", "remote", "client@jabber.org"));
+		storeCall("1234", "localhost");
+
+		Map<String, GatewayCall> calls = routing.getCalls(Arrays.asList("1234", "remote1", "remote2"));
+		assertEquals(3, calls.size());
+		assertEquals(1, backend.bulkReads.get());
+		assertEquals(0, backend.callReads.get());
+	}
+
+	private void storeCall(String callId, String nodeJid) throws Exception {
+
+		if (routing.getNode(nodeJid) == null) {
+			routing.storeNode(buildRayoNode(nodeJid, "127.0.0.1", new String[] { "staging" }));
+		}
+		routing.storeCall(new GatewayCall(callId, nodeJid, "client@jabber.org"));
+	}
+
+	class BackupDatastore extends InMemoryDatastore {
+
+		AtomicInteger callReads = new AtomicInteger();
+		AtomicInteger nodeReads = new AtomicInteger();
+		AtomicInteger bulkReads = new AtomicInteger();
+		AtomicInteger bulkRemovals = new AtomicInteger();
+		CountDownLatch stored = new CountDownLatch(1);
+		CountDownLatch removals = new CountDownLatch(1);
+
+		@Override
+		public GatewayCall storeCall(GatewayCall call) throws DatastoreException {
+
+			try {
+				return super.storeCall(call);
+			} finally {
+				stored.countDown();
+			}
+		}
+
+		@Override
+		public GatewayCall getCall(String id) {
+
+			callReads.incrementAndGet();
+			return super.getCall(id);
+		}
+
+		@Override
+		public RayoNode getNode(String id) {
+
+			nodeReads.incrementAndGet();
+			return super.getNode(id);
+		}
+
+		@Override
+		public GatewayCall removeCall(String id) throws DatastoreException {
+
+			try {
+				removals.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return super.removeCall(id);
+		}
+
+		@Override
+		public Map<String, GatewayCall> getCalls(Collection<String> callIds) {
+
+			bulkReads.incrementAndGet();
+			return super.getCalls(callIds);
+		}
+
+		@Override
+		public Collection<GatewayCall> removeCalls(Collection<String> callIds) throws DatastoreException {
+
+			// Calls that are not in the routing table are removed from the caller thread
+			if (Thread.currentThread().getName().equals("call-routing-replicator")) {
+				try {
+					removals.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				bulkRemovals.incrementAndGet();
+			}
+			return super.removeCalls(callIds);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.rayo.server.storage.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ConcurrentMultiMapTest {
+
+	@Test
+	public void testPutAndRemove() {
+
+		ConcurrentMultiMap<String, String> map = new ConcurrentMultiMap<String, String>(true, false);
+		assertTrue(map.put("mixer", "verb1"));
+		assertTrue(map.put("mixer", "verb2"));
+		assertFalse(map.put("mixer", "verb1"));
+
+		assertEquals(Arrays.asList("verb1", "verb2"), map.get("mixer"));
+		assertTrue(map.remove("mixer", "verb1"));
+		assertFalse(map.remove("mixer", "verb1"));
+		assertTrue(map.contains("mixer", "verb2"));
+	}
+
+	@Test
+	public void testEmptyKeysAreDropped() {
+
+		ConcurrentMultiMap<String, String> map = new ConcurrentMultiMap<String, String>(false, false);
+		map.put("node", "call1");
+		map.remove("node", "call1");
+
+		assertTrue(map.keySet().isEmpty());
+		assertTrue(map.get("node").isEmpty());
+		assertTrue(map.view("node").isEmpty());
+	}
+
+	@Test
+	public void testEmptyKeysAreRetained() {
+
+		ConcurrentMultiMap<String, String> map = new ConcurrentMultiMap<String, String>(true, true);
+		map.put("staging", "node1");
+		map.remove("staging", "node1");
+
+		assertEquals(1, map.keySet().size());
+		assertTrue(map.get("staging").isEmpty());
+	}
+
+	@Test
+	public void testRemoveAll() {
+
+		ConcurrentMultiMap<String, String> map = new ConcurrentMultiMap<String, String>(true, false);
+		map.put("app", "address1");
+		map.put("app", "address2");
+
+		assertEquals(Arrays.asList("address1", "address2"), map.removeAll("app"));
+		assertTrue(map.get("app").isEmpty());
+		assertTrue(map.removeAll("app").isEmpty());
+	}
+
+	@Test
+	public void testNoValueLostWhileKeysAreDropped() throws Exception {
+
+		final ConcurrentMultiMap<String, Integer> map = new ConcurrentMultiMap<String, Integer>(false, false);
+		final int threads = 8;
+		final int values = 20000;
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicInteger errors = new AtomicInteger();
+		for (int t = 0; t < threads; t++) {
+			final int seed = t;
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < values; i++) {
+							int value = seed * values + i;
+							// Every thread keeps the key going from empty to one value
+							map.put("node", value);
+							if (!map.contains("node", value)) {
+								errors.incrementAndGet();
+							}
+							if (i % 2 == 0) {
+								map.remove("node", value);
+							}
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+
+		assertEquals(0, errors.get());
+		assertEquals(threads * values / 2, map.get("node").size());
+	}
+}
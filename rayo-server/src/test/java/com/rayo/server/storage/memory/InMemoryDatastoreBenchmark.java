@@ -0,0 +1,298 @@
+package com.rayo.server.storage.memory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.rayo.server.storage.BaseDatastoreTest;
+import com.rayo.server.storage.DatastoreException;
+import com.rayo.server.storage.GatewayDatastore;
+import com.rayo.server.storage.RayoNodeNotFoundException;
+import com.rayo.server.storage.model.GatewayCall;
+import com.rayo.server.storage.model.GatewayMixer;
+import com.rayo.server.storage.model.RayoNode;
+
+/**
+ * <p>Measures call churn on the {@link InMemoryDatastore} against the global read
+ * write locks it used to have. Every thread registers a call, looks it up as the
+ * gateway does for every event, joins it to a mixer, reads the mixer, unregisters
+ * the call and, once in a while, lists the calls of its client.</p>
+ *
+ * <p>Arguments: iterations per thread, lookups per iteration, nodes and a comma
+ * separated list of thread counts.</p>
+ *
+ * @author martin
+ *
+ */
+public class InMemoryDatastoreBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int nodes = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		String[] threadCounts = (args.length > 3 ? args[3] : "1,4,16").split(",");
+
+		System.out.println(String.format("%s iterations per thread, %s lookups per call, %s nodes",
+				iterations, lookups, nodes));
+		System.out.println("threads\tlegacy ops/s\tconcurrent ops/s");
+		for (String count: threadCounts) {
+			int threads = Integer.parseInt(count.trim());
+			// Warm up
+			run(populate(new LegacyDatastore(), nodes), iterations / 10, lookups, nodes, threads);
+			run(populate(new InMemoryDatastore(), nodes), iterations / 10, lookups, nodes, threads);
+
+			long legacy = run(populate(new LegacyDatastore(), nodes), iterations, lookups, nodes, threads);
+			long concurrent = run(populate(new InMemoryDatastore(), nodes), iterations, lookups, nodes, threads);
+			long ops = (long)iterations * threads * (lookups + 6) * 1000000000L;
+			System.out.println(String.format("%s\t%s\t%s", threads, ops / legacy, ops / concurrent));
+		}
+	}
+
+	private static GatewayDatastore populate(GatewayDatastore store, int nodes) throws Exception {
+
+		for (int i = 0; i < nodes; i++) {
+			store.storeNode(BaseDatastoreTest.buildRayoNode("node" + i, "10.0.0." + i, new String[] {"staging"}));
+			store.storeMixer(new GatewayMixer("mixer" + i, "node" + i));
+		}
+		return store;
+	}
+
+	private static long run(final GatewayDatastore store, final int iterations, final int lookups,
+			final int nodes, int threads) throws Exception {
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicInteger sink = new AtomicInteger();
+		for (int t = 0; t < threads; t++) {
+			final int seed = t;
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						int found = 0;
+						String client = "client" + seed + "@jabber.org/rayo";
+						for (int i = 0; i < iterations; i++) {
+							String callId = seed + "-" + i;
+							int node = (seed + i) % nodes;
+							store.storeCall(new GatewayCall(callId, "node" + node, client));
+							for (int j = 0; j < lookups; j++) {
+								if (store.getCall(callId) != null) {
+									found++;
+								}
+							}
+							store.addCallToMixer(callId, "mixer" + node);
+							found+= store.getMixer("mixer" + node).getParticipants().size();
+							store.removeCallFromMixer(callId, "mixer" + node);
+							if (i % 100 == 0) {
+								found+= store.getCallsForClient(client).size();
+							}
+							store.removeCall(callId);
+						}
+						sink.addAndGet(found);
+					} catch (Exception e) {
+						e.printStackTrace();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		long init = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - init;
+		if (sink.get() == 42) {
+			System.out.println();
+		}
+		return elapsed;
+	}
+
+	/**
+	 * The node, call and mixer operations as they were with the global locks
+	 */
+	static class LegacyDatastore extends InMemoryDatastore {
+
+		private ReadWriteLock nodesLock = new ReentrantReadWriteLock();
+		private ReadWriteLock callsLock = new ReentrantReadWriteLock();
+		private ReadWriteLock mixersLock = new ReentrantReadWriteLock();
+
+		private Map<String, RayoNode> nodesMap = new ConcurrentHashMap<String, RayoNode>();
+		private Map<String, GatewayCall> callsMap = new ConcurrentHashMap<String, GatewayCall>();
+		private Map<String, List<GatewayCall>> jidsMap = new ConcurrentHashMap<String, List<GatewayCall>>();
+		private Map<String, GatewayMixer> mixersMap = new ConcurrentHashMap<String, GatewayMixer>();
+
+		@Override
+		public RayoNode storeNode(RayoNode node) throws DatastoreException {
+
+			Lock nodeLock = nodesLock.writeLock();
+			nodeLock.lock();
+			try {
+				nodesMap.put(node.getHostname(), node);
+			} finally {
+				nodeLock.unlock();
+			}
+			return node;
+		}
+
+		@Override
+		public RayoNode getNode(String id) {
+
+			Lock nodeLock = nodesLock.readLock();
+			nodeLock.lock();
+			try {
+				return nodesMap.get(id);
+			} finally {
+				nodeLock.unlock();
+			}
+		}
+
+		@Override
+		public GatewayCall storeCall(GatewayCall call) throws DatastoreException {
+
+			RayoNode node = getNode(call.getNodeJid());
+			if (node == null) {
+				throw new RayoNodeNotFoundException();
+			}
+			Lock callLock = callsLock.writeLock();
+			callLock.lock();
+			try {
+				callsMap.put(call.getCallId(), call);
+				addCallToJid(call, call.getClientJid());
+				addCallToJid(call, node.getHostname());
+			} finally {
+				callLock.unlock();
+			}
+			return call;
+		}
+
+		private void addCallToJid(GatewayCall call, String jid) {
+
+			List<GatewayCall> calls = jidsMap.get(jid);
+			if (calls == null) {
+				calls = new ArrayList<GatewayCall>();
+				jidsMap.put(jid, calls);
+			}
+			if (!calls.contains(call)) {
+				calls.add(call);
+			}
+		}
+
+		@Override
+		public GatewayCall getCall(String id) {
+
+			Lock callLock = callsLock.readLock();
+			callLock.lock();
+			try {
+				return callsMap.get(id);
+			} finally {
+				callLock.unlock();
+			}
+		}
+
+		@Override
+		public GatewayCall removeCall(String id) throws DatastoreException {
+
+			Lock callLock = callsLock.writeLock();
+			callLock.lock();
+			try {
+				GatewayCall call = getCall(id);
+				callsMap.remove(call.getCallId());
+				removeCallFromJid(call, call.getClientJid());
+				removeCallFromJid(call, call.getNodeJid());
+				return call;
+			} finally {
+				callLock.unlock();
+			}
+		}
+
+		private void removeCallFromJid(GatewayCall call, String jid) {
+
+			List<GatewayCall> calls = jidsMap.get(jid);
+			if (calls != null) {
+				calls.remove(call);
+			}
+		}
+
+		@Override
+		public Collection<String> getCalls(String jid) {
+
+			Lock callLock = callsLock.readLock();
+			callLock.lock();
+			try {
+				List<String> ids = new ArrayList<String>();
+				List<GatewayCall> calls = jidsMap.get(jid);
+				if (calls != null) {
+					for(GatewayCall call: calls) {
+						ids.add(call.getCallId());
+					}
+				}
+				return ids;
+			} finally {
+				callLock.unlock();
+			}
+		}
+
+		@Override
+		public GatewayMixer getMixer(String mixerName) {
+
+			Lock mixerLock = mixersLock.readLock();
+			mixerLock.lock();
+			try {
+				// Copied under the lock. Reading the participants of the shared mixer
+				// while other threads join calls to it could fail.
+				GatewayMixer mixer = mixersMap.get(mixerName);
+				GatewayMixer copy = new GatewayMixer(mixer.getName(), mixer.getNodeJid());
+				copy.addCalls(mixer.getParticipants());
+				return copy;
+			} finally {
+				mixerLock.unlock();
+			}
+		}
+
+		@Override
+		public GatewayMixer storeMixer(GatewayMixer mixer) throws DatastoreException {
+
+			Lock mixerLock = mixersLock.writeLock();
+			mixerLock.lock();
+			try {
+				mixersMap.put(mixer.getName(), mixer);
+				return mixer;
+			} finally {
+				mixerLock.unlock();
+			}
+		}
+
+		@Override
+		public void addCallToMixer(String callId, String mixerName) throws DatastoreException {
+
+			Lock mixerLock = mixersLock.writeLock();
+			mixerLock.lock();
+			try {
+				mixersMap.get(mixerName).addCall(callId);
+			} finally {
+				mixerLock.unlock();
+			}
+		}
+
+		@Override
+		public void removeCallFromMixer(String callId, String mixerName) throws DatastoreException {
+
+			Lock mixerLock = mixersLock.writeLock();
+			mixerLock.lock();
+			try {
+				mixersMap.get(mixerName).removeCall(callId);
+			} finally {
+				mixerLock.unlock();
+			}
+		}
+	}
+}
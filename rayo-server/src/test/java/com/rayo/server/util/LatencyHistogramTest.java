@@ -0,0 +1,60 @@
+package com.rayo.server.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testEmpty() {
+		
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getValueAtPercentile(99));
+		assertEquals(0, histogram.getMean());
+	}
+	
+	@Test
+	public void testSmallValuesAreExact() {
+		
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < 8; i++) {
+			histogram.record(i);
+		}
+		assertEquals(3, histogram.getValueAtPercentile(50));
+		assertEquals(7, histogram.getValueAtPercentile(100));
+	}
+	
+	@Test
+	public void testPercentilesWithinPrecision() {
+		
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 100000; i++) {
+			histogram.record(i);
+		}
+		assertEquals(100000, histogram.getCount());
+		assertEquals(100000, histogram.getMax());
+		assertWithinPrecision(50000, histogram.getValueAtPercentile(50));
+		assertWithinPrecision(99000, histogram.getValueAtPercentile(99));
+		assertWithinPrecision(99900, histogram.getValueAtPercentile(99.9));
+	}
+	
+	@Test
+	public void testReset() {
+		
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(1000);
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getValueAtPercentile(50));
+	}
+	
+	private void assertWithinPrecision(long expected, long actual) {
+		
+		assertTrue("Expected " + expected + " but got " + actual, 
+				actual >= expected && actual <= expected * 1.125);
+	}
+}
@@ -0,0 +1,199 @@
+package com.rayo.storage.cassandra;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.rayo.server.storage.model.GatewayCall;
+
+/**
+ * <p>Call registrations and unregistrations waiting to be written to Cassandra by the
+ * write-behind mode of the {@link CassandraDatastore}.</p>
+ *
+ * <p>There is at most one pending write per call. A new write for the same call
+ * replaces the pending one, and a call that is removed before its registration
+ * has been written is never written at all.</p>
+ *
+ * <p>Writes taken by the flusher stay visible as in flight until the flusher reports
+ * them as completed, so readers never miss a call between the buffer and Cassandra.</p>
+ *
+ * @author martin
+ *
+ */
+class CallWriteBuffer {
+
+	/**
+	 * A pending write for a call
+	 */
+	static class PendingCall {
+
+		final String callId;
+		// Call to write. null removes the call.
+		final GatewayCall call;
+		// Whether the columns of a call already in Cassandra must be deleted first
+		final boolean removeExisting;
+		// The call already in Cassandra, when known. When null it has to be read.
+		final GatewayCall existing;
+		final long queued;
+
+		PendingCall(String callId, GatewayCall call, boolean removeExisting, GatewayCall existing, long queued) {
+
+			this.callId = callId;
+			this.call = call;
+			this.removeExisting = removeExisting;
+			this.existing = existing;
+			this.queued = queued;
+		}
+
+		boolean isRemoval() {
+
+			return call == null;
+		}
+	}
+
+	// Insertion ordered, so calls are written in the order they were first buffered
+	private final LinkedHashMap<String, PendingCall> pending = new LinkedHashMap<String, PendingCall>();
+	private final Map<String, PendingCall> inFlight = new HashMap<String, PendingCall>();
+	private long coalesced;
+	// Pending writes that wake up the flusher
+	private int wakeUpAt = Integer.MAX_VALUE;
+
+	/**
+	 * Buffers the registration of a call
+	 */
+	synchronized void store(GatewayCall call) {
+
+		String id = call.getCallId();
+		PendingCall previous = pending.get(id);
+		if (previous != null) {
+			coalesced++;
+			pending.put(id, new PendingCall(id, call, previous.removeExisting, previous.existing, previous.queued));
+		} else {
+			PendingCall flying = inFlight.get(id);
+			if (flying != null && !flying.isRemoval()) {
+				// The in flight registration has to be replaced
+				pending.put(id, new PendingCall(id, call, true, flying.call, System.nanoTime()));
+			} else {
+				pending.put(id, new PendingCall(id, call, false, null, System.nanoTime()));
+			}
+		}
+		signal();
+	}
+
+	/**
+	 * Buffers the removal of a call
+	 *
+	 * @return GatewayCall The call being removed if the buffer knows it or
+	 * <code>null</code> otherwise
+	 */
+	synchronized GatewayCall remove(String id) {
+
+		PendingCall previous = pending.get(id);
+		if (previous != null) {
+			if (previous.isRemoval()) {
+				return null;
+			}
+			coalesced++;
+			if (previous.removeExisting) {
+				pending.put(id, new PendingCall(id, null, true, previous.existing, previous.queued));
+			} else {
+				// Never written. Nothing to do.
+				pending.remove(id);
+			}
+			return previous.call;
+		}
+
+		PendingCall flying = inFlight.get(id);
+		if (flying != null) {
+			if (flying.isRemoval()) {
+				return null;
+			}
+			pending.put(id, new PendingCall(id, null, true, flying.call, System.nanoTime()));
+			signal();
+			return flying.call;
+		}
+		pending.put(id, new PendingCall(id, null, true, null, System.nanoTime()));
+		signal();
+		return null;
+	}
+
+	/**
+	 * Returns the latest buffered write for a call or <code>null</code> if there
+	 * is no write pending for that call
+	 */
+	synchronized PendingCall lookup(String id) {
+
+		PendingCall call = pending.get(id);
+		if (call == null) {
+			call = inFlight.get(id);
+		}
+		return call;
+	}
+
+	/**
+	 * Takes up to <code>max</code> pending writes and flags them as in flight
+	 */
+	synchronized List<PendingCall> drain(int max) {
+
+		List<PendingCall> batch = new ArrayList<PendingCall>(Math.min(max, pending.size()));
+		Iterator<PendingCall> it = pending.values().iterator();
+		while (it.hasNext() && batch.size() < max) {
+			PendingCall call = it.next();
+			it.remove();
+			inFlight.put(call.callId, call);
+			batch.add(call);
+		}
+		return batch;
+	}
+
+	/**
+	 * The flusher is done with a batch, whether it was written or not
+	 */
+	synchronized void completed(List<PendingCall> batch) {
+
+		for (PendingCall call: batch) {
+			if (inFlight.get(call.callId) == call) {
+				inFlight.remove(call.callId);
+			}
+		}
+	}
+
+	/**
+	 * Waits until there are <code>threshold</code> pending writes or the timeout
+	 * expires
+	 */
+	synchronized void await(int threshold, long timeoutMillis) throws InterruptedException {
+
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		long remaining = timeoutMillis;
+		wakeUpAt = threshold;
+		try {
+			while (pending.size() < threshold && remaining > 0) {
+				wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+		} finally {
+			wakeUpAt = Integer.MAX_VALUE;
+		}
+	}
+
+	private void signal() {
+
+		if (pending.size() >= wakeUpAt) {
+			notifyAll();
+		}
+	}
+
+	synchronized int size() {
+
+		return pending.size();
+	}
+
+	synchronized long getCoalesced() {
+
+		return coalesced;
+	}
+}
@@ -1,20 +1,29 @@
 package com.rayo.storage.cassandra;
 
+import static com.rayo.storage.cassandra.CassandraSchemaHandler.INDEX_APPLICATIONS;
+import static com.rayo.storage.cassandra.CassandraSchemaHandler.INDEX_CLIENTS;
+import static com.rayo.storage.cassandra.CassandraSchemaHandler.INDEX_MIXERS;
+import static com.rayo.storage.cassandra.CassandraSchemaHandler.INDEX_PLATFORMS;
+import static com.rayo.storage.cassandra.CassandraSchemaHandler.INDEX_VERBS;
+import static com.rayo.storage.cassandra.CassandraSchemaHandler.PAGE_SIZE;
+
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.cassandra.thrift.Column;
 import org.apache.cassandra.thrift.ConsistencyLevel;
-import org.apache.cassandra.thrift.SlicePredicate;
 import org.apache.cassandra.thrift.SuperColumn;
 import org.apache.commons.lang.StringUtils;
 import org.scale7.cassandra.pelops.Bytes;
@@ -39,6 +48,7 @@ import com.rayo.server.storage.model.GatewayMixer;
 import com.rayo.server.storage.model.GatewayVerb;
 import com.rayo.server.storage.model.RayoNode;
 import com.rayo.server.util.JIDUtils;
+import com.rayo.storage.cassandra.CallWriteBuffer.PendingCall;
 import com.voxeo.logging.Loggerf;
 
 /**
@@ -48,6 +58,19 @@ import com.voxeo.logging.Loggerf;
  * just setting the hostname and port number properties. By default, this store
  * points to localhost/9160.</p> 
  * 
+ * <p>Lists of nodes, platforms, applications, addresses, clients, mixers and verbs are 
+ * read from the index column families created by the {@link CassandraSchemaHandler}, 
+ * page by page. No query scans whole column families.</p> 
+ * 
+ * <p>Call registrations and unregistrations can optionally be written in the background 
+ * by setting the <code>writeBehind</code> property. In write-behind mode storeCall and 
+ * removeCall only buffer the call and a background thread writes the buffered calls 
+ * every <code>flushInterval</code> milliseconds with a single batch mutation. A call 
+ * that is removed before it has been written is never written at all. Reads of a 
+ * single call see the buffered calls, but the list based queries like getCallsForNode 
+ * only see calls once they have been written. Write errors are reported to the 
+ * {@link WriteFailureListener}.</p> 
+ * 
  * @author martin
  *
  */
@@ -63,6 +86,21 @@ public class CassandraDatastore implements GatewayDatastore {
 	private String schemaName = "rayo";
 	private CassandraSchemaHandler schemaHandler = new CassandraSchemaHandler();
 	
+	private boolean writeBehind = false;
+	private long flushInterval = 20;
+	private int maxBatchSize = 500;
+	private long nodeCacheTtl = 10000;
+	private WriteFailureListener writeFailureListener;
+	
+	private final CallWriteBuffer buffer = new CallWriteBuffer();
+	private CallFlusher flusher;
+	// Nodes known to exist and when they were last seen
+	private final ConcurrentHashMap<String, Long> knownNodes = new ConcurrentHashMap<String, Long>();
+	private final Object flushLock = new Object();
+	private final AtomicLong writtenCalls = new AtomicLong(0);
+	private final AtomicLong failedCalls = new AtomicLong(0);
+	private final AtomicLong batches = new AtomicLong(0);
+	
 	public void init() throws Exception {
 		
 		log.debug("Initializing Cassandra Datastore on [%s:%s]", hostname, port);
@@ -84,6 +122,7 @@ public class CassandraDatastore implements GatewayDatastore {
 		// try to turn on auto-discovery
 		cluster = new Cluster(hostname, Integer.parseInt(port), true);
 		Pelops.addPool(schemaName, cluster, schemaName);
+		schemaHandler.migrate(schemaName);
 		
 		if (primer != null) {
 			if (primeTestData) {
@@ -93,6 +132,41 @@ public class CassandraDatastore implements GatewayDatastore {
 				log.debug("Test data will not be primed as per configuration settings");
 			}
 		}
+		
+		if (writeBehind) {
+			startFlusher();
+		}
+	}
+	
+	private synchronized void startFlusher() {
+		
+		if (flusher == null) {
+			log.info("Starting Cassandra write-behind for calls. Flush interval: [%s] ms", flushInterval);
+			flusher = new CallFlusher();
+			flusher.start();
+		}
+	}
+	
+	/**
+	 * Stops the write-behind thread after writing all the buffered calls
+	 */
+	public void shutdown() {
+		
+		CallFlusher flusher = null;
+		synchronized(this) {
+			flusher = this.flusher;
+			this.flusher = null;
+		}
+		if (flusher != null) {
+			log.info("Stopping Cassandra write-behind for calls");
+			// The flusher writes what is buffered before it finishes
+			flusher.running = false;
+			try {
+				flusher.join(10000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 	}
 
 	@Override
@@ -134,6 +208,8 @@ public class CassandraDatastore implements GatewayDatastore {
 					mutator.newColumn("blacklisted", String.valueOf(node.isBlackListed()))
 				)
 			);
+			mutator.writeColumn("node_platforms", node.getHostname(), mutator.newColumn(platform, platform));
+			mutator.writeColumn("indexes", INDEX_PLATFORMS, mutator.newColumn(platform, platform));
 		}
 		
 		mutator.writeColumn("ips", Bytes.fromUTF8(node.getIpAddress()), 
@@ -141,6 +217,7 @@ public class CassandraDatastore implements GatewayDatastore {
 		
 		try {
 			mutator.execute(ConsistencyLevel.ONE);
+			knownNodes.put(node.getHostname(), System.currentTimeMillis());
 			log.debug("Node [%s] stored successfully", node);
 		} catch (Exception e) {
 			log.error(e.getMessage(),e);
@@ -158,8 +235,10 @@ public class CassandraDatastore implements GatewayDatastore {
 			log.error("Node not found: [%s]", rayoNode);
 			throw new RayoNodeNotFoundException();
 		}
+		knownNodes.remove(rayoNode);
 		RowDeletor deletor = Pelops.createRowDeletor(schemaName);
 		deletor.deleteRow("ips", node.getIpAddress(), ConsistencyLevel.ONE);
+		deletor.deleteRow("node_platforms", rayoNode, ConsistencyLevel.ONE);
 
 		Mutator mutator = Pelops.createMutator(schemaName);
 		for (String platform: node.getPlatforms()) {
@@ -181,6 +260,15 @@ public class CassandraDatastore implements GatewayDatastore {
 	public GatewayCall storeCall(GatewayCall call) throws DatastoreException {
 		
 		log.debug("Storing call: [%s]", call);
+		if (writeBehind) {
+			if (!isKnownNode(call.getNodeJid())) {
+				log.debug("Node [%s] not found for call [%s]", call.getNodeJid(), call);
+				throw new RayoNodeNotFoundException();
+			}
+			buffer.store(call);
+			return call;
+		}
+		
 		RayoNode node = getNode(call.getNodeJid());
 		if (node == null) {
 			log.debug("Node [%s] not found for call [%s]", call.getNodeJid(), call);
@@ -188,6 +276,21 @@ public class CassandraDatastore implements GatewayDatastore {
 		}		
 		
 		Mutator mutator = Pelops.createMutator(schemaName);
+		writeCall(mutator, call);
+		
+		try {
+			mutator.execute(ConsistencyLevel.ONE);
+			log.debug("Call [%s] stored successfully", call);
+		} catch (Exception e) {
+			log.error(e.getMessage(),e);
+			throw new DatastoreException("Could not store call");
+		}
+		
+		return call;
+	}
+	
+	private void writeCall(Mutator mutator, GatewayCall call) {
+		
 		mutator.writeColumns("calls", Bytes.fromUTF8(call.getCallId()), 
 			mutator.newColumnList(
 					mutator.newColumn(Bytes.fromUTF8("jid"), Bytes.fromUTF8(call.getClientJid())),
@@ -197,22 +300,36 @@ public class CassandraDatastore implements GatewayDatastore {
 			mutator.newColumn(Bytes.fromUTF8(call.getCallId()), Bytes.fromUTF8(call.getCallId())));
 		mutator.writeSubColumn("jids", "nodes", Bytes.fromUTF8(call.getNodeJid()), 
 				mutator.newColumn(Bytes.fromUTF8(call.getCallId()), Bytes.fromUTF8(call.getCallId())));
+	}
+	
+	/**
+	 * Checks a node exists using the nodes stored or read recently instead of 
+	 * scanning all the platforms on every call
+	 */
+	private boolean isKnownNode(String rayoNode) {
 		
-		try {
-			mutator.execute(ConsistencyLevel.ONE);
-			log.debug("Call [%s] stored successfully", call);
-		} catch (Exception e) {
-			log.error(e.getMessage(),e);
-			throw new DatastoreException("Could not store call");
+		Long seen = knownNodes.get(rayoNode);
+		if (seen != null && System.currentTimeMillis() - seen < nodeCacheTtl) {
+			return true;
 		}
-		
-		return call;
+		if (getNode(rayoNode) == null) {
+			knownNodes.remove(rayoNode);
+			return false;
+		}
+		knownNodes.put(rayoNode, System.currentTimeMillis());
+		return true;
 	}
 	
 	@Override
 	public GatewayCall getCall(String id) {
 		
 		log.debug("Getting call with id [%s]", id);
+		if (writeBehind) {
+			PendingCall pending = buffer.lookup(id);
+			if (pending != null) {
+				return pending.call;
+			}
+		}
 		Selector selector = Pelops.createSelector(schemaName);
 		try {
 			List<Column> columns = selector.getColumnsFromRow("calls", id, false, ConsistencyLevel.ONE);
@@ -224,6 +341,41 @@ public class CassandraDatastore implements GatewayDatastore {
 		}
 	}
 	
+	@Override
+	public Map<String, GatewayCall> getCalls(Collection<String> ids) {
+		
+		log.debug("Getting [%s] calls", ids.size());
+		Map<String, GatewayCall> calls = new HashMap<String, GatewayCall>(ids.size() * 2);
+		List<String> keys = new ArrayList<String>(ids.size());
+		for (String id: new LinkedHashSet<String>(ids)) {
+			if (writeBehind) {
+				PendingCall pending = buffer.lookup(id);
+				if (pending != null) {
+					if (!pending.isRemoval()) {
+						calls.put(id, pending.call);
+					}
+					continue;
+				}
+			}
+			keys.add(id);
+		}
+		if (keys.isEmpty()) {
+			return calls;
+		}
+		// A single multiget_slice per page of rows instead of a query per call
+		try {
+			for (Entry<String, List<Column>> row: getRows("calls", keys).entrySet()) {
+				GatewayCall call = buildCall(row.getValue(), row.getKey());
+				if (call != null) {
+					calls.put(row.getKey(), call);
+				}
+			}
+		} catch (PelopsException pe) {
+			log.error(pe.getMessage(),pe);
+		}
+		return calls;
+	}
+	
 	private GatewayCall buildCall(List<Column> columns, String id) {
 		
 		if (columns != null && columns.size() > 0) {
@@ -247,6 +399,9 @@ public class CassandraDatastore implements GatewayDatastore {
 	public GatewayCall removeCall(String id) throws DatastoreException {
 		
 		log.debug("Removing call with id: [%s]", id);
+		if (writeBehind) {
+			return buffer.remove(id);
+		}
 		GatewayCall call = getCall(id);
 
 		if (call != null) {
@@ -268,6 +423,153 @@ public class CassandraDatastore implements GatewayDatastore {
 		return call;
 	}
 	
+	@Override
+	public Collection<GatewayCall> removeCalls(Collection<String> ids) throws DatastoreException {
+		
+		log.debug("Removing [%s] calls", ids.size());
+		List<GatewayCall> removed = new ArrayList<GatewayCall>(ids.size());
+		if (writeBehind) {
+			// Written by the flusher in batches
+			for (String id: ids) {
+				GatewayCall call = buffer.remove(id);
+				if (call != null) {
+					removed.add(call);
+				}
+			}
+			return removed;
+		}
+		Map<String, GatewayCall> calls = getCalls(ids);
+		if (calls.isEmpty()) {
+			return removed;
+		}
+		
+		// Every call and its index columns go away in a single batch mutation
+		Mutator mutator = Pelops.createMutator(schemaName);
+		for (GatewayCall call: calls.values()) {
+			mutator.deleteSubColumns("jids", "clients", call.getClientJid(), call.getCallId());
+			mutator.deleteSubColumns("jids", "nodes", call.getNodeJid(), call.getCallId());
+			mutator.deleteColumn("calls", call.getCallId(), "jid");
+			mutator.deleteColumn("calls", call.getCallId(), "node");
+		}
+		try {
+			mutator.execute(ConsistencyLevel.ONE);
+			log.debug("[%s] calls removed successfully", calls.size());
+		} catch (Exception e) {
+			log.error(e.getMessage(),e);
+			throw new DatastoreException("Could not remove calls");
+		}
+		removed.addAll(calls.values());
+		return removed;
+	}
+	
+	/**
+	 * Writes all the calls buffered by the write-behind mode. The write-behind thread 
+	 * calls it periodically.
+	 */
+	public void flush() {
+		
+		synchronized(flushLock) {
+			List<PendingCall> batch = buffer.drain(maxBatchSize);
+			while (!batch.isEmpty()) {
+				try {
+					write(batch);
+				} finally {
+					buffer.completed(batch);
+				}
+				batch = buffer.drain(maxBatchSize);
+			}
+		}
+	}
+	
+	/**
+	 * Writes a batch of buffered calls with a single mutation. Removed calls that 
+	 * are not known by the buffer are read first, all of them with a single query.
+	 */
+	private void write(List<PendingCall> batch) {
+		
+		batches.incrementAndGet();
+		try {
+			Map<String, GatewayCall> stored = readStoredCalls(batch);
+			Mutator mutator = Pelops.createMutator(schemaName);
+			boolean changes = false;
+			for (PendingCall pending: batch) {
+				GatewayCall existing = pending.existing;
+				if (existing == null && pending.removeExisting) {
+					existing = stored.get(pending.callId);
+				}
+				if (existing != null) {
+					if (pending.isRemoval() || !existing.getClientJid().equals(pending.call.getClientJid())) {
+						mutator.deleteSubColumns("jids", "clients", existing.getClientJid(), pending.callId);
+						changes = true;
+					}
+					if (pending.isRemoval() || !existing.getNodeJid().equals(pending.call.getNodeJid())) {
+						mutator.deleteSubColumns("jids", "nodes", existing.getNodeJid(), pending.callId);
+						changes = true;
+					}
+					if (pending.isRemoval()) {
+						mutator.deleteColumn("calls", pending.callId, "jid");
+						mutator.deleteColumn("calls", pending.callId, "node");
+					}
+				}
+				if (!pending.isRemoval()) {
+					writeCall(mutator, pending.call);
+					changes = true;
+				}
+			}
+			if (changes) {
+				mutator.execute(ConsistencyLevel.ONE);
+			}
+			writtenCalls.addAndGet(batch.size());
+			log.debug("Wrote [%s] buffered calls", batch.size());
+		} catch (Exception e) {
+			log.error(String.format("Could not write [%s] buffered calls", batch.size()), e);
+			failedCalls.addAndGet(batch.size());
+			notifyFailures(batch, e);
+		}
+	}
+	
+	private Map<String, GatewayCall> readStoredCalls(List<PendingCall> batch) {
+		
+		List<String> ids = new ArrayList<String>();
+		for (PendingCall pending: batch) {
+			if (pending.removeExisting && pending.existing == null) {
+				ids.add(pending.callId);
+			}
+		}
+		Map<String, GatewayCall> calls = new HashMap<String, GatewayCall>();
+		if (ids.isEmpty()) {
+			return calls;
+		}
+		Selector selector = Pelops.createSelector(schemaName);
+		Map<String, List<Column>> rows = selector.getColumnsFromRowsUtf8Keys(
+				"calls", ids, Selector.newColumnsPredicateAll(false, 10), ConsistencyLevel.ONE);
+		for (Entry<String, List<Column>> row: rows.entrySet()) {
+			GatewayCall call = buildCall(row.getValue(), row.getKey());
+			if (call != null) {
+				calls.put(row.getKey(), call);
+			}
+		}
+		return calls;
+	}
+	
+	private void notifyFailures(List<PendingCall> batch, Exception cause) {
+		
+		if (writeFailureListener == null) {
+			return;
+		}
+		for (PendingCall pending: batch) {
+			try {
+				if (pending.isRemoval()) {
+					writeFailureListener.removeCallFailed(pending.callId, cause);
+				} else {
+					writeFailureListener.storeCallFailed(pending.call, cause);
+				}
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
+			}
+		}
+	}
+	
 	@SuppressWarnings("unchecked")
 	private Collection<String> getCalls(String jid, String type) {
 
@@ -328,24 +630,15 @@ public class CassandraDatastore implements GatewayDatastore {
 		RayoNode node = null;
 		try {
 			Selector selector = Pelops.createSelector(schemaName);
-			Map<String, List<SuperColumn>> rows = selector.getSuperColumnsFromRowsUtf8Keys(
-					"nodes", 
-					Selector.newKeyRange("", "", 100), // 100 platforms limit should be enough :)
-					Selector.newColumnsPredicate(rayoNode),
-					ConsistencyLevel.ONE);
-					
-			Iterator<Entry<String, List<SuperColumn>>> it = rows.entrySet().iterator();
-			while (it.hasNext()) {
-				Entry<String, List<SuperColumn>> element = it.next();
-				String currPlatform = element.getKey();				
-				List<SuperColumn> platformOccurrences= element.getValue();
-				for (SuperColumn column: platformOccurrences) {
-					if (node == null) {
-						node = new RayoNode();
-						node = buildNode(column.getColumns());
-						node.setHostname(rayoNode);
-					}
-					node.addPlatform(currPlatform);
+			List<String> platforms = getColumnNames("node_platforms", rayoNode);
+			for (String platform: platforms) {
+				List<Column> columns = selector.getSubColumnsFromRow(
+						"nodes", platform, rayoNode, false, ConsistencyLevel.ONE);
+				if (!columns.isEmpty()) {
+					node = buildNode(columns);
+					node.setHostname(rayoNode);
+					node.setPlatforms(new HashSet<String>(platforms));
+					break;
 				}
 			}
 		} catch (PelopsException pe) {
@@ -389,7 +682,7 @@ public class CassandraDatastore implements GatewayDatastore {
 	public List<String> getPlatforms() {
 		
 		log.debug("Returning list with all available platforms");
-		return getAllRowNames("nodes",0,false);
+		return getColumnNames("indexes", INDEX_PLATFORMS);
 	}
 
 	@SuppressWarnings("unchecked")
@@ -453,6 +746,8 @@ public class CassandraDatastore implements GatewayDatastore {
 					mutator.newColumn(Bytes.fromUTF8("name"), Bytes.fromUTF8(application.getName())),
 					mutator.newColumn(Bytes.fromUTF8("accountId"), Bytes.fromUTF8(application.getAccountId())),
 					mutator.newColumn(Bytes.fromUTF8("permissions"), Bytes.fromUTF8(application.getPermissions()))));
+		mutator.writeColumn("indexes", INDEX_APPLICATIONS, 
+				mutator.newColumn(application.getBareJid(), application.getBareJid()));
 	
 		try {
 			mutator.execute(ConsistencyLevel.ONE);
@@ -511,18 +806,12 @@ public class CassandraDatastore implements GatewayDatastore {
 			log.debug("Finding all applications");
 			
 			List<Application> applications = new ArrayList<Application>();
-			Selector selector = Pelops.createSelector(schemaName);
-			LinkedHashMap<Bytes, List<Column>> rows = selector.getColumnsFromRows(
-					"applications", 
-					Selector.newKeyRange("", "", 10000), // 10000 applications limite, 
-					false, ConsistencyLevel.ONE);
-					
-			for(Map.Entry<Bytes, List<Column>> row: rows.entrySet()) {
-				if (row.getValue().size() > 0) {
-					Application application = new Application(row.getKey().toUTF8());
-					populateApplicationData(application, row.getValue());
-					applications.add(application);
-				}
+			Map<String, List<Column>> rows = getRows("applications", 
+					getColumnNames("indexes", INDEX_APPLICATIONS));
+			for(Map.Entry<String, List<Column>> row: rows.entrySet()) {
+				Application application = new Application(row.getKey());
+				populateApplicationData(application, row.getValue());
+				applications.add(application);
 			}
 
 			return applications;
@@ -543,7 +832,16 @@ public class CassandraDatastore implements GatewayDatastore {
 			
 			List<String> addresses = getAddressesForApplication(jid);
 			removeAddresses(addresses);
+			deletor.deleteRow("application_addresses", jid, ConsistencyLevel.ONE);
 			
+			Mutator mutator = Pelops.createMutator(schemaName);
+			mutator.deleteColumn("indexes", INDEX_APPLICATIONS, jid);
+			try {
+				mutator.execute(ConsistencyLevel.ONE);
+			} catch (Exception e) {
+				log.error(e.getMessage(),e);
+				throw new DatastoreException(String.format("Could not remove application [%s]", jid));
+			}
 		} else {
 			log.debug("No application found with jid: [%s]", jid);
 			throw new ApplicationNotFoundException();
@@ -555,7 +853,7 @@ public class CassandraDatastore implements GatewayDatastore {
 	public List<String> getAddressesForApplication(String jid) {
 				
 		log.debug("Finding addresses for application jid: [%s]", jid);
-		return getAllRowNames("addresses", 1, true, jid);
+		return getColumnNames("application_addresses", jid);
 	}
 
 	@Override
@@ -592,6 +890,7 @@ public class CassandraDatastore implements GatewayDatastore {
 		for (String address: addresses) {
 			mutator.writeColumn("addresses", Bytes.fromUTF8(address), 
 					mutator.newColumn(jid, jid));
+			mutator.writeColumn("application_addresses", jid, mutator.newColumn(address, address));
 		}
 		
 		try {
@@ -611,6 +910,15 @@ public class CassandraDatastore implements GatewayDatastore {
 			List<String> addresses = new ArrayList<String>();
 			addresses.add(address);
 			removeAddresses(addresses);
+			
+			Mutator mutator = Pelops.createMutator(schemaName);
+			mutator.deleteColumn("application_addresses", application.getBareJid(), address);
+			try {
+				mutator.execute(ConsistencyLevel.ONE);
+			} catch (Exception e) {
+				log.error(e.getMessage(),e);
+				throw new DatastoreException(String.format("Could not remove address [%s]", address));
+			}
 		}
 	}
 
@@ -637,6 +945,8 @@ public class CassandraDatastore implements GatewayDatastore {
 		mutator.writeColumns("clients", client.getBareJid(),
 			mutator.newColumnList(
 				mutator.newColumn(client.getResource(), client.getResource())));
+		mutator.writeColumn("indexes", INDEX_CLIENTS, 
+				mutator.newColumn(client.getBareJid(), client.getBareJid()));
 		try {
 			mutator.execute(ConsistencyLevel.ONE);
 			log.debug("Client [%s] stored successfully", client);
@@ -664,6 +974,9 @@ public class CassandraDatastore implements GatewayDatastore {
 			if (resources.size() == 0) {
 				RowDeletor deletor = Pelops.createRowDeletor(schemaName);
 				deletor.deleteRow("clients", bareJid, ConsistencyLevel.ONE);				
+				mutator = Pelops.createMutator(schemaName);
+				mutator.deleteColumn("indexes", INDEX_CLIENTS, bareJid);
+				mutator.execute(ConsistencyLevel.ONE);
 			}			
 			log.debug("Client with jid: [%s] removed successfully", jid);
 		}
@@ -763,57 +1076,58 @@ public class CassandraDatastore implements GatewayDatastore {
 	public List<String> getClients() {
 	
 		log.debug("Returning all clients");
-		return getAllRowNames("clients", 1, true);
+		return getColumnNames("indexes", INDEX_CLIENTS);
 	}	
 
-	private List<String> getAllRowNames(String columnFamily, int numColumns, boolean excludeIfLessColumns) {
-
-		return getAllRowNames(columnFamily, numColumns, excludeIfLessColumns, null);
-	}
-	
-	private List<String> getAllRowNames(String columnFamily, int numColumns, boolean excludeIfLessColumns, String colName) {
-
-		List<String> result = new ArrayList<String>();
+	/**
+	 * Returns all the column names of a row, reading them page by page
+	 */
+	private List<String> getColumnNames(String columnFamily, String row) {
+		
+		List<String> names = new ArrayList<String>();
 		try {
 			Selector selector = Pelops.createSelector(schemaName);
-			final int PAGE_SIZE = 100;
-			String currRow = "";
+			String start = "";
 			while (true) {
-				SlicePredicate predicate = null;
-				if (colName == null) {
-					predicate = Selector.newColumnsPredicateAll(false, numColumns);
-				} else {
-					predicate = Selector.newColumnsPredicate(colName,colName,false,numColumns);
-				}
-				
-				Map<String, List<Column>> rows =
-					selector.getColumnsFromRowsUtf8Keys(
-						columnFamily,
-						Selector.newKeyRange(currRow, "", PAGE_SIZE),
-						predicate,
-						ConsistencyLevel.ONE);
-
-				Iterator<Entry<String, List<Column>>> it = rows.entrySet().iterator();
-				while (it.hasNext()) {
-					Entry<String, List<Column>> element = it.next();
-					if (excludeIfLessColumns && element.getValue().size() < numColumns) {
-						continue;
-					}
-					currRow = element.getKey();
-					if (!result.contains(currRow)) {
-						result.add(currRow);
+				List<Column> columns = selector.getColumnsFromRow(columnFamily, row, 
+						Selector.newColumnsPredicate(start, "", false, PAGE_SIZE), ConsistencyLevel.ONE);
+				for (Column column: columns) {
+					String name = Bytes.toUTF8(column.getName());
+					// Every page but the first starts with the last column of the previous one
+					if (!name.equals(start)) {
+						names.add(name);
 					}
 				}
-
-				if (rows.keySet().size() < PAGE_SIZE)
+				if (columns.size() < PAGE_SIZE) {
 					break;
-			}			
-
+				}
+				start = Bytes.toUTF8(columns.get(columns.size() - 1).getName());
+			}
 		} catch (PelopsException pe) {
 			log.error(pe.getMessage(),pe);
-		}		
+		}
+		return names;
+	}
+	
+	/**
+	 * Reads a list of rows, a page of rows per query. Rows with no columns are skipped.
+	 */
+	private Map<String, List<Column>> getRows(String columnFamily, List<String> keys) {
 		
-		return result;
+		Map<String, List<Column>> rows = new LinkedHashMap<String, List<Column>>();
+		Selector selector = Pelops.createSelector(schemaName);
+		for (int i = 0; i < keys.size(); i+= PAGE_SIZE) {
+			List<String> page = keys.subList(i, Math.min(keys.size(), i + PAGE_SIZE));
+			Map<String, List<Column>> result = selector.getColumnsFromRowsUtf8Keys(columnFamily, page, 
+					Selector.newColumnsPredicateAll(false, Integer.MAX_VALUE), ConsistencyLevel.ONE);
+			for (String key: page) {
+				List<Column> columns = result.get(key);
+				if (columns != null && !columns.isEmpty()) {
+					rows.put(key, columns);
+				}
+			}
+		}
+		return rows;
 	}
 	
 	
@@ -826,6 +1140,7 @@ public class CassandraDatastore implements GatewayDatastore {
 		mutator.writeColumns("mixers", Bytes.fromUTF8(mixer.getName()), 
 			mutator.newColumnList(
 					mutator.newColumn(Bytes.fromUTF8("node"), Bytes.fromUTF8(mixer.getNodeJid()))));
+		mutator.writeColumn("indexes", INDEX_MIXERS, mutator.newColumn(mixer.getName(), mixer.getName()));
 		
 		try {
 			mutator.execute(ConsistencyLevel.ONE);
@@ -861,15 +1176,11 @@ public class CassandraDatastore implements GatewayDatastore {
 		try {
 
 			List<GatewayMixer> mixers = new ArrayList<GatewayMixer>();
-			Selector selector = Pelops.createSelector(schemaName);
-			LinkedHashMap<Bytes, List<Column>> rows = selector.getColumnsFromRows(
-					"mixers", 
-					Selector.newKeyRange("", "", 10000), // 10000 mixers limit, 
-					false, ConsistencyLevel.ONE);
-					
-			for(Map.Entry<Bytes, List<Column>> row: rows.entrySet()) {
-				if (row.getValue().size() > 0) {
-					mixers.add(buildMixer(row.getValue(), row.getKey().toUTF8())); 
+			Map<String, List<Column>> rows = getRows("mixers", getColumnNames("indexes", INDEX_MIXERS));
+			for(Map.Entry<String, List<Column>> row: rows.entrySet()) {
+				GatewayMixer mixer = buildMixer(row.getValue(), row.getKey());
+				if (mixer != null) {
+					mixers.add(mixer); 
 				}
 			}
 
@@ -909,6 +1220,7 @@ public class CassandraDatastore implements GatewayDatastore {
 		GatewayMixer mixer = getMixer(name);
 
 		Mutator mutator = Pelops.createMutator(schemaName);
+		mutator.deleteColumn("indexes", INDEX_MIXERS, name);
 		try {
 			RowDeletor deletor = Pelops.createRowDeletor(schemaName);
 			deletor.deleteRow("mixers", Bytes.fromUTF8(name), ConsistencyLevel.ONE);
@@ -1008,22 +1320,16 @@ public class CassandraDatastore implements GatewayDatastore {
 		try {
 
 			List<GatewayVerb> verbs = new ArrayList<GatewayVerb>();
-			Selector selector = Pelops.createSelector(schemaName);
-			LinkedHashMap<Bytes, List<Column>> rows = selector.getColumnsFromRows(
-					"verbs", 
-					Selector.newKeyRange("", "", 10000), // 10000 mixers limit, 
-					false, ConsistencyLevel.ONE);
-					
-			for(Map.Entry<Bytes, List<Column>> row: rows.entrySet()) {
-				if (row.getValue().size() > 0) {
-					for (Column column: row.getValue()) {
-						GatewayVerb verb = new GatewayVerb(
-								row.getKey().toUTF8(),
-								Bytes.toUTF8(column.getName()), 
-								Bytes.toUTF8(column.getValue()));
-						verbs.add(verb);
-					}					
-				}
+			// Mixers whose verbs have all been removed are still indexed but have empty rows
+			Map<String, List<Column>> rows = getRows("verbs", getColumnNames("indexes", INDEX_VERBS));
+			for(Map.Entry<String, List<Column>> row: rows.entrySet()) {
+				for (Column column: row.getValue()) {
+					GatewayVerb verb = new GatewayVerb(
+							row.getKey(),
+							Bytes.toUTF8(column.getName()), 
+							Bytes.toUTF8(column.getValue()));
+					verbs.add(verb);
+				}					
 			}
 
 			return verbs;
@@ -1061,6 +1367,7 @@ public class CassandraDatastore implements GatewayDatastore {
 		mutator.writeColumns("verbs", Bytes.fromUTF8(mixerName), 
 			mutator.newColumnList(
 					mutator.newColumn(Bytes.fromUTF8(verb.getVerbId()), Bytes.fromUTF8(verb.getAppJid()))));
+		mutator.writeColumn("indexes", INDEX_VERBS, mutator.newColumn(mixerName, mixerName));
 		
 		try {
 			mutator.execute(ConsistencyLevel.ONE);
@@ -1221,4 +1528,110 @@ public class CassandraDatastore implements GatewayDatastore {
 	public void setPrimeTestData(boolean primeTestData) {
 		this.primeTestData = primeTestData;
 	}
+
+	public boolean isWriteBehind() {
+		return writeBehind;
+	}
+
+	/**
+	 * <p>Sets whether call registrations and unregistrations are written to Cassandra 
+	 * in the background. Disabled by default.</p>
+	 * 
+	 * <p>In write-behind mode removeCall returns the removed call only when it has not 
+	 * been written yet, as otherwise it would have to be read from Cassandra.</p>
+	 * 
+	 * @param writeBehind
+	 */
+	public void setWriteBehind(boolean writeBehind) {
+		this.writeBehind = writeBehind;
+	}
+
+	/**
+	 * Sets how often in milliseconds the buffered calls are written. Defaults to 20.
+	 * 
+	 * @param flushInterval
+	 */
+	public void setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+
+	/**
+	 * Sets the maximum number of calls written with a single mutation. When this many 
+	 * calls are buffered they are written without waiting for the flush interval. 
+	 * Defaults to 500.
+	 * 
+	 * @param maxBatchSize
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Sets for how long in milliseconds a node that has been seen is trusted to exist 
+	 * when a call is stored in write-behind mode. Defaults to 10000.
+	 * 
+	 * @param nodeCacheTtl
+	 */
+	public void setNodeCacheTtl(long nodeCacheTtl) {
+		this.nodeCacheTtl = nodeCacheTtl;
+	}
+
+	public void setWriteFailureListener(WriteFailureListener writeFailureListener) {
+		this.writeFailureListener = writeFailureListener;
+	}
+
+	public int getPendingCalls() {
+		return buffer.size();
+	}
+
+	public long getWrittenCalls() {
+		return writtenCalls.get();
+	}
+
+	public long getFailedCalls() {
+		return failedCalls.get();
+	}
+
+	/**
+	 * Number of call writes that were merged with another write of the same call 
+	 * before reaching Cassandra
+	 */
+	public long getCoalescedCalls() {
+		return buffer.getCoalesced();
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+	
+	/**
+	 * Writes the buffered calls every flush interval or as soon as there are enough 
+	 * calls to fill a batch
+	 */
+	private class CallFlusher extends Thread {
+		
+		volatile boolean running = true;
+		
+		CallFlusher() {
+			
+			super("cassandra-call-writer");
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			
+			while (running) {
+				try {
+					buffer.await(maxBatchSize, flushInterval);
+					flush();
+				} catch (InterruptedException e) {
+					running = false;
+				} catch (Exception e) {
+					log.error("Unexpected error writing calls to Cassandra", e);
+				}
+			}
+			flush();
+		}
+	}
 }
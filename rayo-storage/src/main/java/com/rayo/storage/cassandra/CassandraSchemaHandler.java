@@ -2,19 +2,25 @@ package com.rayo.storage.cassandra;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.cassandra.thrift.CfDef;
+import org.apache.cassandra.thrift.Column;
 import org.apache.cassandra.thrift.ColumnDef;
+import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.apache.cassandra.thrift.KsDef;
+import org.apache.cassandra.thrift.SuperColumn;
 import org.apache.thrift.transport.TTransportException;
 import org.scale7.cassandra.pelops.Bytes;
 import org.scale7.cassandra.pelops.Cluster;
 import org.scale7.cassandra.pelops.ColumnFamilyManager;
 import org.scale7.cassandra.pelops.KeyspaceManager;
+import org.scale7.cassandra.pelops.Mutator;
 import org.scale7.cassandra.pelops.Pelops;
+import org.scale7.cassandra.pelops.Selector;
 import org.scale7.cassandra.pelops.exceptions.NotFoundException;
 
 import com.voxeo.logging.Loggerf;
@@ -22,6 +28,11 @@ import com.voxeo.logging.Loggerf;
 /**
  * <p>This class takes responsability of all the schema management operations.</p>
  * 
+ * <p>The schema has a revision that is stored on the schema itself. Revision 2 added 
+ * the index column families that let the datastore find nodes, applications, mixers, 
+ * verbs, clients and platforms without scanning whole column families. Schemas created 
+ * with an older revision get their indexes built by {@link #migrate(String)}.</p>
+ * 
  * @author martin
  *
  */
@@ -29,6 +40,21 @@ public class CassandraSchemaHandler {
 
 	private final static Loggerf log = Loggerf.getLogger(CassandraSchemaHandler.class);
 	
+	/**
+	 * Current revision of the schema
+	 */
+	public static final int SCHEMA_REVISION = 2;
+	
+	// Rows of the indexes column family. Column names are the indexed keys.
+	static final String INDEX_APPLICATIONS = "applications";
+	static final String INDEX_CLIENTS = "clients";
+	static final String INDEX_MIXERS = "mixers";
+	static final String INDEX_PLATFORMS = "platforms";
+	static final String INDEX_VERBS = "verbs";
+	static final String INDEX_SCHEMA = "schema";
+	
+	static final int PAGE_SIZE = 100;
+	
 	private int schemaWaitPeriod = 200;
 	private boolean waitForSyncing = true;
 	
@@ -92,6 +118,9 @@ public class CassandraSchemaHandler {
 			if (!validateTable(ksDef, "ips")) return false;
 			if (!validateTable(ksDef, "calls")) return false;
 			if (!validateTable(ksDef, "jids")) return false;
+			if (!validateTable(ksDef, "indexes")) return false;
+			if (!validateTable(ksDef, "node_platforms")) return false;
+			if (!validateTable(ksDef, "application_addresses")) return false;
 			
 			return true;
 		} catch (TTransportException te) {
@@ -329,6 +358,185 @@ public class CassandraSchemaHandler {
 		} else {
 			log.debug("Found Column Family: filters");
 		}
+		
+		CfDef cfIndexes = getCfDef(ksDef, "indexes");
+		if (cfIndexes == null) {
+			log.debug("Creating new Column Family: indexes");
+			cfIndexes = new CfDef(schemaName, "indexes")
+				.setComparator_type(ColumnFamilyManager.CFDEF_COMPARATOR_BYTES);
+			cfIndexes.default_validation_class = "UTF8Type";
+			ksDef.addToCf_defs(cfIndexes);			
+			cfManager.addColumnFamily(cfIndexes);
+			waitToPropagate();
+		} else {
+			log.debug("Found Column Family: indexes");
+		}
+		
+		CfDef cfNodePlatforms = getCfDef(ksDef, "node_platforms");
+		if (cfNodePlatforms == null) {
+			log.debug("Creating new Column Family: node_platforms");
+			cfNodePlatforms = new CfDef(schemaName, "node_platforms")
+				.setComparator_type(ColumnFamilyManager.CFDEF_COMPARATOR_BYTES)
+				.setGc_grace_seconds(0);
+			cfNodePlatforms.default_validation_class = "UTF8Type";
+			ksDef.addToCf_defs(cfNodePlatforms);			
+			cfManager.addColumnFamily(cfNodePlatforms);
+			waitToPropagate();
+		} else {
+			log.debug("Found Column Family: node_platforms");
+		}
+		
+		CfDef cfApplicationAddresses = getCfDef(ksDef, "application_addresses");
+		if (cfApplicationAddresses == null) {
+			log.debug("Creating new Column Family: application_addresses");
+			cfApplicationAddresses = new CfDef(schemaName, "application_addresses")
+				.setComparator_type(ColumnFamilyManager.CFDEF_COMPARATOR_BYTES);
+			cfApplicationAddresses.default_validation_class = "UTF8Type";
+			ksDef.addToCf_defs(cfApplicationAddresses);			
+			cfManager.addColumnFamily(cfApplicationAddresses);
+			waitToPropagate();
+		} else {
+			log.debug("Found Column Family: application_addresses");
+		}
+	}
+	
+	/**
+	 * Returns the revision of the data on a schema. Schemas created before revisions 
+	 * were tracked are revision 1.
+	 * 
+	 * @param schemaName Name of the schema. A Pelops pool with this name must exist.
+	 */
+	public int getSchemaRevision(String schemaName) {
+		
+		Selector selector = Pelops.createSelector(schemaName);
+		try {
+			Column column = selector.getColumnFromRow("indexes", INDEX_SCHEMA, "revision", ConsistencyLevel.ONE);
+			return Integer.parseInt(Bytes.toUTF8(column.getValue()));
+		} catch (NotFoundException nfe) {
+			return 1;
+		}
+	}
+	
+	/**
+	 * <p>Brings the data on a schema to the current revision.</p>
+	 * 
+	 * <p>Migrating from revision 1 reads every row of the nodes, applications, addresses, 
+	 * clients, mixers and verbs column families once, page by page, and writes the 
+	 * index columns for them. It is safe to run it again if it gets interrupted.</p>
+	 * 
+	 * @param schemaName Name of the schema. A Pelops pool with this name must exist.
+	 */
+	public void migrate(String schemaName) throws Exception {
+		
+		int revision = getSchemaRevision(schemaName);
+		if (revision >= SCHEMA_REVISION) {
+			log.debug("Schema %s is already on revision %s", schemaName, revision);
+			return;
+		}
+		
+		log.info("Migrating schema %s from revision %s to revision %s", schemaName, revision, SCHEMA_REVISION);
+		buildIndexes(schemaName);
+		
+		Mutator mutator = Pelops.createMutator(schemaName);
+		mutator.writeColumn("indexes", INDEX_SCHEMA, 
+				mutator.newColumn("revision", String.valueOf(SCHEMA_REVISION)));
+		mutator.execute(ConsistencyLevel.ONE);
+		log.info("Schema %s migrated to revision %s", schemaName, SCHEMA_REVISION);
+	}
+	
+	private void buildIndexes(String schemaName) {
+		
+		Selector selector = Pelops.createSelector(schemaName);
+		
+		// Platforms and the platforms of every node
+		String start = "";
+		while (true) {
+			Map<String, List<SuperColumn>> rows = selector.getSuperColumnsFromRowsUtf8Keys(
+					"nodes", Selector.newKeyRange(start, "", PAGE_SIZE), 
+					Selector.newColumnsPredicateAll(false, Integer.MAX_VALUE), ConsistencyLevel.ONE);
+			Mutator mutator = Pelops.createMutator(schemaName);
+			for (Map.Entry<String, List<SuperColumn>> row: rows.entrySet()) {
+				if (row.getKey().equals(start) || row.getValue().isEmpty()) {
+					continue;
+				}
+				String platform = row.getKey();
+				mutator.writeColumn("indexes", INDEX_PLATFORMS, mutator.newColumn(platform, platform));
+				for (SuperColumn node: row.getValue()) {
+					mutator.writeColumn("node_platforms", Bytes.toUTF8(node.getName()), 
+							mutator.newColumn(platform, platform));
+				}
+			}
+			mutator.execute(ConsistencyLevel.ONE);
+			if (rows.size() < PAGE_SIZE) {
+				break;
+			}
+			start = lastKey(rows.keySet());
+		}
+		
+		indexRows(schemaName, "applications", INDEX_APPLICATIONS);
+		indexRows(schemaName, "clients", INDEX_CLIENTS);
+		indexRows(schemaName, "mixers", INDEX_MIXERS);
+		indexRows(schemaName, "verbs", INDEX_VERBS);
+		
+		// Addresses of every application
+		start = "";
+		while (true) {
+			Map<String, List<Column>> rows = selector.getColumnsFromRowsUtf8Keys(
+					"addresses", Selector.newKeyRange(start, "", PAGE_SIZE), 
+					Selector.newColumnsPredicateAll(false, Integer.MAX_VALUE), ConsistencyLevel.ONE);
+			Mutator mutator = Pelops.createMutator(schemaName);
+			for (Map.Entry<String, List<Column>> row: rows.entrySet()) {
+				if (row.getKey().equals(start)) {
+					continue;
+				}
+				String address = row.getKey();
+				for (Column column: row.getValue()) {
+					mutator.writeColumn("application_addresses", Bytes.toUTF8(column.getName()), 
+							mutator.newColumn(address, address));
+				}
+			}
+			mutator.execute(ConsistencyLevel.ONE);
+			if (rows.size() < PAGE_SIZE) {
+				break;
+			}
+			start = lastKey(rows.keySet());
+		}
+	}
+	
+	/**
+	 * Adds the key of every non empty row of a column family to an index row
+	 */
+	private void indexRows(String schemaName, String columnFamily, String index) {
+		
+		log.debug("Indexing column family %s", columnFamily);
+		Selector selector = Pelops.createSelector(schemaName);
+		String start = "";
+		while (true) {
+			Map<String, List<Column>> rows = selector.getColumnsFromRowsUtf8Keys(
+					columnFamily, Selector.newKeyRange(start, "", PAGE_SIZE), 
+					Selector.newColumnsPredicateAll(false, 1), ConsistencyLevel.ONE);
+			Mutator mutator = Pelops.createMutator(schemaName);
+			for (Map.Entry<String, List<Column>> row: rows.entrySet()) {
+				if (row.getKey().equals(start) || row.getValue().isEmpty()) {
+					continue;
+				}
+				mutator.writeColumn("indexes", index, mutator.newColumn(row.getKey(), row.getKey()));
+			}
+			mutator.execute(ConsistencyLevel.ONE);
+			if (rows.size() < PAGE_SIZE) {
+				break;
+			}
+			start = lastKey(rows.keySet());
+		}
+	}
+	
+	private String lastKey(Collection<String> keys) {
+		
+		String last = null;
+		for (String key: keys) {
+			last = key;
+		}
+		return last;
 	}
 	
 	private void waitToPropagate() throws Exception {
@@ -0,0 +1,35 @@
+package com.rayo.storage.cassandra;
+
+import com.rayo.server.storage.model.GatewayCall;
+
+/**
+ * <p>Gets notified when the write-behind mode of the {@link CassandraDatastore} fails to
+ * write a call to Cassandra.</p>
+ *
+ * <p>In write-behind mode calls are registered and unregistered in the background, so
+ * the caller of storeCall and removeCall never sees these errors. Failed writes are
+ * not retried. The listener can retry them or take the gateway out of service.</p>
+ *
+ * <p>Listeners are called from the write-behind thread and must not block.</p>
+ *
+ * @author martin
+ *
+ */
+public interface WriteFailureListener {
+
+	/**
+	 * A call could not be stored
+	 *
+	 * @param call Call that was not stored
+	 * @param cause Error returned by Cassandra
+	 */
+	void storeCallFailed(GatewayCall call, Exception cause);
+
+	/**
+	 * A call could not be removed
+	 *
+	 * @param callId Id of the call that was not removed
+	 * @param cause Error returned by Cassandra
+	 */
+	void removeCallFailed(String callId, Exception cause);
+}
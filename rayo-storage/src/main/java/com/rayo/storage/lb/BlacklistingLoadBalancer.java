@@ -1,7 +1,14 @@
 package com.rayo.storage.lb;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.rayo.server.storage.GatewayException;
@@ -10,8 +17,12 @@ import com.rayo.server.storage.model.RayoNode;
 import com.voxeo.logging.Loggerf;
 
 /**
- * Base class that adds blacklisting capabilities using the callback methods defined at the
- * {@link GatewayOperationListener} interface.
+ * <p>Base class that adds blacklisting capabilities using the callback methods defined at the
+ * {@link GatewayOperationListener} interface.</p>
+ * 
+ * <p>It also keeps a moving average of the latencies reported for every node. When a 
+ * request has to be retried, the alternative nodes with the same priority are tried 
+ * from the fastest to the slowest.</p>
  * 
  * @author martin
  *
@@ -24,6 +35,9 @@ public abstract class BlacklistingLoadBalancer implements GatewayLoadBalancingSt
 
 	private Map<String,Failure> clientErrors = new ConcurrentHashMap<String,Failure>();
 	
+	// Moving average of the operation latency of every node, keyed by hostname
+	private ConcurrentMap<String,AtomicLong> nodeLatencies = new ConcurrentHashMap<String,AtomicLong>();
+	
 	/**
 	 * Number of consecutive failures allowed before blacklisting a node or resource
 	 */
@@ -66,6 +80,97 @@ public abstract class BlacklistingLoadBalancer implements GatewayLoadBalancingSt
 		}
 	}
 	
+	@Override
+	public void nodeOperationSuceeded(RayoNode node, long latency) {
+		
+		AtomicLong average = nodeLatencies.get(node.getHostname());
+		if (average == null) {
+			average = new AtomicLong(latency);
+			AtomicLong existing = nodeLatencies.putIfAbsent(node.getHostname(), average);
+			if (existing != null) {
+				average = existing;
+			}
+		}
+		long current = average.get();
+		// Every new sample weights 1/8
+		while (!average.compareAndSet(current, current + (latency - current) / 8)) {
+			current = average.get();
+		}
+		nodeOperationSuceeded(node);
+	}
+	
+	/**
+	 * Moving average in milliseconds of the latencies reported for a node or 0 if 
+	 * nothing has been reported for the node yet
+	 * 
+	 * @param hostname Hostname of the node
+	 */
+	public long getNodeLatency(String hostname) {
+		
+		AtomicLong average = nodeLatencies.get(hostname);
+		return average == null ? 0 : average.get();
+	}
+	
+	/**
+	 * Moving average in milliseconds of the latencies reported for every node
+	 */
+	public Map<String, Long> getNodeLatencies() {
+		
+		Map<String, Long> latencies = new HashMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry: nodeLatencies.entrySet()) {
+			latencies.put(entry.getKey(), entry.getValue().get());
+		}
+		return latencies;
+	}
+	
+	@Override
+	public List<RayoNode> pickRayoNodes(String platformId) {
+		
+		RayoNode first = pickRayoNode(platformId);
+		if (first == null) {
+			return Collections.emptyList();
+		}
+		return candidates(first, storageService.getRayoNodes(platformId));
+	}
+	
+	/**
+	 * Builds the nodes to try for a request. The picked node goes first, followed by 
+	 * the other valid nodes sorted by priority and, within a priority, by latency.
+	 * 
+	 * @param first Node picked by the load balancing strategy
+	 * @param nodes Every node of the platform
+	 */
+	List<RayoNode> candidates(RayoNode first, List<RayoNode> nodes) {
+		
+		List<RayoNode> alternatives = new ArrayList<RayoNode>(nodes.size());
+		for (RayoNode node: nodes) {
+			if (!node.equals(first) && valid(node)) {
+				alternatives.add(node);
+			}
+		}
+		if (alternatives.size() > 1) {
+			final Map<String, Long> latencies = new HashMap<String, Long>();
+			for (RayoNode node: alternatives) {
+				latencies.put(node.getHostname(), getNodeLatency(node.getHostname()));
+			}
+			Collections.sort(alternatives, new Comparator<RayoNode>() {
+				@Override
+				public int compare(RayoNode node1, RayoNode node2) {
+					if (node1.getPriority() != node2.getPriority()) {
+						return node1.getPriority() < node2.getPriority() ? -1 : 1;
+					}
+					long latency1 = latencies.get(node1.getHostname());
+					long latency2 = latencies.get(node2.getHostname());
+					return latency1 < latency2 ? -1 : (latency1 == latency2 ? 0 : 1);
+				}
+			});
+		}
+		List<RayoNode> candidates = new ArrayList<RayoNode>(alternatives.size() + 1);
+		candidates.add(first);
+		candidates.addAll(alternatives);
+		return candidates;
+	}
+	
 	boolean valid(RayoNode node) {
 		
 		if (node.isBlackListed()) {
@@ -1,5 +1,7 @@
 package com.rayo.storage.lb;
 
+import java.util.List;
+
 import com.rayo.server.storage.model.RayoNode;
 
 
@@ -24,6 +26,20 @@ public interface GatewayLoadBalancingStrategy extends GatewayOperationListener {
 	 */
 	RayoNode pickRayoNode(String platformId);
 	
+	/**
+	 * <p>Picks the next rayo node for a given platform id together with the nodes to 
+	 * try if that one fails. The first node is the one {@link #pickRayoNode(String)} 
+	 * would have returned and the load balancing strategy advances as if it had been 
+	 * called just once. The alternatives are every other node of the platform that 
+	 * can take load, in the order they should be tried.</p>
+	 * 
+	 * @param platformId Id of the platform
+	 * 
+	 * @return List<RayoNode> Nodes to try in order or an empty list if there is no 
+	 * available node
+	 */
+	List<RayoNode> pickRayoNodes(String platformId);
+	
 	/**
 	 * Picks the next client resource for a given JID
 	 * 
@@ -33,6 +33,16 @@ public interface GatewayOperationListener {
 	 */
 	void nodeOperationSuceeded(RayoNode node);
 	
+	/**
+	 * <p>Reports a successful operation on a Rayo Node and how long the node took to 
+	 * complete it, like the time from sending a dial until the node answers with the 
+	 * new call. Load balancers can use it to prefer the nodes that answer faster.</p>
+	 * 
+	 * @param node Rayo node
+	 * @param latency Milliseconds the node took to complete the operation
+	 */
+	void nodeOperationSuceeded(RayoNode node, long latency);
+	
 	
 	/**
 	 * <p>Reports a failure on a Client resource to the load balancer system. This method gives a 
@@ -0,0 +1,261 @@
+package com.rayo.storage.lb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.rayo.server.storage.model.RayoNode;
+
+/**
+ * <p>Immutable snapshot of the Rayo Nodes of a platform, ready to be load balanced.</p>
+ *
+ * <p>Nodes are grouped in tiers by priority. Each tier keeps a precomputed weighted
+ * schedule where every node appears as many times as its share of the tier weight, in
+ * the same order the old {@link NodeSet} would have picked them. Picking a node is
+ * an atomic increment of the tier cursor and an array read, so any number of threads
+ * can pick nodes at the same time without locking.</p>
+ *
+ * <p>A snapshot is never modified. When the nodes change, a new snapshot is built and
+ * it continues the schedule where the previous one left it.</p>
+ *
+ * @author martin
+ *
+ */
+public class NodeSchedule {
+
+	/**
+	 * Schedules longer than this are built with proportionally reduced weights
+	 */
+	static final int MAX_SCHEDULE_LENGTH = 1 << 16;
+
+	private final int[] priorities;
+	private final RayoNode[][] schedules;
+	private final AtomicInteger[] cursors;
+	private final List<RayoNode> nodes;
+	private final int size;
+
+	private final long created = System.currentTimeMillis();
+	private volatile boolean stale;
+	private final AtomicBoolean rebuilding = new AtomicBoolean();
+
+	/**
+	 * Builds the snapshot for a list of nodes
+	 *
+	 * @param nodes Nodes that can take load. Unhealthy nodes must be filtered out already.
+	 * @param previous Previous snapshot of the same platform or <code>null</code>
+	 */
+	public NodeSchedule(List<RayoNode> nodes, NodeSchedule previous) {
+
+		size = nodes.size();
+		List<RayoNode> sorted = new ArrayList<RayoNode>(nodes);
+		// Stable sort, so nodes within a tier keep the order of the datastore
+		Collections.sort(sorted, new Comparator<RayoNode>() {
+			@Override
+			public int compare(RayoNode node1, RayoNode node2) {
+				return node1.getPriority() < node2.getPriority() ? -1 :
+					(node1.getPriority() == node2.getPriority() ? 0 : 1);
+			}
+		});
+		this.nodes = Collections.unmodifiableList(sorted);
+
+		List<int[]> bounds = new ArrayList<int[]>();
+		for (int i = 0; i < sorted.size(); i++) {
+			if (i == 0 || sorted.get(i).getPriority() != sorted.get(i - 1).getPriority()) {
+				bounds.add(new int[] {i, i + 1});
+			} else {
+				bounds.get(bounds.size() - 1)[1] = i + 1;
+			}
+		}
+
+		priorities = new int[bounds.size()];
+		schedules = new RayoNode[bounds.size()][];
+		cursors = new AtomicInteger[bounds.size()];
+		for (int t = 0; t < bounds.size(); t++) {
+			List<RayoNode> tier = sorted.subList(bounds.get(t)[0], bounds.get(t)[1]);
+			priorities[t] = tier.get(0).getPriority();
+			schedules[t] = schedule(tier);
+			cursors[t] = new AtomicInteger(previous == null ? 0 : previous.resumeAt(priorities[t], schedules[t]));
+		}
+	}
+
+	/**
+	 * Returns the next node of a tier
+	 *
+	 * @param tier Tier. 0 is the tier with the lowest priority value.
+	 */
+	public RayoNode next(int tier) {
+
+		RayoNode[] schedule = schedules[tier];
+		int position = cursors[tier].getAndIncrement() & Integer.MAX_VALUE;
+		return schedule[position % schedule.length];
+	}
+
+	/**
+	 * Number of picks that go through every node of a tier at least once
+	 */
+	public int length(int tier) {
+
+		return schedules[tier].length;
+	}
+
+	public int getTiers() {
+
+		return schedules.length;
+	}
+
+	/**
+	 * Every node of the snapshot once, sorted by priority. Nodes with the same priority
+	 * keep the order of the datastore.
+	 */
+	public List<RayoNode> getNodes() {
+
+		return nodes;
+	}
+
+	/**
+	 * Number of nodes in the snapshot
+	 */
+	public int size() {
+
+		return size;
+	}
+
+	public long getCreated() {
+
+		return created;
+	}
+
+	public boolean isStale() {
+
+		return stale;
+	}
+
+	/**
+	 * Flags the snapshot so it gets rebuilt on the next pick
+	 */
+	public void invalidate() {
+
+		stale = true;
+	}
+
+	/**
+	 * Returns <code>true</code> for the one caller that has to rebuild the snapshot
+	 */
+	boolean startRebuild() {
+
+		return rebuilding.compareAndSet(false, true);
+	}
+
+	void abortRebuild() {
+
+		rebuilding.set(false);
+	}
+
+	/**
+	 * Position of a new schedule right after the node last picked on the tier with the
+	 * same priority on this snapshot
+	 */
+	private int resumeAt(int priority, RayoNode[] schedule) {
+
+		for (int t = 0; t < priorities.length; t++) {
+			if (priorities[t] == priority) {
+				int position = cursors[t].get() & Integer.MAX_VALUE;
+				if (position == 0) {
+					return 0;
+				}
+				RayoNode last = schedules[t][(position - 1) % schedules[t].length];
+				for (int i = 0; i < schedule.length; i++) {
+					if (schedule[i].equals(last)) {
+						return i + 1;
+					}
+				}
+				return 0;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * <p>Builds the weighted schedule of a tier.</p>
+	 *
+	 * <p>Nodes are visited in order and each visit adds the weight of the node to its
+	 * credit. A node is picked whenever its credit reaches the weight of the heaviest
+	 * node. After as many rounds as the heaviest weight divided by the greatest common
+	 * divisor of the weights every credit is back to zero, so the picks of those rounds
+	 * repeat forever and are the schedule.</p>
+	 */
+	static RayoNode[] schedule(List<RayoNode> nodes) {
+
+		long[] weights = new long[nodes.size()];
+		long total = 0;
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] = Math.max(0, nodes.get(i).getWeight());
+			total+= weights[i];
+		}
+		if (total == 0) {
+			// No weights at all. Every node gets the same load
+			for (int i = 0; i < weights.length; i++) {
+				weights[i] = 1;
+			}
+		}
+
+		long gcd = 0;
+		long max = 0;
+		total = 0;
+		for (long weight: weights) {
+			gcd = gcd(gcd, weight);
+			max = Math.max(max, weight);
+		}
+		for (int i = 0; i < weights.length; i++) {
+			weights[i]/= gcd;
+			total+= weights[i];
+		}
+		max/= gcd;
+
+		if (total > MAX_SCHEDULE_LENGTH) {
+			long scaledTotal = 0;
+			long scaledGcd = 0;
+			for (int i = 0; i < weights.length; i++) {
+				if (weights[i] > 0) {
+					weights[i] = Math.max(1, weights[i] * MAX_SCHEDULE_LENGTH / total);
+				}
+				scaledGcd = gcd(scaledGcd, weights[i]);
+			}
+			max = 0;
+			for (int i = 0; i < weights.length; i++) {
+				weights[i]/= scaledGcd;
+				scaledTotal+= weights[i];
+				max = Math.max(max, weights[i]);
+			}
+			total = scaledTotal;
+		}
+
+		RayoNode[] schedule = new RayoNode[(int)total];
+		long[] credits = new long[weights.length];
+		long[] hits = new long[weights.length];
+		int position = 0;
+		for (long round = 0; round < max; round++) {
+			for (int i = 0; i < weights.length; i++) {
+				credits[i]+= weights[i];
+				if (credits[i] >= (hits[i] + 1) * max) {
+					hits[i]++;
+					schedule[position++] = nodes.get(i);
+				}
+			}
+		}
+		return schedule;
+	}
+
+	private static long gcd(long a, long b) {
+
+		while (b != 0) {
+			long t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+}
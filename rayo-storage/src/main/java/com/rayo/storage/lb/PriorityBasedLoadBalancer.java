@@ -1,10 +1,14 @@
 package com.rayo.storage.lb;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+import com.rayo.server.storage.DefaultGatewayStorageService;
 import com.rayo.server.storage.GatewayStorageService;
+import com.rayo.server.storage.RayoNodeListener;
 import com.rayo.server.storage.model.RayoNode;
 import com.voxeo.logging.Loggerf;
 
@@ -24,18 +28,30 @@ import com.voxeo.logging.Loggerf;
  * The weight value is relative to the values of other sibling nodes. So for example 
  * if we have two nodes with weights 10 and 20 this would mean that the second node 
  * would get twice the load than the first node.</li>
+ * <li>Nodes are picked from the most important priority that has nodes that are not 
+ * blacklisted. Only if all of them are blacklisted the next priority is used.</li>
  * </ul>
  * 
+ * <p>The nodes of each platform are kept in an immutable {@link NodeSchedule} with the 
+ * weighted sequence of picks already computed, so picking a node neither reads the 
+ * datastore nor takes any lock. The snapshot is rebuilt when a node is registered, 
+ * updated or unregistered through the storage service, including blacklisting, and 
+ * at least every <code>refreshInterval</code> milliseconds to catch up with the 
+ * changes done by other gateways.</p>
+ * 
  * <p>The algorithm to choose client resources is a simple round robin algorithm.</p>
  *  
  * @author martin
  *
  */
-public class PriorityBasedLoadBalancer extends BlacklistingLoadBalancer {
+public class PriorityBasedLoadBalancer extends BlacklistingLoadBalancer implements RayoNodeListener {
 
 	private Loggerf log = Loggerf.getLogger(PriorityBasedLoadBalancer.class);
 	
-	private Map<String, NodeSet> nodeSets = new ConcurrentHashMap<String, NodeSet>();
+	private Map<String, NodeSchedule> schedules = new ConcurrentHashMap<String, NodeSchedule>();
+
+	// Nodes registered on other gateways are seen after this time
+	private long refreshInterval = 5000;
 
 	private RoundRobinLoadBalancer delegate = new RoundRobinLoadBalancer();
 	
@@ -66,39 +82,114 @@ public class PriorityBasedLoadBalancer extends BlacklistingLoadBalancer {
 	public RayoNode pickRayoNode(String platformId) {
 
 		log.debug("Picking rayo node for platform [%s]", platformId);
-		List<RayoNode> nodes = storageService.getRayoNodes(platformId);
-		if (nodes.isEmpty()) {
+		NodeSchedule schedule = getSchedule(platformId);
+		if (schedule.size() == 0) {
 			log.debug("Could not find any available node for platform [%s]", platformId);
 			return null;
 		}
 
-		NodeSet nodeSet = nodeSets.get(platformId);
-		if (nodeSet == null) {
-			nodeSet = new NodeSet();
-			nodeSets.put(platformId, nodeSet);
-		}
-		
-		RayoNode node = nodes.get(nodes.indexOf(nodeSet.next(nodes)));
-		RayoNode last = node;
-		do {
-			if (!valid(node)) {
-				if (last == null) {
-					last = node;
+		for (int tier = 0; tier < schedule.getTiers(); tier++) {
+			for (int i = 0, length = schedule.length(tier); i < length; i++) {
+				RayoNode node = schedule.next(tier);
+				if (valid(node)) {
+					return node;
 				}
-				node = nodes.get(nodes.indexOf(nodeSet.next(nodes)));
-			}  else {
-				return node;
 			}
-			
-		} while (!last.equals(node));
+			log.debug("All available nodes with priority tier [%s] for platform [%s] are blacklisted", tier, platformId);
+		}
 		
 		log.debug("All vailable nodes for platform [%s] are blacklisted", platformId);
 		return null;
 	}
 	
+	@Override
+	public List<RayoNode> pickRayoNodes(String platformId) {
+		
+		RayoNode first = pickRayoNode(platformId);
+		if (first == null) {
+			return Collections.emptyList();
+		}
+		// The alternatives come from the same snapshot, so retries do not read the datastore
+		return candidates(first, getSchedule(platformId).getNodes());
+	}
+	
+	/**
+	 * Returns the current snapshot of the nodes of a platform, rebuilding it if it 
+	 * has been invalidated or is older than the refresh interval. Only one thread 
+	 * rebuilds a snapshot, the others keep using the old one in the meantime.
+	 */
+	private NodeSchedule getSchedule(String platformId) {
+		
+		NodeSchedule schedule = schedules.get(platformId);
+		if (schedule != null) {
+			if (!schedule.isStale() && 
+				System.currentTimeMillis() - schedule.getCreated() < refreshInterval) {
+				return schedule;
+			}
+			if (!schedule.startRebuild()) {
+				return schedule;
+			}
+		}
+		
+		List<RayoNode> nodes;
+		try {
+			nodes = storageService.getRayoNodes(platformId);
+		} catch (RuntimeException e) {
+			if (schedule != null) {
+				// Let the next pick try again
+				schedule.abortRebuild();
+			}
+			throw e;
+		}
+		List<RayoNode> healthy = new ArrayList<RayoNode>(nodes.size());
+		for (RayoNode node: nodes) {
+			if (valid(node)) {
+				healthy.add(node);
+			}
+		}
+		NodeSchedule rebuilt = new NodeSchedule(healthy, schedule);
+		if (nodes.isEmpty()) {
+			// Do not keep empty platforms. Nodes registered on other gateways would not 
+			// be seen until the next refresh
+			schedules.remove(platformId);
+		} else {
+			schedules.put(platformId, rebuilt);
+		}
+		return rebuilt;
+	}
+	
+	@Override
+	public void rayoNodeChanged(String rayoNode) {
+		
+		// Node changes are rare. Every platform is rebuilt on its next pick
+		for (NodeSchedule schedule: schedules.values()) {
+			schedule.invalidate();
+		}
+	}
+	
+	/**
+	 * Sets how often in milliseconds the nodes of a platform are read again from the 
+	 * storage service. Changes done through the storage service of this load balancer 
+	 * are seen right away, this interval only matters for changes done by other 
+	 * gateways.
+	 * 
+	 * @param refreshInterval Refresh interval in milliseconds
+	 */
+	public void setRefreshInterval(long refreshInterval) {
+		
+		this.refreshInterval = refreshInterval;
+	}
+	
 	public void setStorageService(GatewayStorageService storageService) {
 		
+		if (this.storageService instanceof DefaultGatewayStorageService) {
+			((DefaultGatewayStorageService)this.storageService).removeRayoNodeListener(this);
+		}
 		super.setStorageService(storageService);
 		delegate.setStorageService(storageService);
+		if (storageService instanceof DefaultGatewayStorageService) {
+			((DefaultGatewayStorageService)storageService).addRayoNodeListener(this);
+		}
+		schedules.clear();
 	}
 }
@@ -2,7 +2,20 @@ package com.rayo.storage.riak;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.basho.riak.client.IRiakClient;
 import com.basho.riak.client.RiakException;
@@ -37,7 +50,14 @@ import com.voxeo.logging.Loggerf;
  * IMPORTANT. BEFORE USING THIS CLASS FOR ANY PRODUCTION CODE THE FOLLOWING TODOS SHOULD BE FIXED:
  * 
  * @TODO: Use links instead of the direct collections. I have added a few but just for testing.
- * @TODO: Find a better way to run queries on properties like the one on getNodeForIpAddress
+ * 
+ * <p>Nodes by ip address, platforms and calls by node and by client are kept in 
+ * {@link RiakIndex} objects in the indexes bucket, so these lookups, which run on 
+ * every presence, are a single fetch instead of a MapReduce job.</p>
+ * 
+ * <p>The protocol buffers API has no multi-get, so bulk lookups and removals of calls 
+ * run their fetches and deletes in parallel on a small pool of threads, and update 
+ * every index they touch once instead of once per call.</p>
  * 
  * @author martin
  *
@@ -49,6 +69,8 @@ public class RiakDatastore implements GatewayDatastore {
 	private String hostname = "127.0.0.1";
 	private String port = "8081";
 	
+	private static final String PLATFORMS_INDEX = "platforms";
+	
 	private IRiakClient myPbClient;
 
 	private Bucket nodesBucket;
@@ -60,6 +82,10 @@ public class RiakDatastore implements GatewayDatastore {
 	private Bucket applicationsBucket;
 	private Bucket addressesBucket;
 	private Bucket clientsBucket;
+	private Bucket indexesBucket;
+	
+	private int fetchThreads = 8;
+	private ExecutorService fetchExecutor;
 	
 	public void init() throws Exception {
 		
@@ -75,10 +101,23 @@ public class RiakDatastore implements GatewayDatastore {
         applicationsBucket = myPbClient.createBucket("applications").execute();
         addressesBucket = myPbClient.createBucket("addresses").execute();
         clientsBucket = myPbClient.createBucket("clients").execute();
+        // Index objects are updated concurrently. Siblings are merged on read.
+        indexesBucket = myPbClient.createBucket("indexes").allowSiblings(true).execute();
+        
+        final AtomicInteger threads = new AtomicInteger();
+        fetchExecutor = Executors.newFixedThreadPool(fetchThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "riak-fetch-" + threads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 	}
 	
 	public void shutdown() {
 		
+		fetchExecutor.shutdown();
         myPbClient.shutdown();	
 	}
 
@@ -104,7 +143,14 @@ public class RiakDatastore implements GatewayDatastore {
 			log.error("Node [%s] does not exist", node);
 			throw new RayoNodeNotFoundException();
 		}
-			
+		
+		if (stored.getIpAddress() != null && !stored.getIpAddress().equals(node.getIpAddress())) {
+			try {
+				removeFromIndex(ipIndex(stored.getIpAddress()), node.getHostname());
+			} catch (RiakException e) {
+				throw new DatastoreException(e);
+			}
+		}
 		return store(node);
 	}
 	
@@ -120,7 +166,9 @@ public class RiakDatastore implements GatewayDatastore {
 				}
 				rp.addNode(node.getHostname());					
 				platformsBucket.store(rp).execute();
+				addToIndex(PLATFORMS_INDEX, platform);
 			}
+			addToIndex(ipIndex(node.getIpAddress()), node.getHostname());
 			
 		} catch (Exception e) {
 			throw new DatastoreException(e);
@@ -146,6 +194,7 @@ public class RiakDatastore implements GatewayDatastore {
 				p.removeNode(rayoNode);
 				platformsBucket.store(p).execute();
 			}
+			removeFromIndex(ipIndex(node.getIpAddress()), rayoNode);
 		} catch (Exception e) {
 			throw new DatastoreException(e);
 		}
@@ -193,22 +242,11 @@ public class RiakDatastore implements GatewayDatastore {
 	public String getNodeForIpAddress(String ip) {
 
 		log.debug("Finding node for IP address: [%s]", ip);
-	    try {  
-	    	
-	    	JSSourceFunction f = new JSSourceFunction(String.format("function(value, keyData, arg) { ejsLog('/tmp/map_reduce.log', value['values'][0]['metadata']['X-Riak-Deleted']); if (value['values'][0]['metadata']['X-Riak-Deleted']) { return [];} var data = Riak.mapValuesJson(value)[0]; if(data.ipAddress == '%s') return [value.key]; else return [];}", ip));
-	    	
-	    	final MapReduceResult mapReduceResult = 
-	    		myPbClient.mapReduce("nodes")
-	           .addMapPhase(f).execute();  
-	       Collection<String> node = mapReduceResult.getResult(String.class);
-	       if (node.size() == 0) {
-	    	   return null;
-	       }
-	       return node.iterator().next();
-	    } catch (Exception e) {
-	    	log.error(e.getMessage(), e);
-	    	return null;
-	    }
+		Set<String> nodes = getIndex(ipIndex(ip));
+		if (nodes.isEmpty()) {
+			return null;
+		}
+		return nodes.iterator().next();
 	}
 
 	@Override
@@ -227,17 +265,7 @@ public class RiakDatastore implements GatewayDatastore {
 	@Override
 	public Collection<String> getPlatforms() {
 
-	    try {  	    	
-	    	JSSourceFunction f = new JSSourceFunction("function(value, keyData, arg) { if (value['values'][0]['metadata']['X-Riak-Deleted']) { return [];} var data = Riak.mapValuesJson(value)[0]; return [value.key];}");	    	
-	    	final MapReduceResult mapReduceResult = 
-	    		myPbClient.mapReduce("platforms")
-	           .addMapPhase(f).execute();  
-	       Collection<String> platforms = mapReduceResult.getResult(String.class);
-	       return platforms;
-	    } catch (Exception e) {
-	    	log.error(e.getMessage(), e);
-	    	return null;
-	    }
+		return getIndex(PLATFORMS_INDEX);
 	}
 
 	@Override
@@ -252,6 +280,8 @@ public class RiakDatastore implements GatewayDatastore {
 		
 		try {
 			callsBucket.store(new RiakCall(call)).execute();
+			addToIndex(nodeCallsIndex(call.getNodeJid()), call.getCallId());
+			addToIndex(clientCallsIndex(call.getClientJid()), call.getCallId());
 		} catch (RiakException re) {
 			throw new DatastoreException(re.getMessage(),re);
 		}
@@ -268,6 +298,8 @@ public class RiakDatastore implements GatewayDatastore {
 		if (call != null) {
 			try {
 				callsBucket.delete(id).execute();
+				removeFromIndex(nodeCallsIndex(call.getNodeJid()), id);
+				removeFromIndex(clientCallsIndex(call.getClientJid()), id);
 			} catch (RiakException e) {
 				throw new DatastoreException(e.getMessage(),e);
 			}
@@ -275,52 +307,225 @@ public class RiakDatastore implements GatewayDatastore {
 		return call;
 	}
 
+	@Override
+	public Collection<GatewayCall> removeCalls(Collection<String> ids) throws DatastoreException {
+
+		log.debug("Removing [%s] calls", ids.size());
+		Map<String, GatewayCall> calls = getCalls(ids);
+		if (calls.isEmpty()) {
+			return new ArrayList<GatewayCall>();
+		}
+		
+		// Every node and client index loses all its calls with a single update
+		Map<String, List<String>> indexes = new HashMap<String, List<String>>();
+		for (GatewayCall call: calls.values()) {
+			addToGroup(indexes, nodeCallsIndex(call.getNodeJid()), call.getCallId());
+			addToGroup(indexes, clientCallsIndex(call.getClientJid()), call.getCallId());
+		}
+		try {
+			delete(callsBucket, calls.keySet());
+			for (Map.Entry<String, List<String>> index: indexes.entrySet()) {
+				removeFromIndex(index.getKey(), index.getValue());
+			}
+		} catch (RiakException e) {
+			throw new DatastoreException(e.getMessage(),e);
+		}
+		return new ArrayList<GatewayCall>(calls.values());
+	}
+	
+	private void addToGroup(Map<String, List<String>> groups, String key, String value) {
+		
+		List<String> values = groups.get(key);
+		if (values == null) {
+			values = new ArrayList<String>();
+			groups.put(key, values);
+		}
+		values.add(value);
+	}
+
 	@Override
 	public Collection<String> getCallsForNode(String rayoNode) {
 
-	    try {  	    	
-	    	JSSourceFunction f = new JSSourceFunction(String.format("function(value, keyData, arg) { ejsLog('/tmp/map_reduce.log', JSON.stringify(value)); if (value['values'][0]['metadata']['X-Riak-Deleted']) { return [];} var data = Riak.mapValuesJson(value)[0]; if(data.rayoNode == '%s') return [value.key]; else return [];}", rayoNode));	    	
-	    	final MapReduceResult mapReduceResult = 
-	    		myPbClient.mapReduce("calls")
-	           .addMapPhase(f).execute();  
-	       Collection<String> calls = mapReduceResult.getResult(String.class);
-	       return calls;
-	    } catch (Exception e) {
-	    	log.error(e.getMessage(), e);
-	    	return null;
-	    }		
+		return getIndex(nodeCallsIndex(rayoNode));
 	}
 
 	@Override
 	public Collection<String> getCallsForClient(String jid) {
 
-	    try {  	    	
-	    	JSSourceFunction f = new JSSourceFunction(String.format("function(value, keyData, arg) { ejsLog('/tmp/map_reduce.log', JSON.stringify(value)); if (value['values'][0]['metadata']['X-Riak-Deleted']) { return [];} var data = Riak.mapValuesJson(value)[0]; if(data.clientJid == '%s') return [value.key]; else return [];}", jid));	    	
-	    	final MapReduceResult mapReduceResult = 
-	    		myPbClient.mapReduce("calls")
-	           .addMapPhase(f).execute();  
-	       Collection<String> calls = mapReduceResult.getResult(String.class);
-	       return calls;
-	    } catch (Exception e) {
-	    	log.error(e.getMessage(), e);
-	    	return null;
-	    }
+		return getIndex(clientCallsIndex(jid));
 	}
 
 	@Override
 	public Collection<String> getCalls() {
 
-	    try {  	    	
-	    	JSSourceFunction f = new JSSourceFunction("function(value, keyData, arg) { if (value['values'][0]['metadata']['X-Riak-Deleted']) { return [];} var data = Riak.mapValuesJson(value)[0]; return [value.key];}");	    	
-	    	final MapReduceResult mapReduceResult = 
-	    		myPbClient.mapReduce("calls")
-	           .addMapPhase(f).execute();  
-	       Collection<String> calls = mapReduceResult.getResult(String.class);
-	       return calls;
-	    } catch (Exception e) {
-	    	log.error(e.getMessage(), e);
-	    	return null;
-	    }
+		// Every call belongs to a node, so there is no need for a global index that 
+		// every gateway would be updating all the time
+		// Nodes may belong to several platforms. The set drops their repeated calls.
+		Set<String> calls = new LinkedHashSet<String>();
+		for (String platform: getPlatforms()) {
+			for (RayoNode node: getRayoNodesForPlatform(platform)) {
+				if (node != null) {
+					calls.addAll(getCallsForNode(node.getHostname()));
+				}
+			}
+		}
+		return calls;
+	}
+
+	private Set<String> getIndex(String key) {
+		
+		try {
+			RiakIndex index = indexesBucket.fetch(key, RiakIndex.class)
+				.withResolver(RiakIndex.RESOLVER).execute();
+			if (index != null) {
+				return index.getValues();
+			}
+		} catch (Exception e) {
+			log.error(e.getMessage(),e);
+		}
+		return new HashSet<String>();
+	}
+	
+	private void addToIndex(String key, String value) throws RiakException {
+		
+		indexesBucket.store(key, new RiakIndex(key))
+			.withMutator(new RiakIndex.Update(key, value, true))
+			.withResolver(RiakIndex.RESOLVER).execute();
+	}
+	
+	private void removeFromIndex(String key, String value) throws RiakException {
+		
+		indexesBucket.store(key, new RiakIndex(key))
+			.withMutator(new RiakIndex.Update(key, value, false))
+			.withResolver(RiakIndex.RESOLVER).execute();
+	}
+	
+	private void removeFromIndex(String key, Collection<String> values) throws RiakException {
+		
+		indexesBucket.store(key, new RiakIndex(key))
+			.withMutator(new RiakIndex.Update(key, values, false))
+			.withResolver(RiakIndex.RESOLVER).execute();
+	}
+	
+	/**
+	 * Fetches a set of objects in parallel. Keys with no object are left out.
+	 */
+	private <T> Map<String, T> fetch(final Bucket bucket, Collection<String> keys, final Class<T> type) {
+		
+		Map<String, Future<T>> futures = new LinkedHashMap<String, Future<T>>();
+		for (final String key: new LinkedHashSet<String>(keys)) {
+			futures.put(key, fetchExecutor.submit(new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					return bucket.fetch(key, type).execute();
+				}
+			}));
+		}
+		Map<String, T> objects = new HashMap<String, T>(futures.size() * 2);
+		for (Map.Entry<String, Future<T>> future: futures.entrySet()) {
+			try {
+				T object = future.getValue().get();
+				if (object != null) {
+					objects.put(future.getKey(), object);
+				}
+			} catch (ExecutionException e) {
+				log.error(e.getCause().getMessage(),e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return objects;
+	}
+	
+	/**
+	 * Deletes a set of objects in parallel
+	 */
+	private void delete(final Bucket bucket, Collection<String> keys) throws RiakException {
+		
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(keys.size());
+		for (final String key: keys) {
+			futures.add(fetchExecutor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					bucket.delete(key).execute();
+					return null;
+				}
+			}));
+		}
+		RiakException failure = null;
+		for (Future<Void> future: futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause() instanceof RiakException ? 
+							(RiakException)e.getCause() : new RiakException(e.getCause());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RiakException(e);
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+	
+	private String ipIndex(String ip) {
+		
+		return "ip:" + ip;
+	}
+	
+	private String nodeCallsIndex(String rayoNode) {
+		
+		return "node-calls:" + rayoNode;
+	}
+	
+	private String clientCallsIndex(String jid) {
+		
+		return "client-calls:" + jid;
+	}
+
+	/**
+	 * <p>Builds the index objects from the nodes and calls already stored. Only needed 
+	 * once for data stored before the indexes existed.</p>
+	 * 
+	 * <p>This lists all the keys of the nodes and calls buckets, which is as expensive 
+	 * as a MapReduce job, so it should not be run on a busy cluster.</p>
+	 */
+	public void rebuildIndexes() throws DatastoreException {
+		
+		log.info("Rebuilding Riak indexes");
+		try {
+			for (String hostname: nodesBucket.keys()) {
+				RayoNode node = getNode(hostname);
+				if (node != null) {
+					for (String platform: node.getPlatforms()) {
+						addToIndex(PLATFORMS_INDEX, platform);
+					}
+					addToIndex(ipIndex(node.getIpAddress()), hostname);
+				}
+			}
+			for (String id: callsBucket.keys()) {
+				GatewayCall call = getCall(id);
+				if (call != null) {
+					addToIndex(nodeCallsIndex(call.getNodeJid()), id);
+					addToIndex(clientCallsIndex(call.getClientJid()), id);
+				}
+			}
+		} catch (RiakException e) {
+			throw new DatastoreException(e);
+		}
+		log.info("Riak indexes rebuilt");
+	}
+	
+	/**
+	 * Riak client used by this datastore
+	 */
+	IRiakClient getPbClient() {
+		
+		return myPbClient;
 	}
 
 	@Override
@@ -337,6 +542,17 @@ public class RiakDatastore implements GatewayDatastore {
 		return null;
 	}
 
+	@Override
+	public Map<String, GatewayCall> getCalls(Collection<String> callIds) {
+
+		Map<String, GatewayCall> calls = new HashMap<String, GatewayCall>(callIds.size() * 2);
+		for (RiakCall rc: fetch(callsBucket, callIds, RiakCall.class).values()) {
+			GatewayCall call = rc.getGatewayCall();
+			calls.put(call.getCallId(), call);
+		}
+		return calls;
+	}
+
 	@Override
 	public GatewayClient storeClient(GatewayClient client) throws DatastoreException {
 		
@@ -883,6 +1099,14 @@ public class RiakDatastore implements GatewayDatastore {
 		return filters;
 	}
 
+	/**
+	 * Number of fetches and deletes that bulk operations run in parallel
+	 */
+	public void setFetchThreads(int fetchThreads) {
+		
+		this.fetchThreads = fetchThreads;
+	}
+
 	protected void removeAllData() throws Exception {
 
         for (String k : nodesBucket.keys()) {
@@ -912,5 +1136,8 @@ public class RiakDatastore implements GatewayDatastore {
         for (String k : clientsBucket.keys()) {
         	clientsBucket.delete(k).execute();
         }	
+        for (String k : indexesBucket.keys()) {
+        	indexesBucket.delete(k).execute();
+        }	
     }	
 }
@@ -0,0 +1,193 @@
+package com.rayo.storage.riak;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.jackson.annotate.JsonCreator;
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+import com.basho.riak.client.cap.ConflictResolver;
+import com.basho.riak.client.cap.Mutation;
+import com.basho.riak.client.convert.RiakKey;
+
+/**
+ * <p>A set of values that the {@link RiakDatastore} keeps up to date so it can answer
+ * queries like "calls of a node" or "node with an ip address" with a single fetch
+ * instead of a MapReduce job.</p>
+ *
+ * <p>Several gateways may update the same index at the same time, so the indexes
+ * bucket allows siblings. Every value remembers when it was last added and when it
+ * was last removed, and siblings are merged by keeping the latest of both times. A
+ * value is in the set when it was added after it was last removed. Removal times are
+ * forgotten after {@link #TOMBSTONE_TTL} milliseconds.</p>
+ *
+ * @author martin
+ *
+ */
+public class RiakIndex {
+
+	/**
+	 * How long removals are remembered, in milliseconds. Siblings older than this
+	 * could bring removed values back.
+	 */
+	static final long TOMBSTONE_TTL = 60 * 60 * 1000;
+
+	static final ConflictResolver<RiakIndex> RESOLVER = new ConflictResolver<RiakIndex>() {
+
+		@Override
+		public RiakIndex resolve(Collection<RiakIndex> siblings) {
+
+			RiakIndex resolved = null;
+			for (RiakIndex sibling: siblings) {
+				if (sibling == null) {
+					continue;
+				}
+				if (resolved == null) {
+					resolved = sibling;
+				} else {
+					resolved.merge(sibling);
+				}
+			}
+			return resolved;
+		}
+	};
+
+	@RiakKey
+	private String key;
+
+	@JsonProperty
+	private Map<String, Long> added = new HashMap<String, Long>();
+
+	@JsonProperty
+	private Map<String, Long> removed = new HashMap<String, Long>();
+
+	@JsonCreator
+	public RiakIndex(@JsonProperty("key") String key) {
+
+		this.key = key;
+	}
+
+	public void add(String value, long time) {
+
+		put(added, value, time);
+	}
+
+	public void remove(String value, long time) {
+
+		put(removed, value, time);
+	}
+
+	public boolean contains(String value) {
+
+		Long addedAt = added.get(value);
+		if (addedAt == null) {
+			return false;
+		}
+		Long removedAt = removed.get(value);
+		return removedAt == null || addedAt > removedAt;
+	}
+
+	@JsonIgnore
+	public Set<String> getValues() {
+
+		Set<String> values = new HashSet<String>();
+		for (String value: added.keySet()) {
+			if (contains(value)) {
+				values.add(value);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Merges a sibling of this index into this index
+	 */
+	public void merge(RiakIndex sibling) {
+
+		for (Map.Entry<String, Long> entry: sibling.added.entrySet()) {
+			put(added, entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<String, Long> entry: sibling.removed.entrySet()) {
+			put(removed, entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Drops the values that have been removed and the removals older than
+	 * <code>before</code>
+	 */
+	void purge(long before) {
+
+		Iterator<Map.Entry<String, Long>> it = removed.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Long> entry = it.next();
+			Long addedAt = added.get(entry.getKey());
+			if (addedAt != null && addedAt <= entry.getValue()) {
+				added.remove(entry.getKey());
+			}
+			if (entry.getValue() < before) {
+				it.remove();
+			}
+		}
+	}
+
+	private void put(Map<String, Long> times, String value, long time) {
+
+		Long current = times.get(value);
+		if (current == null || current < time) {
+			times.put(value, time);
+		}
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public void setKey(String key) {
+		this.key = key;
+	}
+
+	/**
+	 * Adds or removes values from the index that is stored in Riak
+	 */
+	static class Update implements Mutation<RiakIndex> {
+
+		private final String key;
+		private final Collection<String> values;
+		private final boolean add;
+
+		Update(String key, String value, boolean add) {
+
+			this(key, Collections.singleton(value), add);
+		}
+
+		Update(String key, Collection<String> values, boolean add) {
+
+			this.key = key;
+			this.values = values;
+			this.add = add;
+		}
+
+		@Override
+		public RiakIndex apply(RiakIndex original) {
+
+			RiakIndex index = original == null ? new RiakIndex(key) : original;
+			long now = System.currentTimeMillis();
+			for (String value: values) {
+				if (add) {
+					index.add(value, now);
+				} else {
+					index.remove(value, now);
+				}
+			}
+			index.purge(now - TOMBSTONE_TTL);
+			return index;
+		}
+	}
+}
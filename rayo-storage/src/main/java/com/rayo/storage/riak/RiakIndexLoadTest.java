@@ -0,0 +1,127 @@
+package com.rayo.storage.riak;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.commons.lang.math.RandomUtils;
+
+import com.basho.riak.client.IRiakClient;
+import com.basho.riak.client.query.functions.JSSourceFunction;
+import com.rayo.server.storage.model.GatewayCall;
+import com.rayo.server.storage.model.RayoNode;
+
+/**
+ * <p>Compares the lookups on the hot path of the gateway with the index objects
+ * against the MapReduce jobs that the {@link RiakDatastore} used to run for them.</p>
+ *
+ * <p>Arguments: nodes, calls and lookups per query. Needs a Riak node listening on
+ * the default port of the datastore. All the data on it is removed.</p>
+ *
+ * @author martin
+ *
+ */
+public class RiakIndexLoadTest {
+
+	public static void main(String[] args) throws Exception {
+
+		int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int calls = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int lookups = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+		System.out.println("Initializing index load test");
+		final RiakDatastore store = new RiakDatastore();
+		store.init();
+		store.removeAllData();
+
+		List<String> hostnames = new ArrayList<String>();
+		List<String> ips = new ArrayList<String>();
+		for (int i = 0; i < nodes; i++) {
+			RayoNode node = new RayoNode("node" + i, "10.0." + (i / 256) + "." + (i % 256), 
+					new HashSet<String>(Arrays.asList("staging")));
+			store.storeNode(node);
+			hostnames.add(node.getHostname());
+			ips.add(node.getIpAddress());
+		}
+
+		List<String> clients = new ArrayList<String>();
+		for (int i = 0; i < calls / 10; i++) {
+			clients.add("client" + i + "@jabber.org/resource");
+		}
+		long init = System.currentTimeMillis();
+		System.out.println("Populating database with " + calls + " calls");
+		for (int i = 0; i < calls; i++) {
+			GatewayCall call = new GatewayCall();
+			call.setCallId("call" + i);
+			call.setNodeJid(hostnames.get(RandomUtils.nextInt(hostnames.size())));
+			call.setClientJid(clients.get(RandomUtils.nextInt(clients.size())));
+			store.storeCall(call);
+		}
+		System.out.println("Time taken to add the whole data: " + (System.currentTimeMillis() - init) / 1000 + " seconds");
+
+		IRiakClient client = store.getPbClient();
+		System.out.println("query\tMapReduce us\tindex us");
+
+		init = System.nanoTime();
+		for (int i = 0; i < lookups; i++) {
+			legacyNodeForIpAddress(client, ips.get(RandomUtils.nextInt(ips.size())));
+		}
+		long legacy = (System.nanoTime() - init) / lookups / 1000;
+		init = System.nanoTime();
+		for (int i = 0; i < lookups; i++) {
+			store.getNodeForIpAddress(ips.get(RandomUtils.nextInt(ips.size())));
+		}
+		report("getNodeForIpAddress", legacy, (System.nanoTime() - init) / lookups / 1000);
+
+		init = System.nanoTime();
+		for (int i = 0; i < lookups; i++) {
+			legacyCalls(client, "rayoNode", hostnames.get(RandomUtils.nextInt(hostnames.size())));
+		}
+		legacy = (System.nanoTime() - init) / lookups / 1000;
+		init = System.nanoTime();
+		for (int i = 0; i < lookups; i++) {
+			store.getCallsForNode(hostnames.get(RandomUtils.nextInt(hostnames.size())));
+		}
+		report("getCallsForNode", legacy, (System.nanoTime() - init) / lookups / 1000);
+
+		init = System.nanoTime();
+		for (int i = 0; i < lookups; i++) {
+			legacyCalls(client, "clientJid", clients.get(RandomUtils.nextInt(clients.size())));
+		}
+		legacy = (System.nanoTime() - init) / lookups / 1000;
+		init = System.nanoTime();
+		for (int i = 0; i < lookups; i++) {
+			store.getCallsForClient(clients.get(RandomUtils.nextInt(clients.size())));
+		}
+		report("getCallsForClient", legacy, (System.nanoTime() - init) / lookups / 1000);
+
+		store.removeAllData();
+		store.shutdown();
+	}
+
+	private static void report(String query, long legacy, long indexed) {
+
+		System.out.println(String.format("%s\t%s\t%s", query, legacy, indexed));
+	}
+
+	/**
+	 * Node lookup as it was done before the indexes
+	 */
+	private static String legacyNodeForIpAddress(IRiakClient client, String ip) throws Exception {
+
+    	JSSourceFunction f = new JSSourceFunction(String.format("function(value, keyData, arg) { if (value['values'][0]['metadata']['X-Riak-Deleted']) { return [];} var data = Riak.mapValuesJson(value)[0]; if(data.ipAddress == '%s') return [value.key]; else return [];}", ip));
+    	Collection<String> node = client.mapReduce("nodes").addMapPhase(f).execute().getResult(String.class);
+    	return node.isEmpty() ? null : node.iterator().next();
+	}
+
+	/**
+	 * Call lookups as they were done before the indexes
+	 */
+	private static Collection<String> legacyCalls(IRiakClient client, String property, String value) throws Exception {
+
+    	JSSourceFunction f = new JSSourceFunction(String.format("function(value, keyData, arg) { if (value['values'][0]['metadata']['X-Riak-Deleted']) { return [];} var data = Riak.mapValuesJson(value)[0]; if(data.%s == '%s') return [value.key]; else return [];}", property, value));
+    	return client.mapReduce("calls").addMapPhase(f).execute().getResult(String.class);
+	}
+}
@@ -9,6 +9,7 @@ import static org.junit.Assert.assertTrue;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
 import org.junit.Test;
 
@@ -315,6 +316,28 @@ public abstract class BaseGatewayStorageServiceTest {
 		storageService.unregistercall(callId);
 		assertNull(storageService.getclientJID(callId));
 	}
+
+	@Test
+	public void testFindClientJidsForCalls() throws Exception {
+
+		String[] platforms = new String[]{"staging"};
+		RayoNode node = buildRayoNode("node",platforms);
+		storageService.registerRayoNode(node);
+
+		String uid = String.valueOf(Math.abs(new com.eaio.uuid.UUID().getTime()));
+		String callId1 = ParticipantIDParser.encode("moho://127.0.0.1:5060/1/" + uid);
+		String callId2 = ParticipantIDParser.encode("moho://127.0.0.1:5060/1/" + uid + "1");
+		storageService.registerCall(callId1, "test1@jabber.org/a");
+		storageService.registerCall(callId2, "test2@jabber.org/b");
+
+		Map<String, String> jids = storageService.getclientJIDs(Arrays.asList(callId1, callId2, "unknown"));
+		assertEquals(2, jids.size());
+		assertEquals("test1@jabber.org/a", jids.get(callId1));
+		assertEquals("test2@jabber.org/b", jids.get(callId2));
+
+		storageService.unregistercall(callId1);
+		storageService.unregistercall(callId2);
+	}
 	
 	@Test
 	public void testClientResources() throws Exception {
@@ -0,0 +1,172 @@
+package com.rayo.storage.cassandra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.rayo.server.storage.model.GatewayCall;
+import com.rayo.storage.cassandra.CallWriteBuffer.PendingCall;
+
+public class CallWriteBufferTest {
+
+	private CallWriteBuffer buffer = new CallWriteBuffer();
+
+	@Test
+	public void testStoreIsBuffered() {
+
+		GatewayCall call = buildCall("1234", "client@jabber.org", "node1");
+		buffer.store(call);
+
+		assertEquals(1, buffer.size());
+		assertSame(call, buffer.lookup("1234").call);
+		List<PendingCall> batch = buffer.drain(10);
+		assertEquals(1, batch.size());
+		assertSame(call, batch.get(0).call);
+		assertFalse(batch.get(0).removeExisting);
+	}
+
+	@Test
+	public void testStoreAndRemoveAreCoalesced() {
+
+		GatewayCall call = buildCall("1234", "client@jabber.org", "node1");
+		buffer.store(call);
+		assertSame(call, buffer.remove("1234"));
+
+		// Never written
+		assertEquals(0, buffer.size());
+		assertNull(buffer.lookup("1234"));
+		assertTrue(buffer.drain(10).isEmpty());
+		assertEquals(1, buffer.getCoalesced());
+	}
+
+	@Test
+	public void testRemoveOfUnknownCallNeedsRead() {
+
+		assertNull(buffer.remove("1234"));
+
+		List<PendingCall> batch = buffer.drain(10);
+		assertEquals(1, batch.size());
+		assertTrue(batch.get(0).isRemoval());
+		assertTrue(batch.get(0).removeExisting);
+		assertNull(batch.get(0).existing);
+	}
+
+	@Test
+	public void testRemovedCallIsNotVisible() {
+
+		buffer.remove("1234");
+
+		PendingCall pending = buffer.lookup("1234");
+		assertTrue(pending.isRemoval());
+		assertNull(pending.call);
+	}
+
+	@Test
+	public void testInFlightCallsAreVisible() {
+
+		GatewayCall call = buildCall("1234", "client@jabber.org", "node1");
+		buffer.store(call);
+		List<PendingCall> batch = buffer.drain(10);
+
+		assertEquals(0, buffer.size());
+		assertSame(call, buffer.lookup("1234").call);
+		buffer.completed(batch);
+		assertNull(buffer.lookup("1234"));
+	}
+
+	@Test
+	public void testRemoveOfInFlightCallKnowsTheCall() {
+
+		GatewayCall call = buildCall("1234", "client@jabber.org", "node1");
+		buffer.store(call);
+		List<PendingCall> batch = buffer.drain(10);
+
+		assertSame(call, buffer.remove("1234"));
+		buffer.completed(batch);
+
+		batch = buffer.drain(10);
+		assertEquals(1, batch.size());
+		assertTrue(batch.get(0).isRemoval());
+		assertSame(call, batch.get(0).existing);
+	}
+
+	@Test
+	public void testStoreAfterRemoveCleansPreviousCall() {
+
+		buffer.remove("1234");
+		GatewayCall call = buildCall("1234", "client@jabber.org", "node1");
+		buffer.store(call);
+
+		List<PendingCall> batch = buffer.drain(10);
+		assertEquals(1, batch.size());
+		assertSame(call, batch.get(0).call);
+		assertTrue(batch.get(0).removeExisting);
+	}
+
+	@Test
+	public void testStoreOverInFlightStoreReplacesIt() {
+
+		GatewayCall call1 = buildCall("1234", "client@jabber.org", "node1");
+		GatewayCall call2 = buildCall("1234", "client@jabber.org", "node2");
+		buffer.store(call1);
+		List<PendingCall> batch = buffer.drain(10);
+		buffer.store(call2);
+		buffer.completed(batch);
+
+		assertSame(call2, buffer.lookup("1234").call);
+		batch = buffer.drain(10);
+		assertTrue(batch.get(0).removeExisting);
+		assertSame(call1, batch.get(0).existing);
+	}
+
+	@Test
+	public void testDrainKeepsOrderAndLimit() {
+
+		for (int i = 0; i < 5; i++) {
+			buffer.store(buildCall("call" + i, "client@jabber.org", "node1"));
+		}
+		// Replacing a call keeps its position
+		buffer.store(buildCall("call1", "client@jabber.org", "node2"));
+
+		List<PendingCall> batch = buffer.drain(3);
+		assertEquals(3, batch.size());
+		assertEquals("call0", batch.get(0).callId);
+		assertEquals("call1", batch.get(1).callId);
+		assertEquals("node2", batch.get(1).call.getNodeJid());
+		assertEquals("call2", batch.get(2).callId);
+		assertEquals(2, buffer.size());
+	}
+
+	@Test
+	public void testAwaitReturnsWhenBatchIsFull() throws Exception {
+
+		new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < 10; i++) {
+					buffer.store(buildCall("call" + i, "client@jabber.org", "node1"));
+				}
+			}
+		}.start();
+
+		long start = System.currentTimeMillis();
+		buffer.await(10, 10000);
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(10, buffer.size());
+	}
+
+	private GatewayCall buildCall(String id, String clientJid, String nodeJid) {
+
+		GatewayCall call = new GatewayCall();
+		call.setCallId(id);
+		call.setClientJid(clientJid);
+		call.setNodeJid(nodeJid);
+		return call;
+	}
+}
@@ -1,12 +1,18 @@
 package com.rayo.storage.cassandra;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.scale7.cassandra.pelops.Cluster;
 import org.scale7.cassandra.pelops.KeyspaceManager;
+import org.scale7.cassandra.pelops.Mutator;
 import org.scale7.cassandra.pelops.Pelops;
 
 import com.rayo.storage.test.EmbeddedCassandraTestServer;
@@ -64,4 +70,45 @@ public class CassandraSchemaHandlerTest {
 		schemaHandler.buildSchema(cluster, "rayo");
 		assertTrue(schemaHandler.validSchema(cluster, "rayo"));
 	}
+	
+	@Test
+	public void testMigrateBuildsIndexes() throws Exception {
+		
+		CassandraSchemaHandler schemaHandler = new CassandraSchemaHandler();
+		schemaHandler.setWaitForSyncing(false);
+		Cluster cluster = new Cluster("localhost", Integer.parseInt(CassandraDatastoreTest.CASSANDRA_TESTING_PORT), false);
+		schemaHandler.buildSchema(cluster, "rayo_migration");
+		Pelops.addPool("rayo_migration", cluster, "rayo_migration");
+		assertEquals(1, schemaHandler.getSchemaRevision("rayo_migration"));
+		
+		// Data written before the indexes existed
+		Mutator mutator = Pelops.createMutator("rayo_migration");
+		mutator.writeSubColumns("nodes", "staging", "node1", 
+			mutator.newColumnList(
+				mutator.newColumn("priority", "1"),
+				mutator.newColumn("weight", "10"),
+				mutator.newColumn("ip", "127.0.0.1")));
+		mutator.writeColumn("applications", "app@tropo.com", mutator.newColumn("appId", "app"));
+		mutator.writeColumn("addresses", "+1234", mutator.newColumn("app@tropo.com", "app@tropo.com"));
+		mutator.writeColumn("mixers", "mixer1", mutator.newColumn("node", "node1"));
+		mutator.writeColumn("verbs", "mixer1", mutator.newColumn("verb1", "app@tropo.com"));
+		mutator.execute(ConsistencyLevel.ONE);
+		
+		schemaHandler.migrate("rayo_migration");
+		assertEquals(CassandraSchemaHandler.SCHEMA_REVISION, schemaHandler.getSchemaRevision("rayo_migration"));
+		
+		CassandraDatastore datastore = new CassandraDatastore();
+		datastore.setPort(CassandraDatastoreTest.CASSANDRA_TESTING_PORT);
+		datastore.setSchemaName("rayo_migration");
+		datastore.setOverrideExistingSchema(false);
+		datastore.getSchemaHandler().setWaitForSyncing(false);
+		datastore.init();
+		
+		assertNotNull(datastore.getNode("node1"));
+		assertEquals(Arrays.asList("staging"), datastore.getPlatforms());
+		assertEquals(1, datastore.getApplications().size());
+		assertEquals(Arrays.asList("+1234"), datastore.getAddressesForApplication("app@tropo.com"));
+		assertEquals(1, datastore.getMixers().size());
+		assertEquals(1, datastore.getVerbs().size());
+	}
 }
@@ -0,0 +1,152 @@
+package com.rayo.storage.lb;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import com.rayo.server.storage.BaseDatastoreTest;
+import com.rayo.server.storage.DefaultGatewayStorageService;
+import com.rayo.server.storage.memory.InMemoryDatastore;
+import com.rayo.server.storage.model.RayoNode;
+
+/**
+ * <p>Measures {@link PriorityBasedLoadBalancer#pickRayoNode(String)} with several threads
+ * picking nodes at the same time, like the gateway does for dials and the SBC router
+ * does for incoming calls. It compares the precomputed {@link NodeSchedule} with the
+ * previous implementation, which read the nodes from the storage service and picked
+ * one through a locked {@link NodeSet} on every call.</p>
+ *
+ * <p>The datastore is an {@link InMemoryDatastore} that can wait on every node read to
+ * stand for a remote datastore.</p>
+ *
+ * <p>Arguments: picks per thread, threads, nodes and read latency in microseconds.</p>
+ *
+ * @author martin
+ *
+ */
+public class LoadBalancerBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		int picks = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int nodes = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		long latency = args.length > 3 ? Long.parseLong(args[3]) : 0;
+
+		DefaultGatewayStorageService storageService = new DefaultGatewayStorageService();
+		storageService.setStore(new SlowDatastore(TimeUnit.MICROSECONDS.toNanos(latency)));
+		for (int i = 0; i < nodes; i++) {
+			storageService.registerRayoNode(BaseDatastoreTest.buildRayoNode("node" + i, "10.0.0." + i,
+					new String[] {"staging"}, 10 + 10 * (i % 4), 1 + i % 2));
+		}
+
+		PriorityBasedLoadBalancer balancer = new PriorityBasedLoadBalancer();
+		balancer.setStorageService(storageService);
+		LegacyPriorityBasedLoadBalancer legacy = new LegacyPriorityBasedLoadBalancer();
+		legacy.setStorageService(storageService);
+
+		// Warm up
+		run(legacy, picks / 10, threads);
+		run(balancer, picks / 10, threads);
+
+		System.out.println(String.format("%s threads, %s nodes, %sus per node read", threads, nodes, latency));
+		System.out.println("balancer\tns/pick\tpicks/s");
+		report("legacy", run(legacy, picks, threads), picks * threads);
+		report("snapshot", run(balancer, picks, threads), picks * threads);
+		System.exit(0);
+	}
+
+	private static void report(String name, long elapsed, long picks) {
+
+		System.out.println(String.format("%s\t%s\t%s", name, elapsed / picks, picks * 1000000000L / elapsed));
+	}
+
+	private static long run(final GatewayLoadBalancingStrategy balancer, final int picks, int threads) throws Exception {
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicInteger sink = new AtomicInteger();
+		for (int t = 0; t < threads; t++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						int hash = 0;
+						for (int i = 0; i < picks; i++) {
+							hash+= balancer.pickRayoNode("staging").getWeight();
+						}
+						sink.addAndGet(hash);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		long init = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - init;
+		if (sink.get() == 42) {
+			System.out.println();
+		}
+		return elapsed;
+	}
+
+	/**
+	 * The node picking the priority based load balancer did before
+	 */
+	static class LegacyPriorityBasedLoadBalancer extends PriorityBasedLoadBalancer {
+
+		private ConcurrentHashMap<String, NodeSet> nodeSets = new ConcurrentHashMap<String, NodeSet>();
+
+		@Override
+		public RayoNode pickRayoNode(String platformId) {
+
+			List<RayoNode> nodes = storageService.getRayoNodes(platformId);
+			if (nodes.isEmpty()) {
+				return null;
+			}
+			NodeSet nodeSet = nodeSets.get(platformId);
+			if (nodeSet == null) {
+				nodeSet = new NodeSet();
+				nodeSets.put(platformId, nodeSet);
+			}
+
+			RayoNode node = nodes.get(nodes.indexOf(nodeSet.next(nodes)));
+			RayoNode last = node;
+			do {
+				if (!valid(node)) {
+					node = nodes.get(nodes.indexOf(nodeSet.next(nodes)));
+				} else {
+					return node;
+				}
+			} while (!last.equals(node));
+			return null;
+		}
+	}
+
+	static class SlowDatastore extends InMemoryDatastore {
+
+		final long latency;
+
+		SlowDatastore(long latency) {
+
+			this.latency = latency;
+		}
+
+		@Override
+		public List<RayoNode> getRayoNodesForPlatform(String platformId) {
+
+			if (latency > 0) {
+				LockSupport.parkNanos(latency);
+			}
+			return super.getRayoNodesForPlatform(platformId);
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package com.rayo.storage.lb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.rayo.server.storage.BaseDatastoreTest;
+import com.rayo.server.storage.model.RayoNode;
+
+public class NodeScheduleTest {
+
+	@Test
+	public void testSameOrderAsNodeSet() {
+
+		List<RayoNode> nodes = nodes(new int[] {10, 10, 20, 40, 10}, new int[] {1, 1, 1, 1, 1});
+		NodeSchedule schedule = new NodeSchedule(nodes, null);
+		NodeSet nodeSet = new NodeSet();
+
+		assertEquals(1, schedule.getTiers());
+		assertEquals(9, schedule.length(0));
+		for (int i = 0; i < 900; i++) {
+			assertEquals(nodeSet.next(nodes), schedule.next(0));
+		}
+	}
+
+	@Test
+	public void testDistributionIsFair() {
+
+		Random random = new Random(1234);
+		for (int run = 0; run < 50; run++) {
+			int[] weights = new int[1 + random.nextInt(10)];
+			int total = 0;
+			for (int i = 0; i < weights.length; i++) {
+				weights[i] = 1 + random.nextInt(100);
+				total+= weights[i];
+			}
+			List<RayoNode> nodes = nodes(weights, new int[weights.length]);
+			NodeSchedule schedule = new NodeSchedule(nodes, null);
+
+			Map<RayoNode, Integer> totals = new HashMap<RayoNode, Integer>();
+			int picks = total * 10;
+			for (int i = 0; i < picks; i++) {
+				inc(totals, schedule.next(0));
+			}
+			for (int i = 0; i < weights.length; i++) {
+				assertEquals("weights " + Arrays.toString(weights),
+						(Integer)(weights[i] * 10), totals.get(nodes.get(i)));
+			}
+		}
+	}
+
+	@Test
+	public void testLoadIsSpreadWithinTheSchedule() {
+
+		// A node must not get all its share in a row
+		List<RayoNode> nodes = nodes(new int[] {90, 10}, new int[] {1, 1});
+		NodeSchedule schedule = new NodeSchedule(nodes, null);
+
+		int longestRun = 0;
+		int run = 0;
+		for (int i = 0; i < schedule.length(0) * 2; i++) {
+			if (schedule.next(0).equals(nodes.get(0))) {
+				run++;
+				longestRun = Math.max(longestRun, run);
+			} else {
+				run = 0;
+			}
+		}
+		assertTrue(longestRun <= 9);
+	}
+
+	@Test
+	public void testDistributionIsFairWithConcurrentPicks() throws Exception {
+
+		final List<RayoNode> nodes = nodes(new int[] {10, 20, 30, 40}, new int[] {1, 1, 1, 1});
+		final NodeSchedule schedule = new NodeSchedule(nodes, null);
+		final Map<RayoNode, AtomicInteger> totals = new ConcurrentHashMap<RayoNode, AtomicInteger>();
+		for (RayoNode node: nodes) {
+			totals.put(node, new AtomicInteger());
+		}
+
+		int threads = 8;
+		final int picks = 10000;
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < picks; i++) {
+						totals.get(schedule.next(0)).incrementAndGet();
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		done.await();
+
+		int total = threads * picks;
+		assertEquals(total / 10, totals.get(nodes.get(0)).get());
+		assertEquals(total * 2 / 10, totals.get(nodes.get(1)).get());
+		assertEquals(total * 3 / 10, totals.get(nodes.get(2)).get());
+		assertEquals(total * 4 / 10, totals.get(nodes.get(3)).get());
+	}
+
+	@Test
+	public void testTiersByPriority() {
+
+		List<RayoNode> nodes = nodes(new int[] {10, 10, 10}, new int[] {2, 1, 2});
+		NodeSchedule schedule = new NodeSchedule(nodes, null);
+
+		assertEquals(2, schedule.getTiers());
+		assertEquals(nodes.get(1), schedule.next(0));
+		assertEquals(nodes.get(1), schedule.next(0));
+		assertEquals(nodes.get(0), schedule.next(1));
+		assertEquals(nodes.get(2), schedule.next(1));
+	}
+
+	@Test
+	public void testResumesAfterLastPickedNode() {
+
+		List<RayoNode> nodes = nodes(new int[] {10, 10, 10}, new int[] {1, 1, 1});
+		NodeSchedule schedule = new NodeSchedule(nodes.subList(0, 2), null);
+		assertEquals(nodes.get(0), schedule.next(0));
+		assertEquals(nodes.get(1), schedule.next(0));
+
+		schedule = new NodeSchedule(nodes, schedule);
+		assertEquals(nodes.get(2), schedule.next(0));
+		assertEquals(nodes.get(0), schedule.next(0));
+	}
+
+	@Test
+	public void testLongSchedulesAreScaled() {
+
+		List<RayoNode> nodes = nodes(new int[] {100003, 99991, 1}, new int[] {1, 1, 1});
+		NodeSchedule schedule = new NodeSchedule(nodes, null);
+
+		assertTrue(schedule.length(0) <= NodeSchedule.MAX_SCHEDULE_LENGTH + nodes.size());
+		List<RayoNode> picked = new ArrayList<RayoNode>();
+		for (int i = 0; i < schedule.length(0); i++) {
+			picked.add(schedule.next(0));
+		}
+		// Every node keeps some load
+		for (RayoNode node: nodes) {
+			assertTrue(picked.contains(node));
+		}
+	}
+
+	private List<RayoNode> nodes(int[] weights, int[] priorities) {
+
+		List<RayoNode> nodes = new ArrayList<RayoNode>();
+		for (int i = 0; i < weights.length; i++) {
+			nodes.add(BaseDatastoreTest.buildRayoNode("node" + i, "10.0.0." + i,
+					new String[] {"staging"}, weights[i], priorities[i]));
+		}
+		return nodes;
+	}
+
+	private void inc(Map<RayoNode, Integer> totals, RayoNode node) {
+
+		Integer count = totals.get(node);
+		totals.put(node, count == null ? 1 : count + 1);
+	}
+}
@@ -2,6 +2,9 @@ package com.rayo.storage.lb;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
 
 import org.junit.Test;
 
@@ -239,6 +242,77 @@ public abstract class PriorityBasedLoadBalancerTestBase extends LoadBalancingTes
 		assertEquals(totals.get(nodes[1]),(Integer)140);
 	}
 	
+	@Test
+	public void testNextPriorityUsedWhenAllNodesAreBlacklisted() throws Exception {
+				
+		RayoNode node1 = BaseDatastoreTest.buildRayoNode("node1","127.0.0.1", new String[] { "staging" }, 10, 1);
+		RayoNode node2 = BaseDatastoreTest.buildRayoNode("node2","10.20.120.98", new String[] { "staging" }, 10, 2);
+		storageService.registerRayoNode(node1);
+		storageService.registerRayoNode(node2);
+		assertEquals(node1, loadBalancer.pickRayoNode("staging"));
+		
+		node1.setBlackListed(true);
+		storageService.updateRayoNode(node1);
+		for (int i=0;i<10;i++) {
+			assertEquals(node2, loadBalancer.pickRayoNode("staging"));
+		}
+		
+		loadBalancer.nodeOperationSuceeded(node1);
+		assertEquals(node1, loadBalancer.pickRayoNode("staging"));
+	}
+	
+	@Test
+	public void testPickRayoNodesAdvancesOnce() throws Exception {
+				
+		RayoNode node1 = BaseDatastoreTest.buildRayoNode("node1","127.0.0.1", new String[] { "staging" }, 10);
+		RayoNode node2 = BaseDatastoreTest.buildRayoNode("node2","10.20.120.98", new String[] { "staging" }, 10);
+		RayoNode node3 = BaseDatastoreTest.buildRayoNode("node3","10.20.120.97", new String[] { "staging" }, 10);
+		storageService.registerRayoNode(node1);
+		storageService.registerRayoNode(node2);
+		storageService.registerRayoNode(node3);
+
+		assertEquals(Arrays.asList(node1, node2, node3), loadBalancer.pickRayoNodes("staging"));
+		assertEquals(node2, loadBalancer.pickRayoNode("staging"));
+		assertEquals(Arrays.asList(node3, node1, node2), loadBalancer.pickRayoNodes("staging"));
+		assertTrue(loadBalancer.pickRayoNodes("production").isEmpty());
+	}
+	
+	@Test
+	public void testAlternativesSortedByPriorityAndLatency() throws Exception {
+				
+		RayoNode node1 = BaseDatastoreTest.buildRayoNode("node1","127.0.0.1", new String[] { "staging" }, 10, 1);
+		RayoNode node2 = BaseDatastoreTest.buildRayoNode("node2","10.20.120.98", new String[] { "staging" }, 10, 1);
+		RayoNode node3 = BaseDatastoreTest.buildRayoNode("node3","10.20.120.97", new String[] { "staging" }, 10, 1);
+		RayoNode node4 = BaseDatastoreTest.buildRayoNode("node4","10.20.120.96", new String[] { "staging" }, 10, 2);
+		storageService.registerRayoNode(node1);
+		storageService.registerRayoNode(node2);
+		storageService.registerRayoNode(node3);
+		storageService.registerRayoNode(node4);
+		
+		loadBalancer.nodeOperationSuceeded(node4, 10);
+		loadBalancer.nodeOperationSuceeded(node2, 300);
+		loadBalancer.nodeOperationSuceeded(node3, 100);
+		assertEquals(300, ((BlacklistingLoadBalancer)loadBalancer).getNodeLatency(node2.getHostname()));
+		assertEquals(Arrays.asList(node1, node3, node2, node4), loadBalancer.pickRayoNodes("staging"));
+		
+		// Moves slowly towards new samples
+		loadBalancer.nodeOperationSuceeded(node2, 220);
+		assertEquals(290, ((BlacklistingLoadBalancer)loadBalancer).getNodeLatency(node2.getHostname()));
+	}
+	
+	@Test
+	public void testBlacklistedNodesAreNotAlternatives() throws Exception {
+				
+		RayoNode node1 = BaseDatastoreTest.buildRayoNode("node1","127.0.0.1", new String[] { "staging" }, 10);
+		RayoNode node2 = BaseDatastoreTest.buildRayoNode("node2","10.20.120.98", new String[] { "staging" }, 10);
+		storageService.registerRayoNode(node1);
+		storageService.registerRayoNode(node2);
+		
+		node2.setBlackListed(true);
+		storageService.updateRayoNode(node2);
+		assertEquals(Arrays.asList(node1), loadBalancer.pickRayoNodes("staging"));
+	}
+	
 	private void inc(RayoNode node) {
 
 		Integer count = totals.get(node);
@@ -0,0 +1,103 @@
+package com.rayo.storage.riak;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+public class RiakIndexTest {
+
+	@Test
+	public void testAddAndRemove() {
+
+		RiakIndex index = new RiakIndex("node-calls:node1");
+		index.add("call1", 1);
+		index.add("call2", 2);
+		index.remove("call1", 3);
+
+		assertFalse(index.contains("call1"));
+		assertTrue(index.contains("call2"));
+		assertEquals(new HashSet<String>(Arrays.asList("call2")), index.getValues());
+	}
+
+	@Test
+	public void testAddAfterRemove() {
+
+		RiakIndex index = new RiakIndex("ip:127.0.0.1");
+		index.add("node1", 1);
+		index.remove("node1", 2);
+		index.add("node1", 3);
+
+		assertTrue(index.contains("node1"));
+	}
+
+	@Test
+	public void testSiblingsAreMerged() {
+
+		RiakIndex base = new RiakIndex("client-calls:client@jabber.org");
+		base.add("call1", 1);
+
+		// Two gateways update the same version at the same time
+		RiakIndex sibling1 = new RiakIndex(base.getKey());
+		sibling1.merge(base);
+		sibling1.add("call2", 2);
+		RiakIndex sibling2 = new RiakIndex(base.getKey());
+		sibling2.merge(base);
+		sibling2.remove("call1", 3);
+		sibling2.add("call3", 3);
+
+		RiakIndex resolved = RiakIndex.RESOLVER.resolve(Arrays.asList(sibling1, null, sibling2));
+		assertEquals(new HashSet<String>(Arrays.asList("call2", "call3")), resolved.getValues());
+	}
+
+	@Test
+	public void testRemovalWinsOverOlderSibling() {
+
+		RiakIndex sibling1 = new RiakIndex("node-calls:node1");
+		sibling1.add("call1", 1);
+		RiakIndex sibling2 = new RiakIndex("node-calls:node1");
+		sibling2.add("call1", 1);
+		sibling2.remove("call1", 2);
+		sibling2.purge(0);
+
+		RiakIndex resolved = RiakIndex.RESOLVER.resolve(Arrays.asList(sibling2, sibling1));
+		assertFalse(resolved.contains("call1"));
+	}
+
+	@Test
+	public void testOldRemovalsArePurged() {
+
+		RiakIndex index = new RiakIndex("node-calls:node1");
+		index.add("call1", 1);
+		index.remove("call1", 2);
+		index.add("call2", 3);
+
+		index.purge(10);
+		assertTrue(index.getValues().equals(new HashSet<String>(Arrays.asList("call2"))));
+		// Nothing left of call1
+		index.add("call1", 0);
+		assertTrue(index.contains("call1"));
+	}
+
+	@Test
+	public void testUpdateCreatesIndex() {
+
+		RiakIndex index = new RiakIndex.Update("platforms", "staging", true).apply(null);
+		assertTrue(index.contains("staging"));
+		index = new RiakIndex.Update("platforms", "staging", false).apply(index);
+		assertFalse(index.contains("staging"));
+	}
+
+	@Test
+	public void testUpdateSeveralValues() {
+
+		RiakIndex index = new RiakIndex.Update("node-calls:node1", Arrays.asList("call1", "call2", "call3"), true).apply(null);
+		assertEquals(3, index.getValues().size());
+		index = new RiakIndex.Update("node-calls:node1", Arrays.asList("call1", "call3"), false).apply(index);
+		assertEquals(new HashSet<String>(Arrays.asList("call2")), index.getValues());
+	}
+}